@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2019 Information Management Services, Inc.
+ */
+package com.imsweb.naaccrxml.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import com.imsweb.naaccrxml.NaaccrFormat;
+import com.imsweb.naaccrxml.NaaccrIOException;
+import com.imsweb.naaccrxml.NaaccrXmlDictionaryUtils;
+import com.imsweb.naaccrxml.NaaccrXmlUtils;
+import com.imsweb.naaccrxml.PatientFlatWriter;
+import com.imsweb.naaccrxml.PatientXmlWriter;
+import com.imsweb.naaccrxml.entity.Item;
+import com.imsweb.naaccrxml.entity.NaaccrData;
+import com.imsweb.naaccrxml.entity.Patient;
+import com.imsweb.naaccrxml.entity.Tumor;
+import com.imsweb.naaccrxml.runtime.RuntimeNaaccrDictionary;
+import com.imsweb.naaccrxml.runtime.RuntimeNaaccrDictionaryItem;
+
+/**
+ * This class provides the data used by the benchmarks.
+ * <br/><br/>
+ * A data set is identified by a string:
+ * <ul>
+ * <li>"sample-[version]-[type]-[size]" for one of the sample files of the docs/samples folder (for example "sample-v180-abstract-1000")</li>
+ * <li>"synthetic-[record type]-[version]-[size]" for generated patients (for example "synthetic-I-180-10000")</li>
+ * </ul>
+ * The synthetic patients have between one and three tumors and a value for every item of the requested record type; they are always the same for a given data set.
+ */
+public final class BenchmarkData {
+
+    // the folder containing the sample files (the benchmarks run from the root of the project)
+    private static final String _SAMPLES_FOLDER = "docs/samples";
+
+    // the maximum length of the generated text values (some text items are very long)
+    private static final int _MAX_TEXT_LENGTH = 200;
+
+    private BenchmarkData() {
+        // utility class
+    }
+
+    /**
+     * Returns the root data (including all the patients) for the requested data set.
+     * @param dataSet data set identifier
+     * @return the root data, never null
+     * @throws IOException if the data set cannot be loaded
+     */
+    public static NaaccrData getData(String dataSet) throws IOException {
+        String[] parts = dataSet.split("-");
+        if (dataSet.startsWith("sample-") && parts.length == 4) {
+            File file = new File(_SAMPLES_FOLDER, "naaccr-xml-sample-" + parts[1] + "-" + parts[2] + "-" + parts[3] + ".xml.gz");
+            if (!file.exists())
+                throw new IOException("Unable to find sample file " + file.getPath() + "; the benchmarks need to run from the root of the project");
+            return NaaccrXmlUtils.readXmlFile(file, null, null, null);
+        }
+        if (dataSet.startsWith("synthetic-") && parts.length == 4)
+            return createSyntheticData(parts[1], parts[2], Integer.parseInt(parts[3]));
+        throw new IOException("Invalid data set: " + dataSet);
+    }
+
+    /**
+     * Returns the NAACCR format of the given root data.
+     * @param data root data
+     * @return the corresponding format
+     */
+    public static String getFormat(NaaccrData data) {
+        String version = NaaccrXmlDictionaryUtils.extractVersionFromUri(data.getBaseDictionaryUri());
+        return NaaccrFormat.getInstance(version, data.getRecordType()).toString();
+    }
+
+    /**
+     * Creates the requested number of synthetic patients.
+     * @param recordType record type (A, M, C or I)
+     * @param version NAACCR version (for example 180)
+     * @param numPatients number of patients to create
+     * @return the root data containing the created patients
+     * @throws NaaccrIOException if the dictionary cannot be created
+     */
+    public static NaaccrData createSyntheticData(String recordType, String version, int numPatients) throws NaaccrIOException {
+        NaaccrData data = new NaaccrData(NaaccrFormat.getInstance(version, recordType).toString());
+
+        RuntimeNaaccrDictionary dictionary = new RuntimeNaaccrDictionary(recordType, NaaccrXmlDictionaryUtils.getBaseDictionaryByVersion(version),
+                Collections.singletonList(NaaccrXmlDictionaryUtils.getDefaultUserDictionaryByVersion(version)));
+        List<RuntimeNaaccrDictionaryItem> patientItems = new ArrayList<>(), tumorItems = new ArrayList<>();
+        for (RuntimeNaaccrDictionaryItem item : dictionary.getItems()) {
+            if (NaaccrXmlUtils.NAACCR_XML_TAG_PATIENT.equals(item.getParentXmlElement()))
+                patientItems.add(item);
+            else if (NaaccrXmlUtils.NAACCR_XML_TAG_TUMOR.equals(item.getParentXmlElement()))
+                tumorItems.add(item);
+        }
+
+        Random random = new Random(numPatients);
+        for (int i = 1; i <= numPatients; i++) {
+            Patient patient = new Patient();
+            for (RuntimeNaaccrDictionaryItem item : patientItems)
+                patient.addItem(new Item(item.getNaaccrId(), "patientIdNumber".equals(item.getNaaccrId()) ? String.format("%08d", i) : createValue(item, random)));
+            int numTumors = 1 + random.nextInt(3);
+            for (int j = 1; j <= numTumors; j++) {
+                Tumor tumor = new Tumor();
+                for (RuntimeNaaccrDictionaryItem item : tumorItems)
+                    tumor.addItem(new Item(item.getNaaccrId(), createValue(item, random)));
+                patient.addTumor(tumor);
+            }
+            data.addPatient(patient);
+        }
+
+        return data;
+    }
+
+    /**
+     * Returns the content of the XML file corresponding to the given data.
+     * @param data root data
+     * @return the XML content
+     * @throws NaaccrIOException if the data cannot be written
+     */
+    public static String toXml(NaaccrData data) throws NaaccrIOException {
+        StringWriter buf = new StringWriter();
+        try (PatientXmlWriter writer = new PatientXmlWriter(buf, data)) {
+            for (Patient patient : data.getPatients())
+                writer.writePatient(patient);
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Returns the content of the flat file corresponding to the given data.
+     * @param data root data
+     * @return the flat content
+     * @throws NaaccrIOException if the data cannot be written
+     */
+    public static String toFlat(NaaccrData data) throws NaaccrIOException {
+        StringWriter buf = new StringWriter();
+        try (PatientFlatWriter writer = new PatientFlatWriter(buf, data)) {
+            for (Patient patient : data.getPatients())
+                writer.writePatient(patient);
+        }
+        return buf.toString();
+    }
+
+    private static String createValue(RuntimeNaaccrDictionaryItem item, Random random) {
+        int length = item.getLength() == null ? 1 : item.getLength();
+        StringBuilder buf = new StringBuilder();
+        String type = item.getDataType() == null ? NaaccrXmlDictionaryUtils.NAACCR_DATA_TYPE_TEXT : item.getDataType();
+        switch (type) {
+            case NaaccrXmlDictionaryUtils.NAACCR_DATA_TYPE_DATE:
+                buf.append(1950 + random.nextInt(70));
+                if (length >= 6)
+                    buf.append(String.format("%02d", 1 + random.nextInt(12)));
+                if (length >= 8)
+                    buf.append(String.format("%02d", 1 + random.nextInt(28)));
+                break;
+            case NaaccrXmlDictionaryUtils.NAACCR_DATA_TYPE_DIGITS:
+            case NaaccrXmlDictionaryUtils.NAACCR_DATA_TYPE_NUMERIC:
+                for (int i = 0; i < length; i++)
+                    buf.append((char)('0' + random.nextInt(10)));
+                break;
+            case NaaccrXmlDictionaryUtils.NAACCR_DATA_TYPE_ALPHA:
+                for (int i = 0; i < length; i++)
+                    buf.append((char)('A' + random.nextInt(26)));
+                break;
+            case NaaccrXmlDictionaryUtils.NAACCR_DATA_TYPE_MIXED:
+                for (int i = 0; i < length; i++)
+                    buf.append(random.nextBoolean() ? (char)('A' + random.nextInt(26)) : (char)('0' + random.nextInt(10)));
+                break;
+            default:
+                int textLength = Math.max(1, Math.min(length, _MAX_TEXT_LENGTH) / 2 + random.nextInt(Math.max(1, Math.min(length, _MAX_TEXT_LENGTH) / 2)));
+                for (int i = 0; i < textLength; i++)
+                    buf.append(i % 7 == 6 ? ' ' : (char)('a' + random.nextInt(26)));
+                break;
+        }
+        return buf.toString().trim();
+    }
+}
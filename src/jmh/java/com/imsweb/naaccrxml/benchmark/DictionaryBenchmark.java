@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2019 Information Management Services, Inc.
+ */
+package com.imsweb.naaccrxml.benchmark;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.imsweb.naaccrxml.NaaccrXmlDictionaryUtils;
+import com.imsweb.naaccrxml.entity.dictionary.NaaccrDictionary;
+import com.imsweb.naaccrxml.runtime.RuntimeNaaccrDictionary;
+
+/**
+ * Benchmarks the creation of the runtime dictionaries (the base and default user dictionaries themselves are loaded only once).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class DictionaryBenchmark {
+
+    @Param({"140", "150", "160", "180"})
+    protected String _version;
+
+    @Param({"A", "M", "C", "I"})
+    protected String _recordType;
+
+    protected NaaccrDictionary _baseDictionary;
+
+    protected List<NaaccrDictionary> _userDictionaries;
+
+    @Setup
+    public void setup() throws IOException {
+        _baseDictionary = NaaccrXmlDictionaryUtils.getBaseDictionaryByVersion(_version);
+        _userDictionaries = Collections.singletonList(NaaccrXmlDictionaryUtils.getDefaultUserDictionaryByVersion(_version));
+    }
+
+    @Benchmark
+    public RuntimeNaaccrDictionary createRuntimeDictionary() throws IOException {
+        return new RuntimeNaaccrDictionary(_recordType, _baseDictionary, _userDictionaries);
+    }
+
+    @Benchmark
+    public RuntimeNaaccrDictionary getCachedRuntimeDictionary() throws IOException {
+        return RuntimeNaaccrDictionary.getInstance(_recordType, _baseDictionary, _userDictionaries);
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2019 Information Management Services, Inc.
+ */
+package com.imsweb.naaccrxml.benchmark;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.imsweb.naaccrxml.NaaccrContext;
+import com.imsweb.naaccrxml.NaaccrXmlUtils;
+import com.imsweb.naaccrxml.entity.NaaccrData;
+import com.imsweb.naaccrxml.entity.Patient;
+
+/**
+ * Benchmarks translating single lines to patients and single patients to lines, using a shared context (which is the recommended usage of those methods).
+ * <br/><br/>
+ * Each invocation translates one record; the records of the data set (see BenchmarkData) are used in turn.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class LineConversionBenchmark {
+
+    @Param({"sample-v180-incidence-1000", "sample-v180-abstract-1000", "synthetic-I-180-1000", "synthetic-A-180-1000", "synthetic-C-160-1000"})
+    protected String _dataSet;
+
+    protected NaaccrContext _context;
+
+    protected List<String> _lines;
+
+    protected List<Patient> _patients;
+
+    protected int _lineIdx;
+
+    protected int _patientIdx;
+
+    @Setup
+    public void setup() throws IOException {
+        NaaccrData data = BenchmarkData.getData(_dataSet);
+        _context = new NaaccrContext(BenchmarkData.getFormat(data));
+        _lines = new ArrayList<>();
+        _patients = new ArrayList<>();
+        for (String line : BenchmarkData.toFlat(data).split("\r?\n")) {
+            _lines.add(line);
+            _patients.add(NaaccrXmlUtils.lineToPatient(line, _context));
+        }
+    }
+
+    @Benchmark
+    public Patient lineToPatient() throws IOException {
+        if (_lineIdx == _lines.size())
+            _lineIdx = 0;
+        return NaaccrXmlUtils.lineToPatient(_lines.get(_lineIdx++), _context);
+    }
+
+    @Benchmark
+    public String patientToLine() throws IOException {
+        if (_patientIdx == _patients.size())
+            _patientIdx = 0;
+        return NaaccrXmlUtils.patientToLine(_patients.get(_patientIdx++), _context);
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2019 Information Management Services, Inc.
+ */
+package com.imsweb.naaccrxml.benchmark;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.imsweb.naaccrxml.NaaccrOptions;
+import com.imsweb.naaccrxml.PatientFlatReader;
+import com.imsweb.naaccrxml.PatientXmlReader;
+import com.imsweb.naaccrxml.entity.NaaccrData;
+import com.imsweb.naaccrxml.entity.Patient;
+import com.imsweb.naaccrxml.entity.Tumor;
+
+/**
+ * Benchmarks reading all the patients of a data set (see BenchmarkData) from XML and from a flat file (eagerly and lazily); the content is kept in memory so only the parsing is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ReaderBenchmark {
+
+    @Param({"sample-v180-incidence-1000", "sample-v180-abstract-1000", "synthetic-I-180-100", "synthetic-I-180-10000", "synthetic-A-180-1000", "synthetic-C-160-1000"})
+    protected String _dataSet;
+
+    protected String _xml;
+
+    protected String _flat;
+
+    @Setup
+    public void setup() throws IOException {
+        NaaccrData data = BenchmarkData.getData(_dataSet);
+        _xml = BenchmarkData.toXml(data);
+        _flat = BenchmarkData.toFlat(data);
+    }
+
+    @Benchmark
+    public void readXmlPatients(Blackhole blackhole) throws IOException {
+        try (PatientXmlReader reader = new PatientXmlReader(new StringReader(_xml))) {
+            Patient patient = reader.readPatient();
+            while (patient != null) {
+                blackhole.consume(patient);
+                patient = reader.readPatient();
+            }
+        }
+    }
+
+    @Benchmark
+    public void readFlatPatients(Blackhole blackhole) throws IOException {
+        try (PatientFlatReader reader = new PatientFlatReader(new StringReader(_flat))) {
+            Patient patient = reader.readPatient();
+            while (patient != null) {
+                blackhole.consume(patient);
+                patient = reader.readPatient();
+            }
+        }
+    }
+
+    @Benchmark
+    public void readFlatPatientsLazily(Blackhole blackhole) throws IOException {
+        NaaccrOptions options = new NaaccrOptions();
+        options.setUseLazyEntities(true);
+        try (PatientFlatReader reader = new PatientFlatReader(new StringReader(_flat), options)) {
+            Patient patient = reader.readPatient();
+            while (patient != null) {
+                // typical extract job: only a few items are requested
+                blackhole.consume(patient.getItemValue("patientIdNumber"));
+                for (Tumor tumor : patient.getTumors())
+                    blackhole.consume(tumor.getItemValue("primarySite"));
+                patient = reader.readPatient();
+            }
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2019 Information Management Services, Inc.
+ */
+package com.imsweb.naaccrxml.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.output.NullWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.imsweb.naaccrxml.PatientFlatWriter;
+import com.imsweb.naaccrxml.PatientXmlWriter;
+import com.imsweb.naaccrxml.entity.NaaccrData;
+import com.imsweb.naaccrxml.entity.Patient;
+
+/**
+ * Benchmarks writing all the patients of a data set (see BenchmarkData) as XML and as a flat file; the content is discarded so only the serialization is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class WriterBenchmark {
+
+    @Param({"sample-v180-incidence-1000", "sample-v180-abstract-1000", "synthetic-I-180-100", "synthetic-I-180-10000", "synthetic-A-180-1000", "synthetic-C-160-1000"})
+    protected String _dataSet;
+
+    protected NaaccrData _data;
+
+    @Setup
+    public void setup() throws IOException {
+        _data = BenchmarkData.getData(_dataSet);
+    }
+
+    @Benchmark
+    public void writeXmlPatients() throws IOException {
+        try (PatientXmlWriter writer = new PatientXmlWriter(new NullWriter(), _data)) {
+            for (Patient patient : _data.getPatients())
+                writer.writePatient(patient);
+        }
+    }
+
+    @Benchmark
+    public void writeFlatPatients() throws IOException {
+        try (PatientFlatWriter writer = new PatientFlatWriter(new NullWriter(), _data)) {
+            for (Patient patient : _data.getPatients())
+                writer.writePatient(patient);
+        }
+    }
+}
@@ -14,22 +14,22 @@ import java.io.Writer;
 import java.nio.charset.StandardCharsets;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
-import java.util.Set;
 import java.util.TreeMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.StringUtils;
 
 import com.imsweb.naaccrxml.entity.Patient;
@@ -56,12 +56,18 @@ public final class BatchProcessor {
     // the list of error codes (comma separated) to process (optional, if not provided, all codes are processed)
     private static final String _OPTION_PROCESSING_ERROR_CODES = "processing.error-codes";
 
-    // the number of threads to use (optional, defaults to Min(num-processors + 1, 5))
+    // the number of threads to use to translate the patients (optional, defaults to the number of processors)
     private static final String _OPTION_PROCESSING_NUM_THREADS = "processing.num-threads";
 
     // compression for the created data files; gz, xz, none, as-input (optional, defaults to as-input)
     private static final String _OPTION_PROCESSING_COMPRESSION = "processing.compression";
 
+    // whether the progress should be recorded in the output folder so an interrupted run can be resumed: true or false (defaults to false)
+    private static final String _OPTION_PROCESSING_CHECKPOINT = "processing.checkpoint";
+
+    // the number of patients between two checkpoints of the same file (optional, defaults to 10,000)
+    private static final String _OPTION_PROCESSING_CHECKPOINT_INTERVAL = "processing.checkpoint-interval";
+
     // full path to the folder where the files should be created (required)
     private static final String _OPTION_OUTPUT_FOLDER = "output.folder";
 
@@ -77,6 +83,9 @@ public final class BatchProcessor {
     // whether or not the file names should be de-identified (defaults to false)
     private static final String _OPTION_OUTPUT_DEIDENTIFY_FILES = "output.de-identify-files";
 
+    // the folder (in the output folder) containing the checkpoints
+    private static final String _CHECKPOINT_FOLDER = ".naaccr-batch-checkpoint";
+
     /**
      * Main method, entry point.
      */
@@ -107,9 +116,15 @@ public final class BatchProcessor {
             for (String s : StringUtils.split(rawErrorCodes, ','))
                 errorCodes.add(s.trim());
         }
-        int numThreads = Math.min(Runtime.getRuntime().availableProcessors() + 1, 5);
+        int numThreads = Runtime.getRuntime().availableProcessors();
         if (opt.getProperty(_OPTION_PROCESSING_NUM_THREADS) != null && !opt.getProperty(_OPTION_PROCESSING_NUM_THREADS).isEmpty())
             numThreads = Integer.parseInt(opt.getProperty(_OPTION_PROCESSING_NUM_THREADS));
+        boolean checkpoint = opt.getProperty(_OPTION_PROCESSING_CHECKPOINT) == null ? false : Boolean.valueOf(opt.getProperty(_OPTION_PROCESSING_CHECKPOINT));
+        int checkpointInterval = 10000;
+        if (opt.getProperty(_OPTION_PROCESSING_CHECKPOINT_INTERVAL) != null && !opt.getProperty(_OPTION_PROCESSING_CHECKPOINT_INTERVAL).isEmpty())
+            checkpointInterval = Integer.parseInt(opt.getProperty(_OPTION_PROCESSING_CHECKPOINT_INTERVAL));
+        if (checkpointInterval < 1)
+            throw new RuntimeException("Invalid checkpoint interval (must be positive).");
         if (opt.getProperty(_OPTION_OUTPUT_FOLDER) == null || opt.getProperty(_OPTION_OUTPUT_FOLDER).isEmpty())
             throw new RuntimeException("Option " + _OPTION_OUTPUT_FOLDER + " is required.");
         String compression = opt.getProperty(_OPTION_PROCESSING_COMPRESSION);
@@ -142,14 +157,24 @@ public final class BatchProcessor {
             }
         }
 
+        // the biggest files are started first, so they don't end up being the only ones still running at the end
+        toProcess.sort(Comparator.comparingLong(File::length).reversed());
+
         // we will report the information in this collection
         Map<String, List<String>> reportData = new TreeMap<>();
-        Map<String, AtomicInteger> globalCounts = new HashMap<>();
-        Map<String, Set<String>> globalDetails = new HashMap<>();
+        NaaccrErrorStatistics globalStats = new NaaccrErrorStatistics();
         AtomicInteger globalTumorCount = new AtomicInteger();
 
-        // create the work
+        // when checkpointing, the progress of each file is recorded in its own checkpoint, so the files don't compete for it; the files that were completed
+        // by a previous run are skipped and the other ones are resumed from their last checkpoint
+        File checkpointDir = checkpoint ? new File(outputDir, _CHECKPOINT_FOLDER) : null;
+        if (checkpointDir != null && !checkpointDir.exists() && !checkpointDir.mkdirs())
+            throw new RuntimeException("Unable to create checkpoint folder.");
+
+        // create the work; each file is read and written by its own threads, but its patients are translated by a work-stealing pool shared by all the
+        // files, in chunks of patients; so the threads that are not needed by the small files help with the big ones (the outputs are still written in order)
         long start = System.currentTimeMillis();
+        ExecutorService workers = new ForkJoinPool(numThreads);
         ExecutorService executor = Executors.newFixedThreadPool(numThreads);
         for (File inputFile : toProcess) {
             String outputFilename = invertFilename(inputFile, compression);
@@ -161,12 +186,23 @@ public final class BatchProcessor {
                 outputFile.deleteOnExit();
             List<String> data = new ArrayList<>();
             reportData.put(inputFile.getName(), data);
-            executor.execute(new FileProcessor(inputFile, outputFile, data, cleanCreatedFiles, "flat-to-xml".equals(mode), globalCounts, globalDetails, globalTumorCount, errorCodes));
+            executor.execute(new FileProcessor(inputFile, outputFile, data, cleanCreatedFiles, "flat-to-xml".equals(mode), globalStats, globalTumorCount, errorCodes, workers, numThreads * 4,
+                    checkpointDir, checkpointInterval));
         }
         executor.shutdown();
 
         // wait for the work to be completed
         executor.awaitTermination(1, TimeUnit.DAYS);
+        workers.shutdown();
+
+        // the checkpoints are only needed to resume the files that couldn't be processed
+        if (checkpointDir != null) {
+            boolean allCompleted = true;
+            for (File inputFile : toProcess)
+                allCompleted &= FileCheckpoint.isCompleted(checkpointDir, new File(outputDir, invertFilename(inputFile, compression)));
+            if (allCompleted)
+                FileUtils.deleteDirectory(checkpointDir);
+        }
 
         // write the report
         if (createReport) {
@@ -175,26 +211,13 @@ public final class BatchProcessor {
             reportWriter.write("Report created on " + new Date() + "\n\n");
             reportWriter.write("total number of files: " + formatNumber(toProcess.size()) + "\n");
             reportWriter.write("total processing time: " + formatTime(System.currentTimeMillis() - start) + "\n");
+            reportWriter.write("number of threads: " + numThreads + "\n");
             reportWriter.write("total number of processed tumors: " + formatNumber(globalTumorCount.get()) + "\n");
             reportWriter.write("combined warnings:\n");
-
-            int globalCount = 0;
-            for (String code : NaaccrErrorUtils.getAllValidationErrors().keySet()) {
-                if (errorCodes != null && !errorCodes.contains(code))
-                    continue;
-                int count = globalCounts.containsKey(code) ? globalCounts.get(code).get() : 0;
-                if (count > 0) {
-                    reportWriter.write("      " + code + ": " + formatNumber(count) + " cases\n");
-                    if (globalDetails.containsKey(code)) {
-                        List<String> list = new ArrayList<>(globalDetails.get(code));
-                        Collections.sort(list);
-                        reportWriter.write("         involved item(s): " + list.size() + " " + list + "\n");
-                    }
-                }
-                globalCount += count;
+            for (String line : createWarningLines(globalStats, errorCodes)) {
+                reportWriter.write(line);
+                reportWriter.write("\n");
             }
-            if (globalCount == 0)
-                reportWriter.write("      no warning found\n");
 
             for (Entry<String, List<String>> entry : reportData.entrySet()) {
                 reportWriter.write("\n\n");
@@ -274,70 +297,80 @@ public final class BatchProcessor {
         private File _outputFile;
         private List<String> _reportData;
         private boolean _deleteOutputFiles, _flatToXml;
-        private Map<String, AtomicInteger> _globalCounts;
-        private Map<String, Set<String>> _globalDetails;
+        private NaaccrErrorStatistics _globalStats;
         private AtomicInteger _globalTumorCount;
         private List<String> _errorCodes;
+        private ExecutorService _workers;
+        private int _maxChunksInFlight;
+        private File _checkpointDir;
+        private int _checkpointInterval;
 
-        public FileProcessor(File inputFile, File outputFile, List<String> reportData, boolean deleteOutputFiles, boolean flatToXml, Map<String, AtomicInteger> globalCounts, Map<String, Set<String>> globalDetails, AtomicInteger globalTumorCount, List<String> errorCodes) {
+        public FileProcessor(File inputFile, File outputFile, List<String> reportData, boolean deleteOutputFiles, boolean flatToXml, NaaccrErrorStatistics globalStats, AtomicInteger globalTumorCount, List<String> errorCodes, ExecutorService workers, int maxChunksInFlight, File checkpointDir, int checkpointInterval) {
             _inputFile = inputFile;
             _outputFile = outputFile;
             _reportData = reportData;
             _deleteOutputFiles = deleteOutputFiles;
             _flatToXml = flatToXml;
-            _globalCounts = globalCounts;
-            _globalDetails = globalDetails;
+            _globalStats = globalStats;
             _globalTumorCount = globalTumorCount;
             _errorCodes = errorCodes;
+            _workers = workers;
+            _maxChunksInFlight = maxChunksInFlight;
+            _checkpointDir = checkpointDir;
+            _checkpointInterval = checkpointInterval;
         }
 
         @Override
         @SuppressWarnings("ResultOfMethodCallIgnored")
         public void run() {
 
-            Map<String, AtomicInteger> warningCounts = new HashMap<>();
-            Map<String, Set<String>> warningDetails = new HashMap<>();
+            // the statistics of the file are merged into the global ones once the file is processed, so the threads don't compete for the global counters
+            NaaccrErrorStatistics stats = new NaaccrErrorStatistics();
             AtomicInteger tumorCount = new AtomicInteger();
 
             NaaccrOptions options = new NaaccrOptions();
             options.setReportLevelMismatch(true);
-            NaaccrObserver observer = new FileObserver(warningCounts, warningDetails, tumorCount, _globalCounts, _globalDetails, _globalTumorCount);
+            NaaccrObserver observer = new FileObserver(stats, tumorCount);
 
             try {
                 long start = System.currentTimeMillis();
-
-                if (_flatToXml)
-                    NaaccrXmlUtils.flatToXml(_inputFile, _outputFile, options, null, observer);
-                else
-                    NaaccrXmlUtils.xmlToFlat(_inputFile, _outputFile, options, null, observer);
+                long processingTime;
+
+                if (_checkpointDir == null) {
+                    if (_flatToXml)
+                        ParallelConverter.flatToXml(_inputFile, _outputFile, options, null, observer, _workers, _maxChunksInFlight);
+                    else
+                        ParallelConverter.xmlToFlat(_inputFile, _outputFile, options, null, observer, _workers, _maxChunksInFlight);
+                    processingTime = System.currentTimeMillis() - start;
+                }
+                else {
+                    // the checkpoint restores the statistics of the patients that were already processed
+                    FileCheckpoint checkpoint = new FileCheckpoint(_checkpointDir, _inputFile, _outputFile, _flatToXml, stats, tumorCount);
+                    if (checkpoint.getNumPatients() > 0)
+                        _reportData.add("   resumed from checkpoint: " + formatNumber(checkpoint.getNumPatients()) + " patient(s) already processed");
+                    if (!checkpoint.isCompleted()) {
+                        SegmentedWriter output = new SegmentedWriter(_outputFile, checkpoint.getSegmentsDir(), checkpoint.getNumSegments(), checkpoint.getNumPatients(),
+                                _checkpointInterval, checkpoint);
+                        if (_flatToXml)
+                            ParallelConverter.flatToXml(_inputFile, output, options, null, observer, _workers, _maxChunksInFlight);
+                        else
+                            ParallelConverter.xmlToFlat(_inputFile, output, options, null, observer, _workers, _maxChunksInFlight);
+                    }
+                    processingTime = checkpoint.getProcessingTime();
+                }
 
                 _reportData.add("   original size: " + formatFileSize(_inputFile.length()));
                 _reportData.add("   created size: " + formatFileSize(_outputFile.length()));
-                _reportData.add("   processing time: " + formatTime(System.currentTimeMillis() - start));
+                _reportData.add("   processing time: " + formatTime(processingTime));
                 _reportData.add("   number of processed tumors: " + formatNumber(tumorCount.get()));
                 _reportData.add("   warnings:");
-
-                int globalCount = 0;
-                for (String code : NaaccrErrorUtils.getAllValidationErrors().keySet()) {
-                    if (_errorCodes != null && !_errorCodes.contains(code))
-                        continue;
-                    int count = warningCounts.containsKey(code) ? warningCounts.get(code).get() : 0;
-                    if (count > 0) {
-                        _reportData.add("      " + code + ": " + formatNumber(count) + " cases");
-                        if (warningDetails.containsKey(code)) {
-                            List<String> list = new ArrayList<>(warningDetails.get(code));
-                            Collections.sort(list);
-                            _reportData.add("         involved item(s): " + list.size() + " " + list);
-                        }
-                    }
-                    globalCount += count;
-                }
-                if (globalCount == 0)
-                    _reportData.add("      no warning found");
+                _reportData.addAll(createWarningLines(stats, _errorCodes));
             }
             catch (NaaccrIOException e) {
                 _reportData.add("   processing error: " + e.getMessage());
             }
+            _globalStats.merge(stats);
+            _globalTumorCount.addAndGet(tumorCount.get());
 
             if (_deleteOutputFiles)
                 if (!_outputFile.delete())
@@ -345,63 +378,169 @@ public final class BatchProcessor {
         }
     }
 
-    private static final class FileObserver implements NaaccrObserver {
+    // the progress of a file, recorded in the checkpoint folder after each committed segment of the output file
+    private static final class FileCheckpoint implements SegmentedWriter.Listener {
+
+        private File _file;
+        private File _segmentsDir;
+        private Properties _properties;
+        private NaaccrErrorStatistics _stats;
+        private AtomicInteger _tumorCount;
+        private int _numSegments;
+        private long _numPatients;
+        private long _previousProcessingTime;
+        private long _start;
+        private boolean _completed;
+
+        public FileCheckpoint(File checkpointDir, File inputFile, File outputFile, boolean flatToXml, NaaccrErrorStatistics stats, AtomicInteger tumorCount) throws NaaccrIOException {
+            _file = getCheckpointFile(checkpointDir, outputFile);
+            _segmentsDir = new File(checkpointDir, outputFile.getName() + ".segments");
+            _stats = stats;
+            _tumorCount = tumorCount;
+            _start = System.currentTimeMillis();
+
+            // the checkpoint is only used if it was created from the same input file, and if its output (or its segments) still exist
+            _properties = new Properties();
+            _properties.setProperty("input.length", String.valueOf(inputFile.length()));
+            _properties.setProperty("input.last-modified", String.valueOf(inputFile.lastModified()));
+            _properties.setProperty("mode", flatToXml ? "flat-to-xml" : "xml-to-flat");
+            Properties previous = readCheckpoint(_file);
+            if (previous != null && _properties.entrySet().stream().allMatch(e -> e.getValue().equals(previous.getProperty((String)e.getKey())))) {
+                boolean completed = Boolean.parseBoolean(previous.getProperty("completed"));
+                int numSegments = Integer.parseInt(previous.getProperty("segments", "0"));
+                if (completed ? outputFile.exists() : SegmentedWriter.hasSegments(outputFile, _segmentsDir, numSegments)) {
+                    _completed = completed;
+                    _numSegments = numSegments;
+                    _numPatients = Long.parseLong(previous.getProperty("patients", "0"));
+                    _previousProcessingTime = Long.parseLong(previous.getProperty("processing-time", "0"));
+                    _tumorCount.set(Integer.parseInt(previous.getProperty("tumors", "0")));
+                    for (int i = 0; previous.getProperty("warning." + i + ".code") != null; i++) {
+                        String items = previous.getProperty("warning." + i + ".items", "");
+                        _stats.addErrors(previous.getProperty("warning." + i + ".code"), Long.parseLong(previous.getProperty("warning." + i + ".count")),
+                                items.isEmpty() ? null : Arrays.asList(StringUtils.split(items, ',')));
+                    }
+                }
+            }
+        }
 
-        private Map<String, AtomicInteger> _warningCounts, _globalCounts;
-        private Map<String, Set<String>> _warningDetails, _globalDetails;
-        private AtomicInteger _tumorCount, _globalTumorCount;
+        private static File getCheckpointFile(File checkpointDir, File outputFile) {
+            return new File(checkpointDir, outputFile.getName() + ".properties");
+        }
 
-        public FileObserver(Map<String, AtomicInteger> warningCounts, Map<String, Set<String>> warningDetails, AtomicInteger tumorCount, Map<String, AtomicInteger> globalCounts, Map<String, Set<String>> globalDetails, AtomicInteger globalTumorCount) {
-            _warningCounts = warningCounts;
-            _warningDetails = warningDetails;
-            _tumorCount = tumorCount;
-            _globalCounts = globalCounts;
-            _globalDetails = globalDetails;
-            _globalTumorCount = globalTumorCount;
+        private static Properties readCheckpoint(File file) throws NaaccrIOException {
+            if (!file.exists())
+                return null;
+            try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+                Properties properties = new Properties();
+                properties.load(reader);
+                return properties;
+            }
+            catch (IOException | RuntimeException e) {
+                throw new NaaccrIOException("unable to read checkpoint " + file.getPath() + ": " + e.getMessage());
+            }
+        }
+
+        public static boolean isCompleted(File checkpointDir, File outputFile) throws NaaccrIOException {
+            Properties properties = readCheckpoint(getCheckpointFile(checkpointDir, outputFile));
+            return properties != null && Boolean.parseBoolean(properties.getProperty("completed"));
+        }
+
+        public File getSegmentsDir() {
+            return _segmentsDir;
+        }
+
+        public int getNumSegments() {
+            return _numSegments;
+        }
+
+        public long getNumPatients() {
+            return _numPatients;
+        }
+
+        public boolean isCompleted() {
+            return _completed;
+        }
+
+        public long getProcessingTime() {
+            return _previousProcessingTime + System.currentTimeMillis() - _start;
         }
 
         @Override
-        public void patientRead(Patient patient) {
-            handlePatient(patient);
+        public void segmentCommitted(int numSegments, long numPatients) throws IOException {
+            _numSegments = numSegments;
+            _numPatients = numPatients;
+            save();
         }
 
         @Override
-        public void patientWritten(Patient patient) {
-            handlePatient(patient);
-            _tumorCount.addAndGet(patient.getTumors().size());
-            _globalTumorCount.addAndGet(patient.getTumors().size());
+        public void outputCompleted() throws IOException {
+            _completed = true;
+            save();
         }
 
-        private void handlePatient(Patient patient) {
-            for (NaaccrValidationError error : patient.getAllValidationErrors()) {
+        // the statistics are up-to-date since they are updated by the writing thread, which is also the one calling the listener
+        private void save() throws IOException {
+            Properties properties = new Properties();
+            properties.putAll(_properties);
+            properties.setProperty("completed", String.valueOf(_completed));
+            properties.setProperty("segments", String.valueOf(_numSegments));
+            properties.setProperty("patients", String.valueOf(_numPatients));
+            properties.setProperty("tumors", String.valueOf(_tumorCount.get()));
+            properties.setProperty("processing-time", String.valueOf(getProcessingTime()));
+            List<String> codes = _stats.getCodes();
+            for (int i = 0; i < codes.size(); i++) {
+                properties.setProperty("warning." + i + ".code", codes.get(i));
+                properties.setProperty("warning." + i + ".count", String.valueOf(_stats.getCount(codes.get(i))));
+                properties.setProperty("warning." + i + ".items", StringUtils.join(_stats.getNaaccrIds(codes.get(i)), ','));
+            }
 
-                // file count
-                AtomicInteger count = _warningCounts.get(error.getCode());
-                if (count == null)
-                    _warningCounts.put(error.getCode(), new AtomicInteger(1));
-                else
-                    count.incrementAndGet();
+            // the checkpoint is replaced atomically, so an interruption can't leave it half-written
+            File tmpFile = new File(_file.getParentFile(), _file.getName() + ".tmp");
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(tmpFile), StandardCharsets.UTF_8)) {
+                properties.store(writer, null);
+            }
+            SegmentedWriter.move(tmpFile, _file);
+        }
+    }
 
-                // global count
-                AtomicInteger globalCount = _globalCounts.get(error.getCode());
-                if (globalCount == null)
-                    _globalCounts.put(error.getCode(), new AtomicInteger(1));
-                else
-                    globalCount.incrementAndGet();
+    private static final class FileObserver implements NaaccrObserver {
 
-                if (error.getNaaccrId() != null) {
+        private NaaccrErrorStatistics _stats;
+        private AtomicInteger _tumorCount;
 
-                    // file properties
-                    _warningDetails.computeIfAbsent(error.getCode(), k -> new HashSet<>()).add(error.getNaaccrId());
+        public FileObserver(NaaccrErrorStatistics stats, AtomicInteger tumorCount) {
+            _stats = stats;
+            _tumorCount = tumorCount;
+        }
 
-                    // global properties
-                    _globalDetails.computeIfAbsent(error.getCode(), k -> new HashSet<>()).add(error.getNaaccrId());
-                }
-            }
+        @Override
+        public void patientRead(Patient patient) {
+            // the errors are gathered once the patient is written, since the writer can also report errors
+        }
+
+        @Override
+        public void patientWritten(Patient patient) {
+            _stats.addPatient(patient);
+            _tumorCount.addAndGet(patient.getTumors().size());
+        }
+    }
+
+    private static List<String> createWarningLines(NaaccrErrorStatistics stats, List<String> errorCodes) {
+        List<String> lines = new ArrayList<>();
+        for (String code : stats.getCodes()) {
+            if (errorCodes != null && !errorCodes.contains(code))
+                continue;
+            lines.add("      " + code + ": " + formatNumber(stats.getCount(code)) + " cases");
+            List<String> naaccrIds = stats.getNaaccrIds(code);
+            if (!naaccrIds.isEmpty())
+                lines.add("         involved item(s): " + naaccrIds.size() + " " + naaccrIds);
         }
+        if (lines.isEmpty())
+            lines.add("      no warning found");
+        return lines;
     }
 
-    public static String formatNumber(int num) {
+    public static String formatNumber(long num) {
         DecimalFormat format = new DecimalFormat();
         format.setDecimalSeparatorAlwaysShown(false);
         return format.format(num);
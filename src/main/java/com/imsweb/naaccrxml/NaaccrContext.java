@@ -66,7 +66,7 @@ public class NaaccrContext {
         NaaccrFormat nf = NaaccrFormat.getInstance(format);
         NaaccrDictionary baseDictionary = NaaccrXmlDictionaryUtils.getBaseDictionaryByVersion(nf.getNaaccrVersion());
         try {
-            _streamConfiguration.setCachedDictionary(new RuntimeNaaccrDictionary(nf.getRecordType(), baseDictionary, userDictionaries));
+            _streamConfiguration.setCachedDictionary(RuntimeNaaccrDictionary.getInstance(nf.getRecordType(), baseDictionary, userDictionaries));
         }
         catch (NaaccrIOException e) {
             throw new RuntimeException(e);
@@ -0,0 +1,21 @@
+/*
+ * Copyright (C) 2019 Information Management Services, Inc.
+ */
+package com.imsweb.naaccrxml;
+
+/**
+ * Validates the values of a NAACCR data type (see the NAACCR_DATA_TYPE_XXX constants in NaaccrXmlDictionaryUtils).
+ * <br/><br/>
+ * The validators of the built-in data types check the characters of the value directly; they accept exactly the same values as the corresponding
+ * patterns (see NaaccrXmlDictionaryUtils.getDataTypePattern()) but don't allocate any object, which matters since they are called for every value read.
+ */
+@FunctionalInterface
+public interface NaaccrDataTypeValidator {
+
+    /**
+     * Returns true if the given value is valid for the data type.
+     * @param value value to validate, required
+     * @return true if the value is valid
+     */
+    boolean isValid(String value);
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2019 Information Management Services, Inc.
+ */
+package com.imsweb.naaccrxml;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import com.imsweb.naaccrxml.entity.Patient;
+
+/**
+ * Aggregates the validation errors of many patients: the number of errors for each code, and the NAACCR IDs of the items involved in those errors.
+ * <br/><br/>
+ * This class is thread-safe and can be updated concurrently without any locking (the counters are LongAdder instances and the involved items are kept
+ * in concurrent sets); it is also cheap to use from a single thread. A common pattern is to use one instance per file (or per thread) and to merge them
+ * into a global instance once the file is processed.
+ */
+public final class NaaccrErrorStatistics {
+
+    // the number of errors for each code
+    private final Map<String, LongAdder> _counts = new ConcurrentHashMap<>();
+
+    // the NAACCR IDs of the items involved in the errors, for each code
+    private final Map<String, Set<String>> _naaccrIds = new ConcurrentHashMap<>();
+
+    // cached consumer, used to go through the errors of the patients
+    private final Consumer<NaaccrValidationError> _consumer = this::addError;
+
+    /**
+     * Adds all the validation errors of the given patient (including the errors of its items and tumors).
+     * @param patient patient, required
+     */
+    public void addPatient(Patient patient) {
+        patient.forEachValidationError(_consumer);
+    }
+
+    /**
+     * Adds the given validation error.
+     * @param error error, required
+     */
+    public void addError(NaaccrValidationError error) {
+        addError(error.getCode(), error.getNaaccrId());
+    }
+
+    /**
+     * Adds a validation error with the given code and item.
+     * @param code error code, required
+     * @param naaccrId NAACCR ID of the item involved in the error, can be null
+     */
+    public void addError(String code, String naaccrId) {
+        LongAdder count = _counts.get(code);
+        if (count == null)
+            count = _counts.computeIfAbsent(code, k -> new LongAdder());
+        count.increment();
+
+        if (naaccrId != null) {
+            Set<String> ids = _naaccrIds.get(code);
+            if (ids == null)
+                ids = _naaccrIds.computeIfAbsent(code, k -> ConcurrentHashMap.newKeySet());
+            // the same few items are reported over and over, checking first avoids locking the set for those
+            if (!ids.contains(naaccrId))
+                ids.add(naaccrId);
+        }
+    }
+
+    /**
+     * Adds several validation errors with the given code (typically to restore statistics that were saved with getCount() and getNaaccrIds()).
+     * @param code error code, required
+     * @param count number of errors to add
+     * @param naaccrIds NAACCR IDs of the items involved in those errors, can be null
+     */
+    public void addErrors(String code, long count, Collection<String> naaccrIds) {
+        if (count > 0)
+            _counts.computeIfAbsent(code, k -> new LongAdder()).add(count);
+        if (naaccrIds != null && !naaccrIds.isEmpty())
+            _naaccrIds.computeIfAbsent(code, k -> ConcurrentHashMap.newKeySet()).addAll(naaccrIds);
+    }
+
+    /**
+     * Adds the counts and involved items of the given statistics to this instance.
+     * @param other statistics to merge, required
+     */
+    public void merge(NaaccrErrorStatistics other) {
+        other._counts.forEach((code, count) -> _counts.computeIfAbsent(code, k -> new LongAdder()).add(count.sum()));
+        other._naaccrIds.forEach((code, ids) -> _naaccrIds.computeIfAbsent(code, k -> ConcurrentHashMap.newKeySet()).addAll(ids));
+    }
+
+    /**
+     * Returns the number of errors for the given code.
+     * @param code error code
+     * @return number of errors, 0 if there is no error for that code
+     */
+    public long getCount(String code) {
+        LongAdder count = _counts.get(code);
+        return count == null ? 0 : count.sum();
+    }
+
+    /**
+     * Returns the total number of errors.
+     * @return total number of errors
+     */
+    public long getTotalCount() {
+        long total = 0;
+        for (LongAdder count : _counts.values())
+            total += count.sum();
+        return total;
+    }
+
+    /**
+     * Returns the NAACCR IDs of the items involved in the errors of the given code.
+     * @param code error code
+     * @return sorted list of NAACCR IDs, maybe empty but never null
+     */
+    public List<String> getNaaccrIds(String code) {
+        Set<String> ids = _naaccrIds.get(code);
+        if (ids == null)
+            return Collections.emptyList();
+        List<String> result = new ArrayList<>(ids);
+        Collections.sort(result);
+        return result;
+    }
+
+    /**
+     * Returns the codes that have at least one error, in the order of NaaccrErrorUtils.getAllValidationErrors() (unknown codes are returned last).
+     * @return list of error codes, maybe empty but never null
+     */
+    public List<String> getCodes() {
+        List<String> result = new ArrayList<>();
+        for (String code : NaaccrErrorUtils.getAllValidationErrors().keySet())
+            if (getCount(code) > 0)
+                result.add(code);
+        List<String> others = new ArrayList<>();
+        for (String code : _counts.keySet())
+            if (!result.contains(code) && getCount(code) > 0)
+                others.add(code);
+        Collections.sort(others);
+        result.addAll(others);
+        return result;
+    }
+
+    /**
+     * Returns true if no error has been added.
+     * @return true if no error has been added
+     */
+    public boolean isEmpty() {
+        return getTotalCount() == 0;
+    }
+
+    /**
+     * Removes all the errors.
+     */
+    public void clear() {
+        _counts.clear();
+        _naaccrIds.clear();
+    }
+}
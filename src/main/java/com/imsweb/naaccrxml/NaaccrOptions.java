@@ -90,6 +90,29 @@ public class NaaccrOptions {
      */
     private Boolean _ignoreExtensions;
 
+    /**
+     * When reading data, whether the patients and tumors should use the compact storage (see AbstractEntity.useCompactStorage()); this uses a lot less memory
+     * when entire files are loaded in memory. The items without a value, or with a NAACCR Number different from the dictionary, are stored as regular items;
+     * the remaining differences with the regular storage are that getItems() returns the items in the order of the dictionary (followed by the regular items)
+     * instead of the order they were added in, that it returns new item objects on every call, and that the items added without a NAACCR Number return
+     * the number of the dictionary. Defaults to false.
+     */
+    private Boolean _useCompactEntities;
+
+    /**
+     * When reading flat data, whether the patients and tumors should use the lazy storage (see AbstractEntity.useLazyStorage()): the entities keep the lines
+     * they were read from, and each item is only decoded and validated when it is requested. This is much faster when only a few items are used; the
+     * validation errors are only complete once all the items have been requested (or the errors themselves). Defaults to false.
+     */
+    private Boolean _useLazyEntities;
+
+    /**
+     * When reading uncompressed flat files with NaaccrXmlUtils, whether the files should be read through a memory-mapped channel (see PatientFlatMappedReader)
+     * instead of a character stream. This is faster, but the mapped memory is only released when it is garbage collected, which keeps the files locked
+     * on Windows after they have been read. Defaults to false.
+     */
+    private Boolean _useMemoryMappedFiles;
+
     /**
      * Convenience method to make the code look nicer, but it really just calls the default constructor!
      * @return an instance of the options with all default values.
@@ -114,6 +137,9 @@ public class NaaccrOptions {
         _ignoreControlCharacters = true;
         _ignoreExtensions = false;
         _newLine = NEW_LINE_OS;
+        _useCompactEntities = false;
+        _useLazyEntities = false;
+        _useMemoryMappedFiles = false;
     }
 
     public Boolean getValidateReadValues() {
@@ -220,8 +246,34 @@ public class NaaccrOptions {
         _ignoreExtensions = ignoreExtensions;
     }
 
+    public Boolean getUseCompactEntities() {
+        return _useCompactEntities;
+    }
+
+    public void setUseCompactEntities(Boolean useCompactEntities) {
+        _useCompactEntities = useCompactEntities;
+    }
+
+    public Boolean getUseLazyEntities() {
+        return _useLazyEntities;
+    }
+
+    public void setUseLazyEntities(Boolean useLazyEntities) {
+        _useLazyEntities = useLazyEntities;
+    }
+
+    public Boolean getUseMemoryMappedFiles() {
+        return _useMemoryMappedFiles;
+    }
+
+    public void setUseMemoryMappedFiles(Boolean useMemoryMappedFiles) {
+        _useMemoryMappedFiles = useMemoryMappedFiles;
+    }
+
     /**
      * Convenience method that computes if a given item needs to be ignored, based on the include/exclude lists.
+     * <br/><br/>
+     * This method searches the lists every time it's called; the readers and writers use a compiled version of the lists instead (see RuntimeNaaccrItemFilter).
      * @param naaccrId NAACCR ID
      * @return true if the corresponding item needs to be processed.
      */
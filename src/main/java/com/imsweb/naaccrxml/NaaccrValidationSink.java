@@ -0,0 +1,19 @@
+/*
+ * Copyright (C) 2019 Information Management Services, Inc.
+ */
+package com.imsweb.naaccrxml;
+
+/**
+ * Receives the validation errors found by the streaming validations (see NaaccrXmlUtils.validateXmlFile() and NaaccrXmlUtils.validateFlatFile()).
+ * <br/><br/>
+ * The errors are reported in the order of the file; the patients they belong to are discarded as soon as their errors have been reported, so the memory
+ * used by a validation only depends on what the sink keeps. See NaaccrValidationSummary for a sink that keeps the counts and a limited number of samples.
+ */
+public interface NaaccrValidationSink {
+
+    /**
+     * Called for each validation error.
+     * @param error validation error, never null
+     */
+    void errorFound(NaaccrValidationError error);
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2019 Information Management Services, Inc.
+ */
+package com.imsweb.naaccrxml;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A validation sink that keeps the statistics of the errors (see NaaccrErrorStatistics) and a limited number of error samples for each error code and item.
+ * <br/><br/>
+ * The memory used by this class doesn't depend on the number of errors: once a code and item combination has reached the maximum number of samples,
+ * its other errors are only counted. The errors that are not attached to an item (like the invalid line lengths) are grouped together.
+ * <br/><br/>
+ * This class is not thread-safe.
+ */
+public final class NaaccrValidationSummary implements NaaccrValidationSink {
+
+    // the default maximum number of samples for each code and item
+    public static final int DEFAULT_MAX_SAMPLES = 10;
+
+    // the key used for the errors that are not attached to an item
+    private static final String _NO_ITEM_KEY = "";
+
+    // the maximum number of samples for each code and item
+    private int _maxSamples;
+
+    // the statistics of all the errors
+    private NaaccrErrorStatistics _statistics = new NaaccrErrorStatistics();
+
+    // the samples, for each code and item
+    private Map<String, Map<String, List<NaaccrValidationError>>> _samples = new HashMap<>();
+
+    /**
+     * Constructor.
+     */
+    public NaaccrValidationSummary() {
+        this(DEFAULT_MAX_SAMPLES);
+    }
+
+    /**
+     * Constructor.
+     * @param maxSamples maximum number of error samples to keep for each code and item, 0 to only keep the statistics
+     */
+    public NaaccrValidationSummary(int maxSamples) {
+        if (maxSamples < 0)
+            throw new RuntimeException("Maximum number of samples can't be negative");
+        _maxSamples = maxSamples;
+    }
+
+    @Override
+    public void errorFound(NaaccrValidationError error) {
+        _statistics.addError(error);
+
+        if (_maxSamples > 0) {
+            List<NaaccrValidationError> samples = _samples.computeIfAbsent(error.getCode(), k -> new HashMap<>())
+                    .computeIfAbsent(error.getNaaccrId() == null ? _NO_ITEM_KEY : error.getNaaccrId(), k -> new ArrayList<>());
+            if (samples.size() < _maxSamples)
+                samples.add(error);
+        }
+    }
+
+    /**
+     * Returns the maximum number of samples kept for each code and item.
+     */
+    public int getMaxSamples() {
+        return _maxSamples;
+    }
+
+    /**
+     * Returns the statistics of all the errors (including the ones that are not kept as samples).
+     * @return the error statistics, never null
+     */
+    public NaaccrErrorStatistics getStatistics() {
+        return _statistics;
+    }
+
+    /**
+     * Returns true if no error has been found.
+     */
+    public boolean isEmpty() {
+        return _statistics.isEmpty();
+    }
+
+    /**
+     * Returns the error samples for the given code and item, in the order they were found.
+     * @param code error code, required
+     * @param naaccrId NAACCR ID of the item, null for the errors that are not attached to an item
+     * @return the error samples, maybe empty but never null
+     */
+    public List<NaaccrValidationError> getSamples(String code, String naaccrId) {
+        List<NaaccrValidationError> samples = _samples.getOrDefault(code, Collections.emptyMap()).get(naaccrId == null ? _NO_ITEM_KEY : naaccrId);
+        return samples == null ? Collections.emptyList() : Collections.unmodifiableList(samples);
+    }
+
+    /**
+     * Returns the error samples for the given code, sorted by line number.
+     * @param code error code, required
+     * @return the error samples, maybe empty but never null
+     */
+    public List<NaaccrValidationError> getSamples(String code) {
+        List<NaaccrValidationError> result = new ArrayList<>();
+        for (List<NaaccrValidationError> samples : _samples.getOrDefault(code, Collections.emptyMap()).values())
+            result.addAll(samples);
+        result.sort((e1, e2) -> Integer.compare(e1.getLineNumber() == null ? 0 : e1.getLineNumber(), e2.getLineNumber() == null ? 0 : e2.getLineNumber()));
+        return result;
+    }
+
+    /**
+     * Removes all the errors and samples.
+     */
+    public void clear() {
+        _statistics.clear();
+        _samples.clear();
+    }
+}
@@ -84,6 +84,18 @@ public final class NaaccrXmlDictionaryUtils {
         _NAACCR_DATA_TYPES_REGEX.put(NAACCR_DATA_TYPE_DATE, Pattern.compile("^(18|19|20)[0-9][0-9]((0[1-9]|1[012])(0[1-9]|[12][0-9]|3[01])?)?$"));
     }
 
+    // validator for each data type (they accept the same values as the regular expressions)
+    private static final Map<String, NaaccrDataTypeValidator> _NAACCR_DATA_TYPES_VALIDATORS = new HashMap<>();
+
+    static {
+        _NAACCR_DATA_TYPES_VALIDATORS.put(NAACCR_DATA_TYPE_ALPHA, NaaccrXmlDictionaryUtils::isValidAlpha);
+        _NAACCR_DATA_TYPES_VALIDATORS.put(NAACCR_DATA_TYPE_DIGITS, NaaccrXmlDictionaryUtils::isValidDigits);
+        _NAACCR_DATA_TYPES_VALIDATORS.put(NAACCR_DATA_TYPE_MIXED, NaaccrXmlDictionaryUtils::isValidMixed);
+        _NAACCR_DATA_TYPES_VALIDATORS.put(NAACCR_DATA_TYPE_NUMERIC, NaaccrXmlDictionaryUtils::isValidNumeric);
+        _NAACCR_DATA_TYPES_VALIDATORS.put(NAACCR_DATA_TYPE_TEXT, NaaccrXmlDictionaryUtils::isValidText);
+        _NAACCR_DATA_TYPES_VALIDATORS.put(NAACCR_DATA_TYPE_DATE, NaaccrXmlDictionaryUtils::isValidDate);
+    }
+
     // trimming rules (default is all)
     public static final String NAACCR_TRIM_ALL = "all";
     public static final String NAACCR_TRIM_NONE = "none";
@@ -116,6 +128,107 @@ public final class NaaccrXmlDictionaryUtils {
         return _NAACCR_DATA_TYPES_REGEX.get(dataType);
     }
 
+    /**
+     * Returns the validator for the provided data type, null if not found.
+     * <br/><br/>
+     * The validators accept the same values as the patterns returned by getDataTypePattern() but they don't allocate anything; they should be preferred
+     * when many values need to be validated.
+     * @param dataType requested data type
+     * @return corresponding validator, maybe null
+     */
+    public static NaaccrDataTypeValidator getDataTypeValidator(String dataType) {
+        return dataType == null ? null : _NAACCR_DATA_TYPES_VALIDATORS.get(dataType);
+    }
+
+    private static boolean isValidAlpha(String value) {
+        if (value.isEmpty())
+            return false;
+        for (int i = 0; i < value.length(); i++)
+            if (!isUpperCaseLetter(value.charAt(i)))
+                return false;
+        return true;
+    }
+
+    private static boolean isValidDigits(String value) {
+        return !value.isEmpty() && countDigits(value, 0) == value.length();
+    }
+
+    private static boolean isValidMixed(String value) {
+        if (value.isEmpty())
+            return false;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (!isUpperCaseLetter(c) && !isDigit(c))
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean isValidNumeric(String value) {
+        int numDigits = countDigits(value, 0);
+        if (numDigits == 0)
+            return false;
+        if (numDigits == value.length())
+            return true;
+        // the only other thing allowed is a period followed by at least one digit
+        return value.charAt(numDigits) == '.' && numDigits + 1 < value.length() && countDigits(value, numDigits + 1) == value.length() - numDigits - 1;
+    }
+
+    private static boolean isValidText(String value) {
+        if (value.isEmpty())
+            return false;
+        // same as the "." of a regular expression, which doesn't match the line terminators
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029')
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean isValidDate(String value) {
+        int length = value.length();
+        if ((length != 4 && length != 6 && length != 8) || countDigits(value, 0) != length)
+            return false;
+
+        // year: 18xx, 19xx or 20xx
+        char c0 = value.charAt(0), c1 = value.charAt(1);
+        if (!((c0 == '1' && (c1 == '8' || c1 == '9')) || (c0 == '2' && c1 == '0')))
+            return false;
+
+        // month: 01 to 12
+        if (length >= 6) {
+            int month = (value.charAt(4) - '0') * 10 + (value.charAt(5) - '0');
+            if (month < 1 || month > 12)
+                return false;
+        }
+
+        // day: 01 to 31
+        if (length == 8) {
+            int day = (value.charAt(6) - '0') * 10 + (value.charAt(7) - '0');
+            if (day < 1 || day > 31)
+                return false;
+        }
+
+        return true;
+    }
+
+    // returns the number of consecutive digits in the value, starting at the given index
+    private static int countDigits(String value, int start) {
+        int idx = start;
+        while (idx < value.length() && isDigit(value.charAt(idx)))
+            idx++;
+        return idx - start;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isUpperCaseLetter(char c) {
+        return c >= 'A' && c <= 'Z';
+    }
+
     /**
      * Returns whether values for a given data type need to have the same length as their definition
      * @param type given data type
@@ -3,6 +3,7 @@
  */
 package com.imsweb.naaccrxml;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
@@ -21,11 +22,13 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.function.Consumer;
 
 import com.thoughtworks.xstream.io.HierarchicalStreamReader;
 
+import com.imsweb.naaccrxml.compression.CompressionCodec;
+import com.imsweb.naaccrxml.compression.CompressionUtils;
+import com.imsweb.naaccrxml.compression.SeekableGzipWriter;
 import com.imsweb.naaccrxml.entity.NaaccrData;
 import com.imsweb.naaccrxml.entity.Patient;
 import com.imsweb.naaccrxml.entity.dictionary.NaaccrDictionary;
@@ -76,6 +79,24 @@ public class NaaccrXmlUtils {
      * @throws NaaccrIOException if there is problem reading/writing the file
      */
     public static void flatToXml(File flatFile, File xmlFile, NaaccrOptions options, List<NaaccrDictionary> userDictionaries, NaaccrObserver observer) throws NaaccrIOException {
+        flatToXml(flatFile, xmlFile, options, userDictionaries, observer, 1);
+    }
+
+    /**
+     * Translates a flat data file into an XML data file, using the requested number of threads.
+     * <br/><br/>
+     * When more than one thread is requested, the file is read by one thread, the patients are translated and serialized by a pool of worker threads
+     * (of the requested size) and the XML is written by another thread, in the same order as the input file; the resulting file is identical to the
+     * one created with a single thread. The observer is always called from the same thread, in the order of the patients.
+     * @param flatFile source flat data file, must exists
+     * @param xmlFile target XML data file, parent file must exists
+     * @param options optional validating options
+     * @param userDictionaries optional user-defined dictionaries (will be merged with the base dictionary)
+     * @param observer an optional observer, useful to keep track of the progress
+     * @param numThreads the number of threads to use to translate the patients; a value of 1 (or less) means the conversion happens on the calling thread
+     * @throws NaaccrIOException if there is problem reading/writing the file
+     */
+    public static void flatToXml(File flatFile, File xmlFile, NaaccrOptions options, List<NaaccrDictionary> userDictionaries, NaaccrObserver observer, int numThreads) throws NaaccrIOException {
         if (flatFile == null)
             throw new NaaccrIOException("Source flat file is required");
         if (!flatFile.exists())
@@ -83,8 +104,13 @@ public class NaaccrXmlUtils {
         if (!xmlFile.getParentFile().exists())
             throw new NaaccrIOException("Target folder must exist");
 
+        if (numThreads > 1) {
+            ParallelConverter.flatToXml(flatFile, xmlFile, options, userDictionaries, observer, numThreads);
+            return;
+        }
+
         // create the reader and writer and let them do all the work!
-        try (PatientFlatReader reader = new PatientFlatReader(createReader(flatFile), options, userDictionaries)) {
+        try (PatientFlatReader reader = createFlatReader(flatFile, options, userDictionaries)) {
             try (PatientXmlWriter writer = new PatientXmlWriter(createWriter(xmlFile), reader.getRootData(), options, userDictionaries)) {
                 Patient patient = reader.readPatient();
                 while (patient != null && !Thread.currentThread().isInterrupted()) {
@@ -109,6 +135,24 @@ public class NaaccrXmlUtils {
      * @throws NaaccrIOException if there is problem reading/writing the file
      */
     public static void xmlToFlat(File xmlFile, File flatFile, NaaccrOptions options, List<NaaccrDictionary> userDictionaries, NaaccrObserver observer) throws NaaccrIOException {
+        xmlToFlat(xmlFile, flatFile, options, userDictionaries, observer, 1);
+    }
+
+    /**
+     * Translates an XML data file into a flat data file, using the requested number of threads.
+     * <br/><br/>
+     * When more than one thread is requested, the file is split into patients by one thread (without parsing them), the patients are parsed and translated
+     * by a pool of worker threads (of the requested size) and the lines are written by another thread, in the same order as the input file; the resulting
+     * file is identical to the one created with a single thread. The observer is always called from the same thread, in the order of the patients.
+     * @param xmlFile source XML data file, must exists
+     * @param flatFile target flat data file, parent file must exists
+     * @param options optional validating options
+     * @param userDictionaries optional user-defined dictionaries (will be merged with the base dictionary)
+     * @param observer an optional observer, useful to keep track of the progress
+     * @param numThreads the number of threads to use to translate the patients; a value of 1 (or less) means the conversion happens on the calling thread
+     * @throws NaaccrIOException if there is problem reading/writing the file
+     */
+    public static void xmlToFlat(File xmlFile, File flatFile, NaaccrOptions options, List<NaaccrDictionary> userDictionaries, NaaccrObserver observer, int numThreads) throws NaaccrIOException {
         if (xmlFile == null)
             throw new NaaccrIOException("Source XML file is required");
         if (!xmlFile.exists())
@@ -116,6 +160,11 @@ public class NaaccrXmlUtils {
         if (!flatFile.getParentFile().exists())
             throw new NaaccrIOException("Target folder must exist");
 
+        if (numThreads > 1) {
+            ParallelConverter.xmlToFlat(xmlFile, flatFile, options, userDictionaries, observer, numThreads);
+            return;
+        }
+
         // create the reader and writer and let them do all the work!
         try (PatientXmlReader reader = new PatientXmlReader(createReader(xmlFile), options, userDictionaries)) {
             try (PatientFlatWriter writer = new PatientFlatWriter(createWriter(flatFile), reader.getRootData(), options, userDictionaries)) {
@@ -132,6 +181,102 @@ public class NaaccrXmlUtils {
         }
     }
 
+    /**
+     * Translates an XML data file into a binary data file (see PatientBinaryWriter); the blocks of patients are compressed.
+     * @param xmlFile source XML data file, must exists
+     * @param binaryFile target binary data file, parent file must exists
+     * @param options optional validating options
+     * @param userDictionaries optional user-defined dictionaries (will be merged with the base dictionary)
+     * @param observer an optional observer, useful to keep track of the progress
+     * @throws NaaccrIOException if there is problem reading/writing the file
+     */
+    public static void xmlToBinary(File xmlFile, File binaryFile, NaaccrOptions options, List<NaaccrDictionary> userDictionaries, NaaccrObserver observer) throws NaaccrIOException {
+        if (xmlFile == null)
+            throw new NaaccrIOException("Source XML file is required");
+        if (!xmlFile.exists())
+            throw new NaaccrIOException("Source XML file must exist");
+        if (!binaryFile.getParentFile().exists())
+            throw new NaaccrIOException("Target folder must exist");
+
+        try (PatientXmlReader reader = new PatientXmlReader(createReader(xmlFile), options, userDictionaries)) {
+            try (PatientBinaryWriter writer = createBinaryWriter(binaryFile, reader.getRootData(), options, userDictionaries)) {
+                copyPatients(reader, writer, observer);
+            }
+        }
+    }
+
+    /**
+     * Translates a binary data file (see PatientBinaryWriter) into an XML data file.
+     * @param binaryFile source binary data file, must exists
+     * @param xmlFile target XML data file, parent file must exists
+     * @param options optional validating options
+     * @param userDictionaries optional user-defined dictionaries, must be the ones used to create the binary file
+     * @param observer an optional observer, useful to keep track of the progress
+     * @throws NaaccrIOException if there is problem reading/writing the file
+     */
+    public static void binaryToXml(File binaryFile, File xmlFile, NaaccrOptions options, List<NaaccrDictionary> userDictionaries, NaaccrObserver observer) throws NaaccrIOException {
+        if (binaryFile == null)
+            throw new NaaccrIOException("Source binary file is required");
+        if (!binaryFile.exists())
+            throw new NaaccrIOException("Source binary file must exist");
+        if (!xmlFile.getParentFile().exists())
+            throw new NaaccrIOException("Target folder must exist");
+
+        try (PatientBinaryReader reader = createBinaryReader(binaryFile, options, userDictionaries)) {
+            try (PatientXmlWriter writer = new PatientXmlWriter(createWriter(xmlFile), reader.getRootData(), options, userDictionaries)) {
+                copyPatients(reader, writer, observer);
+            }
+        }
+    }
+
+    /**
+     * Translates a flat data file into a binary data file (see PatientBinaryWriter); the blocks of patients are compressed.
+     * @param flatFile source flat data file, must exists
+     * @param binaryFile target binary data file, parent file must exists
+     * @param options optional validating options
+     * @param userDictionaries optional user-defined dictionaries (will be merged with the base dictionary)
+     * @param observer an optional observer, useful to keep track of the progress
+     * @throws NaaccrIOException if there is problem reading/writing the file
+     */
+    public static void flatToBinary(File flatFile, File binaryFile, NaaccrOptions options, List<NaaccrDictionary> userDictionaries, NaaccrObserver observer) throws NaaccrIOException {
+        if (flatFile == null)
+            throw new NaaccrIOException("Source flat file is required");
+        if (!flatFile.exists())
+            throw new NaaccrIOException("Source flat file must exist");
+        if (!binaryFile.getParentFile().exists())
+            throw new NaaccrIOException("Target folder must exist");
+
+        try (PatientFlatReader reader = createFlatReader(flatFile, options, userDictionaries)) {
+            try (PatientBinaryWriter writer = createBinaryWriter(binaryFile, reader.getRootData(), options, userDictionaries)) {
+                copyPatients(reader, writer, observer);
+            }
+        }
+    }
+
+    /**
+     * Translates a binary data file (see PatientBinaryWriter) into a flat data file.
+     * @param binaryFile source binary data file, must exists
+     * @param flatFile target flat data file, parent file must exists
+     * @param options optional validating options
+     * @param userDictionaries optional user-defined dictionaries, must be the ones used to create the binary file
+     * @param observer an optional observer, useful to keep track of the progress
+     * @throws NaaccrIOException if there is problem reading/writing the file
+     */
+    public static void binaryToFlat(File binaryFile, File flatFile, NaaccrOptions options, List<NaaccrDictionary> userDictionaries, NaaccrObserver observer) throws NaaccrIOException {
+        if (binaryFile == null)
+            throw new NaaccrIOException("Source binary file is required");
+        if (!binaryFile.exists())
+            throw new NaaccrIOException("Source binary file must exist");
+        if (!flatFile.getParentFile().exists())
+            throw new NaaccrIOException("Target folder must exist");
+
+        try (PatientBinaryReader reader = createBinaryReader(binaryFile, options, userDictionaries)) {
+            try (PatientFlatWriter writer = new PatientFlatWriter(createWriter(flatFile), reader.getRootData(), options, userDictionaries)) {
+                copyPatients(reader, writer, observer);
+            }
+        }
+    }
+
     /**
      * Reads an NAACCR XML data file and returns the corresponding data.
      * <br/>
@@ -161,6 +306,32 @@ public class NaaccrXmlUtils {
         }
     }
 
+    /**
+     * Validates an NAACCR XML data file without keeping its content in memory: the patients are read one at a time, their validation errors are
+     * reported to the sink, and they are discarded right away; so the memory stays flat regardless of the size of the file and of the number of errors.
+     * <br/><br/>
+     * The errors of the root data are reported first. Use a NaaccrValidationSummary as the sink to get the error counts and a limited number of samples.
+     * @param xmlFile source XML data file, must exists
+     * @param options optional validating options
+     * @param userDictionaries optional user-defined dictionaries (will be merged with the base dictionary)
+     * @param observer an optional observer, useful to keep track of the progress
+     * @param sink the sink receiving the validation errors, required
+     * @throws NaaccrIOException if there is problem reading the file
+     */
+    public static void validateXmlFile(File xmlFile, NaaccrOptions options, List<NaaccrDictionary> userDictionaries, NaaccrObserver observer, NaaccrValidationSink sink)
+            throws NaaccrIOException {
+        if (xmlFile == null)
+            throw new NaaccrIOException("Source XML file is required");
+        if (!xmlFile.exists())
+            throw new NaaccrIOException("Source XML file must exist");
+        if (sink == null)
+            throw new NaaccrIOException("Validation sink is required");
+
+        try (PatientXmlReader reader = new PatientXmlReader(createReader(xmlFile), options, userDictionaries)) {
+            validatePatients(reader, observer, sink);
+        }
+    }
+
     /**
      * Writes the provided data to the requested XML file.
      * <br/>
@@ -205,7 +376,7 @@ public class NaaccrXmlUtils {
         if (!flatFile.exists())
             throw new NaaccrIOException("Source flat file must exist");
 
-        try (PatientFlatReader reader = new PatientFlatReader(createReader(flatFile), options, userDictionaries)) {
+        try (PatientFlatReader reader = createFlatReader(flatFile, options, userDictionaries)) {
             NaaccrData data = reader.getRootData();
             Patient patient = reader.readPatient();
             while (patient != null && !Thread.currentThread().isInterrupted()) {
@@ -218,6 +389,32 @@ public class NaaccrXmlUtils {
         }
     }
 
+    /**
+     * Validates an NAACCR flat file without keeping its content in memory: the patients are read one at a time, their validation errors are
+     * reported to the sink, and they are discarded right away; so the memory stays flat regardless of the size of the file and of the number of errors.
+     * <br/><br/>
+     * The errors of the root data are reported first. Use a NaaccrValidationSummary as the sink to get the error counts and a limited number of samples.
+     * @param flatFile source flat data file, must exists
+     * @param options optional validating options
+     * @param userDictionaries optional user-defined dictionaries (will be merged with the base dictionary)
+     * @param observer an optional observer, useful to keep track of the progress
+     * @param sink the sink receiving the validation errors, required
+     * @throws NaaccrIOException if there is problem reading the file
+     */
+    public static void validateFlatFile(File flatFile, NaaccrOptions options, List<NaaccrDictionary> userDictionaries, NaaccrObserver observer, NaaccrValidationSink sink)
+            throws NaaccrIOException {
+        if (flatFile == null)
+            throw new NaaccrIOException("Source flat file is required");
+        if (!flatFile.exists())
+            throw new NaaccrIOException("Source flat file must exist");
+        if (sink == null)
+            throw new NaaccrIOException("Validation sink is required");
+
+        try (PatientFlatReader reader = createFlatReader(flatFile, options, userDictionaries)) {
+            validatePatients(reader, observer, sink);
+        }
+    }
+
     /**
      * Writes the provided data to the requested flat file.
      * <br/>
@@ -467,51 +664,220 @@ public class NaaccrXmlUtils {
     }
 
     /**
-     * Returns a generic reader for the provided file, taking care of the optional GZ compression.
+     * Returns a flat patient reader for the provided file; if the options request it (see NaaccrOptions.setUseMemoryMappedFiles()), uncompressed files are
+     * read through a memory-mapped channel (see PatientFlatMappedReader).
+     * <br/><br/>
+     * The compression is determined the same way as in createReader(): from the first bytes of the file, and then from its extension.
      * @param file file to create the reader from, cannot be null
-     * @return a generic reader to the file, never null
+     * @param options optional options
+     * @param userDictionaries optional user-defined dictionaries (can be null or empty)
+     * @return a flat patient reader, never null
      * @throws NaaccrIOException if the reader cannot be created
      */
-    public static Reader createReader(File file) throws NaaccrIOException {
+    static PatientFlatReader createFlatReader(File file, NaaccrOptions options, List<NaaccrDictionary> userDictionaries) throws NaaccrIOException {
+        if (options != null && Boolean.TRUE.equals(options.getUseMemoryMappedFiles())) {
+            CompressionCodec codec;
+            try {
+                codec = CompressionUtils.getCodecForContent(file);
+            }
+            catch (IOException e) {
+                throw new NaaccrIOException(e.getMessage());
+            }
+            if (codec == null)
+                codec = CompressionUtils.getCodecForFilename(file.getName());
+            if (codec == null)
+                return new PatientFlatMappedReader(file, options, userDictionaries);
+        }
+        return new PatientFlatReader(createReader(file), options, userDictionaries);
+    }
+
+    /**
+     * Returns a binary patient reader for the provided file.
+     * @param file file to create the reader from, cannot be null
+     * @param options optional options
+     * @param userDictionaries optional user-defined dictionaries (can be null or empty)
+     * @return a binary patient reader, never null
+     * @throws NaaccrIOException if the reader cannot be created
+     */
+    static PatientBinaryReader createBinaryReader(File file, NaaccrOptions options, List<NaaccrDictionary> userDictionaries) throws NaaccrIOException {
         InputStream is = null;
         try {
             is = new FileInputStream(file);
-
-            if (file.getName().endsWith(".gz"))
-                is = new GZIPInputStream(is);
-
-            return new InputStreamReader(is, StandardCharsets.UTF_8);
+            return new PatientBinaryReader(is, options, userDictionaries);
         }
         catch (IOException e) {
             if (is != null) {
                 try {
                     is.close();
                 }
-                catch (IOException e1) {
-                    // give up
+                catch (IOException e2) {
+                    // ignored, the original exception is more relevant
                 }
             }
+            if (e instanceof NaaccrIOException)
+                throw (NaaccrIOException)e;
             throw new NaaccrIOException(e.getMessage());
         }
     }
 
     /**
-     * Returns a generic writer for the provided file, taking care of the optional GZ compression.
-     * @param file file to create the writer from, cannot be null
-     * @return a generic writer to the file, never null
+     * Returns a binary patient writer (using compressed blocks) for the provided file.
+     * @param file file to create the writer for, cannot be null
+     * @param data required root data
+     * @param options optional options
+     * @param userDictionaries optional user-defined dictionaries (can be null or empty)
+     * @return a binary patient writer, never null
      * @throws NaaccrIOException if the writer cannot be created
      */
-    public static Writer createWriter(File file) throws NaaccrIOException {
+    static PatientBinaryWriter createBinaryWriter(File file, NaaccrData data, NaaccrOptions options, List<NaaccrDictionary> userDictionaries) throws NaaccrIOException {
         OutputStream os = null;
         try {
             os = new FileOutputStream(file);
+            return new PatientBinaryWriter(os, data, options, userDictionaries, null, true, PatientBinaryWriter.DEFAULT_BLOCK_SIZE);
+        }
+        catch (IOException e) {
+            if (os != null) {
+                try {
+                    os.close();
+                }
+                catch (IOException e2) {
+                    // ignored, the original exception is more relevant
+                }
+            }
+            if (e instanceof NaaccrIOException)
+                throw (NaaccrIOException)e;
+            throw new NaaccrIOException(e.getMessage());
+        }
+    }
 
-            if (file.getName().endsWith(".gz"))
-                os = new GZIPOutputStream(os);
+    // copies all the patients from the reader to the writer
+    private static void copyPatients(PatientReader reader, PatientWriter writer, NaaccrObserver observer) throws NaaccrIOException {
+        Patient patient = reader.readPatient();
+        while (patient != null && !Thread.currentThread().isInterrupted()) {
+            if (observer != null)
+                observer.patientRead(patient);
+            writer.writePatient(patient);
+            if (observer != null)
+                observer.patientWritten(patient);
+            patient = reader.readPatient();
+        }
+    }
 
-            return new OutputStreamWriter(os, StandardCharsets.UTF_8);
+    // reports the validation errors of the root data and of the patients of the given reader, without keeping the patients
+    private static void validatePatients(PatientReader reader, NaaccrObserver observer, NaaccrValidationSink sink) throws NaaccrIOException {
+        Consumer<NaaccrValidationError> consumer = sink::errorFound;
+        reader.getRootData().forEachValidationError(consumer);
+        Patient patient = reader.readPatient();
+        while (patient != null && !Thread.currentThread().isInterrupted()) {
+            if (observer != null)
+                observer.patientRead(patient);
+            patient.forEachValidationError(consumer);
+            patient = reader.readPatient();
+        }
+    }
+
+    /**
+     * Returns an XML patient reader for the provided reader; the reader is a PatientXmlStreamingReader if the configuration requests it (see
+     * NaaccrStreamConfiguration.setUseStreamingReader()), a regular PatientXmlReader otherwise.
+     * @param reader required underlined reader
+     * @param options optional options
+     * @param userDictionaries optional user-defined dictionaries (can be null or empty)
+     * @param conf optional stream configuration
+     * @return an XML patient reader, never null
+     * @throws NaaccrIOException if the reader cannot be created
+     */
+    public static PatientXmlReader createPatientXmlReader(Reader reader, NaaccrOptions options, List<NaaccrDictionary> userDictionaries, NaaccrStreamConfiguration conf) throws NaaccrIOException {
+        if (conf != null && conf.getUseStreamingReader())
+            return new PatientXmlStreamingReader(reader, options, userDictionaries, conf);
+        return new PatientXmlReader(reader, options, userDictionaries, conf);
+    }
+
+    /**
+     * Returns a generic reader for the provided file, taking care of the optional compression (see CompressionUtils).
+     * @param file file to create the reader from, cannot be null
+     * @return a generic reader to the file, never null
+     * @throws NaaccrIOException if the reader cannot be created
+     */
+    public static Reader createReader(File file) throws NaaccrIOException {
+        return createReader(file, CompressionUtils.DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Returns a generic reader for the provided file, taking care of the optional compression (see CompressionUtils).
+     * <br/><br/>
+     * The compression is determined from the first bytes of the file, and then from its extension.
+     * @param file file to create the reader from, cannot be null
+     * @param bufferSize the size of the buffers used to read (and decompress) the file
+     * @return a generic reader to the file, never null
+     * @throws NaaccrIOException if the reader cannot be created
+     */
+    public static Reader createReader(File file, int bufferSize) throws NaaccrIOException {
+        try {
+            return new InputStreamReader(CompressionUtils.createInputStream(file, bufferSize), StandardCharsets.UTF_8);
         }
         catch (IOException e) {
+            throw new NaaccrIOException(e.getMessage());
+        }
+    }
+
+    /**
+     * Returns a generic writer for the provided file, taking care of the optional compression (see CompressionUtils).
+     * @param file file to create the writer from, cannot be null
+     * @return a generic writer to the file, never null
+     * @throws NaaccrIOException if the writer cannot be created
+     */
+    public static Writer createWriter(File file) throws NaaccrIOException {
+        return createWriter(file, CompressionUtils.DEFAULT_BUFFER_SIZE, CompressionUtils.DEFAULT_LEVEL);
+    }
+
+    /**
+     * Returns a generic writer for the provided file, taking care of the optional compression (see CompressionUtils).
+     * <br/><br/>
+     * The compression is determined from the extension of the file.
+     * @param file file to create the writer from, cannot be null
+     * @param bufferSize the size of the buffers used to (compress and) write the file
+     * @param level the compression level, CompressionUtils.DEFAULT_LEVEL to use the default level of the compression
+     * @return a generic writer to the file, never null
+     * @throws NaaccrIOException if the writer cannot be created
+     */
+    public static Writer createWriter(File file, int bufferSize, int level) throws NaaccrIOException {
+        try {
+            return new OutputStreamWriter(CompressionUtils.createOutputStream(file, bufferSize, level), StandardCharsets.UTF_8);
+        }
+        catch (IOException e) {
+            throw new NaaccrIOException(e.getMessage());
+        }
+    }
+
+    /**
+     * Returns a writer creating a seekable GZip file: a standard (multi-member) GZip file whose blocks are aligned on the patients when the writer is
+     * used by a PatientXmlWriter. Such files can be indexed with PatientXmlIndex, which allows their patients to be read without decompressing the
+     * entire file.
+     * @param file file to create the writer from, cannot be null
+     * @return a writer to the file, never null
+     * @throws NaaccrIOException if the writer cannot be created
+     */
+    public static Writer createSeekableWriter(File file) throws NaaccrIOException {
+        return createSeekableWriter(file, SeekableGzipWriter.DEFAULT_BLOCK_SIZE, CompressionUtils.DEFAULT_LEVEL);
+    }
+
+    /**
+     * Returns a writer creating a seekable GZip file: a standard (multi-member) GZip file whose blocks are aligned on the patients when the writer is
+     * used by a PatientXmlWriter. Such files can be indexed with PatientXmlIndex, which allows their patients to be read without decompressing the
+     * entire file.
+     * @param file file to create the writer from, cannot be null
+     * @param blockSize the (uncompressed) size of the blocks; smaller blocks make the access faster but degrade the compression
+     * @param level the compression level, CompressionUtils.DEFAULT_LEVEL to use the default level of the compression
+     * @return a writer to the file, never null
+     * @throws NaaccrIOException if the writer cannot be created
+     */
+    public static Writer createSeekableWriter(File file, int blockSize, int level) throws NaaccrIOException {
+        OutputStream os = null;
+        try {
+            os = new BufferedOutputStream(new FileOutputStream(file), CompressionUtils.DEFAULT_BUFFER_SIZE);
+            return new SeekableGzipWriter(os, Runtime.getRuntime().availableProcessors(), level, blockSize);
+        }
+        catch (IOException | RuntimeException e) {
             if (os != null) {
                 try {
                     os.close();
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2019 Information Management Services, Inc.
+ */
+package com.imsweb.naaccrxml;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * This class runs a three-stage pipeline: the calling thread splits the input into chunks, a pool of workers processes the chunks
+ * and a single writer thread consumes the results, in the same order as the chunks were produced.
+ * <br/><br/>
+ * The number of chunks "in flight" is bounded, so a slow writer (or a slow source) doesn't cause the memory to grow.
+ * @param <T> type of the chunks
+ * @param <R> type of the processed chunks
+ */
+final class OrderedPipeline<T, R> {
+
+    /**
+     * Provides the chunks; this is always called from the thread running the pipeline.
+     */
+    interface Source<T> {
+
+        /**
+         * @return the next chunk, null if there are no more chunks
+         */
+        T next() throws NaaccrIOException;
+    }
+
+    /**
+     * Processes the chunks; this is called concurrently from several threads.
+     */
+    interface Worker<T, R> {
+
+        R process(T chunk) throws NaaccrIOException;
+    }
+
+    /**
+     * Consumes the processed chunks; this is always called from the writer thread, in the order the chunks were provided by the source.
+     */
+    interface Sink<R> {
+
+        void consume(R result) throws NaaccrIOException;
+    }
+
+    // marker indicating the end of the results
+    private final Future<R> _end = new FutureTask<>(() -> null);
+
+    private final int _numThreads;
+
+    private final int _maxChunksInFlight;
+
+    // the pool of workers shared with other pipelines, null if the pipeline creates its own
+    private final ExecutorService _sharedWorkers;
+
+    /**
+     * Constructor.
+     * @param numThreads number of worker threads, must be at least 1
+     */
+    OrderedPipeline(int numThreads) {
+        _numThreads = numThreads;
+        _maxChunksInFlight = numThreads * 4;
+        _sharedWorkers = null;
+    }
+
+    /**
+     * Constructor.
+     * <br/><br/>
+     * The chunks are processed by the given pool, which can be shared by several pipelines running at the same time (it is not shut down by the pipeline);
+     * a work-stealing pool (like a ForkJoinPool) lets the pipelines with the most chunks use the threads that the other pipelines don't need.
+     * @param sharedWorkers the pool of workers, required
+     * @param maxChunksInFlight the maximum number of chunks submitted to the pool and not consumed yet, must be at least 1
+     */
+    OrderedPipeline(ExecutorService sharedWorkers, int maxChunksInFlight) {
+        _numThreads = 0;
+        _maxChunksInFlight = maxChunksInFlight;
+        _sharedWorkers = sharedWorkers;
+    }
+
+    /**
+     * Runs the pipeline until the source is exhausted, an error happens or the current thread is interrupted.
+     * @throws NaaccrIOException if any of the stage fails (the first error is reported)
+     */
+    void run(String name, Source<T> source, Worker<T, R> worker, Sink<R> sink) throws NaaccrIOException {
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        BlockingQueue<Future<R>> results = new ArrayBlockingQueue<>(_maxChunksInFlight);
+
+        ExecutorService workers = _sharedWorkers;
+        if (workers == null) {
+            AtomicInteger threadCount = new AtomicInteger();
+            workers = Executors.newFixedThreadPool(_numThreads, r -> {
+                Thread thread = new Thread(r, name + "-worker-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        Thread writer = new Thread(() -> {
+            try {
+                Future<R> result = results.take();
+                while (result != _end) {
+                    sink.consume(result.get());
+                    result = results.take();
+                }
+            }
+            catch (ExecutionException e) {
+                failure.compareAndSet(null, e.getCause());
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            catch (NaaccrIOException | RuntimeException e) {
+                failure.compareAndSet(null, e);
+            }
+        }, name + "-writer");
+        writer.setDaemon(true);
+        writer.start();
+
+        try {
+            T chunk = source.next();
+            while (chunk != null && failure.get() == null && writer.isAlive() && !Thread.currentThread().isInterrupted()) {
+                T currentChunk = chunk;
+                Future<R> result = workers.submit(() -> worker.process(currentChunk));
+                while (!results.offer(result, 100, TimeUnit.MILLISECONDS))
+                    if (failure.get() != null || !writer.isAlive())
+                        break;
+                chunk = source.next();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch (NaaccrIOException | RuntimeException e) {
+            failure.compareAndSet(null, e);
+        }
+        finally {
+            // let the writer consume the pending results (unless we were interrupted, in which case we want to stop as soon as possible)
+            boolean interrupted = Thread.interrupted();
+            try {
+                if (interrupted)
+                    writer.interrupt();
+                else {
+                    boolean endQueued = false;
+                    while (!endQueued && writer.isAlive())
+                        endQueued = results.offer(_end, 100, TimeUnit.MILLISECONDS);
+                }
+                writer.join();
+            }
+            catch (InterruptedException e) {
+                writer.interrupt();
+                interrupted = true;
+            }
+            // a shared pool is left alone, but the chunks that won't be consumed don't need to be processed
+            if (_sharedWorkers == null)
+                workers.shutdownNow();
+            else
+                for (Future<R> result : results)
+                    result.cancel(true);
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+
+        Throwable error = failure.get();
+        if (error instanceof NaaccrIOException)
+            throw (NaaccrIOException)error;
+        if (error != null)
+            throw new NaaccrIOException(error.getMessage() == null ? error.getClass().getSimpleName() : error.getMessage(), error);
+    }
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright (C) 2019 Information Management Services, Inc.
+ */
+package com.imsweb.naaccrxml;
+
+import java.io.File;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+
+import com.thoughtworks.xstream.converters.ConversionException;
+import com.thoughtworks.xstream.io.HierarchicalStreamReader;
+import com.thoughtworks.xstream.io.StreamException;
+import com.thoughtworks.xstream.mapper.CannotResolveClassException;
+
+import com.imsweb.naaccrxml.entity.NaaccrData;
+import com.imsweb.naaccrxml.entity.Patient;
+import com.imsweb.naaccrxml.entity.dictionary.NaaccrDictionary;
+import com.imsweb.naaccrxml.runtime.NaaccrStreamConfiguration;
+import com.imsweb.naaccrxml.runtime.NaaccrStreamContext;
+import com.imsweb.naaccrxml.runtime.RuntimeNaaccrDictionary;
+
+/**
+ * This class implements the multi-threaded versions of the conversions available in NaaccrXmlUtils.
+ * <br/><br/>
+ * The input file is split into patients by a single thread, the patients are translated by a pool of worker threads, and the results are written
+ * by a single thread in the same order as the input, so the created file is identical to the one created by the single-threaded conversions.
+ * <br/><br/>
+ * The observer (if any) is always called from the writing thread, in the order of the patients.
+ */
+final class ParallelConverter {
+
+    // the number of patients processed by a single task
+    private static final int _PATIENTS_PER_CHUNK = 32;
+
+    /**
+     * Private constructor, no instanciation...
+     */
+    private ParallelConverter() {
+    }
+
+    /**
+     * Translates a flat data file into an XML data file using the requested number of threads.
+     * @see NaaccrXmlUtils#flatToXml(File, File, NaaccrOptions, List, NaaccrObserver, int)
+     */
+    static void flatToXml(File flatFile, File xmlFile, NaaccrOptions options, List<NaaccrDictionary> userDictionaries, NaaccrObserver observer, int numThreads) throws NaaccrIOException {
+        flatToXml(flatFile, xmlFile, options, userDictionaries, observer, new OrderedPipeline<>(numThreads), null);
+    }
+
+    /**
+     * Translates a flat data file into an XML data file, translating the patients with the given (potentially shared) pool of workers.
+     * @see OrderedPipeline#OrderedPipeline(ExecutorService, int)
+     */
+    static void flatToXml(File flatFile, File xmlFile, NaaccrOptions options, List<NaaccrDictionary> userDictionaries, NaaccrObserver observer, ExecutorService workers,
+            int maxChunksInFlight) throws NaaccrIOException {
+        flatToXml(flatFile, xmlFile, options, userDictionaries, observer, new OrderedPipeline<>(workers, maxChunksInFlight), null);
+    }
+
+    /**
+     * Translates a flat data file into an XML data file, writing the XML file in segments so the conversion can be resumed if it gets interrupted;
+     * the patients of the segments committed by a previous run are skipped (the observer is not called for them).
+     * @see SegmentedWriter
+     */
+    static void flatToXml(File flatFile, SegmentedWriter output, NaaccrOptions options, List<NaaccrDictionary> userDictionaries, NaaccrObserver observer,
+            ExecutorService workers, int maxChunksInFlight) throws NaaccrIOException {
+        flatToXml(flatFile, null, options, userDictionaries, observer, new OrderedPipeline<>(workers, maxChunksInFlight), output);
+    }
+
+    private static void flatToXml(File flatFile, File xmlFile, NaaccrOptions options, List<NaaccrDictionary> userDictionaries, NaaccrObserver observer,
+            OrderedPipeline<List<FlatPatientLines>, List<ConvertedPatient>> pipeline, SegmentedWriter segments) throws NaaccrIOException {
+        try (PatientFlatReader reader = NaaccrXmlUtils.createFlatReader(flatFile, options, userDictionaries)) {
+            try (PatientXmlWriter writer = new PatientXmlWriter(segments == null ? NaaccrXmlUtils.createWriter(xmlFile) : segments, reader.getRootData(), options, userDictionaries)) {
+
+                // when resuming, the header is already in the first segment (it gets discarded), and the patients of the committed segments are skipped
+                if (segments != null) {
+                    if (segments.getNumCommittedSegments() > 0)
+                        writer.writePatientFragment("");
+                    segments.endOfHeader();
+                    FlatPatientLines lines = new FlatPatientLines();
+                    for (long i = 0; i < segments.getNumCommittedPatients(); i++) {
+                        lines._lines.clear();
+                        lines._lineNumbers.clear();
+                        if (!reader.readPatientLines(lines._lines, lines._lineNumbers))
+                            throw new NaaccrIOException("the data file contains less patients than the ones that were already converted");
+                    }
+                }
+
+                // the splitter reads the raw lines of the patients, without translating them
+                OrderedPipeline.Source<List<FlatPatientLines>> source = () -> {
+                    List<FlatPatientLines> chunk = new ArrayList<>(_PATIENTS_PER_CHUNK);
+                    FlatPatientLines lines = new FlatPatientLines();
+                    while (chunk.size() < _PATIENTS_PER_CHUNK && reader.readPatientLines(lines._lines, lines._lineNumbers)) {
+                        chunk.add(lines);
+                        lines = new FlatPatientLines();
+                    }
+                    return chunk.isEmpty() ? null : chunk;
+                };
+
+                // the workers translate the lines into patients and serialize them into XML
+                OrderedPipeline.Worker<List<FlatPatientLines>, List<ConvertedPatient>> worker = chunk -> {
+                    List<ConvertedPatient> result = new ArrayList<>(chunk.size());
+                    for (FlatPatientLines lines : chunk) {
+                        Patient patient = reader.createPatientFromLines(lines._lines, lines._lineNumbers);
+                        result.add(new ConvertedPatient(patient, writer.createPatientFragment(patient)));
+                    }
+                    return result;
+                };
+
+                // the writer outputs the fragments in order
+                OrderedPipeline.Sink<List<ConvertedPatient>> sink = result -> {
+                    for (ConvertedPatient converted : result) {
+                        if (observer != null)
+                            observer.patientRead(converted._patient);
+                        writer.writePatientFragment(converted._xml);
+                        if (observer != null)
+                            observer.patientWritten(converted._patient);
+                        if (segments != null)
+                            segments.patientWritten(null);
+                    }
+                };
+
+                pipeline.run("naaccr-flat-to-xml", source, worker, sink);
+
+                // the closing tag is the trailer of the segments, it's only written in the output file once all the patients are committed
+                if (segments != null) {
+                    segments.endOfPatients(null);
+                    writer.closeAndKeepAlive();
+                    segments.complete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Translates an XML data file into a flat data file using the requested number of threads.
+     * <br/><br/>
+     * The root tag (attributes, items and extensions) is read by a regular XML reader; the patients are then extracted as raw XML by a light-weight
+     * splitter and parsed by the workers; the workers share the stream configuration of the reader (each thread gets its own parser and patient converter).
+     * @see NaaccrXmlUtils#xmlToFlat(File, File, NaaccrOptions, List, NaaccrObserver, int)
+     */
+    static void xmlToFlat(File xmlFile, File flatFile, NaaccrOptions options, List<NaaccrDictionary> userDictionaries, NaaccrObserver observer, int numThreads) throws NaaccrIOException {
+        xmlToFlat(xmlFile, flatFile, options, userDictionaries, observer, new OrderedPipeline<>(numThreads), null);
+    }
+
+    /**
+     * Translates an XML data file into a flat data file, parsing the patients with the given (potentially shared) pool of workers.
+     * @see OrderedPipeline#OrderedPipeline(ExecutorService, int)
+     */
+    static void xmlToFlat(File xmlFile, File flatFile, NaaccrOptions options, List<NaaccrDictionary> userDictionaries, NaaccrObserver observer, ExecutorService workers,
+            int maxChunksInFlight) throws NaaccrIOException {
+        xmlToFlat(xmlFile, flatFile, options, userDictionaries, observer, new OrderedPipeline<>(workers, maxChunksInFlight), null);
+    }
+
+    /**
+     * Translates an XML data file into a flat data file, writing the flat file in segments so the conversion can be resumed if it gets interrupted;
+     * the patients of the segments committed by a previous run are skipped (the observer is not called for them).
+     * @see SegmentedWriter
+     */
+    static void xmlToFlat(File xmlFile, SegmentedWriter output, NaaccrOptions options, List<NaaccrDictionary> userDictionaries, NaaccrObserver observer,
+            ExecutorService workers, int maxChunksInFlight) throws NaaccrIOException {
+        xmlToFlat(xmlFile, null, options, userDictionaries, observer, new OrderedPipeline<>(workers, maxChunksInFlight), output);
+    }
+
+    private static void xmlToFlat(File xmlFile, File flatFile, NaaccrOptions options, List<NaaccrDictionary> userDictionaries, NaaccrObserver observer,
+            OrderedPipeline<List<XmlPatient>, List<ConvertedPatient>> pipeline, SegmentedWriter segments) throws NaaccrIOException {
+        NaaccrData rootData;
+        RuntimeNaaccrDictionary dictionary;
+        NaaccrOptions readingOptions;
+        NaaccrStreamConfiguration conf;
+        try (PatientXmlReader reader = new PatientXmlReader(NaaccrXmlUtils.createReader(xmlFile), options, userDictionaries)) {
+            rootData = reader.getRootData();
+            dictionary = reader._context.getDictionary();
+            readingOptions = reader._context.getOptions();
+            conf = reader._context.getConfiguration();
+        }
+
+        XmlPatientSplitter splitter = new XmlPatientSplitter(NaaccrXmlUtils.createReader(xmlFile));
+        try (PatientFlatWriter writer = new PatientFlatWriter(segments == null ? NaaccrXmlUtils.createWriter(flatFile) : segments, rootData, options, userDictionaries)) {
+
+            // when resuming, the patients of the committed segments are skipped (flat files don't have a header)
+            if (segments != null) {
+                segments.endOfHeader();
+                for (long i = 0; i < segments.getNumCommittedPatients(); i++)
+                    if (splitter.nextPatient() == null)
+                        throw new NaaccrIOException("the data file contains less patients than the ones that were already converted");
+            }
+
+            // the splitter extracts the raw XML of the patients, without parsing it
+            OrderedPipeline.Source<List<XmlPatient>> source = () -> {
+                List<XmlPatient> chunk = new ArrayList<>(_PATIENTS_PER_CHUNK);
+                String xml;
+                while (chunk.size() < _PATIENTS_PER_CHUNK && (xml = splitter.nextPatient()) != null)
+                    chunk.add(new XmlPatient(xml, splitter.getPatientLineNumber()));
+                return chunk.isEmpty() ? null : chunk;
+            };
+
+            // the workers parse the patients and translate them into lines; the parsers are not thread-safe, so each worker borrows its own
+            // (they are not kept in thread-locals since the worker threads might outlive the conversion)
+            Queue<XmlPatientParser> parsers = new ConcurrentLinkedQueue<>();
+            OrderedPipeline.Worker<List<XmlPatient>, List<ConvertedPatient>> worker = chunk -> {
+                XmlPatientParser parser = parsers.poll();
+                if (parser == null)
+                    parser = new XmlPatientParser(conf, dictionary, readingOptions);
+                try {
+                    List<ConvertedPatient> result = new ArrayList<>(chunk.size());
+                    for (XmlPatient xml : chunk) {
+                        Patient patient = parser.parse(xml);
+                        result.add(new ConvertedPatient(patient, writer.createLinesFromPatient(rootData, patient)));
+                    }
+                    return result;
+                }
+                finally {
+                    parsers.offer(parser);
+                }
+            };
+
+            // the writer outputs the lines in order
+            OrderedPipeline.Sink<List<ConvertedPatient>> sink = result -> {
+                for (ConvertedPatient converted : result) {
+                    if (observer != null)
+                        observer.patientRead(converted._patient);
+                    writer.writeLines(converted._lines);
+                    if (observer != null)
+                        observer.patientWritten(converted._patient);
+                    if (segments != null)
+                        segments.patientWritten(writer._writer);
+                }
+            };
+
+            pipeline.run("naaccr-xml-to-flat", source, worker, sink);
+
+            if (segments != null) {
+                segments.endOfPatients(writer._writer);
+                writer.closeAndKeepAlive();
+                segments.complete();
+            }
+        }
+        finally {
+            splitter.close();
+        }
+    }
+
+    // the raw lines of a given patient
+    private static final class FlatPatientLines {
+
+        private List<String> _lines = new ArrayList<>();
+        private List<Integer> _lineNumbers = new ArrayList<>();
+    }
+
+    // the raw XML of a given patient
+    private static final class XmlPatient {
+
+        private String _xml;
+        private int _lineNumber;
+
+        private XmlPatient(String xml, int lineNumber) {
+            _xml = xml;
+            _lineNumber = lineNumber;
+        }
+    }
+
+    // a patient with its serialized version (either as XML or as flat lines)
+    private static final class ConvertedPatient {
+
+        private Patient _patient;
+        private String _xml;
+        private List<String> _lines;
+
+        private ConvertedPatient(Patient patient, String xml) {
+            _patient = patient;
+            _xml = xml;
+        }
+
+        private ConvertedPatient(Patient patient, List<String> lines) {
+            _patient = patient;
+            _lines = lines;
+        }
+    }
+
+    // parses the raw XML of the patients; this mimics PatientXmlReader.readPatient() but uses its own context so it can be used concurrently (one per thread)
+    private static final class XmlPatientParser {
+
+        private NaaccrStreamConfiguration _conf;
+        private NaaccrStreamContext _context;
+
+        private XmlPatientParser(NaaccrStreamConfiguration conf, RuntimeNaaccrDictionary dictionary, NaaccrOptions options) {
+            _conf = conf;
+            _context = new NaaccrStreamContext();
+            _context.setOptions(options);
+            _context.setConfiguration(_conf);
+            _context.setDictionary(dictionary);
+        }
+
+        private Patient parse(XmlPatient xml) throws NaaccrIOException {
+            // the patient starts at the beginning of the fragment, so the line numbers need to be shifted to match the ones of the file
+            _context.setLineNumberOffset(xml._lineNumber - 1);
+            try {
+                HierarchicalStreamReader reader = _conf.createReader(new StringReader(xml._xml), _context);
+                return (Patient)_conf.getXstream().unmarshal(reader, null, _context.getDataHolder());
+            }
+            catch (ConversionException ex) {
+                NaaccrIOException e = PatientXmlReader.convertSyntaxException(ex);
+                if (e.getLineNumber() != null)
+                    e.setLineNumber(e.getLineNumber() + _context.getLineNumberOffset());
+                throw e;
+            }
+            catch (StreamException ex) {
+                throw new NaaccrIOException("invalid XML syntax", ex);
+            }
+            catch (RuntimeException ex) {
+                // an unknown tag in the extension is a common mistake, so let's make sure we report that nicely
+                if (ex instanceof CannotResolveClassException)
+                    throw new NaaccrIOException("invalid tag: " + ex.getMessage());
+                throw new NaaccrIOException("invalid XML syntax", ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,448 @@
+/*
+ * Copyright (C) 2019 Information Management Services, Inc.
+ */
+package com.imsweb.naaccrxml;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Objects;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import com.thoughtworks.xstream.io.xml.XppReader;
+
+import com.imsweb.naaccrxml.entity.AbstractEntity;
+import com.imsweb.naaccrxml.entity.CompactValuePool;
+import com.imsweb.naaccrxml.entity.Item;
+import com.imsweb.naaccrxml.entity.NaaccrData;
+import com.imsweb.naaccrxml.entity.Patient;
+import com.imsweb.naaccrxml.entity.Tumor;
+import com.imsweb.naaccrxml.entity.dictionary.NaaccrDictionary;
+import com.imsweb.naaccrxml.runtime.NaaccrStreamConfiguration;
+import com.imsweb.naaccrxml.runtime.RuntimeNaaccrDictionary;
+import com.imsweb.naaccrxml.runtime.RuntimeNaaccrDictionaryItem;
+import com.imsweb.naaccrxml.runtime.RuntimeNaaccrItemFilter;
+
+import static com.imsweb.naaccrxml.PatientBinaryWriter.ITEM_FLAGS_BITS;
+import static com.imsweb.naaccrxml.PatientBinaryWriter.ITEM_FLAG_DICTIONARY_NUM;
+import static com.imsweb.naaccrxml.PatientBinaryWriter.ITEM_FLAG_LINE_NUMBER;
+import static com.imsweb.naaccrxml.PatientBinaryWriter.ITEM_FLAG_NULL_VALUE;
+import static com.imsweb.naaccrxml.PatientBinaryWriter.ITEM_FLAG_NUM;
+
+/**
+ * This class can be used to wrap a generic input stream into a patient reader handling the NAACCR binary format (see PatientBinaryWriter).
+ * <br/><br/>
+ * The items are identified by their ordinal in the runtime dictionary, so the user-defined dictionaries used to write the data must be provided
+ * (an exception is thrown when creating the reader if the dictionaries don't match). The values are not validated, they are returned exactly as they
+ * were written; the include/exclude options and the compact storage option are applied.
+ */
+public class PatientBinaryReader implements PatientReader {
+
+    // the underlined stream
+    protected DataInputStream _stream;
+
+    // the root data (read from the header)
+    protected NaaccrData _rootData;
+
+    // the options requested to use when reading the patients
+    protected NaaccrOptions _options;
+
+    // the runtime dictionary (combination of base and user-defined dictionaries)
+    protected RuntimeNaaccrDictionary _dictionary;
+
+    // the compiled include/exclude options
+    protected RuntimeNaaccrItemFilter _itemFilter;
+
+    // the pool sharing the short values between the patients and tumors using the compact storage
+    protected CompactValuePool _valuePool = new CompactValuePool();
+
+    // the items of each level, indexed by their ordinal
+    protected List<RuntimeNaaccrDictionaryItem> _rootItems, _patientItems, _tumorItems;
+
+    // the decompressor, null if the blocks are not compressed
+    protected Inflater _inflater;
+
+    // the current block and the buffer for its compressed version
+    protected byte[] _block, _compressed;
+
+    // the length of the current block and the current position in it
+    protected int _blockLength, _blockPosition;
+
+    // whether the end of the data has been reached
+    protected boolean _finished;
+
+    // the version of the binary format of the data
+    protected int _formatVersion;
+
+    // the stream configuration, used to read the extensions (created when needed if none was provided)
+    protected NaaccrStreamConfiguration _configuration;
+
+    // the parser used to read the extensions (created when needed)
+    protected XmlPullParser _extensionParser;
+
+    /**
+     * Constructor.
+     * @param stream required underlined stream
+     * @throws NaaccrIOException if there is problem reading the stream
+     */
+    public PatientBinaryReader(InputStream stream) throws NaaccrIOException {
+        this(stream, null, (NaaccrDictionary)null, null);
+    }
+
+    /**
+     * Constructor.
+     * @param stream required underlined stream
+     * @param options optional options
+     * @throws NaaccrIOException if there is problem reading the stream
+     */
+    public PatientBinaryReader(InputStream stream, NaaccrOptions options) throws NaaccrIOException {
+        this(stream, options, (NaaccrDictionary)null, null);
+    }
+
+    /**
+     * Constructor.
+     * @param stream required underlined stream
+     * @param options optional options
+     * @param userDictionary optional user-defined dictionary
+     * @throws NaaccrIOException if there is problem reading the stream
+     */
+    public PatientBinaryReader(InputStream stream, NaaccrOptions options, NaaccrDictionary userDictionary) throws NaaccrIOException {
+        this(stream, options, Collections.singletonList(userDictionary), null);
+    }
+
+    /**
+     * Constructor.
+     * @param stream required underlined stream
+     * @param options optional options
+     * @param userDictionaries optional user-defined dictionaries (can be null or empty)
+     * @throws NaaccrIOException if there is problem reading the stream
+     */
+    public PatientBinaryReader(InputStream stream, NaaccrOptions options, List<NaaccrDictionary> userDictionaries) throws NaaccrIOException {
+        this(stream, options, userDictionaries, null);
+    }
+
+    /**
+     * Constructor.
+     * @param stream required underlined stream
+     * @param options optional options
+     * @param userDictionary optional user-defined dictionary
+     * @param conf optional stream configuration
+     * @throws NaaccrIOException if there is problem reading the stream
+     */
+    public PatientBinaryReader(InputStream stream, NaaccrOptions options, NaaccrDictionary userDictionary, NaaccrStreamConfiguration conf) throws NaaccrIOException {
+        this(stream, options, Collections.singletonList(userDictionary), conf);
+    }
+
+    /**
+     * Constructor.
+     * @param stream required underlined stream
+     * @param options optional options
+     * @param userDictionaries optional user-defined dictionaries (can be null or empty)
+     * @param conf optional stream configuration
+     * @throws NaaccrIOException if there is problem reading the stream
+     */
+    public PatientBinaryReader(InputStream stream, NaaccrOptions options, List<NaaccrDictionary> userDictionaries, NaaccrStreamConfiguration conf) throws NaaccrIOException {
+        _stream = new DataInputStream(new BufferedInputStream(stream, PatientBinaryWriter.DEFAULT_BLOCK_SIZE));
+        _options = options == null ? new NaaccrOptions() : options;
+        _block = new byte[0];
+        _compressed = new byte[0];
+
+        String dictionaryId;
+        List<List<String>> itemIds = new ArrayList<>();
+        try {
+            byte[] magic = new byte[PatientBinaryWriter.BINARY_FORMAT_MAGIC.length];
+            _stream.readFully(magic);
+            for (int i = 0; i < magic.length; i++)
+                if (magic[i] != PatientBinaryWriter.BINARY_FORMAT_MAGIC[i])
+                    throw new NaaccrIOException("The stream doesn't contain NAACCR binary data");
+            _formatVersion = _stream.readUnsignedByte();
+            if (_formatVersion > PatientBinaryWriter.BINARY_FORMAT_VERSION)
+                throw new NaaccrIOException("Unsupported version of the binary format: " + _formatVersion);
+            _inflater = _stream.readBoolean() ? new Inflater(true) : null;
+
+            _rootData = new NaaccrData();
+            _rootData.setRecordType(readNullableString());
+            _rootData.setBaseDictionaryUri(readNullableString());
+            int numUserDictionaries = _stream.readInt();
+            List<String> userDictionaryUris = new ArrayList<>(numUserDictionaries);
+            for (int i = 0; i < numUserDictionaries; i++)
+                userDictionaryUris.add(readNullableString());
+            _rootData.setUserDictionaryUri(userDictionaryUris);
+            _rootData.setSpecificationVersion(readNullableString());
+            long timeGenerated = _stream.readLong();
+            _rootData.setTimeGenerated(timeGenerated == Long.MIN_VALUE ? null : new Date(timeGenerated));
+            int numParameters = _stream.readInt();
+            for (int i = 0; i < numParameters; i++)
+                _rootData.addExtraRootParameters(readNullableString(), readNullableString());
+            dictionaryId = _stream.readUTF();
+            // the first versions of the format didn't contain the NAACCR IDs of the items
+            if (_formatVersion >= 3) {
+                for (int i = 0; i < PatientBinaryWriter.BINARY_FORMAT_LEVELS.length; i++) {
+                    int numItems = _stream.readInt();
+                    List<String> ids = new ArrayList<>(numItems);
+                    for (int j = 0; j < numItems; j++)
+                        ids.add(_stream.readUTF());
+                    itemIds.add(ids);
+                }
+            }
+        }
+        catch (NaaccrIOException e) {
+            throw e;
+        }
+        catch (EOFException e) {
+            throw new NaaccrIOException("The stream doesn't contain NAACCR binary data");
+        }
+        catch (IOException e) {
+            throw new NaaccrIOException(e.getMessage());
+        }
+
+        // try to use the cached runtime dictionary, create one if there isn't a cached one...
+        _dictionary = conf == null ? null : conf.getCachedDictionary();
+        if (_dictionary == null || !_dictionary.getId().equals(dictionaryId)) {
+            NaaccrDictionary baseDictionary = NaaccrXmlDictionaryUtils.getBaseDictionaryByUri(_rootData.getBaseDictionaryUri());
+            if (baseDictionary == null)
+                throw new NaaccrIOException("Unknown base dictionary: " + _rootData.getBaseDictionaryUri());
+            _dictionary = RuntimeNaaccrDictionary.getInstance(_rootData.getRecordType(), baseDictionary, userDictionaries);
+        }
+
+        // the ordinals are only meaningful for the dictionaries used to write the data
+        if (!_dictionary.getId().equals(dictionaryId))
+            throw new NaaccrIOException("The provided dictionaries don't match the ones used to write the data: " + dictionaryId);
+        for (int i = 0; i < itemIds.size(); i++) {
+            String level = PatientBinaryWriter.BINARY_FORMAT_LEVELS[i];
+            List<RuntimeNaaccrDictionaryItem> items = _dictionary.getItemsForParentXmlElement(level);
+            List<String> ids = itemIds.get(i);
+            for (int ordinal = 0; ordinal < Math.max(items.size(), ids.size()); ordinal++) {
+                String expectedId = ordinal < ids.size() ? ids.get(ordinal) : null;
+                String actualId = ordinal < items.size() ? items.get(ordinal).getNaaccrId() : null;
+                if (!Objects.equals(expectedId, actualId))
+                    throw new NaaccrIOException("The provided dictionaries don't match the ones used to write the data: " + level + " item #" + ordinal + " is '"
+                            + actualId + "' instead of '" + expectedId + "'");
+            }
+        }
+        _itemFilter = new RuntimeNaaccrItemFilter(_dictionary, _options);
+        _configuration = conf;
+        _rootItems = _dictionary.getItemsForParentXmlElement(NaaccrXmlUtils.NAACCR_XML_TAG_ROOT);
+        _patientItems = _dictionary.getItemsForParentXmlElement(NaaccrXmlUtils.NAACCR_XML_TAG_PATIENT);
+        _tumorItems = _dictionary.getItemsForParentXmlElement(NaaccrXmlUtils.NAACCR_XML_TAG_TUMOR);
+
+        // the first block always contains the root items
+        if (!readBlock())
+            throw new NaaccrIOException("The binary data doesn't contain the root items");
+        readEntity(_rootData, _rootItems);
+    }
+
+    @Override
+    public Patient readPatient() throws NaaccrIOException {
+        if (_finished)
+            return null;
+        if (_blockPosition >= _blockLength && !readBlock()) {
+            _finished = true;
+            return null;
+        }
+
+        boolean compact = Boolean.TRUE.equals(_options.getUseCompactEntities());
+        Patient patient = new Patient();
+        if (compact)
+            patient.useCompactStorage(_dictionary, _valuePool);
+        readEntity(patient, _patientItems);
+        int numTumors = readVarInt();
+        for (int i = 0; i < numTumors; i++) {
+            Tumor tumor = new Tumor();
+            if (compact)
+                tumor.useCompactStorage(_dictionary, _valuePool);
+            readEntity(tumor, _tumorItems);
+            patient.addTumor(tumor);
+        }
+        return patient;
+    }
+
+    @Override
+    public NaaccrData getRootData() {
+        return _rootData;
+    }
+
+    @Override
+    public void closeAndKeepAlive() {
+        // nothing to do, the data has no final node
+    }
+
+    @Override
+    public void close() throws NaaccrIOException {
+        if (_inflater != null)
+            _inflater.end();
+        try {
+            _stream.close();
+        }
+        catch (IOException e) {
+            throw new NaaccrIOException(e.getMessage());
+        }
+    }
+
+    /**
+     * Reads the line number, the items and the extensions of the given entity from the current block.
+     * @param entity entity to populate, required
+     * @param items the items of the level of the entity, indexed by their ordinal
+     * @throws NaaccrIOException if the data is corrupted
+     */
+    protected void readEntity(AbstractEntity entity, List<RuntimeNaaccrDictionaryItem> items) throws NaaccrIOException {
+        int lineNumber = readVarInt();
+        entity.setStartLineNumber(lineNumber == 0 ? null : lineNumber - 1);
+
+        int count = readVarInt();
+        for (int i = 0; i < count; i++) {
+            int key = readVarInt();
+            int ordinal = (key >>> ITEM_FLAGS_BITS) - 1, flags = key & ((1 << ITEM_FLAGS_BITS) - 1);
+            RuntimeNaaccrDictionaryItem def = null;
+            String id;
+            if (ordinal == -1)
+                id = readString();
+            else {
+                if (ordinal >= items.size())
+                    throw new NaaccrIOException("The binary data is corrupted (invalid item ordinal " + ordinal + ")");
+                def = items.get(ordinal);
+                id = def.getNaaccrId();
+            }
+
+            Integer num = null;
+            if ((flags & ITEM_FLAG_NUM) != 0)
+                num = readVarInt();
+            else if (def != null && (flags & ITEM_FLAG_DICTIONARY_NUM) != 0)
+                num = def.getNaaccrNum();
+            Integer itemLineNumber = (flags & ITEM_FLAG_LINE_NUMBER) != 0 ? PatientBinaryWriter.decodeLineNumber(readVarInt(), entity.getStartLineNumber()) : null;
+            String value = (flags & ITEM_FLAG_NULL_VALUE) != 0 ? null : readString();
+
+            if (def != null ? _itemFilter.processItem(def) : _itemFilter.processItem(id))
+                entity.addItem(new Item(id, num, value, itemLineNumber));
+        }
+
+        // the first version of the format didn't contain the extensions
+        if (_formatVersion < 2)
+            return;
+        int numExtensions = readVarInt();
+        for (int i = 0; i < numExtensions; i++) {
+            int extensionLineNumber = readVarInt();
+            String xml = readString();
+            if (!Boolean.TRUE.equals(_options.getIgnoreExtensions())) {
+                Object extension = deserializeExtension(xml);
+                if (extension instanceof NaaccrXmlExtension)
+                    ((NaaccrXmlExtension)extension).setStartLineNumber(extensionLineNumber == 0 ? null : extensionLineNumber - 1);
+                entity.addExtension(extension);
+            }
+        }
+    }
+
+    /**
+     * Deserializes an extension written by PatientBinaryWriter.serializeExtension().
+     * @param xml XML fragment of the extension
+     * @return the extension
+     * @throws NaaccrIOException if the extension can't be deserialized
+     */
+    protected Object deserializeExtension(String xml) throws NaaccrIOException {
+        if (_configuration == null)
+            _configuration = NaaccrStreamConfiguration.getDefault();
+        try {
+            // this reader doesn't have any XML stream, so the extensions are parsed with their own parser
+            if (_extensionParser == null)
+                _extensionParser = XmlPullParserFactory.newInstance().newPullParser();
+            return _configuration.getXstream().unmarshal(new XppReader(new StringReader(xml), _extensionParser));
+        }
+        catch (XmlPullParserException | RuntimeException e) {
+            throw new NaaccrIOException("unable to read extension: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Reads the next block from the underlined stream (decompressing it if needed).
+     * @return true if a block was read, false if the end of the data was reached
+     * @throws NaaccrIOException if the block can't be read
+     */
+    protected boolean readBlock() throws NaaccrIOException {
+        try {
+            int length = _stream.readInt();
+            if (length == 0)
+                return false;
+            if (length < 0)
+                throw new NaaccrIOException("The binary data is corrupted (invalid block length " + length + ")");
+            if (_block.length < length)
+                _block = new byte[Math.max(length, PatientBinaryWriter.DEFAULT_BLOCK_SIZE + 1024)];
+
+            if (_inflater != null) {
+                int compressedLength = _stream.readInt();
+                if (compressedLength < 0)
+                    throw new NaaccrIOException("The binary data is corrupted (invalid block length " + compressedLength + ")");
+                if (_compressed.length < compressedLength)
+                    _compressed = new byte[compressedLength];
+                _stream.readFully(_compressed, 0, compressedLength);
+                _inflater.reset();
+                _inflater.setInput(_compressed, 0, compressedLength);
+                int inflated = 0;
+                while (inflated < length) {
+                    int n = _inflater.inflate(_block, inflated, length - inflated);
+                    if (n == 0 && (_inflater.finished() || _inflater.needsInput()))
+                        break;
+                    inflated += n;
+                }
+                if (inflated != length)
+                    throw new NaaccrIOException("The binary data is corrupted (invalid compressed block)");
+            }
+            else
+                _stream.readFully(_block, 0, length);
+
+            _blockLength = length;
+            _blockPosition = 0;
+            return true;
+        }
+        catch (NaaccrIOException e) {
+            throw e;
+        }
+        catch (EOFException e) {
+            throw new NaaccrIOException("The binary data is truncated");
+        }
+        catch (DataFormatException e) {
+            throw new NaaccrIOException("The binary data is corrupted (" + e.getMessage() + ")");
+        }
+        catch (IOException e) {
+            throw new NaaccrIOException(e.getMessage());
+        }
+    }
+
+    private String readNullableString() throws IOException {
+        return _stream.readBoolean() ? _stream.readUTF() : null;
+    }
+
+    private String readString() throws NaaccrIOException {
+        int length = readVarInt();
+        if (length > _blockLength - _blockPosition)
+            throw new NaaccrIOException("The binary data is corrupted (invalid value length " + length + ")");
+        String value = new String(_block, _blockPosition, length, StandardCharsets.UTF_8);
+        _blockPosition += length;
+        return value;
+    }
+
+    private int readVarInt() throws NaaccrIOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (_blockPosition >= _blockLength)
+                throw new NaaccrIOException("The binary data is corrupted (unexpected end of block)");
+            byte b = _block[_blockPosition++];
+            value |= (b & 0x7F) << shift;
+            if (b >= 0)
+                return value;
+        }
+        throw new NaaccrIOException("The binary data is corrupted (invalid integer)");
+    }
+}
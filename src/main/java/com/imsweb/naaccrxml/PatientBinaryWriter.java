@@ -0,0 +1,452 @@
+/*
+ * Copyright (C) 2019 Information Management Services, Inc.
+ */
+package com.imsweb.naaccrxml;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+import com.thoughtworks.xstream.io.xml.CompactWriter;
+
+import com.imsweb.naaccrxml.entity.AbstractEntity;
+import com.imsweb.naaccrxml.entity.Item;
+import com.imsweb.naaccrxml.entity.NaaccrData;
+import com.imsweb.naaccrxml.entity.Patient;
+import com.imsweb.naaccrxml.entity.Tumor;
+import com.imsweb.naaccrxml.entity.dictionary.NaaccrDictionary;
+import com.imsweb.naaccrxml.runtime.NaaccrStreamConfiguration;
+import com.imsweb.naaccrxml.runtime.RuntimeNaaccrDictionary;
+import com.imsweb.naaccrxml.runtime.RuntimeNaaccrDictionaryItem;
+import com.imsweb.naaccrxml.runtime.RuntimeNaaccrItemFilter;
+
+/**
+ * This class can be used to wrap a generic output stream into a patient writer handling the NAACCR binary format.
+ * <br/><br/>
+ * The binary format is meant to be used as a fast intermediate storage between the steps of a process (it is much cheaper to read and write than the XML
+ * and flat formats); it is specific to this library and shouldn't be used to exchange data. The data starts with a header containing the root attributes
+ * and the URI of the dictionaries, followed by blocks of patients (optionally compressed). The items are identified by their ordinal in the runtime
+ * dictionary and their values are length-prefixed, so reading the data doesn't require any parsing; the same user-defined dictionaries must be provided
+ * to read the data (see PatientBinaryReader). The header also contains the NAACCR IDs of the items of each level, in the order of their ordinals, so
+ * the data is rejected if the dictionaries provided to read it define different items (even if their URI didn't change).
+ * <br/><br/>
+ * The items (including their NAACCR number and line number) and the line numbers of the entities are written as they are, so reading the data back
+ * returns the exact same patients. The extensions are written as XML fragments using the XStream instance of the stream configuration (unless the
+ * options request to ignore them); the same configuration (with the same registered tags) must be provided to read them back.
+ */
+public class PatientBinaryWriter implements PatientWriter {
+
+    // the bytes starting the binary data
+    public static final byte[] BINARY_FORMAT_MAGIC = {'N', 'A', 'A', 'C', 'C', 'R', 'B', 'N'};
+
+    // the version of the binary format written by this class
+    public static final int BINARY_FORMAT_VERSION = 3;
+
+    // the levels of the items, in the order their NAACCR IDs are written in the header
+    static final String[] BINARY_FORMAT_LEVELS = {NaaccrXmlUtils.NAACCR_XML_TAG_ROOT, NaaccrXmlUtils.NAACCR_XML_TAG_PATIENT, NaaccrXmlUtils.NAACCR_XML_TAG_TUMOR};
+
+    // the default (uncompressed) size of the blocks of patients
+    public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+    // the flags written for each item (in the lower bits of the item ordinal)
+    static final int ITEM_FLAG_NUM = 1, ITEM_FLAG_DICTIONARY_NUM = 2, ITEM_FLAG_LINE_NUMBER = 4, ITEM_FLAG_NULL_VALUE = 8, ITEM_FLAGS_BITS = 4;
+
+    // the underlined stream
+    protected DataOutputStream _stream;
+
+    // the root data
+    protected NaaccrData _rootData;
+
+    // the options requested to use when writing the patients
+    protected NaaccrOptions _options;
+
+    // the runtime dictionary (combination of base and user-defined dictionaries)
+    protected RuntimeNaaccrDictionary _dictionary;
+
+    // the compiled include/exclude options
+    protected RuntimeNaaccrItemFilter _itemFilter;
+
+    // the stream configuration, used to serialize the extensions (created when needed if none was provided)
+    protected NaaccrStreamConfiguration _configuration;
+
+    // whether the extensions should be written
+    protected boolean _writeExtensions;
+
+    // the compressor, null if the blocks are not compressed
+    protected Deflater _deflater;
+
+    // the size after which a block is written
+    protected int _blockSize;
+
+    // the current block and the buffer for its compressed version
+    protected byte[] _block, _compressed;
+
+    // the length of the current block
+    protected int _blockLength;
+
+    // whether the final block has been written
+    protected boolean _finished;
+
+    /**
+     * Constructor.
+     * @param stream required underlined stream
+     * @param data required root data
+     * @throws NaaccrIOException if there is problem creating the stream
+     */
+    public PatientBinaryWriter(OutputStream stream, NaaccrData data) throws NaaccrIOException {
+        this(stream, data, null, (NaaccrDictionary)null, null);
+    }
+
+    /**
+     * Constructor.
+     * @param stream required underlined stream
+     * @param data required root data
+     * @param options optional options
+     * @throws NaaccrIOException if there is problem creating the stream
+     */
+    public PatientBinaryWriter(OutputStream stream, NaaccrData data, NaaccrOptions options) throws NaaccrIOException {
+        this(stream, data, options, (NaaccrDictionary)null, null);
+    }
+
+    /**
+     * Constructor.
+     * @param stream required underlined stream
+     * @param data required root data
+     * @param options optional options
+     * @param userDictionary optional user-defined dictionary
+     * @throws NaaccrIOException if there is problem creating the stream
+     */
+    public PatientBinaryWriter(OutputStream stream, NaaccrData data, NaaccrOptions options, NaaccrDictionary userDictionary) throws NaaccrIOException {
+        this(stream, data, options, Collections.singletonList(userDictionary), null);
+    }
+
+    /**
+     * Constructor.
+     * @param stream required underlined stream
+     * @param data required root data
+     * @param options optional options
+     * @param userDictionaries optional user-defined dictionaries (can be null or empty)
+     * @throws NaaccrIOException if there is problem creating the stream
+     */
+    public PatientBinaryWriter(OutputStream stream, NaaccrData data, NaaccrOptions options, List<NaaccrDictionary> userDictionaries) throws NaaccrIOException {
+        this(stream, data, options, userDictionaries, null);
+    }
+
+    /**
+     * Constructor.
+     * @param stream required underlined stream
+     * @param data required root data
+     * @param options optional options
+     * @param userDictionary optional user-defined dictionary
+     * @param conf optional stream configuration
+     * @throws NaaccrIOException if there is problem creating the stream
+     */
+    public PatientBinaryWriter(OutputStream stream, NaaccrData data, NaaccrOptions options, NaaccrDictionary userDictionary, NaaccrStreamConfiguration conf) throws NaaccrIOException {
+        this(stream, data, options, Collections.singletonList(userDictionary), conf);
+    }
+
+    /**
+     * Constructor.
+     * @param stream required underlined stream
+     * @param data required root data
+     * @param options optional options
+     * @param userDictionaries optional user-defined dictionaries (can be null or empty)
+     * @param conf optional stream configuration
+     * @throws NaaccrIOException if there is problem creating the stream
+     */
+    public PatientBinaryWriter(OutputStream stream, NaaccrData data, NaaccrOptions options, List<NaaccrDictionary> userDictionaries, NaaccrStreamConfiguration conf) throws NaaccrIOException {
+        this(stream, data, options, userDictionaries, conf, false, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Constructor.
+     * @param stream required underlined stream
+     * @param data required root data
+     * @param options optional options
+     * @param userDictionaries optional user-defined dictionaries (can be null or empty)
+     * @param conf optional stream configuration
+     * @param compress whether the blocks of patients should be compressed (using the fastest level of the deflate algorithm)
+     * @param blockSize the (uncompressed) size after which a block of patients is written
+     * @throws NaaccrIOException if there is problem creating the stream
+     */
+    public PatientBinaryWriter(OutputStream stream, NaaccrData data, NaaccrOptions options, List<NaaccrDictionary> userDictionaries, NaaccrStreamConfiguration conf, boolean compress,
+            int blockSize) throws NaaccrIOException {
+        if (blockSize <= 0)
+            throw new NaaccrIOException("Block size must be positive");
+
+        _stream = new DataOutputStream(new BufferedOutputStream(stream, DEFAULT_BLOCK_SIZE));
+        _rootData = data;
+        _options = options == null ? new NaaccrOptions() : options;
+        _deflater = compress ? new Deflater(Deflater.BEST_SPEED, true) : null;
+        _blockSize = blockSize;
+        _block = new byte[blockSize + 1024];
+        _compressed = new byte[0];
+
+        // try to use the cached runtime dictionary, create one if there isn't a cached one...
+        _dictionary = conf == null ? null : conf.getCachedDictionary();
+        if (_dictionary == null) {
+            NaaccrDictionary baseDictionary = NaaccrXmlDictionaryUtils.getBaseDictionaryByUri(data.getBaseDictionaryUri());
+            _dictionary = RuntimeNaaccrDictionary.getInstance(data.getRecordType(), baseDictionary, userDictionaries);
+        }
+        _itemFilter = new RuntimeNaaccrItemFilter(_dictionary, _options);
+        _configuration = conf;
+        _writeExtensions = !Boolean.TRUE.equals(_options.getIgnoreExtensions());
+
+        // the header, followed by a first block containing the root items
+        try {
+            _stream.write(BINARY_FORMAT_MAGIC);
+            _stream.writeByte(BINARY_FORMAT_VERSION);
+            _stream.writeBoolean(compress);
+            writeNullableString(data.getRecordType());
+            writeNullableString(data.getBaseDictionaryUri());
+            List<String> userDictionaryUris = data.getUserDictionaryUri() == null ? Collections.emptyList() : data.getUserDictionaryUri();
+            _stream.writeInt(userDictionaryUris.size());
+            for (String uri : userDictionaryUris)
+                writeNullableString(uri);
+            writeNullableString(data.getSpecificationVersion());
+            _stream.writeLong(data.getTimeGenerated() == null ? Long.MIN_VALUE : data.getTimeGenerated().getTime());
+            _stream.writeInt(data.getExtraRootParameters().size());
+            for (Map.Entry<String, String> entry : data.getExtraRootParameters().entrySet()) {
+                writeNullableString(entry.getKey());
+                writeNullableString(entry.getValue());
+            }
+            _stream.writeUTF(_dictionary.getId());
+            for (String level : BINARY_FORMAT_LEVELS) {
+                List<RuntimeNaaccrDictionaryItem> items = _dictionary.getItemsForParentXmlElement(level);
+                _stream.writeInt(items.size());
+                for (RuntimeNaaccrDictionaryItem item : items)
+                    _stream.writeUTF(item.getNaaccrId());
+            }
+        }
+        catch (IOException e) {
+            throw new NaaccrIOException(e.getMessage());
+        }
+        writeEntity(data, NaaccrXmlUtils.NAACCR_XML_TAG_ROOT);
+        writeBlock();
+    }
+
+    @Override
+    public void writePatient(Patient patient) throws NaaccrIOException {
+        if (_finished)
+            throw new NaaccrIOException("The writer has been closed");
+
+        writeEntity(patient, NaaccrXmlUtils.NAACCR_XML_TAG_PATIENT);
+        List<Tumor> tumors = patient.getTumors();
+        writeVarInt(tumors.size());
+        for (Tumor tumor : tumors)
+            writeEntity(tumor, NaaccrXmlUtils.NAACCR_XML_TAG_TUMOR);
+
+        // a block always contains complete patients, so it might be (a bit) bigger than the requested size
+        if (_blockLength >= _blockSize)
+            writeBlock();
+    }
+
+    @Override
+    public void closeAndKeepAlive() throws NaaccrIOException {
+        if (_finished)
+            return;
+        if (_blockLength > 0)
+            writeBlock();
+        try {
+            // a block of length 0 marks the end of the data
+            _stream.writeInt(0);
+            _stream.flush();
+        }
+        catch (IOException e) {
+            throw new NaaccrIOException(e.getMessage());
+        }
+        _finished = true;
+    }
+
+    @Override
+    public void close() throws NaaccrIOException {
+        try {
+            closeAndKeepAlive();
+        }
+        finally {
+            if (_deflater != null)
+                _deflater.end();
+            try {
+                _stream.close();
+            }
+            catch (IOException e) {
+                throw new NaaccrIOException(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Writes the line number, the items and the extensions of the given entity in the current block.
+     * @param entity entity to write, required
+     * @param parentXmlElement the parent XML element of the items of the entity
+     * @throws NaaccrIOException if an extension can't be serialized
+     */
+    protected void writeEntity(AbstractEntity entity, String parentXmlElement) throws NaaccrIOException {
+        writeVarInt(entity.getStartLineNumber() == null ? 0 : entity.getStartLineNumber() + 1);
+
+        List<Item> items = entity.getItems();
+        int count = 0;
+        for (Item item : items)
+            if (_itemFilter.processItem(item.getNaaccrId()))
+                count++;
+        writeVarInt(count);
+
+        for (Item item : items) {
+            if (!_itemFilter.processItem(item.getNaaccrId()))
+                continue;
+
+            // the items are identified by their ordinal in the runtime dictionary, unknown items (or items on the wrong level) by their ID; the flags
+            // are written with the ordinal, the NAACCR number is only written if it's not the one of the dictionary
+            RuntimeNaaccrDictionaryItem def = _dictionary.getItemByNaaccrId(item.getNaaccrId());
+            if (def != null && (def.getOrdinal() < 0 || !parentXmlElement.equals(def.getParentXmlElement())))
+                def = null;
+            Integer num = item.getNaaccrNum();
+            int flags = 0;
+            if (num != null)
+                flags |= def != null && num.equals(def.getNaaccrNum()) ? ITEM_FLAG_DICTIONARY_NUM : ITEM_FLAG_NUM;
+            if (item.getStartLineNumber() != null)
+                flags |= ITEM_FLAG_LINE_NUMBER;
+            if (item.getValue() == null)
+                flags |= ITEM_FLAG_NULL_VALUE;
+            writeVarInt((def == null ? 0 : def.getOrdinal() + 1) << ITEM_FLAGS_BITS | flags);
+            if (def == null)
+                writeString(item.getNaaccrId());
+            if ((flags & ITEM_FLAG_NUM) != 0)
+                writeVarInt(num);
+            // the line numbers of the items are usually the same as (or close to) the one of their entity
+            if (item.getStartLineNumber() != null)
+                writeVarInt(encodeLineNumber(item.getStartLineNumber(), entity.getStartLineNumber()));
+            if (item.getValue() != null)
+                writeString(item.getValue());
+        }
+
+        // the extensions are written as XML fragments, preceded by their line number (like the entities)
+        List<Object> extensions = _writeExtensions && entity.getExtensions() != null ? entity.getExtensions() : Collections.emptyList();
+        writeVarInt(extensions.size());
+        for (Object extension : extensions) {
+            Integer lineNumber = extension instanceof NaaccrXmlExtension ? ((NaaccrXmlExtension)extension).getStartLineNumber() : null;
+            writeVarInt(lineNumber == null ? 0 : lineNumber + 1);
+            writeString(serializeExtension(extension));
+        }
+    }
+
+    /**
+     * Serializes the given extension into an XML fragment.
+     * @param extension extension to serialize, required
+     * @return the corresponding XML fragment
+     * @throws NaaccrIOException if the extension can't be serialized
+     */
+    protected String serializeExtension(Object extension) throws NaaccrIOException {
+        if (_configuration == null)
+            _configuration = NaaccrStreamConfiguration.getDefault();
+        StringWriter buf = new StringWriter();
+        try {
+            _configuration.getXstream().marshal(extension, new CompactWriter(buf));
+        }
+        catch (RuntimeException e) {
+            throw new NaaccrIOException("unable to write extension: " + e.getMessage(), e);
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Encodes the line number of an item relatively to the one of its entity, as a non-negative integer (small differences use a single byte).
+     * @param lineNumber line number of the item
+     * @param entityLineNumber line number of the entity, can be null
+     * @return the encoded line number
+     */
+    static int encodeLineNumber(int lineNumber, Integer entityLineNumber) {
+        int delta = entityLineNumber == null ? lineNumber : lineNumber - entityLineNumber;
+        return (delta << 1) ^ (delta >> 31);
+    }
+
+    /**
+     * Decodes a line number encoded with encodeLineNumber().
+     * @param value encoded line number
+     * @param entityLineNumber line number of the entity, can be null
+     * @return the line number of the item
+     */
+    static int decodeLineNumber(int value, Integer entityLineNumber) {
+        int delta = (value >>> 1) ^ -(value & 1);
+        return entityLineNumber == null ? delta : entityLineNumber + delta;
+    }
+
+    /**
+     * Writes the current block to the underlined stream (compressing it if requested), and starts a new one.
+     * @throws NaaccrIOException if the block can't be written
+     */
+    protected void writeBlock() throws NaaccrIOException {
+        try {
+            _stream.writeInt(_blockLength);
+            if (_deflater != null) {
+                _deflater.reset();
+                _deflater.setInput(_block, 0, _blockLength);
+                _deflater.finish();
+                int compressedLength = 0;
+                while (!_deflater.finished()) {
+                    if (compressedLength == _compressed.length)
+                        _compressed = Arrays.copyOf(_compressed, Math.max(1024, _compressed.length * 2));
+                    compressedLength += _deflater.deflate(_compressed, compressedLength, _compressed.length - compressedLength);
+                }
+                _stream.writeInt(compressedLength);
+                _stream.write(_compressed, 0, compressedLength);
+            }
+            else
+                _stream.write(_block, 0, _blockLength);
+        }
+        catch (IOException e) {
+            throw new NaaccrIOException(e.getMessage());
+        }
+        _blockLength = 0;
+    }
+
+    private void writeNullableString(String value) throws IOException {
+        _stream.writeBoolean(value != null);
+        if (value != null)
+            _stream.writeUTF(value);
+    }
+
+    // writes the length of the value (in bytes) followed by its UTF-8 bytes; most values are ASCII and are copied directly
+    private void writeString(String value) {
+        int length = value.length();
+        boolean ascii = true;
+        for (int i = 0; i < length && ascii; i++)
+            ascii = value.charAt(i) < 0x80;
+        if (ascii) {
+            ensureCapacity(5 + length);
+            writeVarInt(length);
+            for (int i = 0; i < length; i++)
+                _block[_blockLength++] = (byte)value.charAt(i);
+        }
+        else {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            ensureCapacity(5 + bytes.length);
+            writeVarInt(bytes.length);
+            System.arraycopy(bytes, 0, _block, _blockLength, bytes.length);
+            _blockLength += bytes.length;
+        }
+    }
+
+    // writes a non-negative integer using 7 bits per byte
+    private void writeVarInt(int value) {
+        ensureCapacity(5);
+        while ((value & ~0x7F) != 0) {
+            _block[_blockLength++] = (byte)((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        _block[_blockLength++] = (byte)value;
+    }
+
+    private void ensureCapacity(int length) {
+        if (_blockLength + length > _block.length)
+            _block = Arrays.copyOf(_block, Math.max(_block.length * 2, _blockLength + length));
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2019 Information Management Services, Inc.
+ */
+package com.imsweb.naaccrxml;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.imsweb.naaccrxml.entity.dictionary.NaaccrDictionary;
+import com.imsweb.naaccrxml.runtime.NaaccrStreamConfiguration;
+
+/**
+ * This class is a flat-file patient reader that reads an uncompressed file through a memory-mapped file channel instead of a character stream.
+ * <br/><br/>
+ * The lines are found by scanning the mapped bytes directly; NAACCR flat files are essentially ASCII, so most of the lines are copied into strings
+ * without going through a character decoder (lines containing non-ASCII characters are decoded as UTF-8, like the regular flat reader does).
+ * The resulting patients are identical to the ones returned by a PatientFlatReader created from NaaccrXmlUtils.createReader().
+ * <br/><br/>
+ * Files larger than 2GB are supported; they are mapped in successive windows.
+ */
+public class PatientFlatMappedReader extends PatientFlatReader {
+
+    // the default size of the mapped windows
+    private static final int _WINDOW_SIZE = 64 * 1024 * 1024;
+
+    // the underlined channel
+    protected FileChannel _channel;
+
+    // the size of the file
+    protected long _fileSize;
+
+    // the currently mapped window, and its offset in the file
+    protected MappedByteBuffer _window;
+
+    protected long _windowOffset;
+
+    // the position of the next byte to read in the current window
+    protected int _position;
+
+    // the buffer used to copy the bytes of the lines
+    protected byte[] _lineBuffer = new byte[8192];
+
+    // the number of lines read so far
+    protected int _lineNumber;
+
+    // whether the last line was terminated by a carriage return (in which case a following line feed needs to be ignored)
+    protected boolean _skipLineFeed;
+
+    /**
+     * Constructor
+     * @param file required uncompressed flat file
+     * @throws NaaccrIOException if there is problem creating the stream
+     */
+    public PatientFlatMappedReader(File file) throws NaaccrIOException {
+        this(file, null, (NaaccrDictionary)null, null);
+    }
+
+    /**
+     * Constructor
+     * @param file required uncompressed flat file
+     * @param options optional options
+     * @throws NaaccrIOException if there is problem creating the stream
+     */
+    public PatientFlatMappedReader(File file, NaaccrOptions options) throws NaaccrIOException {
+        this(file, options, (NaaccrDictionary)null, null);
+    }
+
+    /**
+     * Constructor
+     * @param file required uncompressed flat file
+     * @param options optional options
+     * @param userDictionaries optional user-defined dictionaries (can be null or empty)
+     * @throws NaaccrIOException if there is problem creating the stream
+     */
+    public PatientFlatMappedReader(File file, NaaccrOptions options, List<NaaccrDictionary> userDictionaries) throws NaaccrIOException {
+        this(file, options, userDictionaries, null);
+    }
+
+    /**
+     * Constructor
+     * @param file required uncompressed flat file
+     * @param options optional options
+     * @param userDictionary optional user-defined dictionary
+     * @param conf optional stream configuration
+     * @throws NaaccrIOException if there is problem creating the stream
+     */
+    public PatientFlatMappedReader(File file, NaaccrOptions options, NaaccrDictionary userDictionary, NaaccrStreamConfiguration conf) throws NaaccrIOException {
+        this(file, options, Collections.singletonList(userDictionary), conf);
+    }
+
+    /**
+     * Constructor
+     * @param file required uncompressed flat file
+     * @param options optional options
+     * @param userDictionaries optional user-defined dictionaries (can be null or empty)
+     * @param conf optional stream configuration
+     * @throws NaaccrIOException if there is problem creating the stream
+     */
+    public PatientFlatMappedReader(File file, NaaccrOptions options, List<NaaccrDictionary> userDictionaries, NaaccrStreamConfiguration conf) throws NaaccrIOException {
+        try {
+            _channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            _fileSize = _channel.size();
+        }
+        catch (IOException e) {
+            throw new NaaccrIOException(e.getMessage());
+        }
+
+        try {
+            init(options, userDictionaries, conf);
+        }
+        catch (NaaccrIOException | RuntimeException e) {
+            try {
+                _channel.close();
+            }
+            catch (IOException e1) {
+                // give up
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    protected String readLine() throws IOException {
+        if (_skipLineFeed) {
+            _skipLineFeed = false;
+            if (hasMoreBytes() && _window.get(_position) == '\n')
+                _position++;
+        }
+
+        if (!hasMoreBytes())
+            return null;
+
+        int length = 0;
+        boolean ascii = true;
+        while (hasMoreBytes()) {
+            int start = _position, end = start, limit = _window.limit();
+            byte b = 0;
+            while (end < limit) {
+                b = _window.get(end);
+                if (b == '\n' || b == '\r')
+                    break;
+                if (b < 0)
+                    ascii = false;
+                end++;
+            }
+
+            // copy the bytes of the line (or of the part of the line that belongs to the current window)
+            if (length + end - start > _lineBuffer.length)
+                _lineBuffer = Arrays.copyOf(_lineBuffer, Math.max(_lineBuffer.length * 2, length + end - start));
+            _window.position(start);
+            _window.get(_lineBuffer, length, end - start);
+            length += end - start;
+
+            if (end < limit) {
+                _position = end + 1;
+                _skipLineFeed = b == '\r';
+                break;
+            }
+            _position = end;
+        }
+
+        _lineNumber++;
+        return new String(_lineBuffer, 0, length, ascii ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the size of the windows mapped in memory.
+     * @return the size of the windows, in bytes
+     */
+    protected int getWindowSize() {
+        return _WINDOW_SIZE;
+    }
+
+    @Override
+    protected int getLineNumber() {
+        return _lineNumber;
+    }
+
+    @Override
+    public void close() throws NaaccrIOException {
+        closeAndKeepAlive();
+        _window = null;
+        try {
+            _channel.close();
+        }
+        catch (IOException e) {
+            throw new NaaccrIOException(e.getMessage());
+        }
+    }
+
+    // returns true if there is at least one more byte to read, mapping the next window if needed
+    private boolean hasMoreBytes() throws IOException {
+        if (_window != null && _position < _window.limit())
+            return true;
+        long offset = _window == null ? 0 : _windowOffset + _window.limit();
+        if (offset >= _fileSize)
+            return false;
+        _window = _channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(getWindowSize(), _fileSize - offset));
+        _windowOffset = offset;
+        _position = 0;
+        return true;
+    }
+}
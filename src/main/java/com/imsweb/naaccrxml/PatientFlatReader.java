@@ -7,13 +7,15 @@ import java.io.IOException;
 import java.io.LineNumberReader;
 import java.io.Reader;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.Objects;
 
 import com.imsweb.naaccrxml.entity.AbstractEntity;
+import com.imsweb.naaccrxml.entity.CompactValuePool;
 import com.imsweb.naaccrxml.entity.Item;
+import com.imsweb.naaccrxml.entity.LazyItemDecoder;
 import com.imsweb.naaccrxml.entity.NaaccrData;
 import com.imsweb.naaccrxml.entity.Patient;
 import com.imsweb.naaccrxml.entity.Tumor;
@@ -21,6 +23,8 @@ import com.imsweb.naaccrxml.entity.dictionary.NaaccrDictionary;
 import com.imsweb.naaccrxml.runtime.NaaccrStreamConfiguration;
 import com.imsweb.naaccrxml.runtime.RuntimeNaaccrDictionary;
 import com.imsweb.naaccrxml.runtime.RuntimeNaaccrDictionaryItem;
+import com.imsweb.naaccrxml.runtime.RuntimeNaaccrFlatReadPlan;
+import com.imsweb.naaccrxml.runtime.RuntimeNaaccrItemFilter;
 
 /**
  * This class can be used to wrap a generic reader into a patient reader handling the NAACCR flat-file format.
@@ -39,15 +43,30 @@ public class PatientFlatReader implements PatientReader {
     // the runtime dictionary (combination of base and user-defined dictionaries)
     protected RuntimeNaaccrDictionary _dictionary;
 
+    // the compiled include/exclude options
+    protected RuntimeNaaccrItemFilter _itemFilter;
+
+    // the compiled plan (coming from the runtime dictionary) used to decode the lines
+    protected RuntimeNaaccrFlatReadPlan _plan;
+
     // the cached items that need to be used to know whether tumors belong to the same patient
     protected List<RuntimeNaaccrDictionaryItem> _groupingItems;
 
+    // the compiled grouping items, used to compare the lines without creating any object
+    protected RuntimeNaaccrFlatReadPlan.Level _groupingLevel;
+
     // the NAACCR format to use
     protected NaaccrFormat _format;
 
     // reference to the previous data line in the reader
     protected String _previousLine;
 
+    // the decoders used by the patients and tumors using the lazy storage
+    protected LazyItemDecoder _patientDecoder, _tumorDecoder;
+
+    // the pool sharing the short values between the patients and tumors using the compact (or lazy) storage
+    protected CompactValuePool _valuePool = new CompactValuePool();
+
     /**
      * Constructor
      * @param reader required underlined reader
@@ -111,10 +130,27 @@ public class PatientFlatReader implements PatientReader {
      */
     public PatientFlatReader(Reader reader, NaaccrOptions options, List<NaaccrDictionary> userDictionaries, NaaccrStreamConfiguration conf) throws NaaccrIOException {
         _reader = new LineNumberReader(reader);
+        init(options, userDictionaries, conf);
+    }
+
+    /**
+     * Constructor for the sub-classes that don't read the lines from a reader; those need to call init() once they are ready to provide the first line.
+     */
+    protected PatientFlatReader() {
+    }
+
+    /**
+     * Reads the first line, determines the format and reads the root items.
+     * @param options optional options
+     * @param userDictionaries optional user-defined dictionaries (can be null or empty)
+     * @param conf optional stream configuration
+     * @throws NaaccrIOException if there is problem reading the first line
+     */
+    protected void init(NaaccrOptions options, List<NaaccrDictionary> userDictionaries, NaaccrStreamConfiguration conf) throws NaaccrIOException {
         _options = options == null ? new NaaccrOptions() : options;
 
         try {
-            _previousLine = _reader.readLine();
+            _previousLine = readLine();
         }
         catch (IOException e) {
             throw new NaaccrIOException("unable to read first line");
@@ -143,8 +179,9 @@ public class PatientFlatReader implements PatientReader {
         _dictionary = conf == null ? null : conf.getCachedDictionary();
         if (_dictionary == null) {
             NaaccrDictionary baseDictionary = NaaccrXmlDictionaryUtils.getBaseDictionaryByVersion(_format.getNaaccrVersion());
-            _dictionary = new RuntimeNaaccrDictionary(_format.getRecordType(), baseDictionary, userDictionaries);
+            _dictionary = RuntimeNaaccrDictionary.getInstance(_format.getRecordType(), baseDictionary, userDictionaries);
         }
+        _itemFilter = new RuntimeNaaccrItemFilter(_dictionary, _options);
         _rootData = new NaaccrData(_format.toString());
         _rootData.setSpecificationVersion(NaaccrXmlUtils.CURRENT_SPECIFICATION_VERSION);
 
@@ -153,43 +190,60 @@ public class PatientFlatReader implements PatientReader {
             throw new NaaccrIOException("invalid line length for first record, expected " + _format.getLineLength() + " but got " + _previousLine.length());
 
         // read the root items
-        for (RuntimeNaaccrDictionaryItem itemDef : _dictionary.getItems())
-            if (NaaccrXmlUtils.NAACCR_XML_TAG_ROOT.equals(itemDef.getParentXmlElement()))
-                addItemFromLine(_rootData, _previousLine, _reader.getLineNumber(), itemDef);
+        _plan = _dictionary.getFlatReadPlan();
+        RuntimeNaaccrFlatReadPlan.Level rootLevel = _plan.getRootLevel();
+        for (int idx = 0; idx < rootLevel.size(); idx++)
+            addItemFromLine(_rootData, _previousLine, getLineNumber(), rootLevel, idx);
 
         // let's cache the grouping items, we are going to need them a lot...
         _groupingItems = new ArrayList<>();
         if (_options.getTumorGroupingItems() != null) {
             for (String id : _options.getTumorGroupingItems()) {
                 RuntimeNaaccrDictionaryItem item = _dictionary.getItemByNaaccrId(id);
-                if (item != null)
+                if (item != null && item.getStartColumn() != null)
                     _groupingItems.add(item);
             }
         }
+        _groupingLevel = new RuntimeNaaccrFlatReadPlan.Level(_groupingItems);
+
+        _patientDecoder = new LazyLevelDecoder(_plan.getPatientLevel(), NaaccrXmlUtils.NAACCR_XML_TAG_PATIENT);
+        _tumorDecoder = new LazyLevelDecoder(_plan.getTumorLevel(), NaaccrXmlUtils.NAACCR_XML_TAG_TUMOR);
     }
 
     @Override
     public Patient readPatient() throws NaaccrIOException {
         List<String> lines = new ArrayList<>();
         List<Integer> lineNumbers = new ArrayList<>();
+        return readPatientLines(lines, lineNumbers) ? createPatientFromLines(lines, lineNumbers) : null;
+    }
 
+    /**
+     * Reads the lines of the next patient on this stream, without translating them into a patient.
+     * <br/><br/>
+     * The lines can then be translated with createPatientFromLines(); that method doesn't change the state of the reader, and so it can be called from several
+     * threads at the same time, which allows the lines to be read sequentially but translated in parallel.
+     * @param lines the list to populate with the lines of the next patient
+     * @param lineNumbers the list to populate with the line numbers of the next patient
+     * @return true if lines were read, false if the end of the stream has been reached
+     * @throws NaaccrIOException if anything goes wrong
+     */
+    protected boolean readPatientLines(List<String> lines, List<Integer> lineNumbers) throws NaaccrIOException {
         try {
             if (_previousLine == null) {
-                _previousLine = _reader.readLine();
+                _previousLine = readLine();
                 if (_previousLine == null) // would be an empty file...
-                    return null;
+                    return false;
             }
 
-            Map<String, String> firstLineGroupingValues = extractGroupingValues(_previousLine, _reader.getLineNumber(), _groupingItems);
+            String firstLine = _previousLine;
             lines.add(_previousLine);
-            lineNumbers.add(_reader.getLineNumber());
-            _previousLine = _reader.readLine();
+            lineNumbers.add(getLineNumber());
+            _previousLine = readLine();
             while (_previousLine != null) {
-                boolean samePatient = !firstLineGroupingValues.isEmpty() && firstLineGroupingValues.equals(extractGroupingValues(_previousLine, _reader.getLineNumber(), _groupingItems));
-                if (samePatient) {
+                if (_groupingLevel.haveSameValues(firstLine, _previousLine)) {
                     lines.add(_previousLine);
-                    lineNumbers.add(_reader.getLineNumber());
-                    _previousLine = _reader.readLine();
+                    lineNumbers.add(getLineNumber());
+                    _previousLine = readLine();
                 }
                 else
                     break;
@@ -199,7 +253,24 @@ public class PatientFlatReader implements PatientReader {
             throw new NaaccrIOException(e.getMessage());
         }
 
-        return lines.isEmpty() ? null : createPatientFromLines(lines, lineNumbers);
+        return true;
+    }
+
+    /**
+     * Reads the next line.
+     * @return the next line, without the line terminator, null if the end of the stream has been reached
+     * @throws IOException if the line can't be read
+     */
+    protected String readLine() throws IOException {
+        return _reader.readLine();
+    }
+
+    /**
+     * Returns the line number of the last line returned by readLine().
+     * @return the current line number (1-based)
+     */
+    protected int getLineNumber() {
+        return _reader.getLineNumber();
     }
 
     @Override
@@ -223,22 +294,19 @@ public class PatientFlatReader implements PatientReader {
         }
     }
 
-    protected Map<String, String> extractGroupingValues(String line, Integer linNumber, List<RuntimeNaaccrDictionaryItem> itemDefs) {
-        Map<String, String> values = new HashMap<>();
-
-        for (RuntimeNaaccrDictionaryItem itemDef : itemDefs) {
-            Item item = createItemFromLine(null, line, linNumber, itemDef);
-            if (item != null)
-                values.put(item.getNaaccrId(), item.getValue());
-        }
-
-        return values;
-    }
-
     protected Patient createPatientFromLines(List<String> lines, List<Integer> lineNumbers) {
+        boolean lazy = Boolean.TRUE.equals(_options.getUseLazyEntities());
+        boolean compact = !lazy && Boolean.TRUE.equals(_options.getUseCompactEntities());
         Patient patient = new Patient();
+        if (lazy || compact)
+            patient.useCompactStorage(_dictionary, _valuePool);
+        if (lazy)
+            patient.useLazyStorage(_dictionary, lines.get(0), lineNumbers.get(0), _patientDecoder);
         patient.setStartLineNumber(lineNumbers.get(0));
 
+        RuntimeNaaccrFlatReadPlan.Level rootLevel = _plan.getRootLevel(), patientLevel = _plan.getPatientLevel(), tumorLevel = _plan.getTumorLevel();
+        boolean reportLevelMismatch = Boolean.TRUE.equals(_options.getReportLevelMismatch());
+
         for (int i = 0; i < lines.size(); i++) {
             String line = lines.get(i);
             Integer lineNumber = lineNumbers.get(i);
@@ -247,39 +315,73 @@ public class PatientFlatReader implements PatientReader {
                 reportError(patient, lineNumber, null, null, NaaccrErrorUtils.CODE_BAD_LINE_LENGTH, _format.getLineLength(), line.length());
 
             Tumor tumor = new Tumor();
+            if (lazy || compact)
+                tumor.useCompactStorage(_dictionary, _valuePool);
+            if (lazy)
+                tumor.useLazyStorage(_dictionary, line, lineNumber, _tumorDecoder);
             tumor.setStartLineNumber(lineNumber);
-            for (RuntimeNaaccrDictionaryItem def : _dictionary.getItems()) {
-                if (NaaccrXmlUtils.NAACCR_XML_TAG_ROOT.equals(def.getParentXmlElement())) {
-                    if (_options.getReportLevelMismatch()) {
-                        Item currentTumorItem = createItemFromLine(null, line, lineNumber, def);
-                        String rootValue = _rootData.getItemValue(def.getNaaccrId());
-                        String tumorValue = currentTumorItem == null ? null : currentTumorItem.getValue();
-                        boolean same = rootValue == null ? tumorValue == null : rootValue.equals(tumorValue);
-                        if (!same)
-                            reportError(tumor, lineNumber, def, null, NaaccrErrorUtils.CODE_VAL_ROOT_VS_TUM, def.getNaaccrId());
-                    }
+
+            // root items are only used to report mismatches
+            if (reportLevelMismatch) {
+                for (int idx = 0; idx < rootLevel.size(); idx++) {
+                    RuntimeNaaccrDictionaryItem def = rootLevel.getItem(idx);
+                    if (!Objects.equals(_rootData.getItemValue(def.getNaaccrId()), rootLevel.extractValue(line, idx)))
+                        reportError(tumor, lineNumber, def, null, NaaccrErrorUtils.CODE_VAL_ROOT_VS_TUM, def.getNaaccrId());
                 }
-                else if (NaaccrXmlUtils.NAACCR_XML_TAG_PATIENT.equals(def.getParentXmlElement())) {
-                    if (i == 0)
-                        addItemFromLine(patient, line, lineNumber, def);
-                    else if (_options.getReportLevelMismatch()) {
-                        Item currentTumorItem = createItemFromLine(null, line, lineNumber, def);
-                        String patValue = patient.getItemValue(def.getNaaccrId());
-                        String tumorValue = currentTumorItem == null ? null : currentTumorItem.getValue();
-                        boolean same = patValue == null ? tumorValue == null : patValue.equals(tumorValue);
-                        if (!same)
-                            reportError(tumor, lineNumber, def, null, NaaccrErrorUtils.CODE_VAL_PAT_VS_TUM, def.getNaaccrId());
-                    }
+            }
+
+            // patient items are read from the first line (unless they are decoded lazily), the other lines are only used to report mismatches
+            if (i == 0) {
+                if (!lazy)
+                    for (int idx = 0; idx < patientLevel.size(); idx++)
+                        addItemFromLine(patient, line, lineNumber, patientLevel, idx);
+            }
+            else if (reportLevelMismatch) {
+                for (int idx = 0; idx < patientLevel.size(); idx++) {
+                    RuntimeNaaccrDictionaryItem def = patientLevel.getItem(idx);
+                    if (!Objects.equals(patient.getItemValue(def.getNaaccrId()), patientLevel.extractValue(line, idx)))
+                        reportError(tumor, lineNumber, def, null, NaaccrErrorUtils.CODE_VAL_PAT_VS_TUM, def.getNaaccrId());
                 }
-                else if (NaaccrXmlUtils.NAACCR_XML_TAG_TUMOR.equals(def.getParentXmlElement()))
-                    addItemFromLine(tumor, line, lineNumber, def);
             }
+
+            if (!lazy)
+                for (int idx = 0; idx < tumorLevel.size(); idx++)
+                    addItemFromLine(tumor, line, lineNumber, tumorLevel, idx);
+
             patient.addTumor(tumor);
         }
 
         return patient;
     }
 
+    protected void addItemFromLine(AbstractEntity entity, String line, Integer lineNumber, RuntimeNaaccrFlatReadPlan.Level level, int idx) {
+        Item item = createItemFromLine(entity, line, lineNumber, level, idx);
+        if (item != null && _itemFilter.processItem(level.getItem(idx)))
+            entity.addItem(item);
+    }
+
+    protected Item createItemFromLine(AbstractEntity entity, String line, Integer lineNumber, RuntimeNaaccrFlatReadPlan.Level level, int idx) {
+        String value = level.extractValue(line, idx);
+        if (value == null)
+            return null;
+
+        RuntimeNaaccrDictionaryItem def = level.getItem(idx);
+        Item item = new Item(def.getNaaccrId(), def.getNaaccrNum(), value, lineNumber);
+
+        // validate the value (the value comes from the item columns, so it can't be too long)
+        if (entity != null && _options.getValidateReadValues()) {
+            NaaccrDataTypeValidator dataTypeValidator = level.getDataTypeValidator(idx);
+            if (level.isFullLengthRequired(idx) && value.length() != level.getLength(idx))
+                reportError(entity, lineNumber, def, value, NaaccrErrorUtils.CODE_VAL_TOO_SHORT, def.getLength(), value.length());
+            else if (dataTypeValidator != null && !dataTypeValidator.isValid(value))
+                reportError(entity, lineNumber, def, value, NaaccrErrorUtils.CODE_VAL_DATA_TYPE, def.getDataType());
+            else if (def.getRegexValidation() != null && !def.getRegexValidation().matcher(value).matches())
+                reportError(entity, lineNumber, def, value, NaaccrErrorUtils.CODE_VAL_REGEX, def.getRegexValidation());
+        }
+
+        return item;
+    }
+
     protected void addItemFromLine(AbstractEntity entity, String line, Integer lineNumber, RuntimeNaaccrDictionaryItem def) {
 
         // as of spec 1.1, the start column is optional for user-defined items, so let's ignore those
@@ -287,7 +389,7 @@ public class PatientFlatReader implements PatientReader {
             return;
 
         Item item = createItemFromLine(entity, line, lineNumber, def);
-        if (item != null && _options.processItem(def.getNaaccrId()))
+        if (item != null && _itemFilter.processItem(def))
             entity.addItem(item);
     }
 
@@ -316,7 +418,7 @@ public class PatientFlatReader implements PatientReader {
                     if (_options.getValidateReadValues()) {
                         if (NaaccrXmlDictionaryUtils.isFullLengthRequiredForType(def.getDataType()) && item.getValue().length() != def.getLength())
                             reportError(entity, lineNumber, def, item.getValue(), NaaccrErrorUtils.CODE_VAL_TOO_SHORT, def.getLength(), item.getValue().length());
-                        else if (def.getDataType() != null && !NaaccrXmlDictionaryUtils.getDataTypePattern(def.getDataType()).matcher(item.getValue()).matches())
+                        else if (def.getDataTypeValidator() != null && !def.getDataTypeValidator().isValid(item.getValue()))
                             reportError(entity, lineNumber, def, item.getValue(), NaaccrErrorUtils.CODE_VAL_DATA_TYPE, def.getDataType());
                         else if (def.getRegexValidation() != null && !def.getRegexValidation().matcher(item.getValue()).matches())
                             reportError(entity, lineNumber, def, item.getValue(), NaaccrErrorUtils.CODE_VAL_REGEX, def.getRegexValidation());
@@ -339,4 +441,46 @@ public class PatientFlatReader implements PatientReader {
             error.setValue(value);
         entity.addValidationError(error);
     }
+
+    /**
+     * Decodes the items of the entities using the lazy storage, for one level of the read plan.
+     * <br/><br/>
+     * The items are validated when they are decoded, exactly like when they are read eagerly (including the items that are not processed because of the
+     * include/exclude options; those are validated but not returned).
+     */
+    protected class LazyLevelDecoder implements LazyItemDecoder {
+
+        // the level of the read plan
+        private RuntimeNaaccrFlatReadPlan.Level _level;
+
+        // the index of the items in the level, by ordinal (-1 for the items that are not part of the level)
+        private int[] _indexes;
+
+        // whether the items need to be processed, by ordinal
+        private boolean[] _processed;
+
+        public LazyLevelDecoder(RuntimeNaaccrFlatReadPlan.Level level, String parentXmlElement) {
+            _level = level;
+            List<RuntimeNaaccrDictionaryItem> items = _dictionary.getItemsForParentXmlElement(parentXmlElement);
+            _indexes = new int[items.size()];
+            _processed = new boolean[items.size()];
+            Arrays.fill(_indexes, -1);
+            for (int idx = 0; idx < level.size(); idx++) {
+                RuntimeNaaccrDictionaryItem def = level.getItem(idx);
+                if (def.getOrdinal() >= 0 && def.getOrdinal() < _indexes.length && parentXmlElement.equals(def.getParentXmlElement())) {
+                    _indexes[def.getOrdinal()] = idx;
+                    _processed[def.getOrdinal()] = _itemFilter.processItem(def);
+                }
+            }
+        }
+
+        @Override
+        public String decodeItem(AbstractEntity entity, String line, Integer lineNumber, int ordinal) {
+            int idx = _indexes[ordinal];
+            if (idx == -1)
+                return null;
+            Item item = createItemFromLine(entity, line, lineNumber, _level, idx);
+            return item == null || !_processed[ordinal] ? null : item.getValue();
+        }
+    }
 }
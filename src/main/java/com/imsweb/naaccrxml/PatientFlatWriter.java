@@ -7,6 +7,7 @@ import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.regex.Pattern;
@@ -21,6 +22,7 @@ import com.imsweb.naaccrxml.entity.dictionary.NaaccrDictionary;
 import com.imsweb.naaccrxml.runtime.NaaccrStreamConfiguration;
 import com.imsweb.naaccrxml.runtime.RuntimeNaaccrDictionary;
 import com.imsweb.naaccrxml.runtime.RuntimeNaaccrDictionaryItem;
+import com.imsweb.naaccrxml.runtime.RuntimeNaaccrItemFilter;
 
 import static com.imsweb.naaccrxml.NaaccrOptions.NEW_LINE_CRLF;
 import static com.imsweb.naaccrxml.NaaccrOptions.NEW_LINE_LF;
@@ -42,12 +44,18 @@ public class PatientFlatWriter implements PatientWriter {
     // the runtime dictionary (combination of base and user-defined dictionaries)
     protected RuntimeNaaccrDictionary _dictionary;
 
+    // the compiled include/exclude options
+    protected RuntimeNaaccrItemFilter _itemFilter;
+
     // cached special data items
     protected RuntimeNaaccrDictionaryItem _naaccrVersionItem, _recordTypeItem;
 
     // cached value for new line character(s)
     protected String _newLine;
 
+    // a blank line, used as a template for every line written by this writer
+    protected char[] _blankLine;
+
     // cached pattern for new lines
     private static final Pattern _NEW_LINES_PATTERN = Pattern.compile("(\r\n|\n|\r)");
 
@@ -130,8 +138,9 @@ public class PatientFlatWriter implements PatientWriter {
         _dictionary = conf == null ? null : conf.getCachedDictionary();
         if (_dictionary == null) {
             NaaccrDictionary baseDictionary = NaaccrXmlDictionaryUtils.getBaseDictionaryByUri(data.getBaseDictionaryUri());
-            _dictionary = new RuntimeNaaccrDictionary(data.getRecordType(), baseDictionary, userDictionaries);
+            _dictionary = RuntimeNaaccrDictionary.getInstance(data.getRecordType(), baseDictionary, userDictionaries);
         }
+        _itemFilter = new RuntimeNaaccrItemFilter(_dictionary, _options);
 
         // let's cache the record type and naaccr version items; we are going to use them a lot...
         for (RuntimeNaaccrDictionaryItem item : _dictionary.getItems()) {
@@ -142,11 +151,28 @@ public class PatientFlatWriter implements PatientWriter {
             if (_recordTypeItem != null && _naaccrVersionItem != null)
                 break;
         }
+
+        // the line is normally defined by the dictionary, but let's make sure every item fits in it...
+        int lineLength = _dictionary.getLineLength();
+        for (RuntimeNaaccrDictionaryItem item : _dictionary.getItems())
+            if (item.getParentXmlElement() != null && item.getStartColumn() != null && item.getLength() != null)
+                lineLength = Math.max(lineLength, item.getStartColumn() + item.getLength() - 1);
+        _blankLine = new char[lineLength];
+        Arrays.fill(_blankLine, ' ');
     }
 
     @Override
     public void writePatient(Patient patient) throws NaaccrIOException {
-        for (String line : createLinesFromPatient(_rootData, patient)) {
+        writeLines(createLinesFromPatient(_rootData, patient));
+    }
+
+    /**
+     * Writes the given lines (as created by createLinesFromPatient()), each followed by the new line character(s).
+     * @param lines lines to write, required
+     * @throws NaaccrIOException if the lines can't be written
+     */
+    protected void writeLines(List<String> lines) throws NaaccrIOException {
+        for (String line : lines) {
             try {
                 _writer.write(line);
                 _writer.write(_newLine);
@@ -193,57 +219,71 @@ public class PatientFlatWriter implements PatientWriter {
         if (tumors.isEmpty())
             tumors.add(new Tumor());
 
+        boolean applyPadding = Boolean.TRUE.equals(_options.getApplyPaddingRules());
+
+        // the same buffer is used for every tumor, it's reset from the blank line before each line
+        char[] line = new char[_blankLine.length];
         for (Tumor tumor : tumors) {
-            int currentIndex = 1;
-            StringBuilder line = new StringBuilder();
+            System.arraycopy(_blankLine, 0, line, 0, line.length);
             for (RuntimeNaaccrDictionaryItem itemDef : _dictionary.getItems()) {
-                if (!_options.processItem(itemDef.getNaaccrId()))
+                if (!_itemFilter.processItem(itemDef))
                     continue;
                 // as of spec 1.1, the start column is optional for user-defined items, so let's ignore those
-                if (itemDef.getStartColumn() == null)
+                if (itemDef.getParentXmlElement() == null || itemDef.getStartColumn() == null || itemDef.getLength() == null)
                     continue;
-                if (itemDef.getParentXmlElement() != null && itemDef.getStartColumn() != null && itemDef.getLength() != null) {
-                    int start = itemDef.getStartColumn();
-                    int length = itemDef.getLength();
-                    int end = start + length - 1;
-
-                    // adjust for the "leading" gap
-                    if (start > currentIndex)
-                        for (int i = 0; i < start - currentIndex; i++)
-                            line.append(' ');
-                    currentIndex = start;
-
-                    String value = getValueForItem(itemDef, root, patient, tumor, Boolean.TRUE.equals(_options.getApplyPaddingRules()));
-                    if (value != null) {
-                        line.append(value);
-                        currentIndex = start + value.length();
-                    }
-
-                    // adjust for the "trailing" gap
-                    if (currentIndex <= end)
-                        for (int i = 0; i < end - currentIndex + 1; i++)
-                            line.append(' ');
-                    currentIndex = end + 1;
-                }
-            }
 
-            // adjust for the final "trailing" gap
-            if (currentIndex <= _dictionary.getLineLength())
-                for (int i = 0; i < _dictionary.getLineLength() - currentIndex + 1; i++)
-                    line.append(' ');
+                // the padding is applied directly in the line
+                String value = getValueForItem(itemDef, root, patient, tumor, false);
+                if (value != null)
+                    copyValueToLine(value, itemDef, line, applyPadding);
+            }
 
             // always use the format to write the NAACCR version and record type
             if (_dictionary.getRecordType() != null && _recordTypeItem != null)
-                line.replace(_recordTypeItem.getStartColumn() - 1, _recordTypeItem.getStartColumn() + _recordTypeItem.getLength() - 1, _dictionary.getRecordType());
+                replaceValueInLine(_dictionary.getRecordType(), _recordTypeItem, line);
             if (_dictionary.getNaaccrVersion() != null && _naaccrVersionItem != null)
-                line.replace(_naaccrVersionItem.getStartColumn() - 1, _naaccrVersionItem.getStartColumn() + _naaccrVersionItem.getLength() - 1, _dictionary.getNaaccrVersion());
+                replaceValueInLine(_dictionary.getNaaccrVersion(), _naaccrVersionItem, line);
 
-            lines.add(line.toString());
+            lines.add(new String(line));
         }
 
         return lines;
     }
 
+    /**
+     * Copies the given value into the columns of the item; the columns must be blank.
+     * @param value value to copy (it is truncated if it's longer than the item)
+     * @param itemDef item definition
+     * @param line line to copy the value into
+     * @param applyPadding whether the padding rules should be applied
+     */
+    protected static void copyValueToLine(String value, RuntimeNaaccrDictionaryItem itemDef, char[] line, boolean applyPadding) {
+        int start = itemDef.getStartColumn() - 1, length = itemDef.getLength(), valueLength = Math.min(value.length(), length), offset = 0;
+
+        // handle the padding (the columns are already blank)
+        if (applyPadding && valueLength > 0 && valueLength < length && itemDef.getPadding() != null) {
+            if (NaaccrXmlDictionaryUtils.NAACCR_PADDING_LEFT_BLANK.equals(itemDef.getPadding()))
+                offset = length - valueLength;
+            else if (NaaccrXmlDictionaryUtils.NAACCR_PADDING_LEFT_ZERO.equals(itemDef.getPadding())) {
+                offset = length - valueLength;
+                Arrays.fill(line, start, start + offset, '0');
+            }
+            else if (NaaccrXmlDictionaryUtils.NAACCR_PADDING_RIGHT_ZERO.equals(itemDef.getPadding()))
+                Arrays.fill(line, start + valueLength, start + length, '0');
+            else if (!NaaccrXmlDictionaryUtils.NAACCR_PADDING_RIGHT_BLANK.equals(itemDef.getPadding()))
+                throw new RuntimeException("Unknown padding option: " + itemDef.getPadding());
+        }
+
+        value.getChars(0, valueLength, line, start + offset);
+    }
+
+    // replaces the columns of the item by the given value
+    private void replaceValueInLine(String value, RuntimeNaaccrDictionaryItem itemDef, char[] line) {
+        int start = itemDef.getStartColumn() - 1;
+        System.arraycopy(_blankLine, start, line, start, itemDef.getLength());
+        copyValueToLine(value, itemDef, line, false);
+    }
+
     protected String getValueForItem(RuntimeNaaccrDictionaryItem itemDef, NaaccrData root, Patient patient, Tumor tumor, boolean applyPadding) throws NaaccrIOException {
         String value;
 
@@ -272,8 +312,8 @@ public class PatientFlatWriter implements PatientWriter {
                 throw new RuntimeException("Unknown padding option: " + itemDef.getPadding());
         }
 
-        // handle new lines (can't have that in flat files)
-        if (value != null && !value.isEmpty())
+        // handle new lines (can't have that in flat files); most values don't have any, so let's check that before running the regular expression
+        if (value != null && !value.isEmpty() && (value.indexOf('\n') != -1 || value.indexOf('\r') != -1))
             value = _NEW_LINES_PATTERN.matcher(value).replaceAll(" ");
 
         // for flat-file values, we always have to truncate, so the "allowUnlimitedText" is used only to know if we have to report an error
@@ -0,0 +1,612 @@
+/*
+ * Copyright (C) 2019 Information Management Services, Inc.
+ */
+package com.imsweb.naaccrxml;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+
+import com.imsweb.naaccrxml.compression.CompressionCodec;
+import com.imsweb.naaccrxml.compression.CompressionUtils;
+import com.imsweb.naaccrxml.compression.GzipBlockIndex;
+import com.imsweb.naaccrxml.compression.GzipCodec;
+import com.imsweb.naaccrxml.entity.Patient;
+import com.imsweb.naaccrxml.entity.dictionary.NaaccrDictionary;
+
+import static com.imsweb.naaccrxml.NaaccrXmlUtils.NAACCR_XML_ITEM_ATT_ID;
+import static com.imsweb.naaccrxml.NaaccrXmlUtils.NAACCR_XML_TAG_ITEM;
+
+/**
+ * An index of the patients of a NAACCR XML data file, allowing a patient or a range of patients to be read without reading the entire file.
+ * <br/><br/>
+ * For each patient, the index records the byte offset and length of the patient in the file, its line number and the value of a few "key" items (for
+ * example patientIdNumber) which can be used to find the patients. The key items must be patient-level items.
+ * <br/><br/>
+ * The indexed files must be either uncompressed, or compressed as seekable GZip files (see NaaccrXmlUtils.createSeekableWriter()); for the latter, the
+ * index also contains the list of the GZip blocks of the file and the offsets of the patients are the ones in the uncompressed data.
+ * <br/><br/>
+ * The index is usually stored in a "sidecar" file next to the data file (see getDefaultIndexFile()); the length and last modified date of the data file
+ * are recorded in the index so an index that doesn't correspond to the data file anymore is rejected. Use the PatientXmlReader constructor that takes an
+ * index to read a range of patients, or readPatient() to read a single one:
+ * <br/><br/>
+ * <pre>
+ * PatientXmlIndex index = PatientXmlIndex.build(xmlFile, Collections.singletonList("patientIdNumber"));
+ * index.write(PatientXmlIndex.getDefaultIndexFile(xmlFile));
+ * ...
+ * PatientXmlIndex index = PatientXmlIndex.read(PatientXmlIndex.getDefaultIndexFile(xmlFile));
+ * for (Integer idx : index.findPatients("patientIdNumber", "00000001"))
+ *     process(index.readPatient(xmlFile, idx, options, userDictionaries));
+ * </pre>
+ */
+public final class PatientXmlIndex {
+
+    // the extension of the default index file
+    public static final String INDEX_FILE_EXTENSION = ".idx";
+
+    // the key item used when none is provided
+    public static final String DEFAULT_KEY_ITEM = "patientIdNumber";
+
+    // identifies the index files, and the version of their format
+    private static final int _MAGIC_NUMBER = 0x4E584958, _FORMAT_VERSION = 2;
+
+    // the length and last modified date of the indexed file
+    private final long _fileLength, _fileLastModified;
+
+    // the raw name of the root tag
+    private final String _rootTag;
+
+    // the blocks of the file if it's a seekable GZip file, null if it's not compressed
+    private final GzipBlockIndex _blocks;
+
+    // the key items
+    private final List<String> _keyItems;
+
+    // the number of indexed patients
+    private int _count;
+
+    // for each patient: byte offset, byte length, line number and value of the key items
+    private long[] _offsets;
+    private int[] _lengths, _lineNumbers;
+    private String[][] _keyValues;
+
+    // for each key item, the patients indexes by key value (computed on demand)
+    private final Map<String, Map<String, List<Integer>>> _lookups = new ConcurrentHashMap<>();
+
+    private PatientXmlIndex(long fileLength, long fileLastModified, String rootTag, GzipBlockIndex blocks, List<String> keyItems, int capacity) {
+        _fileLength = fileLength;
+        _fileLastModified = fileLastModified;
+        _rootTag = rootTag;
+        _blocks = blocks;
+        _keyItems = Collections.unmodifiableList(new ArrayList<>(keyItems));
+        _offsets = new long[capacity];
+        _lengths = new int[capacity];
+        _lineNumbers = new int[capacity];
+        _keyValues = new String[capacity][];
+    }
+
+    /**
+     * Returns the default index file for the given XML file (a file with the same name plus the ".idx" extension, in the same folder).
+     * @param xmlFile XML data file, required
+     * @return the default index file
+     */
+    public static File getDefaultIndexFile(File xmlFile) {
+        return new File(xmlFile.getAbsoluteFile().getParentFile(), xmlFile.getName() + INDEX_FILE_EXTENSION);
+    }
+
+    /**
+     * Builds the index of the given XML file; the patients are not parsed, so this is much faster than reading the file.
+     * @param xmlFile XML data file, required; it must be uncompressed or a seekable GZip file
+     * @param keyItems the NAACCR IDs of the (patient-level) items to record for each patient, if null or empty, patientIdNumber will be used
+     * @return the index, never null
+     * @throws NaaccrIOException if the file can't be read or can't be indexed
+     */
+    public static PatientXmlIndex build(File xmlFile, List<String> keyItems) throws NaaccrIOException {
+        GzipBlockIndex blocks = buildBlockIndex(xmlFile);
+
+        if (keyItems == null || keyItems.isEmpty())
+            keyItems = Collections.singletonList(DEFAULT_KEY_ITEM);
+
+        // use the file attributes from before the read so an index built on a file modified concurrently is rejected
+        long length = xmlFile.length(), lastModified = xmlFile.lastModified();
+
+        XmlPatientSplitter splitter;
+        try {
+            InputStream is = blocks == null ? new FileInputStream(xmlFile) : blocks.createInputStream(xmlFile, 0, CompressionUtils.DEFAULT_BUFFER_SIZE);
+            splitter = new XmlPatientSplitter(new InputStreamReader(is, StandardCharsets.UTF_8));
+        }
+        catch (IOException e) {
+            throw new NaaccrIOException(e.getMessage());
+        }
+
+        try {
+            String xml = splitter.nextPatient();
+            PatientXmlIndex index = new PatientXmlIndex(length, lastModified, splitter.getRootTag(), blocks, keyItems, 1024);
+            while (xml != null) {
+                long patientLength = splitter.getPatientEndOffset() - splitter.getPatientStartOffset();
+                if (patientLength > Integer.MAX_VALUE)
+                    throw new NaaccrIOException("patient is too large to be indexed", splitter.getPatientLineNumber());
+                index.addPatient(splitter.getPatientStartOffset(), (int)patientLength, splitter.getPatientLineNumber(), extractKeyValues(xml, index._keyItems));
+                xml = splitter.nextPatient();
+            }
+            return index;
+        }
+        finally {
+            splitter.close();
+        }
+    }
+
+    /**
+     * Reads an index from the given file.
+     * @param indexFile index file, required
+     * @return the index, never null
+     * @throws NaaccrIOException if the file can't be read or is not a valid index
+     */
+    public static PatientXmlIndex read(File indexFile) throws NaaccrIOException {
+        try (DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile), 64 * 1024))) {
+            if (is.readInt() != _MAGIC_NUMBER)
+                throw new NaaccrIOException("the file is not a valid patient index: " + indexFile.getName());
+            int version = is.readInt();
+            if (version != _FORMAT_VERSION)
+                throw new NaaccrIOException("unsupported index version: " + version);
+            long length = is.readLong(), lastModified = is.readLong();
+            String rootTag = is.readUTF();
+            GzipBlockIndex blocks = null;
+            if (is.readBoolean()) {
+                long[] compressedOffsets = new long[is.readInt()], uncompressedOffsets = new long[compressedOffsets.length];
+                for (int i = 0; i < compressedOffsets.length; i++) {
+                    compressedOffsets[i] = is.readLong();
+                    uncompressedOffsets[i] = is.readLong();
+                }
+                blocks = new GzipBlockIndex(compressedOffsets, uncompressedOffsets);
+            }
+            List<String> keyItems = new ArrayList<>();
+            for (int i = is.readInt(); i > 0; i--)
+                keyItems.add(is.readUTF());
+            int count = is.readInt();
+            PatientXmlIndex index = new PatientXmlIndex(length, lastModified, rootTag, blocks, keyItems, Math.max(1, count));
+            for (int i = 0; i < count; i++) {
+                long offset = is.readLong();
+                int patientLength = is.readInt();
+                int lineNumber = is.readInt();
+                String[] values = new String[keyItems.size()];
+                for (int j = 0; j < values.length; j++)
+                    values[j] = is.readBoolean() ? is.readUTF() : null;
+                index.addPatient(offset, patientLength, lineNumber, values);
+            }
+            return index;
+        }
+        catch (NaaccrIOException e) {
+            throw e;
+        }
+        catch (EOFException e) {
+            throw new NaaccrIOException("the patient index is truncated: " + indexFile.getName());
+        }
+        catch (IOException e) {
+            throw new NaaccrIOException(e.getMessage());
+        }
+    }
+
+    /**
+     * Writes this index to the given file.
+     * @param indexFile index file, required
+     * @throws NaaccrIOException if the file can't be written
+     */
+    public void write(File indexFile) throws NaaccrIOException {
+        try (DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile), 64 * 1024))) {
+            os.writeInt(_MAGIC_NUMBER);
+            os.writeInt(_FORMAT_VERSION);
+            os.writeLong(_fileLength);
+            os.writeLong(_fileLastModified);
+            os.writeUTF(_rootTag == null ? "" : _rootTag);
+            os.writeBoolean(_blocks != null);
+            if (_blocks != null) {
+                os.writeInt(_blocks.getBlockCount());
+                for (int i = 0; i < _blocks.getBlockCount(); i++) {
+                    os.writeLong(_blocks.getCompressedOffset(i));
+                    os.writeLong(_blocks.getUncompressedOffset(i));
+                }
+            }
+            os.writeInt(_keyItems.size());
+            for (String keyItem : _keyItems)
+                os.writeUTF(keyItem);
+            os.writeInt(_count);
+            for (int i = 0; i < _count; i++) {
+                os.writeLong(_offsets[i]);
+                os.writeInt(_lengths[i]);
+                os.writeInt(_lineNumbers[i]);
+                for (String value : _keyValues[i]) {
+                    os.writeBoolean(value != null);
+                    if (value != null)
+                        os.writeUTF(value);
+                }
+            }
+        }
+        catch (IOException e) {
+            throw new NaaccrIOException(e.getMessage());
+        }
+    }
+
+    /**
+     * Returns true if this index corresponds to the given XML file (same length and same last modified date as when the index was built).
+     * @param xmlFile XML data file, required
+     * @return true if the index can be used to read the file
+     */
+    public boolean isUpToDate(File xmlFile) {
+        return xmlFile.length() == _fileLength && xmlFile.lastModified() == _fileLastModified;
+    }
+
+    /**
+     * Returns the blocks of the indexed file.
+     * @return the blocks of the file if it's a seekable GZip file, null if it's not compressed
+     */
+    public GzipBlockIndex getBlocks() {
+        return _blocks;
+    }
+
+    public List<String> getKeyItems() {
+        return _keyItems;
+    }
+
+    public int getPatientCount() {
+        return _count;
+    }
+
+    /**
+     * Returns the byte offset of the requested patient (the beginning of its opening tag).
+     * @param patientIdx 0-based index of the patient
+     * @return the byte offset of the patient
+     */
+    public long getPatientOffset(int patientIdx) {
+        checkPatientIndex(patientIdx);
+        return _offsets[patientIdx];
+    }
+
+    /**
+     * Returns the number of bytes of the requested patient (from the beginning of its opening tag to the end of its closing tag).
+     * @param patientIdx 0-based index of the patient
+     * @return the length of the patient
+     */
+    public int getPatientLength(int patientIdx) {
+        checkPatientIndex(patientIdx);
+        return _lengths[patientIdx];
+    }
+
+    /**
+     * Returns the line number of the opening tag of the requested patient.
+     * @param patientIdx 0-based index of the patient
+     * @return the 1-based line number of the patient
+     */
+    public int getPatientLineNumber(int patientIdx) {
+        checkPatientIndex(patientIdx);
+        return _lineNumbers[patientIdx];
+    }
+
+    /**
+     * Returns the value of the requested key item for the requested patient.
+     * @param patientIdx 0-based index of the patient
+     * @param keyItem NAACCR ID of a key item of this index
+     * @return the value of the item, null if the patient doesn't have a value for that item
+     */
+    public String getKeyValue(int patientIdx, String keyItem) {
+        checkPatientIndex(patientIdx);
+        return _keyValues[patientIdx][getKeyItemIndex(keyItem)];
+    }
+
+    /**
+     * Returns the indexes of the patients having the requested value for the requested key item.
+     * @param keyItem NAACCR ID of a key item of this index
+     * @param value requested value
+     * @return the 0-based indexes of the patients (in the order of the file), never null
+     */
+    public List<Integer> findPatients(String keyItem, String value) {
+        int keyIdx = getKeyItemIndex(keyItem);
+        Map<String, List<Integer>> lookup = _lookups.computeIfAbsent(keyItem, k -> {
+            Map<String, List<Integer>> result = new HashMap<>();
+            for (int i = 0; i < _count; i++)
+                if (_keyValues[i][keyIdx] != null)
+                    result.computeIfAbsent(_keyValues[i][keyIdx], v -> new ArrayList<>(1)).add(i);
+            return result;
+        });
+        List<Integer> result = lookup.get(value);
+        return result == null ? Collections.emptyList() : Collections.unmodifiableList(result);
+    }
+
+    /**
+     * Reads a single patient from the given file.
+     * @param xmlFile XML data file corresponding to this index, required
+     * @param patientIdx 0-based index of the patient
+     * @param options optional options
+     * @param userDictionaries optional user-defined dictionaries (can be null or empty)
+     * @return the patient, never null
+     * @throws NaaccrIOException if the patient can't be read, or if the index doesn't correspond to the file
+     */
+    public Patient readPatient(File xmlFile, int patientIdx, NaaccrOptions options, List<NaaccrDictionary> userDictionaries) throws NaaccrIOException {
+        try (PatientXmlReader reader = new PatientXmlReader(xmlFile, this, patientIdx, patientIdx, options, userDictionaries, null)) {
+            return reader.readPatient();
+        }
+    }
+
+    /**
+     * Creates a reader returning the root tag and data of the file (everything up to the first patient), followed by the requested patients and the
+     * closing root tag; the returned data is a valid NAACCR XML document.
+     * @param xmlFile XML data file corresponding to this index, required
+     * @param firstPatientIdx 0-based index of the first patient to read
+     * @param lastPatientIdx 0-based index of the last patient to read (inclusive)
+     * @return a reader, never null
+     * @throws NaaccrIOException if the reader can't be created, or if the index doesn't correspond to the file
+     */
+    Reader createReader(File xmlFile, int firstPatientIdx, int lastPatientIdx) throws NaaccrIOException {
+        checkPatientIndex(firstPatientIdx);
+        checkPatientIndex(lastPatientIdx);
+        if (lastPatientIdx < firstPatientIdx)
+            throw new IllegalArgumentException("Last patient index must be greater or equal to the first one");
+        if (!isUpToDate(xmlFile))
+            throw new NaaccrIOException("the patient index doesn't correspond to the data file (the file has been modified since the index was built)");
+
+        long start = _offsets[firstPatientIdx], end = _offsets[lastPatientIdx] + _lengths[lastPatientIdx];
+        List<InputStream> streams = new ArrayList<>();
+        try {
+            // the root tag, root items and extensions
+            byte[] header = new byte[(int)_offsets[0]];
+            try (InputStream is = openStream(xmlFile, 0)) {
+                IOUtils.readFully(is, header);
+            }
+            streams.add(new ByteArrayInputStream(header));
+
+            // the patients
+            streams.add(new BoundedInputStream(openStream(xmlFile, start), end - start));
+
+            // the closing root tag
+            streams.add(new ByteArrayInputStream(("</" + _rootTag + ">").getBytes(StandardCharsets.UTF_8)));
+
+            return new InputStreamReader(new SequenceInputStream(Collections.enumeration(streams)), StandardCharsets.UTF_8);
+        }
+        catch (IOException e) {
+            for (InputStream is : streams) {
+                try {
+                    is.close();
+                }
+                catch (IOException e1) {
+                    // give up
+                }
+            }
+            throw new NaaccrIOException(e.getMessage());
+        }
+    }
+
+    // returns a stream of the (uncompressed) data of the file, starting at the given offset
+    private InputStream openStream(File xmlFile, long offset) throws IOException {
+        if (_blocks != null)
+            return _blocks.createInputStream(xmlFile, offset, CompressionUtils.DEFAULT_BUFFER_SIZE);
+
+        FileInputStream is = new FileInputStream(xmlFile);
+        try {
+            is.getChannel().position(offset);
+        }
+        catch (IOException e) {
+            is.close();
+            throw e;
+        }
+        return new BufferedInputStream(is, CompressionUtils.DEFAULT_BUFFER_SIZE);
+    }
+
+    private void addPatient(long offset, int length, int lineNumber, String[] keyValues) {
+        if (_count == _offsets.length) {
+            int capacity = _count * 2;
+            _offsets = Arrays.copyOf(_offsets, capacity);
+            _lengths = Arrays.copyOf(_lengths, capacity);
+            _lineNumbers = Arrays.copyOf(_lineNumbers, capacity);
+            _keyValues = Arrays.copyOf(_keyValues, capacity);
+        }
+        _offsets[_count] = offset;
+        _lengths[_count] = length;
+        _lineNumbers[_count] = lineNumber;
+        _keyValues[_count] = keyValues;
+        _count++;
+    }
+
+    private void checkPatientIndex(int patientIdx) {
+        if (patientIdx < 0 || patientIdx >= _count)
+            throw new IndexOutOfBoundsException("Invalid patient index: " + patientIdx + " (" + _count + " patients indexed)");
+    }
+
+    private int getKeyItemIndex(String keyItem) {
+        int idx = _keyItems.indexOf(keyItem);
+        if (idx == -1)
+            throw new IllegalArgumentException("Item '" + keyItem + "' is not a key of this index");
+        return idx;
+    }
+
+    // returns the blocks of the file if it's a seekable GZip file, null if it's not compressed; fails for the other compressed files
+    private static GzipBlockIndex buildBlockIndex(File xmlFile) throws NaaccrIOException {
+        try {
+            CompressionCodec codec = CompressionUtils.getCodecForContent(xmlFile);
+            if (codec == null)
+                return null;
+            if (codec instanceof GzipCodec && GzipBlockIndex.isSeekable(xmlFile))
+                return GzipBlockIndex.build(xmlFile);
+            throw new NaaccrIOException("only uncompressed files and seekable GZip files (see NaaccrXmlUtils.createSeekableWriter()) can be indexed; the file uses the "
+                    + codec.getName() + " compression");
+        }
+        catch (NaaccrIOException e) {
+            throw e;
+        }
+        catch (IOException e) {
+            throw new NaaccrIOException(e.getMessage());
+        }
+    }
+
+    /**
+     * Extracts the values of the requested items from the raw XML of a patient; only the items that are direct children of the patient are considered.
+     * @param xml raw XML of the patient
+     * @param keyItems requested items
+     * @return the values, in the order of the requested items
+     */
+    static String[] extractKeyValues(String xml, List<String> keyItems) {
+        String[] values = new String[keyItems.size()];
+        int depth = 0, idx = 0, length = xml.length();
+        while ((idx = xml.indexOf('<', idx)) != -1 && idx + 1 < length) {
+            char c = xml.charAt(idx + 1);
+            if (c == '/') {
+                depth--;
+                idx = xml.indexOf('>', idx);
+            }
+            else if (c == '!' || c == '?') {
+                String end = xml.startsWith("<!--", idx) ? "-->" : xml.startsWith("<![CDATA[", idx) ? "]]>" : ">";
+                int endIdx = xml.indexOf(end, idx);
+                idx = endIdx == -1 ? -1 : endIdx + end.length() - 1;
+            }
+            else {
+                int nameEnd = idx + 1;
+                while (nameEnd < length && !Character.isWhitespace(xml.charAt(nameEnd)) && xml.charAt(nameEnd) != '>' && xml.charAt(nameEnd) != '/')
+                    nameEnd++;
+                String name = xml.substring(idx + 1, nameEnd);
+                int tagEnd = findTagEnd(xml, nameEnd);
+                if (tagEnd == -1)
+                    break;
+                boolean selfClosing = xml.charAt(tagEnd - 1) == '/';
+                if (depth == 1 && NAACCR_XML_TAG_ITEM.equals(name.substring(name.indexOf(':') + 1)) && !selfClosing) {
+                    // the ID is trimmed the same way the readers do it (see NaaccrPatientConverter.readItem())
+                    String naaccrId = extractAttribute(xml.substring(nameEnd, tagEnd), NAACCR_XML_ITEM_ATT_ID);
+                    int keyIdx = naaccrId == null ? -1 : keyItems.indexOf(naaccrId.trim());
+                    if (keyIdx != -1)
+                        values[keyIdx] = extractText(xml, tagEnd + 1);
+                }
+                if (!selfClosing)
+                    depth++;
+                idx = tagEnd;
+            }
+            if (idx == -1)
+                break;
+            idx++;
+        }
+        return values;
+    }
+
+    // returns the index of the '>' ending the start tag, taking the quoted attribute values into account
+    private static int findTagEnd(String xml, int idx) {
+        char quote = 0;
+        for (int i = idx; i < xml.length(); i++) {
+            char c = xml.charAt(i);
+            if (quote != 0) {
+                if (c == quote)
+                    quote = 0;
+            }
+            else if (c == '"' || c == '\'')
+                quote = c;
+            else if (c == '>')
+                return i;
+        }
+        return -1;
+    }
+
+    private static String extractAttribute(String attributes, String name) {
+        int idx = 0;
+        while ((idx = attributes.indexOf(name, idx)) != -1) {
+            int end = idx + name.length();
+            boolean startsName = idx == 0 || Character.isWhitespace(attributes.charAt(idx - 1));
+            while (end < attributes.length() && Character.isWhitespace(attributes.charAt(end)))
+                end++;
+            if (startsName && end < attributes.length() && attributes.charAt(end) == '=') {
+                end++;
+                while (end < attributes.length() && Character.isWhitespace(attributes.charAt(end)))
+                    end++;
+                if (end < attributes.length()) {
+                    char quote = attributes.charAt(end);
+                    int valueEnd = attributes.indexOf(quote, end + 1);
+                    if (valueEnd != -1)
+                        return unescape(attributes.substring(end + 1, valueEnd));
+                }
+                return null;
+            }
+            idx = end;
+        }
+        return null;
+    }
+
+    // returns the text starting at the given index and ending at the next tag (CDATA sections are included)
+    private static String extractText(String xml, int idx) {
+        StringBuilder buf = new StringBuilder();
+        while (idx < xml.length()) {
+            int next = xml.indexOf('<', idx);
+            if (next == -1)
+                next = xml.length();
+            buf.append(unescape(xml.substring(idx, next)));
+            if (!xml.startsWith("<![CDATA[", next))
+                break;
+            int end = xml.indexOf("]]>", next);
+            if (end == -1)
+                break;
+            buf.append(xml, next + 9, end);
+            idx = end + 3;
+        }
+        return buf.toString();
+    }
+
+    private static String unescape(String value) {
+        if (value.indexOf('&') == -1)
+            return value;
+        StringBuilder buf = new StringBuilder(value.length());
+        int idx = 0;
+        while (idx < value.length()) {
+            char c = value.charAt(idx);
+            int end = c == '&' ? value.indexOf(';', idx) : -1;
+            if (end == -1) {
+                buf.append(c);
+                idx++;
+                continue;
+            }
+            String entity = value.substring(idx + 1, end);
+            if ("amp".equals(entity))
+                buf.append('&');
+            else if ("lt".equals(entity))
+                buf.append('<');
+            else if ("gt".equals(entity))
+                buf.append('>');
+            else if ("quot".equals(entity))
+                buf.append('"');
+            else if ("apos".equals(entity))
+                buf.append('\'');
+            else if (entity.startsWith("#") && isCharacterReference(entity))
+                buf.appendCodePoint(entity.startsWith("#x") ? Integer.parseInt(entity.substring(2), 16) : Integer.parseInt(entity.substring(1)));
+            else
+                buf.append(value, idx, end + 1);
+            idx = end + 1;
+        }
+        return buf.toString();
+    }
+
+    private static boolean isCharacterReference(String entity) {
+        boolean hex = entity.startsWith("#x");
+        String digits = entity.substring(hex ? 2 : 1);
+        if (digits.isEmpty() || digits.length() > 6)
+            return false;
+        for (char c : digits.toCharArray())
+            if (Character.digit(c, hex ? 16 : 10) == -1)
+                return false;
+        return Character.isValidCodePoint(hex ? Integer.parseInt(digits, 16) : Integer.parseInt(digits));
+    }
+}
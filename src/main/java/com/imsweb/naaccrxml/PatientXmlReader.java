@@ -3,6 +3,7 @@
  */
 package com.imsweb.naaccrxml;
 
+import java.io.File;
 import java.io.Reader;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
@@ -13,6 +14,7 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -136,146 +138,27 @@ public class PatientXmlReader implements PatientReader {
             if (conf == null)
                 conf = NaaccrStreamConfiguration.getDefault();
 
-            // clean-up the dictionaries
-            Map<String, NaaccrDictionary> dictionaries = new HashMap<>();
-            if (userDictionaries != null)
-                for (NaaccrDictionary userDictionary : userDictionaries)
-                    if (userDictionary != null)
-                        dictionaries.put(userDictionary.getDictionaryUri(), userDictionary);
-
             // create the context
             _context = new NaaccrStreamContext();
             _context.setOptions(options);
             _context.setConfiguration(conf);
 
             // create the XML reader
-            _reader = conf.getDriver().createReader(reader);
+            _reader = conf.createReader(reader, _context);
             if (!isRootTag(_reader.getNodeName()))
-                throw new NaaccrIOException("was expecting " + NAACCR_XML_TAG_ROOT + " root tag but got " + _reader.getNodeName(), conf.getParser().getLineNumber());
+                throw new NaaccrIOException("was expecting " + NAACCR_XML_TAG_ROOT + " root tag but got " + _reader.getNodeName(), _context.getLineNumber());
 
             // create the root data holder (it will be use for every field except the list of patients)
             _rootData = createRootData();
 
             // line number
-            _rootData.setStartLineNumber(conf.getParser().getLineNumber());
-
-            // read the standard attribute: specification version (we do it first because the format of other attributes can depend on the specs version)
-            String specVersion = _reader.getAttribute(NAACCR_XML_ROOT_ATT_SPEC_VERSION);
-            if (specVersion == null)
-                specVersion = SpecificationVersion.SPEC_1_0;
-            if (!SpecificationVersion.isSpecificationSupported(specVersion))
-                throw new NaaccrIOException("invalid specification version: " + specVersion);
-            _rootData.setSpecificationVersion(specVersion);
-
-            // read the standard attribute: base dictionary
-            _rootData.setBaseDictionaryUri(_reader.getAttribute(NAACCR_XML_ROOT_ATT_BASE_DICT));
-            if (_rootData.getBaseDictionaryUri() == null)
-                throw new NaaccrIOException("the \"" + NAACCR_XML_ROOT_ATT_BASE_DICT + "\" attribute is required", conf.getParser().getLineNumber());
-            String version = NaaccrXmlDictionaryUtils.extractVersionFromUri(_rootData.getBaseDictionaryUri());
-            if (version == null || version.trim().isEmpty())
-                throw new NaaccrIOException("unable to extract NAACCR version from base dictionary URI \"" + _rootData.getBaseDictionaryUri() + "\"", conf.getParser().getLineNumber());
-            if (!NaaccrFormat.isVersionSupported(version))
-                throw new NaaccrIOException("invalid/unsupported NAACCR version: " + version, conf.getParser().getLineNumber());
-            NaaccrDictionary baseDictionary = NaaccrXmlDictionaryUtils.getBaseDictionaryByVersion(version);
-
-            // read the standard attribute: user dictionaries
-            if (!StringUtils.isBlank(_reader.getAttribute(NAACCR_XML_ROOT_ATT_USER_DICT))) {
-                List<String> dataUserDictionaries = Arrays.asList(StringUtils.split(_reader.getAttribute(NAACCR_XML_ROOT_ATT_USER_DICT), ' '));
-                if (SpecificationVersion.compareSpecifications(specVersion, SpecificationVersion.SPEC_1_2) < 0 && dataUserDictionaries.size() > 1)
-                    throw new NaaccrIOException("multiple user dictionaries can only be provided under specification 1.2+", conf.getParser().getLineNumber());
-                _rootData.setUserDictionaryUri(dataUserDictionaries);
-            }
-            // let's use only the dictionaries that are referenced in the data file (more can be provided to library, that's OK; it's also OK if some are missing in the library)
-            for (String uri : new HashSet<>(dictionaries.keySet()))
-                if (!_rootData.getUserDictionaryUri().contains(uri))
-                    dictionaries.remove(uri);
-
-            // read the standard attribute: record type            
-            _rootData.setRecordType(_reader.getAttribute(NAACCR_XML_ROOT_ATT_REC_TYPE));
-            if (_rootData.getRecordType() == null || _rootData.getRecordType().trim().isEmpty())
-                throw new NaaccrIOException("the \"" + NAACCR_XML_ROOT_ATT_REC_TYPE + "\" attribute is required", conf.getParser().getLineNumber());
-            if (!NaaccrFormat.isRecordTypeSupported(_rootData.getRecordType()))
-                throw new NaaccrIOException("invalid record type: " + _rootData.getRecordType(), conf.getParser().getLineNumber());
-
-            // read the standard attribute: time generated
-            String generatedTime = _reader.getAttribute(NAACCR_XML_ROOT_ATT_TIME_GENERATED);
-            if (generatedTime != null) {
-                // it sucks that ISO 8601 allows with and without a time zone (offset) and it sucks even more that Java doesn't have a single formatter to handle both!
-                try {
-                    _rootData.setTimeGenerated(Date.from(ZonedDateTime.parse(generatedTime, DateTimeFormatter.ISO_OFFSET_DATE_TIME).toInstant()));
-                }
-                catch (RuntimeException e1) {
-                    try {
-                        _rootData.setTimeGenerated(Date.from(LocalDateTime.parse(generatedTime, DateTimeFormatter.ISO_LOCAL_DATE_TIME).toInstant(ZoneOffset.UTC)));
-                    }
-                    catch (RuntimeException e2) {
-                        _rootData.addValidationError(new NaaccrValidationError(NaaccrErrorUtils.CODE_BAD_TIME_GENERATED, generatedTime));
-                    }
-                }
-            }
+            _rootData.setStartLineNumber(_context.getLineNumber());
 
-            // read the non-standard attributes
-            Set<String> standardAttributes = new HashSet<>();
-            standardAttributes.add(NAACCR_XML_ROOT_ATT_BASE_DICT);
-            standardAttributes.add(NAACCR_XML_ROOT_ATT_USER_DICT);
-            standardAttributes.add(NAACCR_XML_ROOT_ATT_REC_TYPE);
-            standardAttributes.add(NAACCR_XML_ROOT_ATT_TIME_GENERATED);
-            standardAttributes.add(NAACCR_XML_ROOT_ATT_SPEC_VERSION);
-            Map<String, String> attributeValues = new HashMap<>(), namespaces = new HashMap<>();
-            for (int i = 0; i < _reader.getAttributeCount(); i++) {
-                String attrName = _reader.getAttributeName(i);
-                if (standardAttributes.contains(attrName))
-                    continue;
-                if (attrName.startsWith("xmlns")) {
-                    int idx = attrName.indexOf(':');
-                    if (idx != -1) {
-                        String namespacePrefix = attrName.substring(idx + 1);
-                        if (options.getUseStrictNamespaces() && !conf.getRegisterNamespaces().containsKey(namespacePrefix))
-                            throw new NaaccrIOException("namespace " + _reader.getAttribute(i) + " (prefix=" + namespacePrefix + ") has not been defined in the configuration");
-                        namespaces.put(namespacePrefix, _reader.getAttribute(i));
-                    }
-                    else {
-                        // the only default namespace allowed is the NAACCR one
-                        if (!NAACCR_XML_NAMESPACE.equals(_reader.getAttribute(i)))
-                            throw new NaaccrIOException("default namespace can only be set to " + NAACCR_XML_NAMESPACE);
-                        namespaces.put("", _reader.getAttribute(i));
-                    }
-                }
-                else
-                    attributeValues.put(attrName, _reader.getAttribute(i));
-            }
-
-            // in strict namespace mode, the NAACCR namespace must be defined (either as the default namespace or as a prefixed namespace, that doesn't matter)
-            if (options.getUseStrictNamespaces() && !namespaces.containsValue(NAACCR_XML_NAMESPACE))
-                throw new NaaccrIOException("namespace " + NAACCR_XML_NAMESPACE + " must be defined in the root attributes");
-
-            // in strict namespace mode, any non-standard attribute must be prefixed by a defined namespace
-            for (Map.Entry<String, String> entry : attributeValues.entrySet()) {
-                String prefix = null, attrName;
-                int idx = entry.getKey().indexOf(':');
-                if (idx != -1) {
-                    prefix = entry.getKey().substring(0, idx);
-                    attrName = entry.getKey().substring(idx + 1);
-                }
-                else
-                    attrName = entry.getKey();
-
-                if (options.getUseStrictNamespaces()) {
-                    if (prefix == null)
-                        throw new NaaccrIOException("attribute " + attrName + " must use a namespace prefix");
-                    if (!namespaces.containsKey(prefix))
-                        throw new NaaccrIOException("attribute " + attrName + " uses a prefix " + prefix + " that is not properly defined");
-                }
-                _rootData.addExtraRootParameters(attrName, entry.getValue());
-            }
-
-            // create or get the runtime dictionary
-            if (conf.getCachedDictionary() == null || !conf.getCachedDictionary().getId().equals(RuntimeNaaccrDictionary.computeId(_rootData.getRecordType(), baseDictionary, dictionaries.values())))
-                conf.setCachedDictionary(new RuntimeNaaccrDictionary(_rootData.getRecordType(), baseDictionary, dictionaries.values()));
-
-            // now we are ready to setup our reading context and make it available to the patient converter
-            _context.setDictionary(conf.getCachedDictionary());
-            conf.getPatientConverter().setContext(_context);
+            // read the attributes of the root tag (this will also setup the runtime dictionary)
+            Map<String, String> attributes = new LinkedHashMap<>();
+            for (int i = 0; i < _reader.getAttributeCount(); i++)
+                attributes.put(_reader.getAttributeName(i), _reader.getAttribute(i));
+            readRootAttributes(attributes, userDictionaries, conf);
 
             // handle the case where no patients nor items are provided
             if (!_reader.hasMoreChildren())
@@ -292,7 +175,7 @@ public class PatientXmlReader implements PatientReader {
                 else
                     itemsAlreadySeen.add(rawId);
                 // following call will ensure that proper validation runs
-                conf.getPatientConverter().readItem(_rootData, "/NaaccrData", NAACCR_XML_TAG_ROOT, rawId, rawNum, _reader.getValue());
+                _context.getPatientConverter().readItem(_rootData, "/NaaccrData", NAACCR_XML_TAG_ROOT, rawId, rawNum, _reader.getValue());
                 _reader.moveUp();
                 if (_reader.hasMoreChildren())
                     _reader.moveDown();
@@ -301,7 +184,7 @@ public class PatientXmlReader implements PatientReader {
             // handle root extensions
             while (!isPatientTag(_reader.getNodeName()) && !isRootTag(_reader.getNodeName())) {
                 if (!Boolean.TRUE.equals(options.getIgnoreExtensions())) {
-                    int lineNumber = conf.getParser().getLineNumber();
+                    int lineNumber = _context.getLineNumber();
                     Object extension = conf.getXstream().unmarshal(_reader);
                     if (extension instanceof NaaccrXmlExtension)
                         ((NaaccrXmlExtension)extension).setStartLineNumber(lineNumber);
@@ -318,7 +201,7 @@ public class PatientXmlReader implements PatientReader {
 
             // at this point, either we are done (and the method already return) or there should be a patient tag
             if (!isPatientTag(_reader.getNodeName()))
-                throw new NaaccrIOException("unexpected tag: " + _context.extractTag(_reader.getNodeName()), conf.getParser().getLineNumber());
+                throw new NaaccrIOException("unexpected tag: " + _context.extractTag(_reader.getNodeName()), _context.getLineNumber());
 
             // need to expose xstream so the other methods can use it...
             _xstream = conf.getXstream();
@@ -337,15 +220,179 @@ public class PatientXmlReader implements PatientReader {
         }
     }
 
-    private boolean isRootTag(String tag) throws NaaccrIOException {
+    /**
+     * Constructor reading a range of patients from an indexed file; the root data is read from the beginning of the file, then the reader seeks to the
+     * first requested patient. The line numbers of the patients (and of their errors) are the ones of the file.
+     * @param xmlFile required XML data file (it can't be compressed)
+     * @param index required index corresponding to the data file (see PatientXmlIndex.build())
+     * @param firstPatientIdx 0-based index of the first patient to read
+     * @param lastPatientIdx 0-based index of the last patient to read (inclusive)
+     * @param options optional options
+     * @param userDictionaries optional user-defined dictionaries (can be null or empty)
+     * @param conf optional stream configuration
+     * @throws NaaccrIOException if anything goes wrong
+     */
+    public PatientXmlReader(File xmlFile, PatientXmlIndex index, int firstPatientIdx, int lastPatientIdx, NaaccrOptions options, List<NaaccrDictionary> userDictionaries,
+            NaaccrStreamConfiguration conf) throws NaaccrIOException {
+        this(index.createReader(xmlFile, firstPatientIdx, lastPatientIdx), options, userDictionaries, conf);
+
+        // the requested patients directly follow the root data, which ends on the line of the first patient of the file
+        _context.setLineNumberOffset(index.getPatientLineNumber(firstPatientIdx) - index.getPatientLineNumber(0));
+    }
+
+    /**
+     * Constructor for the sub-classes that read the XML data without using the XStream reader; those are responsible for initializing the context and the root data.
+     */
+    protected PatientXmlReader() {
+    }
+
+    /**
+     * Reads the attributes of the root tag into the root data, and sets up the runtime dictionary of the current context.
+     * @param attributes the attributes of the root tag, in the order they appear in the data
+     * @param userDictionaries optional user-defined dictionaries (can be null or empty)
+     * @param conf stream configuration, required
+     * @throws NaaccrIOException if the attributes are invalid
+     */
+    protected void readRootAttributes(Map<String, String> attributes, List<NaaccrDictionary> userDictionaries, NaaccrStreamConfiguration conf) throws NaaccrIOException {
+        NaaccrOptions options = _context.getOptions();
+
+        // clean-up the dictionaries
+        Map<String, NaaccrDictionary> dictionaries = new HashMap<>();
+        if (userDictionaries != null)
+            for (NaaccrDictionary userDictionary : userDictionaries)
+                if (userDictionary != null)
+                    dictionaries.put(userDictionary.getDictionaryUri(), userDictionary);
+
+        // read the standard attribute: specification version (we do it first because the format of other attributes can depend on the specs version)
+        String specVersion = attributes.get(NAACCR_XML_ROOT_ATT_SPEC_VERSION);
+        if (specVersion == null)
+            specVersion = SpecificationVersion.SPEC_1_0;
+        if (!SpecificationVersion.isSpecificationSupported(specVersion))
+            throw new NaaccrIOException("invalid specification version: " + specVersion);
+        _rootData.setSpecificationVersion(specVersion);
+
+        // read the standard attribute: base dictionary
+        _rootData.setBaseDictionaryUri(attributes.get(NAACCR_XML_ROOT_ATT_BASE_DICT));
+        if (_rootData.getBaseDictionaryUri() == null)
+            throw new NaaccrIOException("the \"" + NAACCR_XML_ROOT_ATT_BASE_DICT + "\" attribute is required", _context.getLineNumber());
+        String version = NaaccrXmlDictionaryUtils.extractVersionFromUri(_rootData.getBaseDictionaryUri());
+        if (version == null || version.trim().isEmpty())
+            throw new NaaccrIOException("unable to extract NAACCR version from base dictionary URI \"" + _rootData.getBaseDictionaryUri() + "\"", _context.getLineNumber());
+        if (!NaaccrFormat.isVersionSupported(version))
+            throw new NaaccrIOException("invalid/unsupported NAACCR version: " + version, _context.getLineNumber());
+        NaaccrDictionary baseDictionary = NaaccrXmlDictionaryUtils.getBaseDictionaryByVersion(version);
+
+        // read the standard attribute: user dictionaries
+        if (!StringUtils.isBlank(attributes.get(NAACCR_XML_ROOT_ATT_USER_DICT))) {
+            List<String> dataUserDictionaries = Arrays.asList(StringUtils.split(attributes.get(NAACCR_XML_ROOT_ATT_USER_DICT), ' '));
+            if (SpecificationVersion.compareSpecifications(specVersion, SpecificationVersion.SPEC_1_2) < 0 && dataUserDictionaries.size() > 1)
+                throw new NaaccrIOException("multiple user dictionaries can only be provided under specification 1.2+", _context.getLineNumber());
+            _rootData.setUserDictionaryUri(dataUserDictionaries);
+        }
+        // let's use only the dictionaries that are referenced in the data file (more can be provided to library, that's OK; it's also OK if some are missing in the library)
+        for (String uri : new HashSet<>(dictionaries.keySet()))
+            if (!_rootData.getUserDictionaryUri().contains(uri))
+                dictionaries.remove(uri);
+
+        // read the standard attribute: record type            
+        _rootData.setRecordType(attributes.get(NAACCR_XML_ROOT_ATT_REC_TYPE));
+        if (_rootData.getRecordType() == null || _rootData.getRecordType().trim().isEmpty())
+            throw new NaaccrIOException("the \"" + NAACCR_XML_ROOT_ATT_REC_TYPE + "\" attribute is required", _context.getLineNumber());
+        if (!NaaccrFormat.isRecordTypeSupported(_rootData.getRecordType()))
+            throw new NaaccrIOException("invalid record type: " + _rootData.getRecordType(), _context.getLineNumber());
+
+        // read the standard attribute: time generated
+        String generatedTime = attributes.get(NAACCR_XML_ROOT_ATT_TIME_GENERATED);
+        if (generatedTime != null) {
+            // it sucks that ISO 8601 allows with and without a time zone (offset) and it sucks even more that Java doesn't have a single formatter to handle both!
+            try {
+                _rootData.setTimeGenerated(Date.from(ZonedDateTime.parse(generatedTime, DateTimeFormatter.ISO_OFFSET_DATE_TIME).toInstant()));
+            }
+            catch (RuntimeException e1) {
+                try {
+                    _rootData.setTimeGenerated(Date.from(LocalDateTime.parse(generatedTime, DateTimeFormatter.ISO_LOCAL_DATE_TIME).toInstant(ZoneOffset.UTC)));
+                }
+                catch (RuntimeException e2) {
+                    _rootData.addValidationError(new NaaccrValidationError(NaaccrErrorUtils.CODE_BAD_TIME_GENERATED, generatedTime));
+                }
+            }
+        }
+
+        // read the non-standard attributes
+        Set<String> standardAttributes = new HashSet<>();
+        standardAttributes.add(NAACCR_XML_ROOT_ATT_BASE_DICT);
+        standardAttributes.add(NAACCR_XML_ROOT_ATT_USER_DICT);
+        standardAttributes.add(NAACCR_XML_ROOT_ATT_REC_TYPE);
+        standardAttributes.add(NAACCR_XML_ROOT_ATT_TIME_GENERATED);
+        standardAttributes.add(NAACCR_XML_ROOT_ATT_SPEC_VERSION);
+        Map<String, String> attributeValues = new HashMap<>(), namespaces = new HashMap<>();
+        for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+            String attrName = attribute.getKey();
+            if (standardAttributes.contains(attrName))
+                continue;
+            if (attrName.startsWith("xmlns")) {
+                int idx = attrName.indexOf(':');
+                if (idx != -1) {
+                    String namespacePrefix = attrName.substring(idx + 1);
+                    if (options.getUseStrictNamespaces() && !conf.getRegisterNamespaces().containsKey(namespacePrefix))
+                        throw new NaaccrIOException("namespace " + attribute.getValue() + " (prefix=" + namespacePrefix + ") has not been defined in the configuration");
+                    namespaces.put(namespacePrefix, attribute.getValue());
+                }
+                else {
+                    // the only default namespace allowed is the NAACCR one
+                    if (!NAACCR_XML_NAMESPACE.equals(attribute.getValue()))
+                        throw new NaaccrIOException("default namespace can only be set to " + NAACCR_XML_NAMESPACE);
+                    namespaces.put("", attribute.getValue());
+                }
+            }
+            else
+                attributeValues.put(attrName, attribute.getValue());
+        }
+
+        // in strict namespace mode, the NAACCR namespace must be defined (either as the default namespace or as a prefixed namespace, that doesn't matter)
+        if (options.getUseStrictNamespaces() && !namespaces.containsValue(NAACCR_XML_NAMESPACE))
+            throw new NaaccrIOException("namespace " + NAACCR_XML_NAMESPACE + " must be defined in the root attributes");
+
+        // in strict namespace mode, any non-standard attribute must be prefixed by a defined namespace
+        for (Map.Entry<String, String> entry : attributeValues.entrySet()) {
+            String prefix = null, attrName;
+            int idx = entry.getKey().indexOf(':');
+            if (idx != -1) {
+                prefix = entry.getKey().substring(0, idx);
+                attrName = entry.getKey().substring(idx + 1);
+            }
+            else
+                attrName = entry.getKey();
+
+            if (options.getUseStrictNamespaces()) {
+                if (prefix == null)
+                    throw new NaaccrIOException("attribute " + attrName + " must use a namespace prefix");
+                if (!namespaces.containsKey(prefix))
+                    throw new NaaccrIOException("attribute " + attrName + " uses a prefix " + prefix + " that is not properly defined");
+            }
+            _rootData.addExtraRootParameters(attrName, entry.getValue());
+        }
+
+        // create or get the runtime dictionary (the configuration might be shared with other threads, so the cached dictionary is only read once)
+        RuntimeNaaccrDictionary runtimeDictionary = conf.getCachedDictionary();
+        if (runtimeDictionary == null || !runtimeDictionary.getId().equals(RuntimeNaaccrDictionary.computeId(_rootData.getRecordType(), baseDictionary, dictionaries.values()))) {
+            runtimeDictionary = RuntimeNaaccrDictionary.getInstance(_rootData.getRecordType(), baseDictionary, dictionaries.values());
+            conf.setCachedDictionary(runtimeDictionary);
+        }
+
+        // now we are ready to setup our reading context
+        _context.setDictionary(runtimeDictionary);
+    }
+
+    protected boolean isRootTag(String tag) throws NaaccrIOException {
         return _context.extractTag(tag).equals(NAACCR_XML_TAG_ROOT);
     }
 
-    private boolean isPatientTag(String tag) throws NaaccrIOException {
+    protected boolean isPatientTag(String tag) throws NaaccrIOException {
         return _context.extractTag(tag).equals(NAACCR_XML_TAG_PATIENT);
     }
 
-    private boolean isItemTag(String tag) throws NaaccrIOException {
+    protected boolean isItemTag(String tag) throws NaaccrIOException {
         return _context.extractTag(tag).equals(NAACCR_XML_TAG_ITEM);
     }
 
@@ -359,13 +406,17 @@ public class PatientXmlReader implements PatientReader {
 
         Patient patient;
         try {
-            patient = (Patient)_xstream.unmarshal(_reader);
+            // the data of the context makes XStream use the patient converter of this stream
+            patient = (Patient)_xstream.unmarshal(_reader, null, _context.getDataHolder());
             _reader.moveUp();
             if (_reader.hasMoreChildren())
                 _reader.moveDown();
         }
         catch (ConversionException ex) {
-            throw convertSyntaxException(ex);
+            NaaccrIOException e = convertSyntaxException(ex);
+            if (e.getLineNumber() != null)
+                e.setLineNumber(e.getLineNumber() + _context.getLineNumberOffset());
+            throw e;
         }
         catch (StreamException ex) {
             throw new NaaccrIOException("invalid XML syntax", ex);
@@ -410,7 +461,7 @@ public class PatientXmlReader implements PatientReader {
     /**
      * We don't want to expose the conversion exceptions, so let's translate them into our own exception...
      */
-    private NaaccrIOException convertSyntaxException(ConversionException ex) {
+    static NaaccrIOException convertSyntaxException(ConversionException ex) {
         String msg = ex.get("message");
 
         // reading a file that has bad tags is very common, so let's try to get a better error message in that case:
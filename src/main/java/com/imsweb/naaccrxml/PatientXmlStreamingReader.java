@@ -0,0 +1,559 @@
+/*
+ * Copyright (C) 2019 Information Management Services, Inc.
+ */
+package com.imsweb.naaccrxml;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import com.thoughtworks.xstream.converters.ConversionException;
+import com.thoughtworks.xstream.io.StreamException;
+import com.thoughtworks.xstream.io.xml.XppReader;
+import com.thoughtworks.xstream.mapper.CannotResolveClassException;
+
+import com.imsweb.naaccrxml.entity.Patient;
+import com.imsweb.naaccrxml.entity.Tumor;
+import com.imsweb.naaccrxml.entity.dictionary.NaaccrDictionary;
+import com.imsweb.naaccrxml.runtime.NaaccrPatientConverter;
+import com.imsweb.naaccrxml.runtime.NaaccrStreamConfiguration;
+import com.imsweb.naaccrxml.runtime.NaaccrStreamContext;
+
+import static com.imsweb.naaccrxml.NaaccrXmlUtils.NAACCR_XML_ITEM_ATT_ID;
+import static com.imsweb.naaccrxml.NaaccrXmlUtils.NAACCR_XML_ITEM_ATT_NUM;
+import static com.imsweb.naaccrxml.NaaccrXmlUtils.NAACCR_XML_TAG_ITEM;
+import static com.imsweb.naaccrxml.NaaccrXmlUtils.NAACCR_XML_TAG_PATIENT;
+import static com.imsweb.naaccrxml.NaaccrXmlUtils.NAACCR_XML_TAG_ROOT;
+import static com.imsweb.naaccrxml.NaaccrXmlUtils.NAACCR_XML_TAG_TUMOR;
+
+/**
+ * This class is an alternative to the PatientXmlReader that reads the data directly from the pull parser of the stream configuration, without going
+ * through XStream; the hierarchical reader of XStream tracks the path of every node, which is costly when reading large files.
+ * <br/><br/>
+ * The patients and the validation errors are identical to the ones created by a PatientXmlReader; the items are still read (and validated) by the
+ * patient converter of the configuration. The extensions are still unmarshalled by XStream, from a copy of their XML.
+ * <br/><br/>
+ * Since this reader doesn't call the patient converter to read the patients themselves, it shouldn't be used with a configuration that customizes
+ * how patients are read. See NaaccrStreamConfiguration.setUseStreamingReader() and NaaccrXmlUtils.createPatientXmlReader().
+ */
+public class PatientXmlStreamingReader extends PatientXmlReader {
+
+    // the parser (coming from the configuration)
+    protected XmlPullParser _parser;
+
+    // the underlined reader
+    protected Reader _input;
+
+    // the parser used to unmarshal the extensions (created only if needed)
+    protected XmlPullParser _extensionParser;
+
+    // the children of the current patient and tumor, keyed by tag, with their count (used to report the path of the errors, the same way XStream does it)
+    private Map<String, int[]> _patientChildrenCount = new HashMap<>(), _tumorChildrenCount = new HashMap<>();
+
+    // the current patient child and tumor child, with their index (used to report the path of the errors)
+    private String _patientTag, _patientChildTag, _tumorChildTag;
+
+    private int _patientChildIdx, _tumorChildIdx;
+
+    // the line number of the extension being unmarshalled (XStream reports the unknown tags at that line)
+    private int _extensionLineNumber = -1;
+
+    /**
+     * Constructor.
+     * @param reader required underlined reader
+     * @throws NaaccrIOException if anything goes wrong
+     */
+    public PatientXmlStreamingReader(Reader reader) throws NaaccrIOException {
+        this(reader, null, (NaaccrDictionary)null, null);
+    }
+
+    /**
+     * Constructor.
+     * @param reader required underlined reader
+     * @param options optional options
+     * @throws NaaccrIOException if anything goes wrong
+     */
+    public PatientXmlStreamingReader(Reader reader, NaaccrOptions options) throws NaaccrIOException {
+        this(reader, options, (NaaccrDictionary)null, null);
+    }
+
+    /**
+     * Constructor.
+     * @param reader required underlined reader
+     * @param options optional options
+     * @param userDictionary optional user-defined dictionary
+     * @throws NaaccrIOException if anything goes wrong
+     */
+    public PatientXmlStreamingReader(Reader reader, NaaccrOptions options, NaaccrDictionary userDictionary) throws NaaccrIOException {
+        this(reader, options, Collections.singletonList(userDictionary), null);
+    }
+
+    /**
+     * Constructor.
+     * @param reader required underlined reader
+     * @param options optional options
+     * @param userDictionaries optional user-defined dictionaries (can be null or empty)
+     * @throws NaaccrIOException if anything goes wrong
+     */
+    public PatientXmlStreamingReader(Reader reader, NaaccrOptions options, List<NaaccrDictionary> userDictionaries) throws NaaccrIOException {
+        this(reader, options, userDictionaries, null);
+    }
+
+    /**
+     * Constructor.
+     * @param reader required underlined reader
+     * @param options optional options
+     * @param userDictionary optional user-defined dictionary
+     * @param conf optional stream configuration
+     * @throws NaaccrIOException if anything goes wrong
+     */
+    public PatientXmlStreamingReader(Reader reader, NaaccrOptions options, NaaccrDictionary userDictionary, NaaccrStreamConfiguration conf) throws NaaccrIOException {
+        this(reader, options, Collections.singletonList(userDictionary), conf);
+    }
+
+    /**
+     * Constructor.
+     * @param reader required underlined reader
+     * @param options optional options
+     * @param userDictionaries optional user-defined dictionaries (can be null or empty)
+     * @param conf optional stream configuration
+     * @throws NaaccrIOException if anything goes wrong
+     */
+    public PatientXmlStreamingReader(Reader reader, NaaccrOptions options, List<NaaccrDictionary> userDictionaries, NaaccrStreamConfiguration conf) throws NaaccrIOException {
+        try {
+            // we always need options
+            if (options == null)
+                options = NaaccrOptions.getDefault();
+
+            // we always need a configuration
+            if (conf == null)
+                conf = NaaccrStreamConfiguration.getDefault();
+
+            // create the context
+            _context = new NaaccrStreamContext();
+            _context.setOptions(options);
+            _context.setConfiguration(conf);
+
+            // setup the parser
+            _input = reader;
+            _parser = _context.getParser();
+            _parser.setInput(reader);
+            if (nextTag() != XmlPullParser.START_TAG)
+                throw new NaaccrIOException("invalid XML syntax, unable to find root tag");
+            if (!isRootTag(_parser.getName()))
+                throw new NaaccrIOException("was expecting " + NAACCR_XML_TAG_ROOT + " root tag but got " + _parser.getName(), _parser.getLineNumber());
+
+            // create the root data holder (it will be use for every field except the list of patients)
+            _rootData = createRootData();
+
+            // line number
+            _rootData.setStartLineNumber(_parser.getLineNumber());
+
+            // read the attributes of the root tag (this will also setup the runtime dictionary)
+            Map<String, String> attributes = new LinkedHashMap<>();
+            for (int i = 0; i < _parser.getAttributeCount(); i++)
+                attributes.put(_parser.getAttributeName(i), _parser.getAttributeValue(i));
+            readRootAttributes(attributes, userDictionaries, conf);
+
+            // handle the case where no patients nor items are provided
+            if (nextTag() != XmlPullParser.START_TAG)
+                return;
+
+            // read the root items
+            Set<String> itemsAlreadySeen = new HashSet<>();
+            while (isItemTag(_parser.getName())) {
+                String rawId = getAttribute(NAACCR_XML_ITEM_ATT_ID);
+                String rawNum = getAttribute(NAACCR_XML_ITEM_ATT_NUM);
+                if (rawId != null && itemsAlreadySeen.contains(rawId))
+                    throw new NaaccrIOException("item '" + rawId + "' should be unique within the \"" + NAACCR_XML_TAG_ROOT + "\" tags");
+                else
+                    itemsAlreadySeen.add(rawId);
+                // following call will ensure that proper validation runs
+                int depth = _parser.getDepth();
+                _context.getPatientConverter().readItem(_rootData, "/NaaccrData", NAACCR_XML_TAG_ROOT, rawId, rawNum, readValue());
+                skipToEndTag(depth);
+                nextTag();
+            }
+
+            // handle root extensions
+            while (!isPatientTag(_parser.getName()) && !isRootTag(_parser.getName())) {
+                if (!Boolean.TRUE.equals(options.getIgnoreExtensions())) {
+                    int lineNumber = _parser.getLineNumber();
+                    Object extension = readExtension();
+                    if (extension instanceof NaaccrXmlExtension)
+                        ((NaaccrXmlExtension)extension).setStartLineNumber(lineNumber);
+                    _rootData.addExtension(extension);
+                }
+                else
+                    skipToEndTag(_parser.getDepth());
+                nextTag();
+            }
+
+            // if we are back at the root level, there is no more children, and we are done
+            if (isRootTag(_parser.getName()))
+                return;
+
+            // at this point, either we are done (and the method already return) or there should be a patient tag
+            if (!isPatientTag(_parser.getName()))
+                throw new NaaccrIOException("unexpected tag: " + _context.extractTag(_parser.getName()), _parser.getLineNumber());
+        }
+        catch (ConversionException ex) {
+            throw convertSyntaxException(ex);
+        }
+        catch (NaaccrIOException ex) {
+            throw ex;
+        }
+        catch (XmlPullParserException | IOException ex) {
+            throw new NaaccrIOException("invalid XML syntax, unable to find root tag", ex);
+        }
+        catch (RuntimeException ex) {
+            // an unknown tag in the extension is a common mistake, so let's make sure we report that nicely
+            if (ex instanceof CannotResolveClassException)
+                throw new NaaccrIOException("invalid tag: " + ex.getMessage());
+            throw new NaaccrIOException("invalid XML syntax", ex);
+        }
+    }
+
+    @Override
+    public Patient readPatient() throws NaaccrIOException {
+        if (_context.extractTag(_parser.getName()).equals(NAACCR_XML_TAG_ROOT))
+            return null;
+
+        if (!_context.extractTag(_parser.getName()).equals(NAACCR_XML_TAG_PATIENT))
+            throw new NaaccrIOException("Unexpected tag: " + _parser.getName(), _context.getLineNumber());
+
+        Patient patient;
+        try {
+            patient = readPatientFromParser();
+        }
+        catch (NaaccrIOException ex) {
+            throw ex;
+        }
+        catch (XmlPullParserException | IOException ex) {
+            throw convertSyntaxException(addErrorInformation(new ConversionException(new StreamException(ex))));
+        }
+        catch (ConversionException ex) {
+            throw convertSyntaxException(addErrorInformation(ex));
+        }
+        catch (RuntimeException ex) {
+            throw convertSyntaxException(addErrorInformation(new ConversionException(ex)));
+        }
+
+        try {
+            nextTag();
+        }
+        catch (XmlPullParserException | IOException ex) {
+            throw new NaaccrIOException("invalid XML syntax", ex);
+        }
+
+        return patient;
+    }
+
+    @Override
+    public void closeAndKeepAlive() {
+        _hasBeenFinalized = true;
+    }
+
+    @Override
+    public void close() {
+        closeAndKeepAlive();
+        try {
+            _input.close();
+        }
+        catch (IOException e) {
+            throw new StreamException(e);
+        }
+    }
+
+    /**
+     * Reads the patient the parser is currently positioned on; this follows the exact same logic as NaaccrPatientConverter.unmarshal().
+     * <br/><br/>
+     * The syntax errors are reported as conversion exceptions, the way the converter reports them.
+     */
+    protected Patient readPatientFromParser() throws XmlPullParserException, IOException {
+        NaaccrPatientConverter converter = _context.getPatientConverter();
+
+        _patientTag = _parser.getName();
+        _patientChildrenCount.clear();
+        _extensionLineNumber = -1;
+
+        // Patient tag doesn't support any attributes
+        if (_parser.getAttributeCount() > 0)
+            reportSyntaxError("unexpected attribute for Patient tag: " + _parser.getAttributeValue(0));
+
+        Patient patient = converter.createPatient();
+        patient.setStartLineNumber(_parser.getLineNumber());
+        int patItemCount = 0, tumorCount = 0;
+        boolean seenPatientExtension = false;
+        Set<String> itemsAlreadySeen = new HashSet<>();
+        int patientDepth = _parser.getDepth();
+        while (nextChild(patientDepth)) {
+            String tag = _parser.getName();
+            _patientChildTag = tag;
+            _patientChildIdx = ++_patientChildrenCount.computeIfAbsent(tag, k -> new int[1])[0];
+
+            // handle patient items
+            String cleanTag = extractTag(tag);
+            if (NAACCR_XML_TAG_ITEM.equals(cleanTag)) {
+                if (tumorCount > 0 || seenPatientExtension)
+                    reportSyntaxError("unexpected tag: " + cleanTag);
+                patItemCount++;
+                String rawId = getAttribute(NAACCR_XML_ITEM_ATT_ID);
+                if (rawId != null && itemsAlreadySeen.contains(rawId))
+                    reportSyntaxError("item '" + rawId + "' should be unique within the " + NAACCR_XML_TAG_PATIENT + " tags");
+                else
+                    itemsAlreadySeen.add(rawId);
+                int depth = _parser.getDepth();
+                // the items that are not processed are skipped without creating their value
+                if (converter.shouldReadItem(rawId))
+                    converter.readItem(patient, "/Patient/Item[" + patItemCount + "]", NAACCR_XML_TAG_PATIENT, rawId, getAttribute(NAACCR_XML_ITEM_ATT_NUM), readValue());
+                skipToEndTag(depth);
+            }
+            // handle tumors
+            else if (NAACCR_XML_TAG_TUMOR.equals(cleanTag)) {
+
+                // Tumor tag doesn't support any attributes
+                if (_parser.getAttributeCount() > 0)
+                    reportSyntaxError("unexpected attribute for Tumor tag: " + _parser.getAttributeValue(0));
+
+                Tumor tumor = converter.createTumor();
+                tumor.setStartLineNumber(_parser.getLineNumber());
+                tumorCount++;
+                int tumorItemCount = 0;
+                boolean seenTumorExtension = false;
+                itemsAlreadySeen.clear();
+                _tumorChildrenCount.clear();
+                int tumorDepth = _parser.getDepth();
+                while (nextChild(tumorDepth)) {
+                    String tumorTag = _parser.getName();
+                    _tumorChildTag = tumorTag;
+                    _tumorChildIdx = ++_tumorChildrenCount.computeIfAbsent(tumorTag, k -> new int[1])[0];
+
+                    // handle tumor items
+                    String cleanTumorTag = extractTag(tumorTag);
+                    if (NAACCR_XML_TAG_ITEM.equals(cleanTumorTag)) {
+                        if (seenTumorExtension)
+                            reportSyntaxError("unexpected tag: " + cleanTumorTag);
+                        tumorItemCount++;
+                        String rawId = getAttribute(NAACCR_XML_ITEM_ATT_ID);
+                        if (rawId != null && itemsAlreadySeen.contains(rawId))
+                            reportSyntaxError("item '" + rawId + "' should be unique within the " + NAACCR_XML_TAG_TUMOR + " tags");
+                        else
+                            itemsAlreadySeen.add(rawId);
+                        int depth = _parser.getDepth();
+                        // the items that are not processed are skipped without creating their value
+                        if (converter.shouldReadItem(rawId))
+                            converter.readItem(tumor, "/Patient/Tumor[" + tumorCount + "]/Item[" + tumorItemCount + "]", NAACCR_XML_TAG_TUMOR, rawId, getAttribute(NAACCR_XML_ITEM_ATT_NUM), readValue());
+                        skipToEndTag(depth);
+                    }
+                    else {
+                        if (!Boolean.TRUE.equals(_context.getOptions().getIgnoreExtensions())) {
+                            int lineNumber = _parser.getLineNumber();
+                            Object extension = readExtension();
+                            if (extension instanceof NaaccrXmlExtension)
+                                ((NaaccrXmlExtension)extension).setStartLineNumber(lineNumber);
+                            tumor.addExtension(extension);
+                        }
+                        else
+                            skipToEndTag(_parser.getDepth());
+                        seenTumorExtension = true;
+                    }
+
+                    _tumorChildTag = null;
+                }
+                patient.addTumor(tumor);
+            }
+            // handle patient extension
+            else {
+                if (tumorCount > 0)
+                    reportSyntaxError("unexpected tag: " + cleanTag);
+                if (!Boolean.TRUE.equals(_context.getOptions().getIgnoreExtensions())) {
+                    int lineNumber = _parser.getLineNumber();
+                    Object extension = readExtension();
+                    if (extension instanceof NaaccrXmlExtension)
+                        ((NaaccrXmlExtension)extension).setStartLineNumber(lineNumber);
+                    patient.addExtension(extension);
+                }
+                else
+                    skipToEndTag(_parser.getDepth());
+                seenPatientExtension = true;
+            }
+
+            _patientChildTag = null;
+        }
+
+        return patient;
+    }
+
+    /**
+     * Unmarshals the extension the parser is currently positioned on, using XStream; when this method returns, the parser is positioned on the end tag of the extension.
+     * @return the unmarshalled extension
+     * @throws NaaccrIOException if the extension can't be unmarshalled by XStream
+     */
+    protected Object readExtension() throws XmlPullParserException, IOException {
+        int lineNumber = _parser.getLineNumber(), depth = _parser.getDepth();
+
+        // copy the XML of the extension
+        StringBuilder buf = new StringBuilder();
+        int event = XmlPullParser.START_TAG;
+        while (true) {
+            if (event == XmlPullParser.START_TAG) {
+                buf.append('<').append(_parser.getName());
+                for (int i = 0; i < _parser.getAttributeCount(); i++) {
+                    buf.append(' ').append(_parser.getAttributeName(i)).append("=\"");
+                    escape(_parser.getAttributeValue(i), buf, true);
+                    buf.append('"');
+                }
+                buf.append('>');
+            }
+            else if (event == XmlPullParser.TEXT)
+                escape(_parser.getText(), buf, false);
+            else if (event == XmlPullParser.END_TAG) {
+                buf.append("</").append(_parser.getName()).append('>');
+                if (_parser.getDepth() == depth)
+                    break;
+            }
+            else if (event == XmlPullParser.END_DOCUMENT)
+                throw new XmlPullParserException("unexpected end of document", _parser, null);
+            event = _parser.next();
+        }
+
+        if (_extensionParser == null)
+            _extensionParser = XmlPullParserFactory.newInstance().newPullParser();
+
+        try {
+            _extensionLineNumber = lineNumber;
+            Object extension = _context.getConfiguration().getXstream().unmarshal(new XppReader(new StringReader(buf.toString()), _extensionParser));
+            _extensionLineNumber = -1;
+            return extension;
+        }
+        catch (ConversionException ex) {
+            // the line numbers are relative to the copy of the extension, so they need to be shifted
+            NaaccrIOException e = convertSyntaxException(ex);
+            if (e.getLineNumber() != null)
+                e.setLineNumber(e.getLineNumber() + lineNumber - 1);
+            throw e;
+        }
+    }
+
+    // moves the parser to the next start tag or end tag (skipping any text), returns the event
+    private int nextTag() throws XmlPullParserException, IOException {
+        int event = _parser.next();
+        while (event != XmlPullParser.START_TAG && event != XmlPullParser.END_TAG && event != XmlPullParser.END_DOCUMENT)
+            event = _parser.next();
+        return event;
+    }
+
+    // moves the parser to the next child of the element at the given depth, returns false if the end of that element has been reached instead
+    private boolean nextChild(int depth) throws XmlPullParserException, IOException {
+        int event = nextTag();
+        if (event == XmlPullParser.END_DOCUMENT)
+            throw new XmlPullParserException("unexpected end of document", _parser, null);
+        return event == XmlPullParser.START_TAG && _parser.getDepth() > depth;
+    }
+
+    // reads the text of the current element, stopping at the first tag (this is how XStream reads values)
+    private String readValue() throws XmlPullParserException, IOException {
+        String value = null;
+        StringBuilder buf = null;
+        int event = _parser.next();
+        while (event == XmlPullParser.TEXT) {
+            String text = _parser.getText();
+            if (text != null && !text.isEmpty()) {
+                if (value == null)
+                    value = text;
+                else {
+                    if (buf == null)
+                        buf = new StringBuilder(value);
+                    buf.append(text);
+                }
+            }
+            event = _parser.next();
+        }
+        if (buf != null)
+            return buf.toString();
+        return value == null ? "" : value;
+    }
+
+    // moves the parser to the end tag of the element at the given depth (the parser must be positioned within that element)
+    private void skipToEndTag(int depth) throws XmlPullParserException, IOException {
+        int event = _parser.getEventType();
+        while (event != XmlPullParser.END_TAG || _parser.getDepth() != depth) {
+            if (event == XmlPullParser.END_DOCUMENT)
+                throw new XmlPullParserException("unexpected end of document", _parser, null);
+            event = _parser.next();
+        }
+    }
+
+    private String getAttribute(String name) {
+        return _parser.getAttributeValue(null, name);
+    }
+
+    // same as the context method, but report the errors the way the patient converter does it
+    private String extractTag(String tag) {
+        try {
+            return _context.extractTag(tag);
+        }
+        catch (NaaccrIOException e) {
+            reportSyntaxError(e.getMessage());
+            return null;
+        }
+    }
+
+    private void reportSyntaxError(String message) {
+        ConversionException ex = new ConversionException(message);
+        ex.add("message", message);
+        throw ex;
+    }
+
+    // adds the line number and the path to the exception, the way XStream would do it
+    private ConversionException addErrorInformation(ConversionException ex) {
+        if (ex.get("line number") == null)
+            ex.add("line number", String.valueOf(_extensionLineNumber != -1 ? _extensionLineNumber : _parser.getLineNumber()));
+        if (ex.get("path") == null) {
+            StringBuilder path = new StringBuilder("/").append(_patientTag);
+            if (_patientChildTag != null) {
+                appendPathElement(path, _patientChildTag, _patientChildIdx);
+                if (_tumorChildTag != null)
+                    appendPathElement(path, _tumorChildTag, _tumorChildIdx);
+            }
+            ex.add("path", path.toString());
+        }
+        return ex;
+    }
+
+    private static void appendPathElement(StringBuilder path, String tag, int idx) {
+        path.append('/').append(tag);
+        if (idx > 1)
+            path.append('[').append(idx).append(']');
+    }
+
+    private static void escape(String value, StringBuilder buf, boolean attribute) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '&')
+                buf.append("&amp;");
+            else if (c == '<')
+                buf.append("&lt;");
+            else if (c == '>')
+                buf.append("&gt;");
+            else if (attribute && c == '"')
+                buf.append("&quot;");
+            else if (attribute && (c == '\n' || c == '\r' || c == '\t'))
+                buf.append("&#").append((int)c).append(';');
+            else
+                buf.append(c);
+        }
+    }
+}
@@ -4,6 +4,7 @@
 package com.imsweb.naaccrxml;
 
 import java.io.IOException;
+import java.io.StringWriter;
 import java.io.Writer;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
@@ -17,17 +18,22 @@ import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeSet;
 
+import org.apache.commons.io.output.StringBuilderWriter;
 import org.apache.commons.lang3.StringUtils;
 
 import com.thoughtworks.xstream.XStream;
 import com.thoughtworks.xstream.converters.ConversionException;
 import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+import com.thoughtworks.xstream.io.StreamException;
 import com.thoughtworks.xstream.io.xml.PrettyPrintWriter;
 
+import com.imsweb.naaccrxml.compression.SeekableGzipWriter;
 import com.imsweb.naaccrxml.entity.Item;
 import com.imsweb.naaccrxml.entity.NaaccrData;
 import com.imsweb.naaccrxml.entity.Patient;
+import com.imsweb.naaccrxml.entity.Tumor;
 import com.imsweb.naaccrxml.entity.dictionary.NaaccrDictionary;
+import com.imsweb.naaccrxml.runtime.NaaccrPatientConverter;
 import com.imsweb.naaccrxml.runtime.NaaccrStreamConfiguration;
 import com.imsweb.naaccrxml.runtime.NaaccrStreamContext;
 import com.imsweb.naaccrxml.runtime.RuntimeNaaccrDictionary;
@@ -40,12 +46,36 @@ import static com.imsweb.naaccrxml.NaaccrOptions.NEW_LINE_LF;
  */
 public class PatientXmlWriter implements PatientWriter {
 
+    // the indentation used for each level of the XML
+    private static final String _INDENT = "    ";
+
     // XStream object responsible for reading patient objects
     protected XStream _xstream;
 
     // the underlined writer
     protected HierarchicalStreamWriter _writer;
 
+    // the raw writer wrapped by the XStream writer; used to write patients that have already been serialized
+    protected Writer _rawWriter;
+
+    // whether pre-serialized patients have been written (in which case the XStream writer is not used anymore for the rest of the document)
+    protected boolean _hasWrittenFragments = false;
+
+    // whether the patients are written directly (without going through XStream); see writePatientDirectly()
+    protected boolean _writePatientsDirectly;
+
+    // the context of this writer
+    protected NaaccrStreamContext _context;
+
+    // the new line and indentation preceding the tags of each level (used when the patients are written directly)
+    protected String[] _linePrefixes;
+
+    // the buffer used to write the patients directly (reused for every patient)
+    protected StringBuilderWriter _patientBuffer = new StringBuilderWriter();
+
+    // the characters of the buffer, copied before being written to the raw writer
+    protected char[] _patientChars = new char[0];
+
     // cached value for new line character(s)
     protected String _newLine;
 
@@ -136,10 +166,16 @@ public class PatientXmlWriter implements PatientWriter {
             // need to expose xstream so the other methods can use it...
             _xstream = conf.getXstream();
 
+            // the patients can be written directly unless the library is customized to write them differently
+            _writePatientsDirectly = conf.getPatientConverter().getClass() == NaaccrPatientConverter.class;
+            _linePrefixes = new String[4];
+            for (int i = 0; i < _linePrefixes.length; i++)
+                _linePrefixes[i] = _newLine + StringUtils.repeat(_INDENT, i);
+
             // create the context
-            NaaccrStreamContext context = new NaaccrStreamContext();
-            context.setOptions(options);
-            context.setConfiguration(conf);
+            _context = new NaaccrStreamContext();
+            _context.setOptions(options);
+            _context.setConfiguration(conf);
 
             // get the base dictionary we need
             NaaccrDictionary baseDictionary = NaaccrXmlDictionaryUtils.getBaseDictionaryByUri(rootData.getBaseDictionaryUri());
@@ -152,12 +188,8 @@ public class PatientXmlWriter implements PatientWriter {
                         dictionaries.put(userDictionary.getDictionaryUri(), userDictionary);
 
             // create the writer
-            _writer = new PrettyPrintWriter(writer, new char[] {' ', ' ', ' ', ' '}) {
-                @Override
-                protected String getNewLine() {
-                    return _newLine;
-                }
-            };
+            _rawWriter = writer;
+            _writer = createXmlWriter(writer, 0);
 
             // would be better to use a "header writer", I think XStream has one actually; that would be better...
             try {
@@ -202,17 +234,20 @@ public class PatientXmlWriter implements PatientWriter {
             // add any user-defined namespaces
             conf.getRegisterNamespaces().forEach((key, value) -> _writer.addAttribute("xmlns:" + key, value));
 
-            // create or get the runtime dictionary
-            if (conf.getCachedDictionary() == null || !conf.getCachedDictionary().getId().equals(RuntimeNaaccrDictionary.computeId(rootData.getRecordType(), baseDictionary, dictionaries.values())))
-                conf.setCachedDictionary(new RuntimeNaaccrDictionary(rootData.getRecordType(), baseDictionary, dictionaries.values()));
+            // create or get the runtime dictionary (the configuration might be shared with other threads, so the cached dictionary is only read once)
+            RuntimeNaaccrDictionary runtimeDictionary = conf.getCachedDictionary();
+            if (runtimeDictionary == null || !runtimeDictionary.getId().equals(RuntimeNaaccrDictionary.computeId(rootData.getRecordType(), baseDictionary, dictionaries.values()))) {
+                runtimeDictionary = RuntimeNaaccrDictionary.getInstance(rootData.getRecordType(), baseDictionary, dictionaries.values());
+                conf.setCachedDictionary(runtimeDictionary);
+            }
 
             // now we are ready to create our reading context and make it available to the patient converter
-            context.setDictionary(conf.getCachedDictionary());
-            conf.getPatientConverter().setContext(context);
+            _context.setDictionary(runtimeDictionary);
 
             // write the root items
+            NaaccrPatientConverter converter = getPatientConverter();
             for (Item item : rootData.getItems())
-                conf.getPatientConverter().writeItem(item, _writer);
+                converter.writeItem(item, _writer);
 
             // write extensions
             if (!Boolean.TRUE.equals(options.getIgnoreExtensions()) && rootData.getExtensions() != null)
@@ -229,8 +264,155 @@ public class PatientXmlWriter implements PatientWriter {
 
     @Override
     public void writePatient(Patient patient) throws NaaccrIOException {
+        if (_writePatientsDirectly) {
+            StringBuilder buf = _patientBuffer.getBuilder();
+            buf.setLength(0);
+            writePatientDirectly(patient, _patientBuffer);
+            if (_patientChars.length < buf.length())
+                _patientChars = new char[Math.max(buf.length(), _patientChars.length * 2)];
+            buf.getChars(0, buf.length(), _patientChars, 0);
+            writePatientFragment(_patientChars, buf.length());
+            return;
+        }
+
+        if (_hasWrittenFragments) {
+            writePatientFragment(createPatientFragment(patient));
+            return;
+        }
+
+        try {
+            // the data of the context makes XStream use the patient converter of this stream
+            _xstream.marshal(patient, _writer, _context.getDataHolder());
+        }
+        catch (ConversionException ex) {
+            throw convertSyntaxException(ex);
+        }
+        catch (RuntimeException ex) {
+            throw new NaaccrIOException("unable to write XML", ex);
+        }
+    }
+
+    /**
+     * Serializes the given patient into an XML fragment, exactly as writePatient() would write it (including the new line and indentation preceding the patient).
+     * <br/><br/>
+     * This method doesn't write anything to the underlined writer nor does it change the state of this writer; it can be called from several threads at the
+     * same time, which allows the patients to be serialized in parallel and then written in order with writePatientFragment().
+     * @param patient patient to serialize, required
+     * @return the corresponding XML fragment
+     * @throws NaaccrIOException if the patient cannot be serialized
+     */
+    protected String createPatientFragment(Patient patient) throws NaaccrIOException {
+        if (_writePatientsDirectly) {
+            StringBuilderWriter buf = new StringBuilderWriter();
+            writePatientDirectly(patient, buf);
+            return buf.toString();
+        }
+
+        StringWriter buf = new StringWriter();
+        buf.write(_newLine);
+        buf.write(_INDENT);
+        HierarchicalStreamWriter fragmentWriter = createXmlWriter(buf, 1);
+        try {
+            // the data of the context makes XStream use the patient converter of this stream
+            _xstream.marshal(patient, fragmentWriter, _context.getDataHolder());
+            fragmentWriter.flush();
+        }
+        catch (ConversionException ex) {
+            throw convertSyntaxException(ex);
+        }
+        catch (RuntimeException ex) {
+            throw new NaaccrIOException("unable to write XML", ex);
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Writes a patient that was serialized with createPatientFragment().
+     * @param fragment XML fragment to write, required
+     * @throws NaaccrIOException if the fragment cannot be written
+     */
+    protected void writePatientFragment(String fragment) throws NaaccrIOException {
+        try {
+            startWritingFragments();
+            // seekable compressed files have their blocks aligned on the patients
+            if (_rawWriter instanceof SeekableGzipWriter)
+                ((SeekableGzipWriter)_rawWriter).startRecord();
+            _rawWriter.write(fragment);
+        }
+        catch (IOException | RuntimeException ex) {
+            throw new NaaccrIOException("unable to write XML", ex);
+        }
+    }
+
+    /**
+     * Writes a patient that was serialized with createPatientFragment().
+     * @param fragment characters of the XML fragment to write, required
+     * @param length number of characters to write
+     * @throws NaaccrIOException if the fragment cannot be written
+     */
+    protected void writePatientFragment(char[] fragment, int length) throws NaaccrIOException {
         try {
-            _xstream.marshal(patient, _writer);
+            startWritingFragments();
+            // seekable compressed files have their blocks aligned on the patients
+            if (_rawWriter instanceof SeekableGzipWriter)
+                ((SeekableGzipWriter)_rawWriter).startRecord();
+            _rawWriter.write(fragment, 0, length);
+        }
+        catch (IOException | RuntimeException ex) {
+            throw new NaaccrIOException("unable to write XML", ex);
+        }
+    }
+
+    private void startWritingFragments() {
+        // the first time, we need to close the root tag; setting an empty value is the only way to do that through XStream
+        if (!_hasWrittenFragments) {
+            _writer.setValue("");
+            _writer.flush();
+            _hasWrittenFragments = true;
+        }
+    }
+
+    /**
+     * Writes the given patient directly into the provided writer, without going through XStream; the result is identical to the fragment XStream would
+     * create (including the new line and indentation preceding the patient). The extensions are still written by XStream.
+     * <br/><br/>
+     * This method doesn't change the state of this writer; it can be called from several threads at the same time, as long as each thread uses its own buffer.
+     * @param patient patient to write, required
+     * @param buf buffer to write to, required
+     * @throws NaaccrIOException if the patient cannot be written
+     */
+    protected void writePatientDirectly(Patient patient, StringBuilderWriter buf) throws NaaccrIOException {
+        try {
+            NaaccrPatientConverter converter = getPatientConverter();
+            StringBuilder sb = buf.getBuilder();
+            boolean writeExtensions = !Boolean.TRUE.equals(_context.getOptions().getIgnoreExtensions());
+
+            // the start tag is written as non-empty; if nothing gets written inside it, it will be replaced by an empty tag
+            sb.append(_linePrefixes[1]).append('<').append(NaaccrXmlUtils.NAACCR_XML_TAG_PATIENT).append('>');
+            int patientContentStart = sb.length();
+
+            for (Item item : patient.getItems())
+                converter.writeItem(item, sb, _linePrefixes[2]);
+
+            if (writeExtensions && patient.getExtensions() != null)
+                for (Object extension : patient.getExtensions())
+                    writeExtensionDirectly(extension, buf, 2);
+
+            for (Tumor tumor : patient.getTumors()) {
+                sb.append(_linePrefixes[2]).append('<').append(NaaccrXmlUtils.NAACCR_XML_TAG_TUMOR).append('>');
+                int tumorContentStart = sb.length();
+
+                for (Item item : tumor.getItems())
+                    converter.writeItem(item, sb, _linePrefixes[3]);
+
+                if (writeExtensions && tumor.getExtensions() != null)
+                    for (Object extension : tumor.getExtensions())
+                        writeExtensionDirectly(extension, buf, 3);
+
+                closeTag(sb, NaaccrXmlUtils.NAACCR_XML_TAG_TUMOR, tumorContentStart, 2);
+            }
+
+            closeTag(sb, NaaccrXmlUtils.NAACCR_XML_TAG_PATIENT, patientContentStart, 1);
         }
         catch (ConversionException ex) {
             throw convertSyntaxException(ex);
@@ -240,8 +422,48 @@ public class PatientXmlWriter implements PatientWriter {
         }
     }
 
+    /**
+     * Returns the patient converter of this writer (see NaaccrStreamContext.getPatientConverter()).
+     * @return the patient converter to use, never null
+     */
+    protected NaaccrPatientConverter getPatientConverter() {
+        return _context.getPatientConverter();
+    }
+
+    // closes the tag whose content started at the given position; the tag becomes an empty tag if it has no content (that's what XStream does)
+    private void closeTag(StringBuilder sb, String tag, int contentStart, int depth) {
+        if (sb.length() == contentStart) {
+            sb.setLength(contentStart - 1);
+            sb.append("/>");
+        }
+        else
+            sb.append(_linePrefixes[depth]).append("</").append(tag).append('>');
+    }
+
+    // writes the given extension with XStream, using the indentation of the requested depth
+    private void writeExtensionDirectly(Object extension, StringBuilderWriter buf, int depth) {
+        buf.getBuilder().append(_linePrefixes[depth]);
+        HierarchicalStreamWriter extensionWriter = createXmlWriter(buf, depth);
+        _xstream.marshal(extension, extensionWriter);
+        extensionWriter.flush();
+    }
+
     @Override
     public void closeAndKeepAlive() {
+        if (_hasWrittenFragments) {
+            try {
+                if (!_hasBeenFinalized) {
+                    _rawWriter.write(_newLine + "</" + NaaccrXmlUtils.NAACCR_XML_TAG_ROOT + ">");
+                    _hasBeenFinalized = true;
+                }
+                _rawWriter.flush();
+            }
+            catch (IOException e) {
+                throw new StreamException(e);
+            }
+            return;
+        }
+
         if (!_hasBeenFinalized) {
             _writer.endNode();
             _hasBeenFinalized = true;
@@ -255,6 +477,25 @@ public class PatientXmlWriter implements PatientWriter {
         _writer.close();
     }
 
+    /**
+     * Creates the XStream writer responsible for writing the XML.
+     * @param writer raw writer to wrap
+     * @param initialDepth the initial depth of the writer (used to indent the lines)
+     * @return the XStream writer, never null
+     */
+    protected HierarchicalStreamWriter createXmlWriter(Writer writer, int initialDepth) {
+        return new PrettyPrintWriter(writer, _INDENT.toCharArray()) {
+            {
+                depth = initialDepth;
+            }
+
+            @Override
+            protected String getNewLine() {
+                return _newLine;
+            }
+        };
+    }
+
     /**
      * Returns the new line character(s) this writer uses.
      */
@@ -0,0 +1,324 @@
+/*
+ * Copyright (C) 2019 Information Management Services, Inc.
+ */
+package com.imsweb.naaccrxml;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * A writer that creates its output file in segments of patients, so a conversion that gets interrupted can be resumed from the last committed segment
+ * instead of starting over.
+ * <br/><br/>
+ * The segments are written in their own folder, with the compression of the output file (each segment is a complete compressed stream); a segment is
+ * committed (renamed to its final name) once it contains the requested number of patients. When the conversion is complete, the segments are
+ * concatenated into the output file; concatenated GZip, XZ, Zstandard and LZ4 streams are valid streams, so the output is a regular data file.
+ * <br/><br/>
+ * The trailer of the output (written after endOfPatients() is called) is never committed: it is only used by complete(), so a run that gets interrupted
+ * after its last segment has been committed is resumed without any patient to convert and writes the trailer again.
+ * <br/><br/>
+ * When resuming, the patients of the committed segments need to be skipped in the input (see getNumCommittedPatients()); and since the header is
+ * already in the first segment, everything written before endOfHeader() is called is discarded.
+ * <br/><br/>
+ * This class is not thread-safe; it is used by the writing thread of the checkpointed conversions of ParallelConverter.
+ */
+final class SegmentedWriter extends Writer {
+
+    /**
+     * Receives the progress of the segmented writer, typically to record it in a checkpoint; the methods are called from the writing thread.
+     */
+    interface Listener {
+
+        /**
+         * Called after a segment has been committed.
+         * @param numSegments total number of committed segments
+         * @param numPatients total number of patients in the committed segments
+         * @throws IOException if the progress can't be recorded
+         */
+        void segmentCommitted(int numSegments, long numPatients) throws IOException;
+
+        /**
+         * Called after the output file has been created, before the segments are deleted.
+         * @throws IOException if the progress can't be recorded
+         */
+        void outputCompleted() throws IOException;
+    }
+
+    // the prefix of the segment that is being written (it gets renamed when it's committed)
+    private static final String _TMP_PREFIX = "tmp-";
+
+    // the final output file
+    private File _outputFile;
+
+    // the folder containing the segments
+    private File _segmentsDir;
+
+    // the number of patients in each segment (the last one can contain less)
+    private int _patientsPerSegment;
+
+    // the optional listener
+    private Listener _listener;
+
+    // the number of segments committed so far (including the ones from a previous run)
+    private int _numCommittedSegments;
+
+    // the number of patients in the committed segments
+    private long _numCommittedPatients;
+
+    // the number of patients written in the current segment
+    private int _numPatientsInSegment;
+
+    // the writer of the current segment, created when something needs to be written in it
+    private Writer _segmentWriter;
+
+    // whether the patients have all been written (what is written after that is the trailer)
+    private boolean _writingTrailer;
+
+    // whether the data is discarded (the header of a resumed conversion)
+    private boolean _discarding;
+
+    // whether the output has been completed or the writer closed
+    private boolean _closed;
+
+    /**
+     * Constructor.
+     * @param outputFile output file, required
+     * @param segmentsDir the folder where the segments should be written (created if needed), required
+     * @param numCommittedSegments number of segments committed by a previous run (0 to start a new conversion)
+     * @param numCommittedPatients number of patients in the segments committed by a previous run
+     * @param patientsPerSegment number of patients in each segment, must be positive
+     * @param listener optional listener
+     * @throws NaaccrIOException if the segments folder can't be initialized
+     */
+    SegmentedWriter(File outputFile, File segmentsDir, int numCommittedSegments, long numCommittedPatients, int patientsPerSegment, Listener listener) throws NaaccrIOException {
+        if (patientsPerSegment < 1)
+            throw new RuntimeException("Number of patients per segment must be positive");
+        if (!hasSegments(outputFile, segmentsDir, numCommittedSegments))
+            throw new NaaccrIOException("unable to find the committed segments in " + segmentsDir.getPath());
+
+        _outputFile = outputFile;
+        _segmentsDir = segmentsDir;
+        _numCommittedSegments = numCommittedSegments;
+        _numCommittedPatients = numCommittedPatients;
+        _patientsPerSegment = patientsPerSegment;
+        _listener = listener;
+        _discarding = numCommittedSegments > 0;
+
+        if (!segmentsDir.exists() && !segmentsDir.mkdirs())
+            throw new NaaccrIOException("unable to create " + segmentsDir.getPath());
+
+        // anything that is not a committed segment is a left-over of an interrupted run
+        File[] files = segmentsDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                boolean committed = false;
+                for (int i = 0; i < numCommittedSegments && !committed; i++)
+                    committed = file.equals(getSegmentFile(outputFile, segmentsDir, i));
+                if (!committed && !file.delete())
+                    throw new NaaccrIOException("unable to delete " + file.getPath());
+            }
+        }
+    }
+
+    /**
+     * Returns true if the given segments folder contains the requested number of committed segments for the given output file.
+     * @param outputFile output file, required
+     * @param segmentsDir segments folder, required
+     * @param numSegments number of committed segments
+     * @return true if all the segments exist
+     */
+    static boolean hasSegments(File outputFile, File segmentsDir, int numSegments) {
+        for (int i = 0; i < numSegments; i++)
+            if (!getSegmentFile(outputFile, segmentsDir, i).exists())
+                return false;
+        return true;
+    }
+
+    // the segments use the name of the output file as a suffix, so they get the same compression
+    private static File getSegmentFile(File outputFile, File segmentsDir, int index) {
+        return new File(segmentsDir, String.format("%06d-%s", index, outputFile.getName()));
+    }
+
+    /**
+     * Returns the number of committed segments (including the ones committed by a previous run).
+     */
+    int getNumCommittedSegments() {
+        return _numCommittedSegments;
+    }
+
+    /**
+     * Returns the number of patients in the committed segments (including the ones committed by a previous run).
+     */
+    long getNumCommittedPatients() {
+        return _numCommittedPatients;
+    }
+
+    /**
+     * Indicates that the header of the output (if any) has been written; when resuming a conversion, everything written before this call is discarded.
+     */
+    void endOfHeader() {
+        _discarding = false;
+    }
+
+    /**
+     * Indicates that a patient has been written; the current segment is committed if it contains the requested number of patients.
+     * @param buffer optional buffer between the patient writer and this writer, flushed before the segment is committed
+     * @throws NaaccrIOException if the segment can't be committed
+     */
+    void patientWritten(Flushable buffer) throws NaaccrIOException {
+        _numPatientsInSegment++;
+        if (_numPatientsInSegment >= _patientsPerSegment) {
+            try {
+                if (buffer != null)
+                    buffer.flush();
+            }
+            catch (IOException e) {
+                throw new NaaccrIOException(e.getMessage());
+            }
+            commitSegment();
+        }
+    }
+
+    /**
+     * Indicates that all the patients have been written; the current segment is committed and everything written after this call is the trailer
+     * of the output, which is only added to the output file by complete().
+     * @param buffer optional buffer between the patient writer and this writer, flushed before the segment is committed
+     * @throws NaaccrIOException if the segment can't be committed
+     */
+    void endOfPatients(Flushable buffer) throws NaaccrIOException {
+        if (_writingTrailer)
+            return;
+        try {
+            if (buffer != null)
+                buffer.flush();
+        }
+        catch (IOException e) {
+            throw new NaaccrIOException(e.getMessage());
+        }
+        commitSegment();
+        _writingTrailer = true;
+    }
+
+    /**
+     * Commits the last segment (if endOfPatients() wasn't called) and concatenates all the segments and the trailer into the output file; the segments
+     * folder is then deleted.
+     * <br/><br/>
+     * The caller is responsible for flushing the data written to this writer before calling this method.
+     * @throws NaaccrIOException if the output file can't be created
+     */
+    void complete() throws NaaccrIOException {
+        if (_closed)
+            throw new NaaccrIOException("writer has been closed");
+        endOfPatients(null);
+
+        File tmpFile = new File(_segmentsDir, _TMP_PREFIX + _outputFile.getName());
+        try {
+            if (_segmentWriter != null) {
+                _segmentWriter.close();
+                _segmentWriter = null;
+            }
+            File trailerFile = getTrailerFile();
+            try (OutputStream os = new FileOutputStream(tmpFile)) {
+                for (int i = 0; i < _numCommittedSegments; i++)
+                    Files.copy(getSegmentFile(_outputFile, _segmentsDir, i).toPath(), os);
+                if (trailerFile.exists())
+                    Files.copy(trailerFile.toPath(), os);
+            }
+            move(tmpFile, _outputFile);
+            _closed = true;
+            if (_listener != null)
+                _listener.outputCompleted();
+            FileUtils.deleteDirectory(_segmentsDir);
+        }
+        catch (IOException e) {
+            throw new NaaccrIOException(e.getMessage());
+        }
+    }
+
+    private void commitSegment() throws NaaccrIOException {
+        if (_segmentWriter == null && _numPatientsInSegment == 0)
+            return;
+
+        try {
+            // a segment always exists, even if nothing was written in it
+            if (_segmentWriter == null)
+                _segmentWriter = NaaccrXmlUtils.createWriter(getCurrentTmpFile());
+            _segmentWriter.close();
+            _segmentWriter = null;
+            move(getCurrentTmpFile(), getSegmentFile(_outputFile, _segmentsDir, _numCommittedSegments));
+
+            _numCommittedSegments++;
+            _numCommittedPatients += _numPatientsInSegment;
+            _numPatientsInSegment = 0;
+            if (_listener != null)
+                _listener.segmentCommitted(_numCommittedSegments, _numCommittedPatients);
+        }
+        catch (IOException e) {
+            throw new NaaccrIOException(e.getMessage());
+        }
+    }
+
+    private File getCurrentTmpFile() {
+        return new File(_segmentsDir, _TMP_PREFIX + getSegmentFile(_outputFile, _segmentsDir, _numCommittedSegments).getName());
+    }
+
+    private File getTrailerFile() {
+        return new File(_segmentsDir, _TMP_PREFIX + "trailer-" + _outputFile.getName());
+    }
+
+    /**
+     * Moves the given file, replacing the target; the move is atomic if the file system supports it.
+     * @param source file to move
+     * @param target target file
+     * @throws IOException if the file can't be moved
+     */
+    static void move(File source, File target) throws IOException {
+        try {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (AtomicMoveNotSupportedException e) {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        // the XML writers flush their (empty) buffer when they are closed, which happens after the output has been completed
+        if (len == 0)
+            return;
+        if (_closed)
+            throw new IOException("writer has been closed");
+        if (_discarding)
+            return;
+        if (_segmentWriter == null)
+            _segmentWriter = NaaccrXmlUtils.createWriter(_writingTrailer ? getTrailerFile() : getCurrentTmpFile());
+        _segmentWriter.write(cbuf, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (_segmentWriter != null)
+            _segmentWriter.flush();
+    }
+
+    /**
+     * Closes the current segment without committing it (it will be ignored if the conversion is resumed); the output file is only created by complete().
+     */
+    @Override
+    public void close() throws IOException {
+        _closed = true;
+        if (_segmentWriter != null) {
+            _segmentWriter.close();
+            _segmentWriter = null;
+        }
+    }
+}
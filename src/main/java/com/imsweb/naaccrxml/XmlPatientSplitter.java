@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2019 Information Management Services, Inc.
+ */
+package com.imsweb.naaccrxml;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import static com.imsweb.naaccrxml.NaaccrXmlUtils.NAACCR_XML_TAG_PATIENT;
+
+/**
+ * This class splits an NAACCR XML data file into the raw XML of its patients, without parsing the patients themselves.
+ * <br/><br/>
+ * The scanner only understands enough of the XML syntax to find the boundaries of the elements (tags, comments, CDATA sections, processing instructions
+ * and DOCTYPE declarations); anything located under the root tag but before the first patient (root items, extensions) is skipped since it is expected
+ * to be handled by a regular PatientXmlReader. The returned fragments are not validated; a malformed patient is returned as-is so the XML parser used
+ * to read it can report the error.
+ * <br/><br/>
+ * The splitter also keeps track of the byte offsets of the patients in the underlined data, assuming it was encoded in UTF-8 (which is always the case
+ * for the readers created by NaaccrXmlUtils.createReader()); those offsets are used to index the files (see PatientXmlIndex).
+ */
+final class XmlPatientSplitter {
+
+    private static final int _BUFFER_SIZE = 64 * 1024;
+
+    // underlined reader
+    private final Reader _reader;
+
+    // buffer for the reader
+    private final char[] _buffer = new char[_BUFFER_SIZE];
+
+    private int _position, _limit;
+
+    // current line number (1-based) and current depth in the XML tree (0 is outside the root tag)
+    private int _lineNumber = 1, _depth;
+
+    // whether at least one patient has been found
+    private boolean _patientFound;
+
+    // whether the end of the root tag (or of the stream) has been reached
+    private boolean _done;
+
+    // the patient being captured (null when no patient is being captured)
+    private StringBuilder _capture;
+
+    // the line number of the last returned patient
+    private int _patientLineNumber;
+
+    // the number of (UTF-8) bytes read so far, and the offsets of the last returned patient (start of the opening tag, end of the closing tag)
+    private long _byteOffset, _patientStartOffset, _patientEndOffset;
+
+    // the raw name of the root tag (including its namespace prefix, if any)
+    private String _rootTag;
+
+    /**
+     * Constructor.
+     * @param reader required underlined reader, positioned at the beginning of the XML data
+     */
+    XmlPatientSplitter(Reader reader) {
+        _reader = reader;
+    }
+
+    /**
+     * Returns the raw XML of the next patient (from the start of the opening tag to the end of the closing one).
+     * @return the next patient, null if there are no more patients
+     * @throws NaaccrIOException if the stream can't be read, or if an unexpected tag is found after the patients
+     */
+    String nextPatient() throws NaaccrIOException {
+        if (_done)
+            return null;
+
+        int c = read();
+        while (c != -1) {
+            if (c == '<') {
+                int tagLineNumber = _lineNumber;
+                long tagOffset = _byteOffset - 1;
+                c = read();
+                if (c == '?')
+                    skipUntil("?>");
+                else if (c == '!')
+                    skipDeclaration();
+                else if (c == '/') {
+                    skipUntil(">");
+                    _depth--;
+                    if (_capture != null && _depth == 1)
+                        return endCapture();
+                    if (_depth == 0) {
+                        _done = true;
+                        return null;
+                    }
+                }
+                else if (c != -1) {
+                    StringBuilder name = new StringBuilder().append((char)c);
+                    c = read();
+                    while (c != -1 && c != '>' && c != '/' && !Character.isWhitespace(c)) {
+                        name.append((char)c);
+                        c = read();
+                    }
+                    if (_depth == 0 && _rootTag == null)
+                        _rootTag = name.toString();
+                    if (_capture == null && _depth == 1) {
+                        String rawTag = name.toString();
+                        int idx = rawTag.indexOf(':');
+                        String tag = idx == -1 ? rawTag : rawTag.substring(idx + 1);
+                        if (NAACCR_XML_TAG_PATIENT.equals(tag)) {
+                            _patientFound = true;
+                            _patientLineNumber = tagLineNumber;
+                            _patientStartOffset = tagOffset;
+                            _capture = new StringBuilder(4096).append('<').append(rawTag);
+                            if (c != -1)
+                                _capture.append((char)c);
+                        }
+                        else if (_patientFound)
+                            throw new NaaccrIOException("Unexpected tag: " + rawTag, tagLineNumber);
+                    }
+                    boolean selfClosing = skipStartTag(c);
+                    if (!selfClosing)
+                        _depth++;
+                    else if (_capture != null && _depth == 1)
+                        return endCapture();
+                }
+            }
+            c = read();
+        }
+
+        // we reached the end of the stream without closing the root; return whatever was captured and let the parser report the error
+        _done = true;
+        return _capture == null ? null : endCapture();
+    }
+
+    /**
+     * Returns the line number of the opening tag of the last patient returned by nextPatient().
+     * @return 1-based line number
+     */
+    int getPatientLineNumber() {
+        return _patientLineNumber;
+    }
+
+    /**
+     * Returns the byte offset of the opening tag of the last patient returned by nextPatient().
+     * @return 0-based byte offset
+     */
+    long getPatientStartOffset() {
+        return _patientStartOffset;
+    }
+
+    /**
+     * Returns the byte offset right after the closing tag of the last patient returned by nextPatient().
+     * @return 0-based byte offset
+     */
+    long getPatientEndOffset() {
+        return _patientEndOffset;
+    }
+
+    /**
+     * Returns the raw name of the root tag (including its namespace prefix, if any).
+     * @return the raw name of the root tag, null if it hasn't been read yet
+     */
+    String getRootTag() {
+        return _rootTag;
+    }
+
+    /**
+     * Closes the underlined reader.
+     */
+    void close() throws NaaccrIOException {
+        try {
+            _reader.close();
+        }
+        catch (IOException e) {
+            throw new NaaccrIOException(e.getMessage());
+        }
+    }
+
+    // skips the rest of a start tag, taking quoted attribute values into account; returns true if the tag is self-closing
+    private boolean skipStartTag(int c) throws NaaccrIOException {
+        int previous = -1;
+        while (c != -1 && c != '>') {
+            if (c == '"' || c == '\'') {
+                int quote = c;
+                c = read();
+                while (c != -1 && c != quote)
+                    c = read();
+            }
+            previous = c;
+            c = read();
+        }
+        return previous == '/';
+    }
+
+    // skips a comment, a CDATA section or a DOCTYPE declaration (the "<!" has already been read)
+    private void skipDeclaration() throws NaaccrIOException {
+        int c = read();
+        if (c == '-') {
+            read();
+            skipUntil("-->");
+        }
+        else if (c == '[')
+            skipUntil("]]>");
+        else {
+            // DOCTYPE can contain an internal subset between brackets, which can itself contain '>' characters
+            int brackets = 0;
+            while (c != -1 && (c != '>' || brackets > 0)) {
+                if (c == '[')
+                    brackets++;
+                else if (c == ']')
+                    brackets--;
+                c = read();
+            }
+        }
+    }
+
+    // skips the characters until the given terminator has been read; the terminators are made of a repeated character followed by a different one ("?>", "-->", "]]>")
+    private void skipUntil(String terminator) throws NaaccrIOException {
+        int matched = 0, length = terminator.length();
+        while (matched < length) {
+            int c = read();
+            if (c == -1)
+                return;
+            if (c == terminator.charAt(matched))
+                matched++;
+            else if (c != terminator.charAt(0))
+                matched = 0;
+        }
+    }
+
+    private String endCapture() {
+        _patientEndOffset = _byteOffset;
+        String result = _capture.toString();
+        _capture = null;
+        return result;
+    }
+
+    // reads the next character, appending it to the current patient if one is being captured
+    private int read() throws NaaccrIOException {
+        if (_position == _limit) {
+            try {
+                _limit = _reader.read(_buffer, 0, _buffer.length);
+            }
+            catch (IOException e) {
+                throw new NaaccrIOException(e.getMessage());
+            }
+            _position = 0;
+            if (_limit <= 0) {
+                _limit = 0;
+                return -1;
+            }
+        }
+        char c = _buffer[_position++];
+        if (c == '\n')
+            _lineNumber++;
+        // the surrogates come by pairs and use 4 bytes together
+        _byteOffset += c < 0x80 ? 1 : c < 0x800 || Character.isSurrogate(c) ? 2 : 3;
+        if (_capture != null)
+            _capture.append(c);
+        return c;
+    }
+}
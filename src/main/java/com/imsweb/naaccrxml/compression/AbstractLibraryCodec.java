@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2019 Information Management Services, Inc.
+ */
+package com.imsweb.naaccrxml.compression;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Encapsulates the logic about the codecs relying on a third-party library; the library is an optional dependency of this project (it's only used at
+ * compile time), it needs to be added to the classpath by the applications that want to use the compression.
+ * <br/><br/>
+ * The sub-classes should only reference the classes of the library from a nested class, so the codec itself can be loaded when the library is missing.
+ */
+public abstract class AbstractLibraryCodec implements CompressionCodec {
+
+    // the name of the compression
+    private final String _name;
+
+    // the file extensions
+    private final List<String> _extensions;
+
+    // the magic bytes of the compression
+    private final byte[] _magicBytes;
+
+    // the name of the library, used in the error messages
+    private final String _libraryName;
+
+    // the name of a class of the library, used to check whether the library is available
+    private final String _libraryClassName;
+
+    // whether the library is available (computed only once)
+    private volatile Boolean _available;
+
+    /**
+     * Constructor.
+     * @param name name of the compression
+     * @param extensions file extensions
+     * @param magicBytes magic bytes
+     * @param libraryName name (Maven coordinates) of the library
+     * @param libraryClassName name of a class of the library
+     */
+    protected AbstractLibraryCodec(String name, String[] extensions, byte[] magicBytes, String libraryName, String libraryClassName) {
+        _name = name;
+        _extensions = Collections.unmodifiableList(Arrays.asList(extensions));
+        _magicBytes = magicBytes;
+        _libraryName = libraryName;
+        _libraryClassName = libraryClassName;
+    }
+
+    @Override
+    public String getName() {
+        return _name;
+    }
+
+    @Override
+    public List<String> getExtensions() {
+        return _extensions;
+    }
+
+    @Override
+    public boolean matchesHeader(byte[] header, int length) {
+        if (length < _magicBytes.length)
+            return false;
+        for (int i = 0; i < _magicBytes.length; i++)
+            if (header[i] != _magicBytes[i])
+                return false;
+        return true;
+    }
+
+    @Override
+    public boolean isAvailable() {
+        Boolean available = _available;
+        if (available == null) {
+            try {
+                Class.forName(_libraryClassName, false, getClass().getClassLoader());
+                available = Boolean.TRUE;
+            }
+            catch (ClassNotFoundException | LinkageError e) {
+                available = Boolean.FALSE;
+            }
+            _available = available;
+        }
+        return available;
+    }
+
+    /**
+     * Makes sure the library is available; must be called before accessing any class of the library.
+     * @throws IOException if the library is not available
+     */
+    protected void checkAvailable() throws IOException {
+        if (!isAvailable())
+            throw new IOException("the " + _name + " compression requires the " + _libraryName + " library");
+    }
+
+    /**
+     * Wraps an error thrown by the library (for example when an incompatible version is used) into an IOException.
+     * @param e the error
+     * @return the corresponding IOException
+     */
+    protected IOException convertLibraryError(LinkageError e) {
+        return new IOException("unable to create " + _name + " stream; make sure a supported version of the " + _libraryName + " library is used", e);
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2019 Information Management Services, Inc.
+ */
+package com.imsweb.naaccrxml.compression;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * A compression format that can be used to read and write the data files (see NaaccrXmlUtils.createReader() and NaaccrXmlUtils.createWriter()).
+ * <br/><br/>
+ * The codecs are registered in CompressionUtils; additional codecs can be provided through the standard Java ServiceLoader mechanism
+ * (META-INF/services/com.imsweb.naaccrxml.compression.CompressionCodec) or registered programmatically.
+ */
+public interface CompressionCodec {
+
+    /**
+     * Returns the name of the compression (for example "gzip").
+     * @return the name of the compression, never null
+     */
+    String getName();
+
+    /**
+     * Returns the file extensions (including the leading dot, lower case) used for this compression; the first one is used when creating new files.
+     * @return the file extensions, never null or empty
+     */
+    List<String> getExtensions();
+
+    /**
+     * Returns true if the given bytes (the beginning of a file) correspond to the "magic bytes" of this compression.
+     * @param header the first bytes of the file
+     * @param length the number of bytes available in the header (might be smaller than the length of the header if the file is very small)
+     * @return true if the file uses this compression
+     */
+    boolean matchesHeader(byte[] header, int length);
+
+    /**
+     * Returns true if this codec can be used; some codecs depend on a library that needs to be added to the classpath.
+     * @return true if this codec can be used
+     */
+    boolean isAvailable();
+
+    /**
+     * Returns a stream decompressing the given stream.
+     * @param is compressed stream (it's already buffered)
+     * @param bufferSize the size of the buffer to use for the decompression
+     * @return a decompressed stream
+     * @throws IOException if the stream can't be created
+     */
+    InputStream createInputStream(InputStream is, int bufferSize) throws IOException;
+
+    /**
+     * Returns a stream compressing the data into the given stream.
+     * @param os the stream to write the compressed data to (it's already buffered)
+     * @param bufferSize the size of the buffer to use for the compression
+     * @param level the compression level, CompressionUtils.DEFAULT_LEVEL to use the default level of the compression
+     * @return a compressing stream
+     * @throws IOException if the stream can't be created
+     */
+    OutputStream createOutputStream(OutputStream os, int bufferSize, int level) throws IOException;
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2019 Information Management Services, Inc.
+ */
+package com.imsweb.naaccrxml.compression;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * This utility class provides the compression codecs used to read and write the data files.
+ * <br/><br/>
+ * The following codecs are always registered: gzip (".gz"), xz (".xz"), zstd (".zst") and lz4 (".lz4"); only gzip is supported out of the box, the other ones
+ * require an extra library to be added to the classpath (see the corresponding codec). Additional codecs are loaded through the ServiceLoader mechanism.
+ * <br/><br/>
+ * When reading a file, the codec is determined by the first bytes of the file (the "magic bytes"), and then by the extension of the file; when writing a file,
+ * it is determined by the extension only. Files that don't correspond to any codec are not compressed.
+ */
+public final class CompressionUtils {
+
+    // the default size of the buffers (the JDK streams use very small buffers by default)
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    // indicates that the default level of the compression should be used
+    public static final int DEFAULT_LEVEL = -1;
+
+    // the maximum number of bytes used to recognize a compression
+    private static final int _MAX_HEADER_LENGTH = 16;
+
+    // the registered codecs
+    private static final List<CompressionCodec> _CODECS = new CopyOnWriteArrayList<>();
+
+    static {
+        _CODECS.add(new GzipCodec());
+        _CODECS.add(new XzCodec());
+        _CODECS.add(new ZstdCodec());
+        _CODECS.add(new Lz4Codec());
+        try {
+            for (CompressionCodec codec : ServiceLoader.load(CompressionCodec.class, CompressionUtils.class.getClassLoader()))
+                _CODECS.add(0, codec);
+        }
+        catch (ServiceConfigurationError e) {
+            // ignore the codecs that can't be loaded
+        }
+    }
+
+    private CompressionUtils() {
+        // utility class
+    }
+
+    /**
+     * Returns the registered codecs (the first ones take precedence).
+     * @return the registered codecs, never null
+     */
+    public static List<CompressionCodec> getCodecs() {
+        return Collections.unmodifiableList(new ArrayList<>(_CODECS));
+    }
+
+    /**
+     * Registers a new codec; it will take precedence over the already registered ones (so this can also be used to replace a default codec).
+     * @param codec codec to register, required
+     */
+    public static void registerCodec(CompressionCodec codec) {
+        if (codec == null)
+            throw new RuntimeException("Codec is required");
+        _CODECS.add(0, codec);
+    }
+
+    /**
+     * Returns the codec corresponding to the extension of the given file name.
+     * @param filename file name
+     * @return the corresponding codec, null if the file name doesn't correspond to any codec
+     */
+    public static CompressionCodec getCodecForFilename(String filename) {
+        if (filename == null)
+            return null;
+        String lowerCaseName = filename.toLowerCase(Locale.US);
+        for (CompressionCodec codec : _CODECS)
+            for (String extension : codec.getExtensions())
+                if (lowerCaseName.endsWith(extension))
+                    return codec;
+        return null;
+    }
+
+    /**
+     * Returns the codec corresponding to the given first bytes of a file.
+     * @param header the first bytes of the file
+     * @param length the number of available bytes
+     * @return the corresponding codec, null if the bytes don't correspond to any codec
+     */
+    public static CompressionCodec getCodecForHeader(byte[] header, int length) {
+        for (CompressionCodec codec : _CODECS)
+            if (codec.matchesHeader(header, length))
+                return codec;
+        return null;
+    }
+
+    /**
+     * Returns the codec corresponding to the first bytes of the given file.
+     * @param file file to inspect, required
+     * @return the corresponding codec, null if the file doesn't start with the magic bytes of a known codec
+     * @throws IOException if the file can't be read
+     */
+    public static CompressionCodec getCodecForContent(File file) throws IOException {
+        try (InputStream is = new BufferedInputStream(new FileInputStream(file), _MAX_HEADER_LENGTH)) {
+            return getCodecForHeader(is);
+        }
+    }
+
+    /**
+     * Returns a (decompressed) input stream for the given file.
+     * @param file file to read, required
+     * @param bufferSize the size of the buffers to use
+     * @return an input stream, never null
+     * @throws IOException if the stream can't be created (including when the file is compressed with an unavailable codec)
+     */
+    public static InputStream createInputStream(File file, int bufferSize) throws IOException {
+        InputStream is = new BufferedInputStream(new FileInputStream(file), bufferSize);
+        try {
+            CompressionCodec codec = getCodecForHeader(is);
+            if (codec == null)
+                codec = getCodecForFilename(file.getName());
+            return codec == null ? is : codec.createInputStream(is, bufferSize);
+        }
+        catch (IOException | RuntimeException e) {
+            is.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns an output stream for the given file, compressing the data according to the file extension.
+     * @param file file to write, required
+     * @param bufferSize the size of the buffers to use
+     * @param level the compression level, DEFAULT_LEVEL to use the default level of the compression
+     * @return an output stream, never null
+     * @throws IOException if the stream can't be created (including when the extension corresponds to an unavailable codec)
+     */
+    public static OutputStream createOutputStream(File file, int bufferSize, int level) throws IOException {
+        CompressionCodec codec = getCodecForFilename(file.getName());
+        if (codec != null && !codec.isAvailable())
+            throw new IOException("the " + codec.getName() + " compression is not available; the corresponding library needs to be added to the classpath");
+
+        OutputStream os = new BufferedOutputStream(new FileOutputStream(file), bufferSize);
+        try {
+            return codec == null ? os : codec.createOutputStream(os, bufferSize, level);
+        }
+        catch (IOException | RuntimeException e) {
+            os.close();
+            throw e;
+        }
+    }
+
+    // peeks at the first bytes of the (buffered) stream and returns the corresponding codec, if any
+    private static CompressionCodec getCodecForHeader(InputStream is) throws IOException {
+        byte[] header = new byte[_MAX_HEADER_LENGTH];
+        is.mark(_MAX_HEADER_LENGTH);
+        int length = 0;
+        while (length < header.length) {
+            int n = is.read(header, length, header.length - length);
+            if (n == -1)
+                break;
+            length += n;
+        }
+        is.reset();
+        return getCodecForHeader(header, length);
+    }
+}
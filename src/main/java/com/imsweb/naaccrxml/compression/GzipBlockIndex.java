@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2019 Information Management Services, Inc.
+ */
+package com.imsweb.naaccrxml.compression;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The list of the GZip members (blocks) of a file written by ParallelGzipOutputStream, with their compressed and uncompressed offsets.
+ * <br/><br/>
+ * The index is built from the headers of the members (which record the compressed size of each member) and their trailers (which record their
+ * uncompressed size); nothing needs to be decompressed. Once the index is built, the data can be read from any uncompressed offset by decompressing
+ * only the block containing that offset (and the following ones, if more data is read).
+ */
+public final class GzipBlockIndex {
+
+    // for each block, the offset of its member in the file and the offset of its data in the uncompressed data
+    private final long[] _compressedOffsets, _uncompressedOffsets;
+
+    /**
+     * Constructor.
+     * @param compressedOffsets the offset of each member in the file
+     * @param uncompressedOffsets the offset of the data of each member in the uncompressed data
+     */
+    public GzipBlockIndex(long[] compressedOffsets, long[] uncompressedOffsets) {
+        if (compressedOffsets.length != uncompressedOffsets.length)
+            throw new RuntimeException("The offsets must have the same length");
+        _compressedOffsets = compressedOffsets.clone();
+        _uncompressedOffsets = uncompressedOffsets.clone();
+    }
+
+    /**
+     * Builds the index of the given file.
+     * @param file file written by ParallelGzipOutputStream, required
+     * @return the index, never null
+     * @throws IOException if the file can't be read, or if it's not a seekable GZip file (a file that wasn't written by ParallelGzipOutputStream)
+     */
+    public static GzipBlockIndex build(File file) throws IOException {
+        long[] compressedOffsets = new long[1024], uncompressedOffsets = new long[1024];
+        int count = 0;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            long length = raf.length(), compressedOffset = 0, uncompressedOffset = 0;
+            byte[] header = new byte[ParallelGzipOutputStream.MEMBER_SIZE_OFFSET + 4];
+            byte[] trailer = new byte[4];
+            while (compressedOffset < length) {
+                raf.seek(compressedOffset);
+                raf.readFully(header);
+                long memberSize = getMemberSize(header);
+                if (memberSize == -1 || compressedOffset + memberSize > length)
+                    throw new IOException("the file is not a seekable GZip file: " + file.getName());
+                raf.seek(compressedOffset + memberSize - 4);
+                raf.readFully(trailer);
+
+                if (count == compressedOffsets.length) {
+                    compressedOffsets = Arrays.copyOf(compressedOffsets, count * 2);
+                    uncompressedOffsets = Arrays.copyOf(uncompressedOffsets, count * 2);
+                }
+                compressedOffsets[count] = compressedOffset;
+                uncompressedOffsets[count] = uncompressedOffset;
+                count++;
+
+                compressedOffset += memberSize;
+                uncompressedOffset += readInt(trailer, 0);
+            }
+        }
+        catch (EOFException e) {
+            throw new IOException("the file is not a seekable GZip file: " + file.getName());
+        }
+        return new GzipBlockIndex(Arrays.copyOf(compressedOffsets, count), Arrays.copyOf(uncompressedOffsets, count));
+    }
+
+    /**
+     * Returns true if the given file starts with a member written by ParallelGzipOutputStream (in which case it can be indexed).
+     * @param file file to check, required
+     * @return true if the file is a seekable GZip file
+     * @throws IOException if the file can't be read
+     */
+    public static boolean isSeekable(File file) throws IOException {
+        byte[] header = new byte[ParallelGzipOutputStream.MEMBER_SIZE_OFFSET + 4];
+        try (InputStream is = new FileInputStream(file)) {
+            int length = 0;
+            while (length < header.length) {
+                int n = is.read(header, length, header.length - length);
+                if (n == -1)
+                    return false;
+                length += n;
+            }
+        }
+        return getMemberSize(header) != -1;
+    }
+
+    public int getBlockCount() {
+        return _compressedOffsets.length;
+    }
+
+    public long getCompressedOffset(int blockIdx) {
+        return _compressedOffsets[blockIdx];
+    }
+
+    public long getUncompressedOffset(int blockIdx) {
+        return _uncompressedOffsets[blockIdx];
+    }
+
+    /**
+     * Returns the index of the block containing the given uncompressed offset.
+     * @param uncompressedOffset offset in the uncompressed data
+     * @return the index of the block
+     */
+    public int getBlockIndex(long uncompressedOffset) {
+        if (uncompressedOffset < 0 || _uncompressedOffsets.length == 0)
+            throw new IndexOutOfBoundsException("Invalid offset: " + uncompressedOffset);
+        int idx = Arrays.binarySearch(_uncompressedOffsets, uncompressedOffset);
+        if (idx < 0)
+            idx = -idx - 2;
+        // empty blocks share their offset with the next block, the data is always in the last one
+        while (idx + 1 < _uncompressedOffsets.length && _uncompressedOffsets[idx + 1] == uncompressedOffset)
+            idx++;
+        return idx;
+    }
+
+    /**
+     * Returns a stream returning the uncompressed data of the given file, starting at the given (uncompressed) offset.
+     * @param file the indexed file, required
+     * @param uncompressedOffset offset in the uncompressed data
+     * @param bufferSize the size of the buffers to use
+     * @return a stream, never null
+     * @throws IOException if the stream can't be created
+     */
+    public InputStream createInputStream(File file, long uncompressedOffset, int bufferSize) throws IOException {
+        int blockIdx = getBlockIndex(uncompressedOffset);
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            fis.getChannel().position(_compressedOffsets[blockIdx]);
+            InputStream is = new GZIPInputStream(new BufferedInputStream(fis, bufferSize), bufferSize);
+            long toSkip = uncompressedOffset - _uncompressedOffsets[blockIdx];
+            while (toSkip > 0) {
+                long skipped = is.skip(toSkip);
+                if (skipped <= 0)
+                    throw new EOFException("unable to reach offset " + uncompressedOffset);
+                toSkip -= skipped;
+            }
+            return is;
+        }
+        catch (IOException | RuntimeException e) {
+            fis.close();
+            throw e;
+        }
+    }
+
+    // returns the size of the member from its header, -1 if the header doesn't contain it
+    private static long getMemberSize(byte[] header) {
+        if (header[0] != (byte)0x1F || header[1] != (byte)0x8B || (header[3] & 0x04) == 0)
+            return -1;
+        if (header[12] != ParallelGzipOutputStream.SUB_FIELD_ID1 || header[13] != ParallelGzipOutputStream.SUB_FIELD_ID2 || header[14] != 4 || header[15] != 0)
+            return -1;
+        return readInt(header, ParallelGzipOutputStream.MEMBER_SIZE_OFFSET);
+    }
+
+    // reads an unsigned little-endian integer
+    private static long readInt(byte[] buffer, int offset) {
+        return (buffer[offset] & 0xFFL) | (buffer[offset + 1] & 0xFFL) << 8 | (buffer[offset + 2] & 0xFFL) << 16 | (buffer[offset + 3] & 0xFFL) << 24;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2019 Information Management Services, Inc.
+ */
+package com.imsweb.naaccrxml.compression;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The GZip compression, using the JDK implementation.
+ * <br/><br/>
+ * On multi-core machines, the data is compressed on several threads (see ParallelGzipOutputStream); those threads are shared by all the streams, so
+ * writing several files at the same time doesn't multiply them. Register a codec created with a single thread to always use the standard (single member)
+ * GZip stream.
+ */
+public class GzipCodec implements CompressionCodec {
+
+    // the number of threads used to compress the data
+    private final int _numCompressionThreads;
+
+    /**
+     * Constructor; the data will be compressed using as many threads as there are available processors.
+     */
+    public GzipCodec() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Constructor.
+     * @param numCompressionThreads number of threads used to compress the data; 1 means the standard GZIPOutputStream is used
+     */
+    public GzipCodec(int numCompressionThreads) {
+        _numCompressionThreads = Math.max(1, numCompressionThreads);
+    }
+
+    @Override
+    public String getName() {
+        return "gzip";
+    }
+
+    @Override
+    public List<String> getExtensions() {
+        return Collections.singletonList(".gz");
+    }
+
+    @Override
+    public boolean matchesHeader(byte[] header, int length) {
+        return length >= 2 && header[0] == (byte)0x1F && header[1] == (byte)0x8B;
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return true;
+    }
+
+    @Override
+    public InputStream createInputStream(InputStream is, int bufferSize) throws IOException {
+        return new GZIPInputStream(is, bufferSize);
+    }
+
+    @Override
+    public OutputStream createOutputStream(OutputStream os, int bufferSize, int level) throws IOException {
+        if (_numCompressionThreads > 1)
+            return new ParallelGzipOutputStream(os, _numCompressionThreads, level, ParallelGzipOutputStream.DEFAULT_BLOCK_SIZE);
+
+        LeveledGZIPOutputStream result = new LeveledGZIPOutputStream(os, bufferSize);
+        if (level != CompressionUtils.DEFAULT_LEVEL)
+            result.setLevel(level);
+        return result;
+    }
+
+    // the JDK doesn't allow the level to be provided to the constructor, but the deflater is accessible to the sub-classes...
+    private static class LeveledGZIPOutputStream extends GZIPOutputStream {
+
+        LeveledGZIPOutputStream(OutputStream os, int size) throws IOException {
+            super(os, size);
+        }
+
+        void setLevel(int level) {
+            def.setLevel(level);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2019 Information Management Services, Inc.
+ */
+package com.imsweb.naaccrxml.compression;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FrameInputStream;
+import net.jpountz.lz4.LZ4FrameOutputStream;
+import net.jpountz.xxhash.XXHashFactory;
+
+/**
+ * The LZ4 compression (frame format); this codec requires the "org.lz4:lz4-java" library to be added to the classpath (the library falls back to a pure
+ * Java implementation when its native one can't be used).
+ * <br/><br/>
+ * LZ4 favors speed over compression ratio: the default level uses the fast compressor, the other levels (1 to 17) use the high compression one. The buffer
+ * size is used as the block size of the written frames (rounded up to the closest LZ4 block size, from 64 KB to 4 MB).
+ */
+public class Lz4Codec extends AbstractLibraryCodec {
+
+    public Lz4Codec() {
+        super("lz4", new String[] {".lz4"}, new byte[] {0x04, 0x22, 0x4D, 0x18}, "org.lz4:lz4-java", "net.jpountz.lz4.LZ4FrameInputStream");
+    }
+
+    @Override
+    public InputStream createInputStream(InputStream is, int bufferSize) throws IOException {
+        checkAvailable();
+        try {
+            return new BufferedInputStream(Library.createInputStream(is), bufferSize);
+        }
+        catch (LinkageError e) {
+            throw convertLibraryError(e);
+        }
+    }
+
+    @Override
+    public OutputStream createOutputStream(OutputStream os, int bufferSize, int level) throws IOException {
+        checkAvailable();
+        try {
+            return Library.createOutputStream(os, bufferSize, level);
+        }
+        catch (LinkageError e) {
+            throw convertLibraryError(e);
+        }
+    }
+
+    // the only class accessing the library, so the codec can be loaded without it
+    private static final class Library {
+
+        private static InputStream createInputStream(InputStream is) throws IOException {
+            return new LZ4FrameInputStream(is);
+        }
+
+        private static OutputStream createOutputStream(OutputStream os, int bufferSize, int level) throws IOException {
+            LZ4FrameOutputStream.BLOCKSIZE blockSize = LZ4FrameOutputStream.BLOCKSIZE.SIZE_4MB;
+            if (bufferSize <= 64 * 1024)
+                blockSize = LZ4FrameOutputStream.BLOCKSIZE.SIZE_64KB;
+            else if (bufferSize <= 256 * 1024)
+                blockSize = LZ4FrameOutputStream.BLOCKSIZE.SIZE_256KB;
+            else if (bufferSize <= 1024 * 1024)
+                blockSize = LZ4FrameOutputStream.BLOCKSIZE.SIZE_1MB;
+
+            LZ4Factory factory = LZ4Factory.fastestInstance();
+            LZ4Compressor compressor = level == CompressionUtils.DEFAULT_LEVEL ? factory.fastCompressor() : factory.highCompressor(level);
+            return new LZ4FrameOutputStream(os, blockSize, -1L, compressor, XXHashFactory.fastestInstance().hash32(), LZ4FrameOutputStream.FLG.Bits.BLOCK_INDEPENDENCE);
+        }
+    }
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2019 Information Management Services, Inc.
+ */
+package com.imsweb.naaccrxml.compression;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * An output stream that compresses the data on several threads, using the GZip format.
+ * <br/><br/>
+ * The data is split into blocks that are compressed independently; each block becomes its own GZip "member" and the members are written in order, which
+ * creates a standard multi-member GZip file (RFC 1952) that can be read by any GZip implementation (including GZIPInputStream). The resulting file is
+ * slightly bigger than with a single member since the blocks don't share their compression dictionary.
+ * <br/><br/>
+ * Every member records its compressed size in an "extra" field of its header (like the BGZF format does); the GZip tools ignore that field, but it
+ * allows the members to be located without decompressing them, which makes the files seekable (see GzipBlockIndex). Use endBlock() to control where the
+ * blocks end (for example on record boundaries).
+ * <br/><br/>
+ * The blocks are compressed by a pool of threads shared by all the streams (see getSharedExecutor()), so the total number of compression threads
+ * doesn't depend on the number of streams written at the same time; the number of threads requested for a stream is the number of blocks it can have
+ * compressed at the same time, and the number of blocks kept in memory is bounded (two per requested thread). With a single thread, the blocks are
+ * compressed by the writing thread.
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+
+    // the default size of the (uncompressed) blocks
+    public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+
+    // the header of every member: magic bytes, deflate method, "extra" flag, no modification time, no extra flag, unknown OS, then the extra field:
+    // its length (8), the "NX" sub-field identifier, the length of the sub-field (4) and the size of the member (set when the member is created)
+    private static final byte[] _HEADER = {0x1F, (byte)0x8B, Deflater.DEFLATED, 0x04, 0, 0, 0, 0, 0, (byte)0xFF, 8, 0, 'N', 'X', 4, 0, 0, 0, 0, 0};
+
+    // the position of the size of the member in the header
+    static final int MEMBER_SIZE_OFFSET = 16;
+
+    // the identifier of the sub-field containing the size of the member
+    static final byte SUB_FIELD_ID1 = 'N', SUB_FIELD_ID2 = 'X';
+
+    // how long the threads of the shared executor are kept alive when there is nothing to compress, in seconds
+    private static final long _SHARED_EXECUTOR_KEEP_ALIVE = 30;
+
+    // the stream to write the compressed data to
+    private final OutputStream _out;
+
+    // the number of blocks that can be compressed at the same time
+    private final int _numThreads;
+
+    // the compression level
+    private final int _level;
+
+    // the size of the blocks
+    private final int _blockSize;
+
+    // the block being filled
+    private byte[] _block;
+
+    // the number of bytes in the current block
+    private int _count;
+
+    // the blocks being compressed, in the order they need to be written
+    private final Deque<Future<byte[]>> _pending = new ArrayDeque<>();
+
+    // the number of blocks written (or being compressed)
+    private long _numBlocks;
+
+    // whether the stream was closed
+    private boolean _closed;
+
+    /**
+     * Constructor.
+     * @param out the stream to write the compressed data to
+     * @param numThreads number of threads to use (the number of blocks that can be compressed at the same time)
+     */
+    public ParallelGzipOutputStream(OutputStream out, int numThreads) {
+        this(out, numThreads, CompressionUtils.DEFAULT_LEVEL, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Constructor.
+     * @param out the stream to write the compressed data to
+     * @param numThreads number of threads to use (the number of blocks that can be compressed at the same time)
+     * @param level the compression level, CompressionUtils.DEFAULT_LEVEL to use the default level
+     * @param blockSize the size of the (uncompressed) blocks
+     */
+    public ParallelGzipOutputStream(OutputStream out, int numThreads, int level, int blockSize) {
+        if (out == null)
+            throw new RuntimeException("Output stream is required");
+        if (numThreads < 1)
+            throw new RuntimeException("Number of threads must be at least 1");
+        if (blockSize < 1)
+            throw new RuntimeException("Block size must be at least 1");
+        if (level != CompressionUtils.DEFAULT_LEVEL && (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION))
+            throw new RuntimeException("Invalid compression level: " + level);
+        _out = out;
+        _numThreads = numThreads;
+        _level = level == CompressionUtils.DEFAULT_LEVEL ? Deflater.DEFAULT_COMPRESSION : level;
+        _blockSize = blockSize;
+        _block = new byte[blockSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        if (_count == _blockSize)
+            submitBlock();
+        _block[_count++] = (byte)b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        if (off < 0 || len < 0 || off + len > b.length)
+            throw new IndexOutOfBoundsException();
+        while (len > 0) {
+            if (_count == _blockSize)
+                submitBlock();
+            int n = Math.min(len, _blockSize - _count);
+            System.arraycopy(b, off, _block, _count, n);
+            _count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Ends the current block; the next written byte will start a new block (and therefore a new GZip member). This does nothing if the current block is empty.
+     * @throws IOException if the block can't be written
+     */
+    public void endBlock() throws IOException {
+        ensureOpen();
+        if (_count > 0)
+            submitBlock();
+    }
+
+    /**
+     * Returns the number of (uncompressed) bytes in the current block.
+     * @return the number of bytes in the current block
+     */
+    public int getCurrentBlockLength() {
+        return _count;
+    }
+
+    /**
+     * Writes the blocks that are already compressed; this doesn't force the current block to be compressed (that would degrade the compression).
+     */
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        while (!_pending.isEmpty() && _pending.peekFirst().isDone())
+            writeMember(_pending.removeFirst());
+        _out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (_closed)
+            return;
+        _closed = true;
+        try {
+            // an empty stream still needs one member to be a valid GZip file; there is no need to use the threads for the only block
+            if (_count > 0 || _numBlocks == 0) {
+                if (_numBlocks == 0)
+                    _out.write(compress(_block, _count, _level));
+                else
+                    submitBlock();
+            }
+            while (!_pending.isEmpty())
+                writeMember(_pending.removeFirst());
+        }
+        finally {
+            for (Future<byte[]> future : _pending)
+                future.cancel(true);
+            _pending.clear();
+            _out.close();
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (_closed)
+            throw new IOException("Stream closed");
+    }
+
+    private void submitBlock() throws IOException {
+        _numBlocks++;
+
+        if (_numThreads == 1) {
+            _out.write(compress(_block, _count, _level));
+            _count = 0;
+            return;
+        }
+
+        // bound the memory: wait for the oldest block if too many blocks are already being compressed
+        while (_pending.size() >= _numThreads * 2)
+            writeMember(_pending.removeFirst());
+
+        byte[] block = _block;
+        int count = _count;
+        int level = _level;
+        _pending.addLast(getSharedExecutor().submit(() -> compress(block, count, level)));
+        _block = new byte[_blockSize];
+        _count = 0;
+    }
+
+    private void writeMember(Future<byte[]> future) throws IOException {
+        try {
+            _out.write(future.get());
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing the data");
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException)e.getCause();
+            throw new IOException("Unable to compress the data: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    /**
+     * Returns the executor compressing the blocks of all the streams; it uses (at most) as many threads as there are available processors, and its threads
+     * are stopped when there is nothing to compress.
+     * @return the shared executor, never null
+     */
+    public static ExecutorService getSharedExecutor() {
+        return SharedExecutorHolder._EXECUTOR;
+    }
+
+    // the shared executor is only created when a stream needs it
+    private static final class SharedExecutorHolder {
+
+        private static final ExecutorService _EXECUTOR = createSharedExecutor();
+
+        private static ExecutorService createSharedExecutor() {
+            int numThreads = Runtime.getRuntime().availableProcessors();
+            AtomicInteger counter = new AtomicInteger();
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(numThreads, numThreads, _SHARED_EXECUTOR_KEEP_ALIVE, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+                Thread thread = new Thread(r, "naaccr-gzip-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.allowCoreThreadTimeOut(true);
+            return executor;
+        }
+    }
+
+    /**
+     * Compresses the given data into a full GZip member (header, deflated data and trailer).
+     * @param data data to compress
+     * @param length number of bytes to compress
+     * @param level compression level
+     * @return the GZip member
+     */
+    static byte[] compress(byte[] data, int length, int level) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + 64);
+        out.write(_HEADER, 0, _HEADER.length);
+
+        Deflater deflater = new Deflater(level, true);
+        try {
+            deflater.setInput(data, 0, length);
+            deflater.finish();
+            byte[] buffer = new byte[64 * 1024];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buffer);
+                out.write(buffer, 0, n);
+            }
+        }
+        finally {
+            deflater.end();
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+        writeInt(out, (int)crc.getValue());
+        writeInt(out, length);
+
+        byte[] member = out.toByteArray();
+        for (int i = 0; i < 4; i++)
+            member[MEMBER_SIZE_OFFSET + i] = (byte)(member.length >> (8 * i));
+        return member;
+    }
+
+    // GZip uses little-endian integers
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        out.write(value & 0xFF);
+        out.write((value >> 8) & 0xFF);
+        out.write((value >> 16) & 0xFF);
+        out.write((value >> 24) & 0xFF);
+    }
+}
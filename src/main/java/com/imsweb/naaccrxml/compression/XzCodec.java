@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2019 Information Management Services, Inc.
+ */
+package com.imsweb.naaccrxml.compression;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.XZInputStream;
+import org.tukaani.xz.XZOutputStream;
+
+/**
+ * The XZ (LZMA2) compression; this codec requires the "org.tukaani:xz" library (a pure Java implementation) to be added to the classpath.
+ * <br/><br/>
+ * The compression level corresponds to the XZ presets (0 to 9, defaults to 6); the buffer size is used for the uncompressed side of the streams.
+ */
+public class XzCodec extends AbstractLibraryCodec {
+
+    public XzCodec() {
+        super("xz", new String[] {".xz"}, new byte[] {(byte)0xFD, '7', 'z', 'X', 'Z', 0x00}, "org.tukaani:xz", "org.tukaani.xz.XZInputStream");
+    }
+
+    @Override
+    public InputStream createInputStream(InputStream is, int bufferSize) throws IOException {
+        checkAvailable();
+        try {
+            return new BufferedInputStream(Library.createInputStream(is), bufferSize);
+        }
+        catch (LinkageError e) {
+            throw convertLibraryError(e);
+        }
+    }
+
+    @Override
+    public OutputStream createOutputStream(OutputStream os, int bufferSize, int level) throws IOException {
+        checkAvailable();
+        try {
+            return new BufferedOutputStream(Library.createOutputStream(os, level), bufferSize);
+        }
+        catch (LinkageError e) {
+            throw convertLibraryError(e);
+        }
+    }
+
+    // the only class accessing the library, so the codec can be loaded without it
+    private static final class Library {
+
+        private static InputStream createInputStream(InputStream is) throws IOException {
+            return new XZInputStream(is);
+        }
+
+        private static OutputStream createOutputStream(OutputStream os, int level) throws IOException {
+            return new XZOutputStream(os, level == CompressionUtils.DEFAULT_LEVEL ? new LZMA2Options() : new LZMA2Options(level));
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2019 Information Management Services, Inc.
+ */
+package com.imsweb.naaccrxml.compression;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
+
+/**
+ * The Zstandard compression; this codec requires the "com.github.luben:zstd-jni" library to be added to the classpath (the library bundles the native
+ * Zstandard implementation for the common platforms).
+ * <br/><br/>
+ * The compression level corresponds to the Zstandard levels (1 to 22, defaults to 3); the buffer size is used for the uncompressed side of the streams.
+ */
+public class ZstdCodec extends AbstractLibraryCodec {
+
+    public ZstdCodec() {
+        super("zstd", new String[] {".zst", ".zstd"}, new byte[] {0x28, (byte)0xB5, 0x2F, (byte)0xFD}, "com.github.luben:zstd-jni", "com.github.luben.zstd.ZstdInputStream");
+    }
+
+    @Override
+    public InputStream createInputStream(InputStream is, int bufferSize) throws IOException {
+        checkAvailable();
+        try {
+            return new BufferedInputStream(Library.createInputStream(is), bufferSize);
+        }
+        catch (LinkageError e) {
+            throw convertLibraryError(e);
+        }
+    }
+
+    @Override
+    public OutputStream createOutputStream(OutputStream os, int bufferSize, int level) throws IOException {
+        checkAvailable();
+        try {
+            return new BufferedOutputStream(Library.createOutputStream(os, level), bufferSize);
+        }
+        catch (LinkageError e) {
+            throw convertLibraryError(e);
+        }
+    }
+
+    // the only class accessing the library, so the codec can be loaded without it
+    private static final class Library {
+
+        private static InputStream createInputStream(InputStream is) throws IOException {
+            return new ZstdInputStream(is);
+        }
+
+        private static OutputStream createOutputStream(OutputStream os, int level) throws IOException {
+            return level == CompressionUtils.DEFAULT_LEVEL ? new ZstdOutputStream(os) : new ZstdOutputStream(os, level);
+        }
+    }
+}
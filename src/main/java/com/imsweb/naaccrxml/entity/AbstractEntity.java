@@ -8,9 +8,13 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.function.Consumer;
 
 import com.imsweb.naaccrxml.DuplicateItemException;
 import com.imsweb.naaccrxml.NaaccrValidationError;
+import com.imsweb.naaccrxml.runtime.RuntimeNaaccrDictionary;
+import com.imsweb.naaccrxml.runtime.RuntimeNaaccrDictionaryItem;
 
 /**
  * Encapsulates the logic about the complex entities.
@@ -21,6 +25,10 @@ import com.imsweb.naaccrxml.NaaccrValidationError;
  * <li>Entity has a list of extensions (most of the time those won't be provided in the data)</li>
  * </ol>
  * This class also defines some utility methods to read/write those variables...
+ * <br/><br/>
+ * By default, every item is stored as an Item object; an entity can also use a compact storage backed by a runtime dictionary (see useCompactStorage()),
+ * which uses a lot less memory when many entities are kept in memory. On top of the compact storage, an entity can use a lazy storage (see useLazyStorage())
+ * that keeps the line the entity was read from and only decodes the items when they are requested.
  */
 public class AbstractEntity {
 
@@ -39,6 +47,48 @@ public class AbstractEntity {
     // caches to improve lookup performances
     protected Map<String, Item> _cachedById;
 
+    // the runtime dictionary used by the compact storage (null if the entity doesn't use the compact storage)
+    protected RuntimeNaaccrDictionary _compactDictionary;
+
+    // the parent XML element of the items kept in the compact storage
+    protected String _compactParentXmlElement;
+
+    // the definitions of the items kept in the compact storage, indexed by ordinal
+    protected List<RuntimeNaaccrDictionaryItem> _compactDefinitions;
+
+    // the pool sharing the short values of the compact storage with the other entities created by the same reader (null if the values are not shared)
+    protected CompactValuePool _compactValuePool;
+
+    // the values of the items kept in the compact storage, indexed by ordinal (a null value means the item is not present)
+    protected String[] _compactValues;
+
+    // the number of items present in the compact storage
+    protected int _compactCount;
+
+    // the line number shared by all the items of the compact storage (most entities have all their items on the same line)
+    protected Integer _compactLineNumber;
+
+    // the line numbers of the items of the compact storage, indexed by ordinal; only created once the items have different line numbers (0 means no line number)
+    protected int[] _compactLineNumbers;
+
+    // the validation errors of the items of the compact storage, indexed by ordinal; only created when the first error is added
+    protected NaaccrValidationError[] _compactErrors;
+
+    // the line the items of the lazy storage are decoded from (null if the entity doesn't use the lazy storage, or once all its items have been decoded)
+    protected String _lazyLine;
+
+    // the line number of the line of the lazy storage
+    protected Integer _lazyLineNumber;
+
+    // the decoder used to decode the items of the lazy storage
+    protected LazyItemDecoder _lazyDecoder;
+
+    // the ordinals of the items of the lazy storage that haven't been decoded yet (one bit per ordinal)
+    protected long[] _lazyPending;
+
+    // the number of items of the lazy storage that haven't been decoded yet
+    protected int _lazyPendingCount;
+
     /**
      * Default constructor.
      */
@@ -56,7 +106,16 @@ public class AbstractEntity {
      * @return the list of items that are contained in this entity
      */
     public List<Item> getItems() {
-        return Collections.unmodifiableList(_items);
+        if (_compactDictionary == null)
+            return Collections.unmodifiableList(_items);
+
+        decodeLazyItems();
+        List<Item> items = new ArrayList<>(_compactCount + _items.size());
+        for (int ordinal = 0; ordinal < _compactValues.length; ordinal++)
+            if (_compactValues[ordinal] != null)
+                items.add(new CompactItem(this, _compactDefinitions.get(ordinal)));
+        items.addAll(_items);
+        return Collections.unmodifiableList(items);
     }
 
     /**
@@ -67,6 +126,21 @@ public class AbstractEntity {
      * @param item item to add, cannot be null
      */
     public void addItem(Item item) {
+        int ordinal = getCompactOrdinal(item.getNaaccrId());
+        if (ordinal != -1) {
+            if (getCompactValue(ordinal) != null || _cachedById.containsKey(item.getNaaccrId()))
+                throw new DuplicateItemException(item.getNaaccrId(), "Duplicate item ID found for '" + item.getNaaccrId() + "'");
+
+            // the items without a value, or with a number different from the dictionary, can't be kept in the compact storage
+            RuntimeNaaccrDictionaryItem def = _compactDefinitions.get(ordinal);
+            if (item.getValue() != null && (item.getNaaccrNum() == null || item.getNaaccrNum().equals(def.getNaaccrNum()))) {
+                setCompactValue(ordinal, item.getValue());
+                setCompactLineNumber(ordinal, item.getStartLineNumber());
+                setCompactValidationError(ordinal, item.getValidationError());
+                return;
+            }
+        }
+
         // it is important to keep the cache in the same state as the items and so item two identical items has to trigger an exception
         if (_cachedById.containsKey(item.getNaaccrId()))
             throw new DuplicateItemException(item.getNaaccrId(), "Duplicate item ID found for '" + item.getNaaccrId() + "'");
@@ -92,6 +166,12 @@ public class AbstractEntity {
         if (item == null || item.getNaaccrId() == null)
             return false;
 
+        int ordinal = getCompactOrdinal(item.getNaaccrId());
+        if (ordinal != -1 && getCompactValue(ordinal) != null) {
+            setCompactValue(ordinal, null);
+            return true;
+        }
+
         // there is no equality defined on Item (one might argue this is wrong), and so we have to iterate over them and find the item by index...
         int idx = -1;
         for (int i = 0; i < _items.size(); i++) {
@@ -119,6 +199,9 @@ public class AbstractEntity {
      * @return the corresponding item, sometimes null
      */
     public Item getItem(String id) {
+        int ordinal = getCompactOrdinal(id);
+        if (ordinal != -1 && getCompactValue(ordinal) != null)
+            return new CompactItem(this, _compactDefinitions.get(ordinal));
         return _cachedById.get(id);
     }
 
@@ -128,7 +211,10 @@ public class AbstractEntity {
      * @return the value of the corresponding item, sometimes null
      */
     public String getItemValue(String id) {
-        Item item = getItem(id);
+        int ordinal = getCompactOrdinal(id);
+        if (ordinal != -1 && getCompactValue(ordinal) != null)
+            return getCompactValue(ordinal);
+        Item item = _cachedById.get(id);
         if (item != null)
             return item.getValue();
         return null;
@@ -136,9 +222,12 @@ public class AbstractEntity {
 
     /**
      * Returns the validation error for the current entity (for a patient entity, it would NOT return any error from the tumors, nor the errors on the patient's items).
+     * <br/><br/>
+     * For an entity using the lazy storage, this method decodes all the remaining items first, since their validation errors are only reported once they are decoded.
      * @return collection of validation error, maybe empty but never null
      */
     public List<NaaccrValidationError> getValidationErrors() {
+        decodeLazyItems();
         return Collections.unmodifiableList(_errors);
     }
 
@@ -150,6 +239,27 @@ public class AbstractEntity {
         _errors.add(error);
     }
 
+    /**
+     * Calls the given consumer for each validation error of the current entity and of its items, without creating any intermediate collection.
+     * <br/><br/>
+     * For an entity using the lazy storage, this method decodes all the remaining items first, since their validation errors are only reported once they are decoded.
+     * @param consumer consumer to call for each error, required
+     */
+    public void forEachValidationError(Consumer<NaaccrValidationError> consumer) {
+        decodeLazyItems();
+        for (int i = 0; i < _errors.size(); i++)
+            consumer.accept(_errors.get(i));
+        if (_compactErrors != null)
+            for (int ordinal = 0; ordinal < _compactErrors.length; ordinal++)
+                if (_compactErrors[ordinal] != null && _compactValues[ordinal] != null)
+                    consumer.accept(_compactErrors[ordinal]);
+        for (int i = 0; i < _items.size(); i++) {
+            NaaccrValidationError error = _items.get(i).getValidationError();
+            if (error != null)
+                consumer.accept(error);
+        }
+    }
+
     /**
      * Returns the line number of the current entity from the file it was read from.
      * <br/><br/>
@@ -195,4 +305,202 @@ public class AbstractEntity {
             _extensions = new ArrayList<>();
         _extensions.add(extension);
     }
+
+    /**
+     * Returns true if this entity uses the compact storage.
+     * @return true if this entity uses the compact storage
+     */
+    public boolean isUsingCompactStorage() {
+        return _compactDictionary != null;
+    }
+
+    /**
+     * Switches this entity to the compact storage: the values of the items defined in the runtime dictionary (for the given parent XML element)
+     * are kept in an array indexed by the item ordinals, and the Item objects are only created when they are requested (getItem() and getItems()).
+     * The items that are not defined in the dictionary for that parent XML element are stored as regular Item objects.
+     * <br/><br/>
+     * The items without a value, and the items with a NAACCR Number different from the one of the dictionary, are also stored as regular Item objects,
+     * so their value and number are not lost (the items added without a NAACCR Number are kept in the compact storage and return the number of the dictionary).
+     * <br/><br/>
+     * The items returned by an entity using the compact storage are views on the storage: changing their value, line number or validation error
+     * changes the entity. Changing their NAACCR ID or Number, or setting their value to null, moves them to the regular Item objects. The items are
+     * returned in the order of the dictionary, followed by the items stored as regular Item objects (instead of the order they were added in).
+     * <br/><br/>
+     * The items already added to this entity are moved to the compact storage.
+     * @param dictionary runtime dictionary defining the items, required
+     * @param parentXmlElement the parent XML element of the items of this entity, required
+     */
+    protected void useCompactStorage(RuntimeNaaccrDictionary dictionary, String parentXmlElement) {
+        useCompactStorage(dictionary, parentXmlElement, null);
+    }
+
+    /**
+     * Switches this entity to the compact storage (see useCompactStorage(RuntimeNaaccrDictionary, String)), sharing its short values through the
+     * given pool; the readers use one pool for all the entities they create.
+     * @param dictionary runtime dictionary defining the items, required
+     * @param parentXmlElement the parent XML element of the items of this entity, required
+     * @param pool the pool to share the short values with, null if the values shouldn't be shared
+     */
+    protected void useCompactStorage(RuntimeNaaccrDictionary dictionary, String parentXmlElement, CompactValuePool pool) {
+        if (_compactDictionary != null)
+            throw new RuntimeException("Entity is already using the compact storage");
+
+        List<Item> items = new ArrayList<>(_items);
+        _items.clear();
+        _cachedById.clear();
+
+        _compactDictionary = dictionary;
+        _compactParentXmlElement = parentXmlElement;
+        _compactValuePool = pool;
+        _compactDefinitions = dictionary.getItemsForParentXmlElement(parentXmlElement);
+        _compactValues = new String[_compactDefinitions.size()];
+
+        for (Item item : items)
+            addItem(item);
+    }
+
+    /**
+     * Returns true if this entity uses the lazy storage and some of its items haven't been decoded yet.
+     * @return true if some items still need to be decoded
+     */
+    public boolean isUsingLazyStorage() {
+        return _lazyPending != null;
+    }
+
+    /**
+     * Switches this entity to the lazy storage: on top of using the compact storage (see useCompactStorage()), the entity keeps the line it was read from,
+     * and the items defined in the runtime dictionary for the given parent XML element are only decoded (and validated) by the decoder the first time
+     * they are requested. The line is released once all the items have been decoded.
+     * <br/><br/>
+     * Requesting all the items (getItems()) or the validation errors (getValidationErrors()) decodes all the remaining items; the validation errors
+     * of the items are added to the entity as the items are decoded, so they are only complete once all the items have been decoded.
+     * <br/><br/>
+     * The items already added to this entity are kept; they are not decoded from the line.
+     * @param dictionary runtime dictionary defining the items, required
+     * @param parentXmlElement the parent XML element of the items of this entity, required
+     * @param line the line to decode the items from, required
+     * @param lineNumber the line number of the line, maybe null
+     * @param decoder the decoder to use, required
+     */
+    protected void useLazyStorage(RuntimeNaaccrDictionary dictionary, String parentXmlElement, String line, Integer lineNumber, LazyItemDecoder decoder) {
+        if (_compactDictionary == null)
+            useCompactStorage(dictionary, parentXmlElement);
+        else if (_compactDictionary != dictionary || !_compactParentXmlElement.equals(parentXmlElement))
+            throw new RuntimeException("Entity is already using the compact storage with a different dictionary");
+        if (_lazyPending != null)
+            throw new RuntimeException("Entity is already using the lazy storage");
+
+        _lazyPending = new long[(_compactValues.length + 63) >> 6];
+        for (int ordinal = 0; ordinal < _compactValues.length; ordinal++) {
+            if (_compactValues[ordinal] == null && !_cachedById.containsKey(_compactDefinitions.get(ordinal).getNaaccrId())) {
+                _lazyPending[ordinal >> 6] |= 1L << ordinal;
+                _lazyPendingCount++;
+            }
+        }
+        if (_lazyPendingCount == 0) {
+            _lazyPending = null;
+            return;
+        }
+        _lazyLine = line;
+        _lazyLineNumber = lineNumber;
+        _lazyDecoder = decoder;
+    }
+
+    // decodes all the items of the lazy storage that haven't been decoded yet
+    private void decodeLazyItems() {
+        for (int ordinal = 0; _lazyPending != null && ordinal < _compactValues.length; ordinal++)
+            getCompactValue(ordinal);
+    }
+
+    // returns the ordinal of the requested item if it is kept in the compact storage, -1 otherwise
+    private int getCompactOrdinal(String naaccrId) {
+        if (_compactDictionary == null || naaccrId == null)
+            return -1;
+        RuntimeNaaccrDictionaryItem def = _compactDictionary.getItemByNaaccrId(naaccrId);
+        return def != null && _compactParentXmlElement.equals(def.getParentXmlElement()) ? def.getOrdinal() : -1;
+    }
+
+    String getCompactValue(int ordinal) {
+        if (_lazyPending != null && (_lazyPending[ordinal >> 6] & (1L << ordinal)) != 0) {
+            _lazyPending[ordinal >> 6] &= ~(1L << ordinal);
+            String value = _lazyDecoder.decodeItem(this, _lazyLine, _lazyLineNumber, ordinal);
+            if (value != null) {
+                setCompactValue(ordinal, value);
+                setCompactLineNumber(ordinal, _lazyLineNumber);
+            }
+
+            // once all the items are decoded, the line is not needed anymore
+            if (--_lazyPendingCount == 0) {
+                _lazyPending = null;
+                _lazyLine = null;
+                _lazyDecoder = null;
+            }
+        }
+        return _compactValues[ordinal];
+    }
+
+    void setCompactValue(int ordinal, String value) {
+        if (_compactValuePool != null)
+            value = _compactValuePool.share(value);
+
+        if (_compactValues[ordinal] == null && value != null)
+            _compactCount++;
+        else if (_compactValues[ordinal] != null && value == null) {
+            _compactCount--;
+            if (_compactLineNumbers != null)
+                _compactLineNumbers[ordinal] = 0;
+            if (_compactErrors != null)
+                _compactErrors[ordinal] = null;
+        }
+        _compactValues[ordinal] = value;
+    }
+
+    // moves an item of the compact storage to the regular items and returns it; the returned item is not added if the item is not in the storage anymore
+    Item detachCompactItem(int ordinal) {
+        RuntimeNaaccrDictionaryItem def = _compactDefinitions.get(ordinal);
+        String value = getCompactValue(ordinal);
+        Item item = new Item(def.getNaaccrId(), def.getNaaccrNum(), value, value == null ? null : getCompactLineNumber(ordinal));
+        if (value != null) {
+            item.setValidationError(getCompactValidationError(ordinal));
+            setCompactValue(ordinal, null);
+            _items.add(item);
+            _cachedById.put(item.getNaaccrId(), item);
+        }
+        return item;
+    }
+
+    Integer getCompactLineNumber(int ordinal) {
+        if (_compactLineNumbers == null)
+            return _compactLineNumber;
+        return _compactLineNumbers[ordinal] == 0 ? null : _compactLineNumbers[ordinal];
+    }
+
+    void setCompactLineNumber(int ordinal, Integer lineNumber) {
+        if (_compactLineNumbers == null) {
+            // the first item (or the only one) defines the shared line number
+            if (_compactCount <= 1 || Objects.equals(_compactLineNumber, lineNumber)) {
+                _compactLineNumber = lineNumber;
+                return;
+            }
+            _compactLineNumbers = new int[_compactValues.length];
+            if (_compactLineNumber != null)
+                for (int i = 0; i < _compactValues.length; i++)
+                    if (_compactValues[i] != null)
+                        _compactLineNumbers[i] = _compactLineNumber;
+        }
+        _compactLineNumbers[ordinal] = lineNumber == null ? 0 : lineNumber;
+    }
+
+    NaaccrValidationError getCompactValidationError(int ordinal) {
+        return _compactErrors == null ? null : _compactErrors[ordinal];
+    }
+
+    void setCompactValidationError(int ordinal, NaaccrValidationError error) {
+        if (_compactErrors == null) {
+            if (error == null)
+                return;
+            _compactErrors = new NaaccrValidationError[_compactValues.length];
+        }
+        _compactErrors[ordinal] = error;
+    }
 }
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2019 Information Management Services, Inc.
+ */
+package com.imsweb.naaccrxml.entity;
+
+import java.util.Objects;
+
+import com.imsweb.naaccrxml.NaaccrValidationError;
+import com.imsweb.naaccrxml.runtime.RuntimeNaaccrDictionaryItem;
+
+/**
+ * An item returned by an entity using the compact storage; the value, line number and validation error are read from (and written to) the entity.
+ * <br/><br/>
+ * Changing the NAACCR ID or Number of the item, or setting its value to null, moves the item to the regular items of the entity (those can't be kept
+ * in the compact storage); the item then delegates to the regular item.
+ */
+class CompactItem extends Item {
+
+    // the entity containing the item
+    private AbstractEntity _entity;
+
+    // the ordinal of the item in the compact storage of the entity
+    private int _ordinal;
+
+    // the regular item this item was moved to (null if the item is still in the compact storage)
+    private Item _detached;
+
+    CompactItem(AbstractEntity entity, RuntimeNaaccrDictionaryItem def) {
+        super(def.getNaaccrId(), def.getNaaccrNum(), null, null);
+        _entity = entity;
+        _ordinal = def.getOrdinal();
+    }
+
+    // moves the item to the regular items of the entity
+    private Item detach() {
+        if (_detached == null)
+            _detached = _entity.detachCompactItem(_ordinal);
+        return _detached;
+    }
+
+    @Override
+    public String getNaaccrId() {
+        return _detached != null ? _detached.getNaaccrId() : super.getNaaccrId();
+    }
+
+    @Override
+    public void setNaaccrId(String naaccrId) {
+        if (_detached != null || !Objects.equals(naaccrId, super.getNaaccrId()))
+            detach().setNaaccrId(naaccrId);
+    }
+
+    @Override
+    public Integer getNaaccrNum() {
+        return _detached != null ? _detached.getNaaccrNum() : super.getNaaccrNum();
+    }
+
+    @Override
+    public void setNaaccrNum(Integer naaccrNum) {
+        if (_detached != null || !Objects.equals(naaccrNum, super.getNaaccrNum()))
+            detach().setNaaccrNum(naaccrNum);
+    }
+
+    @Override
+    public String getValue() {
+        return _detached != null ? _detached.getValue() : _entity.getCompactValue(_ordinal);
+    }
+
+    @Override
+    public void setValue(String value) {
+        if (_detached != null || value == null)
+            detach().setValue(value);
+        else
+            _entity.setCompactValue(_ordinal, value);
+    }
+
+    @Override
+    public Integer getStartLineNumber() {
+        return _detached != null ? _detached.getStartLineNumber() : _entity.getCompactLineNumber(_ordinal);
+    }
+
+    @Override
+    public void setStartLineNumber(Integer startLineNumber) {
+        if (_detached != null)
+            _detached.setStartLineNumber(startLineNumber);
+        else
+            _entity.setCompactLineNumber(_ordinal, startLineNumber);
+    }
+
+    @Override
+    public NaaccrValidationError getValidationError() {
+        return _detached != null ? _detached.getValidationError() : _entity.getCompactValidationError(_ordinal);
+    }
+
+    @Override
+    public void setValidationError(NaaccrValidationError validationError) {
+        if (_detached != null)
+            _detached.setValidationError(validationError);
+        else
+            _entity.setCompactValidationError(_ordinal, validationError);
+    }
+}
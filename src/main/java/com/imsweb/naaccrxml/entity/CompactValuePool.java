@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2019 Information Management Services, Inc.
+ */
+package com.imsweb.naaccrxml.entity;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A pool of short values shared between the entities using the compact storage (most of the values are short codes repeated on every tumor).
+ * <br/><br/>
+ * Each reader creates its own pool and gives it to the entities it creates (see AbstractEntity.useCompactStorage()); the pool is only referenced
+ * by the reader and those entities, so the values are released with the stream and its patients, and they are never shared between unrelated streams.
+ * <br/><br/>
+ * This class is thread-safe (lazy entities can decode their items on any thread).
+ */
+public class CompactValuePool {
+
+    // the values up to that length are shared
+    private static final int _MAX_VALUE_LENGTH = 4;
+
+    // the maximum number of shared values
+    private static final int _MAX_SIZE = 25000;
+
+    // the shared values
+    private final Map<String, String> _values = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the shared instance of the given value; short values not in the pool yet are added to it (as long as the pool isn't full).
+     * @param value value, can be null
+     * @return the shared instance of the value, or the value itself if it can't be shared
+     */
+    public String share(String value) {
+        if (value == null || value.length() > _MAX_VALUE_LENGTH)
+            return value;
+
+        String sharedValue = _values.get(value);
+        if (sharedValue != null)
+            return sharedValue;
+        if (_values.size() < _MAX_SIZE)
+            _values.put(value, value);
+        return value;
+    }
+
+    /**
+     * Returns the number of values in the pool.
+     * @return number of values
+     */
+    public int size() {
+        return _values.size();
+    }
+}
@@ -0,0 +1,25 @@
+/*
+ * Copyright (C) 2019 Information Management Services, Inc.
+ */
+package com.imsweb.naaccrxml.entity;
+
+/**
+ * Decodes the items of the entities using the lazy storage (see AbstractEntity.useLazyStorage()) from the line they were read from.
+ * <br/><br/>
+ * The decoder is shared by all the entities created by a given reader; it is called at most once for each item of an entity, and it can be called
+ * long after the reader has been closed (so it shouldn't depend on the state of the reader).
+ */
+public interface LazyItemDecoder {
+
+    /**
+     * Decodes the requested item from the given line.
+     * <br/><br/>
+     * This is also where the value should be validated; the validation errors are added to the entity (they don't need to be added to the item).
+     * @param entity the entity requesting the item
+     * @param line the line of the entity
+     * @param lineNumber the line number of the entity, maybe null
+     * @param ordinal the ordinal of the requested item (see RuntimeNaaccrDictionaryItem.getOrdinal())
+     * @return the decoded value, null if the item has no value on the line
+     */
+    String decodeItem(AbstractEntity entity, String line, Integer lineNumber, int ordinal);
+}
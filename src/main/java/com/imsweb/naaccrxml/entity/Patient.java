@@ -6,9 +6,12 @@ package com.imsweb.naaccrxml.entity;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import com.imsweb.naaccrxml.NaaccrValidationError;
+import com.imsweb.naaccrxml.NaaccrXmlUtils;
+import com.imsweb.naaccrxml.runtime.RuntimeNaaccrDictionary;
 
 /**
  * Corresponds to the "Patient" element in the XML.
@@ -46,6 +49,18 @@ public class Patient extends AbstractEntity {
         return results;
     }
 
+    /**
+     * Calls the given consumer for each validation error on the patient, any of its items and any of its tumors (the same errors as getAllValidationErrors()),
+     * without creating any intermediate collection.
+     * @param consumer consumer to call for each error, required
+     */
+    @Override
+    public void forEachValidationError(Consumer<NaaccrValidationError> consumer) {
+        super.forEachValidationError(consumer);
+        for (int i = 0; i < _tumors.size(); i++)
+            _tumors.get(i).forEachValidationError(consumer);
+    }
+
     /**
      * Adds the given tumor to this patient.
      */
@@ -70,4 +85,32 @@ public class Patient extends AbstractEntity {
         if (tumors != null)
             _tumors.addAll(tumors);
     }
+
+    /**
+     * Switches this patient to the compact storage, using the items of the given runtime dictionary (see AbstractEntity.useCompactStorage()).
+     * @param dictionary runtime dictionary, required
+     */
+    public void useCompactStorage(RuntimeNaaccrDictionary dictionary) {
+        useCompactStorage(dictionary, NaaccrXmlUtils.NAACCR_XML_TAG_PATIENT);
+    }
+
+    /**
+     * Switches this patient to the compact storage, sharing its short values through the given pool (see AbstractEntity.useCompactStorage()).
+     * @param dictionary runtime dictionary, required
+     * @param pool the pool to share the short values with, null if the values shouldn't be shared
+     */
+    public void useCompactStorage(RuntimeNaaccrDictionary dictionary, CompactValuePool pool) {
+        useCompactStorage(dictionary, NaaccrXmlUtils.NAACCR_XML_TAG_PATIENT, pool);
+    }
+
+    /**
+     * Switches this patient to the lazy storage: its items are only decoded from the given line when they are requested (see AbstractEntity.useLazyStorage()).
+     * @param dictionary runtime dictionary, required
+     * @param line the line to decode the items from, required
+     * @param lineNumber the line number of the line, maybe null
+     * @param decoder the decoder to use, required
+     */
+    public void useLazyStorage(RuntimeNaaccrDictionary dictionary, String line, Integer lineNumber, LazyItemDecoder decoder) {
+        useLazyStorage(dictionary, NaaccrXmlUtils.NAACCR_XML_TAG_PATIENT, line, lineNumber, decoder);
+    }
 }
@@ -8,6 +8,8 @@ import java.util.List;
 import java.util.stream.Collectors;
 
 import com.imsweb.naaccrxml.NaaccrValidationError;
+import com.imsweb.naaccrxml.NaaccrXmlUtils;
+import com.imsweb.naaccrxml.runtime.RuntimeNaaccrDictionary;
 
 /**
  * Corresponds to the "Tumor" element in the XML.
@@ -23,4 +25,32 @@ public class Tumor extends AbstractEntity {
         results.addAll(getItems().stream().filter(item -> item.getValidationError() != null).map(Item::getValidationError).collect(Collectors.toList()));
         return results;
     }
+
+    /**
+     * Switches this tumor to the compact storage, using the items of the given runtime dictionary (see AbstractEntity.useCompactStorage()).
+     * @param dictionary runtime dictionary, required
+     */
+    public void useCompactStorage(RuntimeNaaccrDictionary dictionary) {
+        useCompactStorage(dictionary, NaaccrXmlUtils.NAACCR_XML_TAG_TUMOR);
+    }
+
+    /**
+     * Switches this tumor to the compact storage, sharing its short values through the given pool (see AbstractEntity.useCompactStorage()).
+     * @param dictionary runtime dictionary, required
+     * @param pool the pool to share the short values with, null if the values shouldn't be shared
+     */
+    public void useCompactStorage(RuntimeNaaccrDictionary dictionary, CompactValuePool pool) {
+        useCompactStorage(dictionary, NaaccrXmlUtils.NAACCR_XML_TAG_TUMOR, pool);
+    }
+
+    /**
+     * Switches this tumor to the lazy storage: its items are only decoded from the given line when they are requested (see AbstractEntity.useLazyStorage()).
+     * @param dictionary runtime dictionary, required
+     * @param line the line to decode the items from, required
+     * @param lineNumber the line number of the line, maybe null
+     * @param decoder the decoder to use, required
+     */
+    public void useLazyStorage(RuntimeNaaccrDictionary dictionary, String line, Integer lineNumber, LazyItemDecoder decoder) {
+        useLazyStorage(dictionary, NaaccrXmlUtils.NAACCR_XML_TAG_TUMOR, line, lineNumber, decoder);
+    }
 }
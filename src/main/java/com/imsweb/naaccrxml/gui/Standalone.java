@@ -390,7 +390,7 @@ public class Standalone extends JFrame implements ActionListener {
      * @param num number to format
      * @return formatted number
      */
-    public static String formatNumber(int num) {
+    public static String formatNumber(long num) {
         DecimalFormat format = new DecimalFormat();
         format.setDecimalSeparatorAlwaysShown(false);
         return format.format(num);
@@ -11,12 +11,7 @@ import java.awt.Font;
 import java.io.File;
 import java.io.LineNumberReader;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -43,12 +38,11 @@ import javax.swing.filechooser.FileFilter;
 
 import org.apache.commons.lang3.StringUtils;
 
-import com.imsweb.naaccrxml.NaaccrErrorUtils;
+import com.imsweb.naaccrxml.NaaccrErrorStatistics;
 import com.imsweb.naaccrxml.NaaccrFormat;
 import com.imsweb.naaccrxml.NaaccrIOException;
 import com.imsweb.naaccrxml.NaaccrObserver;
 import com.imsweb.naaccrxml.NaaccrOptions;
-import com.imsweb.naaccrxml.NaaccrValidationError;
 import com.imsweb.naaccrxml.NaaccrXmlDictionaryUtils;
 import com.imsweb.naaccrxml.NaaccrXmlUtils;
 import com.imsweb.naaccrxml.entity.Patient;
@@ -89,11 +83,11 @@ public abstract class AbstractProcessingPage extends AbstractPage {
     protected StandaloneOptions _guiOptions;
 
     protected transient SwingWorker<Void, Void> _analysisWorker;
-    protected transient SwingWorker<Void, Patient> _processingWorker;
+    protected transient SwingWorker<Void, ProcessedPatient> _processingWorker;
 
-    protected boolean _maxWarningsReached = false, _maxWarningsDiscAdded = false;
-    protected Map<String, AtomicInteger> _warningStats = new HashMap<>();
-    protected Map<String, Set<String>> _warningStatsDetails = new HashMap<>();
+    protected volatile boolean _maxWarningsReached = false;
+    protected boolean _maxWarningsDiscAdded = false;
+    protected NaaccrErrorStatistics _warningStats = new NaaccrErrorStatistics();
 
     public AbstractProcessingPage(boolean isSourceXml) {
         super();
@@ -632,9 +626,8 @@ public abstract class AbstractProcessingPage extends AbstractPage {
 
         _maxWarningsReached = _maxWarningsDiscAdded = false;
         _warningStats.clear();
-        _warningStatsDetails.clear();
 
-        _processingWorker = new SwingWorker<Void, Patient>() {
+        _processingWorker = new SwingWorker<Void, ProcessedPatient>() {
             @Override
             protected Void doInBackground() throws Exception {
                 final File targetFile = _targetFld == null ? null : new File(fixFileExtension(_targetFld.getText(), (String)_compressionBox.getSelectedItem()));
@@ -652,11 +645,16 @@ public abstract class AbstractProcessingPage extends AbstractPage {
                 runProcessing(srcFile, targetFile, _guiOptions.getOptions(baseDictionary, userDictionaries), userDictionaries, new NaaccrObserver() {
                     @Override
                     public void patientRead(Patient patient) {
-                        publish(patient);
+                        // without a target file, the patients are not written, so their errors are extracted right away
+                        if (targetFile == null)
+                            publish(processPatient(patient));
                     }
 
                     @Override
                     public void patientWritten(Patient patient) {
+                        // the errors are extracted once the patient is written since the writer can report some too (like the truncated values);
+                        // they are extracted right away so the patients are not kept until the GUI gets updated
+                        publish(processPatient(patient));
                         numPatients.getAndIncrement();
                         numTumors.getAndAdd(patient.getTumors().size());
                     }
@@ -695,16 +693,11 @@ public abstract class AbstractProcessingPage extends AbstractPage {
                         else {
                             _warningsSummaryTextArea.setForeground(Color.BLACK);
                             StringBuilder buf = new StringBuilder("Validation warning counts (0 counts not displayed):\n\n");
-                            for (String code : NaaccrErrorUtils.getAllValidationErrors().keySet()) {
-                                int count = _warningStats.containsKey(code) ? _warningStats.get(code).get() : 0;
-                                if (count > 0) {
-                                    buf.append("   ").append(code).append(": ").append(Standalone.formatNumber(count)).append("\n");
-                                    if (_warningStatsDetails.containsKey(code)) {
-                                        List<String> list = new ArrayList<>(_warningStatsDetails.get(code));
-                                        Collections.sort(list);
-                                        buf.append("      ").append(list).append("\n");
-                                    }
-                                }
+                            for (String code : _warningStats.getCodes()) {
+                                buf.append("   ").append(code).append(": ").append(Standalone.formatNumber(_warningStats.getCount(code))).append("\n");
+                                List<String> list = _warningStats.getNaaccrIds(code);
+                                if (!list.isEmpty())
+                                    buf.append("      ").append(list).append("\n");
                             }
                             _warningsSummaryTextArea.setText(buf.toString());
                         }
@@ -723,44 +716,18 @@ public abstract class AbstractProcessingPage extends AbstractPage {
             }
 
             @Override
-            protected void process(final List<Patient> patients) {
+            protected void process(final List<ProcessedPatient> patients) {
                 final StringBuilder buf = new StringBuilder();
-
-                // extract errors
-                for (Patient patient : patients) {
-                    for (NaaccrValidationError error : patient.getAllValidationErrors()) {
-                        // this will be shown in the warnings view
-                        buf.append("Line ").append(error.getLineNumber() == null ? "N/A" : error.getLineNumber());
-                        if (error.getNaaccrId() != null) {
-                            buf.append(", item '").append(error.getNaaccrId()).append("'");
-                            if (error.getNaaccrNum() != null)
-                                buf.append(" (#").append(error.getNaaccrNum()).append(")");
-                        }
-                        buf.append(": ").append(error.getMessage());
-                        if (error.getValue() != null && !error.getValue().isEmpty()) {
-                            buf.append(" [").append(error.getValue().length() > 250 ? (error.getValue().substring(0, 250) + "...") : error.getValue()).append("]");
-                        }
-                        buf.append("\n");
-
-                        // this will be used in the summary view
-                        AtomicInteger count = _warningStats.get(error.getCode());
-                        if (count == null)
-                            _warningStats.put(error.getCode(), new AtomicInteger(1));
-                        else
-                            count.incrementAndGet();
-
-                        // let's also keep track of more detailed information
-                        if (error.getNaaccrId() != null)
-                            _warningStatsDetails.computeIfAbsent(error.getCode(), k -> new HashSet<>()).add(error.getNaaccrId());
-                    }
-                }
+                for (ProcessedPatient patient : patients)
+                    if (patient._warnings != null)
+                        buf.append(patient._warnings);
 
                 // update GUI (process bar and text area)
                 SwingUtilities.invokeLater(() -> {
                     // technically this should use the "endLineNumber", not the "startLineNumber", but that's close enough for a progress bar...
                     int processedLineNumber = 0;
-                    for (Patient patient : patients)
-                        processedLineNumber = Math.max(processedLineNumber, patient.getStartLineNumber());
+                    for (ProcessedPatient patient : patients)
+                        processedLineNumber = Math.max(processedLineNumber, patient._lineNumber);
                     _processingBar.setValue(processedLineNumber);
                     if (!_maxWarningsReached) {
                         _warningsTextArea.append(buf.toString());
@@ -777,6 +744,35 @@ public abstract class AbstractProcessingPage extends AbstractPage {
         _processingWorker.execute();
     }
 
+    /**
+     * Extracts the warnings of the given patient; this is called from the processing thread.
+     * @param patient patient to process
+     * @return the information to display for that patient
+     */
+    protected ProcessedPatient processPatient(Patient patient) {
+        StringBuilder buf = _maxWarningsReached ? null : new StringBuilder();
+        patient.forEachValidationError(error -> {
+            // this will be shown in the warnings view (as long as the maximum number of warnings is not reached)
+            if (buf != null) {
+                buf.append("Line ").append(error.getLineNumber() == null ? "N/A" : error.getLineNumber());
+                if (error.getNaaccrId() != null) {
+                    buf.append(", item '").append(error.getNaaccrId()).append("'");
+                    if (error.getNaaccrNum() != null)
+                        buf.append(" (#").append(error.getNaaccrNum()).append(")");
+                }
+                buf.append(": ").append(error.getMessage());
+                if (error.getValue() != null && !error.getValue().isEmpty()) {
+                    buf.append(" [").append(error.getValue().length() > 250 ? (error.getValue().substring(0, 250) + "...") : error.getValue()).append("]");
+                }
+                buf.append("\n");
+            }
+
+            // this will be used in the summary view
+            _warningStats.addError(error);
+        });
+        return new ProcessedPatient(patient.getStartLineNumber(), buf == null || buf.length() == 0 ? null : buf.toString());
+    }
+
     protected abstract void runProcessing(File source, File target, NaaccrOptions options, List<NaaccrDictionary> dictionaries, NaaccrObserver observer) throws NaaccrIOException;
 
     protected String getProcessingResultRow1Text(String path, long analysisTime, long processingTime, String size) {
@@ -850,4 +846,16 @@ public abstract class AbstractProcessingPage extends AbstractPage {
 
         return result;
     }
+
+    // the information displayed for a processed patient
+    protected static final class ProcessedPatient {
+
+        private int _lineNumber;
+        private String _warnings;
+
+        private ProcessedPatient(int lineNumber, String warnings) {
+            _lineNumber = lineNumber;
+            _warnings = warnings;
+        }
+    }
 }
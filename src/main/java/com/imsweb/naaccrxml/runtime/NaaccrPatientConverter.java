@@ -4,7 +4,9 @@
 package com.imsweb.naaccrxml.runtime;
 
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -25,6 +27,7 @@ import com.imsweb.naaccrxml.NaaccrXmlDictionaryUtils;
 import com.imsweb.naaccrxml.NaaccrXmlExtension;
 import com.imsweb.naaccrxml.NaaccrXmlUtils;
 import com.imsweb.naaccrxml.entity.AbstractEntity;
+import com.imsweb.naaccrxml.entity.CompactValuePool;
 import com.imsweb.naaccrxml.entity.Item;
 import com.imsweb.naaccrxml.entity.Patient;
 import com.imsweb.naaccrxml.entity.Tumor;
@@ -44,12 +47,28 @@ public class NaaccrPatientConverter implements Converter {
     // current processing context
     protected NaaccrStreamContext _context;
 
+    // the start tags of the written items, keyed by NAACCR ID (they depend on the context, so they are reset every time the context changes)
+    protected Map<String, String> _itemStartTags = new ConcurrentHashMap<>();
+
+    // the compiled include/exclude options (they depend on the context, so they are reset every time the context changes)
+    protected RuntimeNaaccrItemFilter _itemFilter;
+
+    // the pool sharing the short values between the patients and tumors using the compact storage (one per stream, like the converter)
+    protected CompactValuePool _valuePool = new CompactValuePool();
+
     /**
      * Sets the stream context; this method must be called prior to any reading/writing operation.
+     * <br/><br/>
+     * The configuration creates a converter for each stream, and the stream context sets itself on it (see NaaccrStreamContext.getPatientConverter());
+     * setting the same context again doesn't do anything.
      * @param context stream context to set, cannot be null
      */
     public void setContext(NaaccrStreamContext context) {
-        _context = context;
+        if (context != _context) {
+            _context = context;
+            _itemStartTags = new ConcurrentHashMap<>();
+            _itemFilter = null;
+        }
     }
 
     @Override
@@ -96,7 +115,7 @@ public class NaaccrPatientConverter implements Converter {
             if (reader.getAttributeCount() > 0)
                 reportSyntaxError("unexpected attribute for Patient tag: " + reader.getAttribute(0));
 
-            Patient patient = new Patient();
+            Patient patient = createPatient();
             patient.setStartLineNumber(_context.getLineNumber());
             int patItemCount = 0, tumorCount = 0;
             boolean seenPatientExtension = false;
@@ -109,14 +128,13 @@ public class NaaccrPatientConverter implements Converter {
                     if (tumorCount > 0 || seenPatientExtension)
                         reportSyntaxError("unexpected tag: " + _context.extractTag(reader.getNodeName()));
                     patItemCount++;
-                    String path = "/Patient/Item[" + patItemCount + "]";
                     String rawId = reader.getAttribute(NaaccrXmlUtils.NAACCR_XML_ITEM_ATT_ID);
-                    String rawNum = reader.getAttribute(NaaccrXmlUtils.NAACCR_XML_ITEM_ATT_NUM);
                     if (rawId != null && itemsAlreadySeen.contains(rawId))
                         reportSyntaxError("item '" + rawId + "' should be unique within the " + NaaccrXmlUtils.NAACCR_XML_TAG_PATIENT + " tags");
                     else
                         itemsAlreadySeen.add(rawId);
-                    readItem(patient, path, NaaccrXmlUtils.NAACCR_XML_TAG_PATIENT, rawId, rawNum, reader.getValue());
+                    if (shouldReadItem(rawId))
+                        readItem(patient, "/Patient/Item[" + patItemCount + "]", NaaccrXmlUtils.NAACCR_XML_TAG_PATIENT, rawId, reader.getAttribute(NaaccrXmlUtils.NAACCR_XML_ITEM_ATT_NUM), reader.getValue());
                 }
                 // handle tumors
                 else if (NaaccrXmlUtils.NAACCR_XML_TAG_TUMOR.equals(_context.extractTag(reader.getNodeName()))) {
@@ -125,7 +143,7 @@ public class NaaccrPatientConverter implements Converter {
                     if (reader.getAttributeCount() > 0)
                         reportSyntaxError("unexpected attribute for Tumor tag: " + reader.getAttribute(0));
 
-                    Tumor tumor = new Tumor();
+                    Tumor tumor = createTumor();
                     tumor.setStartLineNumber(_context.getLineNumber());
                     tumorCount++;
                     int tumorItemCount = 0;
@@ -139,14 +157,13 @@ public class NaaccrPatientConverter implements Converter {
                             if (seenTumorExtension)
                                 reportSyntaxError("unexpected tag: " + _context.extractTag(reader.getNodeName()));
                             tumorItemCount++;
-                            String path = "/Patient/Tumor[" + tumorCount + "]/Item[" + tumorItemCount + "]";
                             String rawId = reader.getAttribute(NaaccrXmlUtils.NAACCR_XML_ITEM_ATT_ID);
-                            String rawNum = reader.getAttribute(NaaccrXmlUtils.NAACCR_XML_ITEM_ATT_NUM);
                             if (rawId != null && itemsAlreadySeen.contains(rawId))
                                 reportSyntaxError("item '" + rawId + "' should be unique within the " + NaaccrXmlUtils.NAACCR_XML_TAG_TUMOR + " tags");
                             else
                                 itemsAlreadySeen.add(rawId);
-                            readItem(tumor, path, NaaccrXmlUtils.NAACCR_XML_TAG_TUMOR, rawId, rawNum, reader.getValue());
+                            if (shouldReadItem(rawId))
+                                readItem(tumor, "/Patient/Tumor[" + tumorCount + "]/Item[" + tumorItemCount + "]", NaaccrXmlUtils.NAACCR_XML_TAG_TUMOR, rawId, reader.getAttribute(NaaccrXmlUtils.NAACCR_XML_ITEM_ATT_NUM), reader.getValue());
                         }
                         else {
                             if (!Boolean.TRUE.equals(_context.getOptions().getIgnoreExtensions())) {
@@ -189,22 +206,76 @@ public class NaaccrPatientConverter implements Converter {
     }
 
     public void writeItem(Item item, HierarchicalStreamWriter writer) {
+        if (!shouldWriteItem(item))
+            return;
+
+        RuntimeNaaccrDictionaryItem itemDef = _context.getDictionary().getItemByNaaccrId(item.getNaaccrId());
+        String value = getValueToWrite(item, itemDef);
+
+        // write the item
+        writer.startNode(NaaccrXmlUtils.NAACCR_XML_TAG_ITEM);
+        writer.addAttribute(NaaccrXmlUtils.NAACCR_XML_ITEM_ATT_ID, itemDef != null ? itemDef.getNaaccrId() : item.getNaaccrId());
+        if (itemDef != null && itemDef.getNaaccrNum() != null && _context.getOptions().getWriteItemNumber())
+            writer.addAttribute(NaaccrXmlUtils.NAACCR_XML_ITEM_ATT_NUM, itemDef.getNaaccrNum().toString());
+        writer.setValue(value);
+        writer.endNode();
+    }
+
+    /**
+     * Writes the given item directly into the provided buffer, without going through XStream; the written XML is identical to the one written by
+     * writeItem(Item, HierarchicalStreamWriter) with an XStream PrettyPrintWriter.
+     * <br/><br/>
+     * The start tag of the items is computed only once per item definition (and per context).
+     * @param item item to write
+     * @param buf buffer to write to
+     * @param linePrefix new line and indentation to write before the item (not written if the item itself is not written)
+     */
+    public void writeItem(Item item, StringBuilder buf, String linePrefix) {
+        if (!shouldWriteItem(item))
+            return;
+
+        RuntimeNaaccrDictionaryItem itemDef = _context.getDictionary().getItemByNaaccrId(item.getNaaccrId());
+        String value = getValueToWrite(item, itemDef);
+
+        String startTag;
+        if (itemDef != null) {
+            Map<String, String> templates = _itemStartTags;
+            startTag = templates.get(itemDef.getNaaccrId());
+            if (startTag == null) {
+                startTag = createItemStartTag(itemDef.getNaaccrId(), itemDef.getNaaccrNum());
+                templates.put(itemDef.getNaaccrId(), startTag);
+            }
+        }
+        else
+            startTag = createItemStartTag(item.getNaaccrId(), null);
+
+        buf.append(linePrefix).append(startTag);
+        appendEscapedValue(value, buf, false);
+        buf.append("</").append(NaaccrXmlUtils.NAACCR_XML_TAG_ITEM).append('>');
+    }
+
+    /**
+     * Returns whether the given item needs to be written; this method reports the syntax errors of the item.
+     * @param item item to write
+     * @return true if the item needs to be written, false otherwise
+     */
+    protected boolean shouldWriteItem(Item item) {
 
         // don't bother if the item has no value!
         if (item.getValue() == null || item.getValue().isEmpty())
-            return;
+            return false;
 
         // get the item definition
         if (item.getNaaccrId() == null)
             reportSyntaxError("NAACCR ID is required when writing an item");
-        if (!_context.getOptions().processItem(item.getNaaccrId()))
-            return;
+        if (!shouldReadItem(item.getNaaccrId()))
+            return false;
         RuntimeNaaccrDictionaryItem itemDef = _context.getDictionary().getItemByNaaccrId(item.getNaaccrId());
         if (itemDef == null) {
             if (NaaccrOptions.ITEM_HANDLING_ERROR.equals(_context.getOptions().getUnknownItemHandling()))
                 reportSyntaxError("unable to find item definition for NAACCR ID " + item.getNaaccrId());
             else if (NaaccrOptions.ITEM_HANDLING_IGNORE.equals(_context.getOptions().getUnknownItemHandling()))
-                return;
+                return false;
             else if (!NaaccrOptions.ITEM_HANDLING_PROCESS.equals(_context.getOptions().getUnknownItemHandling()))
                 throw new RuntimeException("Unknown option: " + _context.getOptions().getUnknownItemHandling());
         }
@@ -212,22 +283,43 @@ public class NaaccrPatientConverter implements Converter {
         if (itemDef != null && item.getNaaccrNum() != null && !item.getNaaccrNum().equals(itemDef.getNaaccrNum()))
             reportSyntaxError("provided NAACCR Number '" + item.getNaaccrNum() + "' doesn't correspond to the provided NAACCR ID '" + item.getNaaccrId() + "'");
 
-        // write the item
-        writer.startNode(NaaccrXmlUtils.NAACCR_XML_TAG_ITEM);
-        writer.addAttribute(NaaccrXmlUtils.NAACCR_XML_ITEM_ATT_ID, itemDef != null ? itemDef.getNaaccrId() : item.getNaaccrId());
-        if (itemDef != null && itemDef.getNaaccrNum() != null && _context.getOptions().getWriteItemNumber())
-            writer.addAttribute(NaaccrXmlUtils.NAACCR_XML_ITEM_ATT_NUM, itemDef.getNaaccrNum().toString());
+        return true;
+    }
+
+    /**
+     * Returns the value to write for the given item (new lines and control characters are handled, the padding is applied and the value is truncated if needed).
+     * @param item item to write
+     * @param itemDef the corresponding item definition, can be null
+     * @return the value to write
+     */
+    protected String getValueToWrite(Item item, RuntimeNaaccrDictionaryItem itemDef) {
+        String value = item.getValue();
+
+        // most values don't contain any CR nor control characters, so let's check that before running the (much more expensive) regular expressions
+        boolean hasCarriageReturn = false, hasControlCharacter = false;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x20 || c == 0x7F) {
+                if (c == '\r')
+                    hasCarriageReturn = true;
+                else if (c != '\n' && c != '\t')
+                    hasControlCharacter = true;
+            }
+        }
 
         // first, let's remove any CR, we only want to use LF for new lines (because this library generates "&#xd;" for CR, which is technically correct but causes a lot of confusion)
-        String value = _CARRIAGE_RETURN_PATTERN.matcher(item.getValue()).replaceAll("\n");
+        if (hasCarriageReturn)
+            value = _CARRIAGE_RETURN_PATTERN.matcher(value).replaceAll("\n");
 
         // then deal with the control characters
-        Matcher matcher = _CONTROL_CHARACTERS_PATTERN.matcher(value);
-        if (matcher.find()) {
-            if (Boolean.TRUE.equals(_context.getOptions().getIgnoreControlCharacters()))
-                value = matcher.replaceAll("");
-            else
-                reportSyntaxError("value for item '" + item.getNaaccrId() + "' contains non-printable control characters");
+        if (hasControlCharacter) {
+            Matcher matcher = _CONTROL_CHARACTERS_PATTERN.matcher(value);
+            if (matcher.find()) {
+                if (Boolean.TRUE.equals(_context.getOptions().getIgnoreControlCharacters()))
+                    value = matcher.replaceAll("");
+                else
+                    reportSyntaxError("value for item '" + item.getNaaccrId() + "' contains non-printable control characters");
+            }
         }
 
         // handle the padding - only 0-padding is taken into account when writing XML; blank padding (left or right) is completely ignored
@@ -248,8 +340,115 @@ public class NaaccrPatientConverter implements Converter {
             value = value.substring(0, itemDef.getLength());
         }
 
-        writer.setValue(value);
-        writer.endNode();
+        return value;
+    }
+
+    private String createItemStartTag(String naaccrId, Integer naaccrNum) {
+        StringBuilder buf = new StringBuilder();
+        buf.append('<').append(NaaccrXmlUtils.NAACCR_XML_TAG_ITEM).append(' ').append(NaaccrXmlUtils.NAACCR_XML_ITEM_ATT_ID).append("=\"");
+        appendEscapedValue(naaccrId, buf, true);
+        buf.append('"');
+        if (naaccrNum != null && _context.getOptions().getWriteItemNumber())
+            buf.append(' ').append(NaaccrXmlUtils.NAACCR_XML_ITEM_ATT_NUM).append("=\"").append(naaccrNum).append('"');
+        return buf.append('>').toString();
+    }
+
+    /**
+     * Appends the given value to the buffer, escaping it exactly the way the XStream PrettyPrintWriter does it.
+     * @param value value to append
+     * @param buf buffer to append to
+     * @param attribute whether the value is an attribute value (tabs and new lines are escaped in attributes)
+     */
+    public static void appendEscapedValue(String value, StringBuilder buf, boolean attribute) {
+        int length = value.length(), start = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+
+            // most characters don't need to be escaped
+            if (c >= 0x20 && c < 0x7F && c != '&' && c != '<' && c != '>' && c != '"' && c != '\'')
+                continue;
+            if (!attribute && (c == '\n' || c == '\t'))
+                continue;
+            if (c > 0x9F && Character.isDefined(c))
+                continue;
+
+            buf.append(value, start, i);
+            start = i + 1;
+            switch (c) {
+                case '\0':
+                    buf.append("&#x0;");
+                    break;
+                case '&':
+                    buf.append("&amp;");
+                    break;
+                case '<':
+                    buf.append("&lt;");
+                    break;
+                case '>':
+                    buf.append("&gt;");
+                    break;
+                case '"':
+                    buf.append("&quot;");
+                    break;
+                case '\'':
+                    buf.append("&apos;");
+                    break;
+                case '\r':
+                    buf.append("&#xd;");
+                    break;
+                default:
+                    buf.append("&#x").append(Integer.toHexString(c)).append(';');
+                    break;
+            }
+        }
+        buf.append(value, start, length);
+    }
+
+    /**
+     * Creates a new patient to read the data into (using the compact storage if the options request it).
+     * @return a new patient
+     */
+    public Patient createPatient() {
+        Patient patient = new Patient();
+        if (Boolean.TRUE.equals(_context.getOptions().getUseCompactEntities()))
+            patient.useCompactStorage(_context.getDictionary(), _valuePool);
+        return patient;
+    }
+
+    /**
+     * Creates a new tumor to read the data into (using the compact storage if the options request it).
+     * @return a new tumor
+     */
+    public Tumor createTumor() {
+        Tumor tumor = new Tumor();
+        if (Boolean.TRUE.equals(_context.getOptions().getUseCompactEntities()))
+            tumor.useCompactStorage(_context.getDictionary(), _valuePool);
+        return tumor;
+    }
+
+    /**
+     * Returns whether the item with the given NAACCR ID needs to be processed, according to the include/exclude options.
+     * <br/><br/>
+     * The readers call this method before reading the value of the items, so the items that are not processed are skipped without creating their values.
+     * The options are compiled once per context and dictionary (see RuntimeNaaccrItemFilter), so this is much faster than calling the options directly.
+     * @param rawId NAACCR ID, as found in the data (it will be trimmed); if null, the item is processed (so the missing ID can be reported)
+     * @return true if the item needs to be processed, false otherwise
+     */
+    public boolean shouldReadItem(String rawId) {
+        return rawId == null || getItemFilter().processItem(rawId.trim());
+    }
+
+    /**
+     * Returns the compiled include/exclude options for the current context.
+     * @return the item filter, never null
+     */
+    protected RuntimeNaaccrItemFilter getItemFilter() {
+        RuntimeNaaccrItemFilter filter = _itemFilter;
+        if (filter == null || filter.getDictionary() != _context.getDictionary()) {
+            filter = new RuntimeNaaccrItemFilter(_context.getDictionary(), _context.getOptions());
+            _itemFilter = filter;
+        }
+        return filter;
     }
 
     public void readItem(AbstractEntity entity, String currentPath, String parentTag, String rawId, String rawNum, String value) {
@@ -269,7 +468,7 @@ public class NaaccrPatientConverter implements Converter {
             reportSyntaxError("attribute '" + NaaccrXmlUtils.NAACCR_XML_ITEM_ATT_ID + "' is required");
         else
             rawId = rawId.trim();
-        if (!_context.getOptions().processItem(rawId))
+        if (!shouldReadItem(rawId))
             return;
         RuntimeNaaccrDictionaryItem def = _context.getDictionary().getItemByNaaccrId(rawId);
         if (def != null) {
@@ -325,7 +524,7 @@ public class NaaccrPatientConverter implements Converter {
                 if (_context.getOptions().getValidateReadValues()) {
                     if (NaaccrXmlDictionaryUtils.isFullLengthRequiredForType(def.getDataType()) && item.getValue().length() != def.getLength())
                         reportError(item, lineNumber, currentPath, def, item.getValue(), NaaccrErrorUtils.CODE_VAL_TOO_SHORT, def.getLength(), item.getValue().length());
-                    else if (def.getDataType() != null && !NaaccrXmlDictionaryUtils.getDataTypePattern(def.getDataType()).matcher(item.getValue()).matches())
+                    else if (def.getDataTypeValidator() != null && !def.getDataTypeValidator().isValid(item.getValue()))
                         reportError(item, lineNumber, currentPath, def, item.getValue(), NaaccrErrorUtils.CODE_VAL_DATA_TYPE, def.getDataType());
                     else if (def.getRegexValidation() != null && !def.getRegexValidation().matcher(item.getValue()).matches())
                         reportError(item, lineNumber, currentPath, def, item.getValue(), NaaccrErrorUtils.CODE_VAL_REGEX, def.getRegexValidation());
@@ -3,18 +3,23 @@
  */
 package com.imsweb.naaccrxml.runtime;
 
+import java.io.Reader;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlPullParserFactory;
 
 import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.converters.ConversionException;
 import com.thoughtworks.xstream.converters.Converter;
+import com.thoughtworks.xstream.converters.DataHolder;
+import com.thoughtworks.xstream.converters.MarshallingContext;
+import com.thoughtworks.xstream.converters.UnmarshallingContext;
 import com.thoughtworks.xstream.converters.basic.BooleanConverter;
 import com.thoughtworks.xstream.converters.basic.ByteConverter;
 import com.thoughtworks.xstream.converters.basic.DateConverter;
@@ -28,7 +33,10 @@ import com.thoughtworks.xstream.converters.basic.StringConverter;
 import com.thoughtworks.xstream.converters.collections.CollectionConverter;
 import com.thoughtworks.xstream.converters.reflection.ReflectionConverter;
 import com.thoughtworks.xstream.io.HierarchicalStreamDriver;
+import com.thoughtworks.xstream.io.HierarchicalStreamReader;
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
 import com.thoughtworks.xstream.io.xml.XppDriver;
+import com.thoughtworks.xstream.io.xml.XppReader;
 import com.thoughtworks.xstream.security.NoTypePermission;
 import com.thoughtworks.xstream.security.WildcardTypePermission;
 
@@ -37,15 +45,19 @@ import com.imsweb.naaccrxml.entity.Item;
 import com.imsweb.naaccrxml.entity.NaaccrData;
 import com.imsweb.naaccrxml.entity.Patient;
 
+/**
+ * The configuration used by the XML streams; creating a configuration is expensive (mostly because of XStream), so it should be reused as much as possible.
+ * <br/><br/>
+ * A configuration can be shared between several threads: the parser and the patient converter are created for each stream (see NaaccrStreamContext),
+ * while the XStream mappings, the registered namespaces and tags and the cached dictionary are shared. The namespaces, tags, converters, etc... need to be
+ * registered before the configuration is shared.
+ */
 public class NaaccrStreamConfiguration {
 
-    // the parser used for reading operations
-    protected XmlPullParser _parser;
-
     // the XStream driver used for reading and writing operations
     protected HierarchicalStreamDriver _driver;
 
-    // the patient converter responsible for defining how to read and write patient objects
+    // the patient converter responsible for defining which objects are patients; the streams use their own converters since those hold the stream context
     protected NaaccrPatientConverter _patientConverter;
 
     // the instance of XStream to use for reading and writing operations
@@ -61,7 +73,10 @@ public class NaaccrStreamConfiguration {
     protected Set<String> _defaultTags;
 
     // cached runtime dictionary
-    protected RuntimeNaaccrDictionary _cachedDictionary;
+    protected volatile RuntimeNaaccrDictionary _cachedDictionary;
+
+    // whether the XML patients should be read directly from the parser instead of going through XStream
+    protected boolean _useStreamingReader;
 
     /**
      * Convenience method to make the code look nicer, but it really just calls the default constructor!
@@ -75,12 +90,11 @@ public class NaaccrStreamConfiguration {
      * Constructor.
      */
     public NaaccrStreamConfiguration() {
-        _parser = createParser();
-        _driver = createDriver(_parser);
+        _driver = createDriver();
         _patientConverter = createPatientConverter();
-        _xstream = createXStream(_driver, _patientConverter);
-        _namespaces = new HashMap<>();
-        _tags = new HashMap<>();
+        _xstream = createXStream(_driver, new StreamPatientConverter(_patientConverter));
+        _namespaces = new ConcurrentHashMap<>();
+        _tags = new ConcurrentHashMap<>();
 
         Set<String> defaultTags = new HashSet<>();
         defaultTags.add(NaaccrXmlUtils.NAACCR_XML_TAG_ROOT);
@@ -91,7 +105,7 @@ public class NaaccrStreamConfiguration {
     }
 
     /**
-     * Creates a parser to use for all reading operations.
+     * Creates a parser to use for reading operations; this method is called once for every stream using this configuration.
      * @return a parser, never null
      */
     protected XmlPullParser createParser() {
@@ -104,21 +118,21 @@ public class NaaccrStreamConfiguration {
     }
 
     /**
-     * Creates an XStream driver to use for all reading and writing operations
-     * @param parser parser (see createParser())
+     * Creates an XStream driver to use for all reading and writing operations; the readers created by the driver use a new parser (see createParser()),
+     * the streams create their readers with createReader() instead, so they can use the parser of their context.
      * @return an XStream driver, never null
      */
-    protected HierarchicalStreamDriver createDriver(XmlPullParser parser) {
+    protected HierarchicalStreamDriver createDriver() {
         return new XppDriver() {
             @Override
-            protected synchronized XmlPullParser createParser() {
-                return parser;
+            protected XmlPullParser createParser() {
+                return NaaccrStreamConfiguration.this.createParser();
             }
         };
     }
 
     /**
-     * Creates the patient converter to use for reading and writing patient objects.
+     * Creates the patient converter to use for reading and writing patient objects; this method is called once for every stream using this configuration.
      * @return a patient converter, never null
      */
     protected NaaccrPatientConverter createPatientConverter() {
@@ -128,10 +142,10 @@ public class NaaccrStreamConfiguration {
     /**
      * Creates the instance of XStream to us for all reading and writing operations
      * @param driver an XStream driver (see createDriver())
-     * @param patientConverter a patient converter (see createPatientConverter())
+     * @param patientConverter the converter to register for the patients (it delegates to the patient converter of the stream, see NaaccrStreamContext.getDataHolder())
      * @return an instance of XStream, never null
      */
-    protected XStream createXStream(HierarchicalStreamDriver driver, NaaccrPatientConverter patientConverter) {
+    protected XStream createXStream(HierarchicalStreamDriver driver, Converter patientConverter) {
         XStream xstream = new XStream(driver) {
             @Override
             protected void setupConverters() {
@@ -176,14 +190,6 @@ public class NaaccrStreamConfiguration {
         return xstream;
     }
 
-    /**
-     * Returns the parser that is used for all reading operations.
-     * @return a parser, never null
-     */
-    public XmlPullParser getParser() {
-        return _parser;
-    }
-
     /**
      * Returns the XStream driver used for all reading and writing operations.
      * @return an XStream driver, never null
@@ -193,7 +199,18 @@ public class NaaccrStreamConfiguration {
     }
 
     /**
-     * Returns the patient converter to use for reading and writing patient objects.
+     * Creates an XStream reader for the given stream context; the reader uses the parser of the context (see NaaccrStreamContext.getParser()).
+     * @param reader underlying reader, required
+     * @param context stream context, required
+     * @return an XStream reader, never null
+     */
+    public HierarchicalStreamReader createReader(Reader reader, NaaccrStreamContext context) {
+        return new XppReader(reader, context.getParser());
+    }
+
+    /**
+     * Returns the patient converter defining which objects are patients; the streams don't use this converter to read and write the patients,
+     * they use the one of their context (see NaaccrStreamContext.getPatientConverter()).
      * @return a patient converter, never null
      */
     public NaaccrPatientConverter getPatientConverter() {
@@ -227,6 +244,26 @@ public class NaaccrStreamConfiguration {
         _cachedDictionary = cachedDictionary;
     }
 
+    /**
+     * Returns whether the XML readers created with NaaccrXmlUtils.createPatientXmlReader() for this configuration should read the patients directly
+     * from the parser (see PatientXmlStreamingReader) instead of going through XStream. Defaults to false.
+     * @return true if the streaming reader should be used
+     */
+    public boolean getUseStreamingReader() {
+        return _useStreamingReader;
+    }
+
+    /**
+     * Sets whether the XML readers created with NaaccrXmlUtils.createPatientXmlReader() for this configuration should read the patients directly
+     * from the parser (see PatientXmlStreamingReader) instead of going through XStream.
+     * <br/><br/>
+     * The streaming reader doesn't use the patient converter to read the patients, so it shouldn't be used if the configuration overrides how the patients are read.
+     * @param useStreamingReader true if the streaming reader should be used
+     */
+    public void setUseStreamingReader(boolean useStreamingReader) {
+        _useStreamingReader = useStreamingReader;
+    }
+
     /**
      * Registers a namespace for a given namespace prefix. This method must be called before registering any tags or attributes
      * for that namespace. Note that extensions require namespaces to work properly.
@@ -258,7 +295,7 @@ public class NaaccrStreamConfiguration {
             throw new RuntimeException("Namespace prefix '" + namespacePrefix + "' has not been registered yet");
         _xstream.alias(namespacePrefix + ":" + tagName, clazz);
         _xstream.addPermission(new WildcardTypePermission(new String[] {clazz.getName()}));
-        _tags.computeIfAbsent(namespacePrefix, k -> new HashSet<>()).add(tagName);
+        _tags.computeIfAbsent(namespacePrefix, k -> ConcurrentHashMap.newKeySet()).add(tagName);
     }
 
     /**
@@ -274,7 +311,7 @@ public class NaaccrStreamConfiguration {
             throw new RuntimeException("Namespace prefix '" + namespacePrefix + "' has not been registered yet");
         _xstream.alias(namespacePrefix + ":" + tagName, fieldClass);
         _xstream.aliasField(namespacePrefix + ":" + tagName, clazz, fieldName);
-        _tags.computeIfAbsent(namespacePrefix, k -> new HashSet<>()).add(tagName);
+        _tags.computeIfAbsent(namespacePrefix, k -> ConcurrentHashMap.newKeySet()).add(tagName);
     }
 
     /**
@@ -320,4 +357,36 @@ public class NaaccrStreamConfiguration {
             return _defaultTags;
         return _tags.get(namespacePrefix);
     }
+
+    // the converter registered with XStream for the patients; it delegates to the patient converter of the stream, passed to XStream as data
+    private static final class StreamPatientConverter implements Converter {
+
+        private NaaccrPatientConverter _converter;
+
+        private StreamPatientConverter(NaaccrPatientConverter converter) {
+            _converter = converter;
+        }
+
+        @Override
+        public boolean canConvert(Class type) {
+            return _converter.canConvert(type);
+        }
+
+        @Override
+        public void marshal(Object source, HierarchicalStreamWriter writer, MarshallingContext context) {
+            getStreamConverter(context).marshal(source, writer, context);
+        }
+
+        @Override
+        public Object unmarshal(HierarchicalStreamReader reader, UnmarshallingContext context) {
+            return getStreamConverter(context).unmarshal(reader, context);
+        }
+
+        private static NaaccrPatientConverter getStreamConverter(DataHolder data) {
+            Object converter = data.get(NaaccrPatientConverter.class);
+            if (!(converter instanceof NaaccrPatientConverter))
+                throw new ConversionException("Patients can only be read and written through the data of a stream context");
+            return (NaaccrPatientConverter)converter;
+        }
+    }
 }
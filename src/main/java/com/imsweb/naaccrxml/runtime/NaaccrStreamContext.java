@@ -5,6 +5,11 @@ package com.imsweb.naaccrxml.runtime;
 
 import java.util.Set;
 
+import org.xmlpull.v1.XmlPullParser;
+
+import com.thoughtworks.xstream.converters.DataHolder;
+import com.thoughtworks.xstream.core.MapBackedDataHolder;
+
 import com.imsweb.naaccrxml.NaaccrIOException;
 import com.imsweb.naaccrxml.NaaccrOptions;
 
@@ -16,6 +21,18 @@ public class NaaccrStreamContext {
 
     protected NaaccrOptions _options;
 
+    // the parser of the stream (created by the configuration the first time it is requested)
+    protected XmlPullParser _parser;
+
+    // the patient converter of the stream (created by the configuration the first time it is requested)
+    protected NaaccrPatientConverter _patientConverter;
+
+    // the data given to XStream so its patient converter uses the converter of the stream
+    protected DataHolder _dataHolder;
+
+    // the offset added to the line numbers of the parser (used when the parsed data is a fragment of a bigger file)
+    protected int _lineNumberOffset;
+
     public RuntimeNaaccrDictionary getDictionary() {
         return _dictionary;
     }
@@ -40,12 +57,64 @@ public class NaaccrStreamContext {
         _options = options;
     }
 
+    /**
+     * Returns the parser of the stream; it is created by the configuration the first time it is requested.
+     * <br/><br/>
+     * The parser and the patient converter belong to the stream (and not to the configuration, which can be shared), so they are released with it.
+     * @return the parser of the stream, never null
+     */
+    public XmlPullParser getParser() {
+        if (_parser == null)
+            _parser = _configuration.createParser();
+        return _parser;
+    }
+
+    public void setParser(XmlPullParser parser) {
+        _parser = parser;
+    }
+
+    /**
+     * Returns the patient converter of the stream; it is created by the configuration the first time it is requested, and uses this context.
+     * @return the patient converter of the stream, never null
+     */
+    public synchronized NaaccrPatientConverter getPatientConverter() {
+        if (_patientConverter == null) {
+            _patientConverter = _configuration.createPatientConverter();
+            _patientConverter.setContext(this);
+        }
+        return _patientConverter;
+    }
+
+    /**
+     * Returns the data to give to XStream when reading or writing patients, so the patient converter of the stream is used (see getPatientConverter()).
+     * @return the XStream data of the stream, never null
+     */
+    public synchronized DataHolder getDataHolder() {
+        if (_dataHolder == null) {
+            _dataHolder = new MapBackedDataHolder();
+            _dataHolder.put(NaaccrPatientConverter.class, getPatientConverter());
+        }
+        return _dataHolder;
+    }
+
     /**
      * Returns the current line number.
-     * @return current line number (from the parser).
+     * @return current line number (from the parser, shifted by the line number offset).
      */
     public int getLineNumber() {
-        return _configuration.getParser().getLineNumber();
+        return getParser().getLineNumber() + _lineNumberOffset;
+    }
+
+    public int getLineNumberOffset() {
+        return _lineNumberOffset;
+    }
+
+    /**
+     * Sets the offset added to the line numbers of the parser; this allows the line numbers to match the ones of the file when only a fragment of it is parsed.
+     * @param lineNumberOffset line number offset
+     */
+    public void setLineNumberOffset(int lineNumberOffset) {
+        _lineNumberOffset = lineNumberOffset;
     }
 
     /**
@@ -5,7 +5,9 @@ package com.imsweb.naaccrxml.runtime;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -19,6 +21,17 @@ import com.imsweb.naaccrxml.entity.dictionary.NaaccrDictionaryItem;
 
 public class RuntimeNaaccrDictionary {
 
+    // the maximum number of runtime dictionaries kept in the global cache
+    private static final int _CACHE_MAX_SIZE = 25;
+
+    // global cache of runtime dictionaries, keyed by ID, the least recently used ones are removed first (see getInstance())
+    private static final Map<String, RuntimeNaaccrDictionary> _CACHE = new LinkedHashMap<String, RuntimeNaaccrDictionary>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, RuntimeNaaccrDictionary> eldest) {
+            return size() > _CACHE_MAX_SIZE;
+        }
+    };
+
     // used to uniquely identify a runtime dictionary (based on the URI of the base and user dictionaries)
     private String _id;
 
@@ -31,6 +44,21 @@ public class RuntimeNaaccrDictionary {
     // caches used to improve lookup performances
     private Map<String, RuntimeNaaccrDictionaryItem> _cachedById;
 
+    // the items of each parent XML element, indexed by their ordinal
+    private Map<String, List<RuntimeNaaccrDictionaryItem>> _itemsByParent;
+
+    // compiled plan used to decode flat-file lines (lazily created)
+    private volatile RuntimeNaaccrFlatReadPlan _flatReadPlan;
+
+    // the dictionaries this runtime dictionary was created from (the ID is based on the URI only, so those are used to validate the cached instances)
+    private NaaccrDictionary _baseDictionary;
+
+    private List<NaaccrDictionary> _userDictionaries;
+
+    // a hash of the content of the dictionaries when this runtime dictionary was created; the dictionaries are mutable, so the cached instances are also
+    // validated against it (the hash is cheap to compute, the content of the dictionaries is not copied for every lookup)
+    private long _contentHash;
+
     /**
      * Constructor.
      * @param recordType record type (required)
@@ -53,6 +81,9 @@ public class RuntimeNaaccrDictionary {
 
         // assign the ID based on the URI (done on the raw input so the behavior is the same when called outside of this constructor)
         _id = computeId(recordType, baseDictionary, dictionaries);
+        _baseDictionary = baseDictionary;
+        _userDictionaries = new ArrayList<>(dictionaries);
+        _contentHash = computeContentHash(baseDictionary, dictionaries);
 
         List<String> errors = NaaccrXmlDictionaryUtils.validateDictionaries(baseDictionary, dictionaries);
         if (!errors.isEmpty())
@@ -63,23 +94,91 @@ public class RuntimeNaaccrDictionary {
             dictionaries.add(NaaccrXmlDictionaryUtils.getDefaultUserDictionaryByVersion(baseDictionary.getNaaccrVersion()));
 
         _format = NaaccrFormat.getInstance(baseDictionary.getNaaccrVersion(), recordType);
-        _items = new ArrayList<>();
+        List<RuntimeNaaccrDictionaryItem> items = new ArrayList<>();
         for (NaaccrDictionaryItem item : baseDictionary.getItems())
             if (item.getRecordTypes() == null || StringUtils.contains(item.getRecordTypes(), recordType))
-                _items.add(new RuntimeNaaccrDictionaryItem(item));
+                items.add(new RuntimeNaaccrDictionaryItem(item));
         for (NaaccrDictionary userDictionary : dictionaries)
             for (NaaccrDictionaryItem item : userDictionary.getItems())
                 if (item.getRecordTypes() == null || StringUtils.contains(item.getRecordTypes(), recordType))
-                    _items.add(new RuntimeNaaccrDictionaryItem(item));
+                    items.add(new RuntimeNaaccrDictionaryItem(item));
 
         // sort the fields by starting columns (no start columns go to the end)
-        _items.sort((o1, o2) -> {
+        items.sort((o1, o2) -> {
             if (o1.getStartColumn() == null)
                 return 1;
             if (o2.getStartColumn() == null)
                 return -1;
             return o1.getStartColumn().compareTo(o2.getStartColumn());
         });
+        _items = Collections.unmodifiableList(items);
+
+        // the runtime dictionaries are shared between threads, so the lookup cache is created right away
+        _cachedById = new HashMap<>();
+        for (RuntimeNaaccrDictionaryItem item : _items)
+            if (item.getNaaccrId() != null)
+                _cachedById.put(item.getNaaccrId(), item);
+
+        // assign the ordinals; those are used by the entities using the compact storage
+        Map<String, List<RuntimeNaaccrDictionaryItem>> itemsByParent = new HashMap<>();
+        for (RuntimeNaaccrDictionaryItem item : _items) {
+            if (item.getParentXmlElement() != null) {
+                List<RuntimeNaaccrDictionaryItem> list = itemsByParent.computeIfAbsent(item.getParentXmlElement(), k -> new ArrayList<>());
+                item.setOrdinal(list.size());
+                list.add(item);
+            }
+        }
+        _itemsByParent = new HashMap<>();
+        itemsByParent.forEach((key, value) -> _itemsByParent.put(key, Collections.unmodifiableList(value)));
+    }
+
+    /**
+     * Returns the runtime dictionary for the requested record type and dictionaries; the runtime dictionaries are kept in a global cache (which is bounded)
+     * and the same instance is returned as long as the same dictionary instances are provided and their content hasn't changed.
+     * <br/><br/>
+     * The returned runtime dictionary shouldn't be modified since it is potentially shared with other streams (and other threads).
+     * @param recordType record type (required)
+     * @param baseDictionary base dictionary (required)
+     * @param userDictionaries user dictionaries (optional)
+     * @return the runtime dictionary, never null
+     * @throws NaaccrIOException if the runtime dictionary cannot be successfully created
+     */
+    public static RuntimeNaaccrDictionary getInstance(String recordType, NaaccrDictionary baseDictionary, Collection<NaaccrDictionary> userDictionaries) throws NaaccrIOException {
+        String id = computeId(recordType, baseDictionary, userDictionaries);
+
+        // the content is hashed outside of the lock so the streams don't wait on each other
+        long contentHash = computeContentHash(baseDictionary, userDictionaries);
+
+        synchronized (_CACHE) {
+            RuntimeNaaccrDictionary dictionary = _CACHE.get(id);
+            if (dictionary != null && dictionary.isCreatedFrom(baseDictionary, userDictionaries, contentHash))
+                return dictionary;
+        }
+
+        // the creation is done outside of the lock; two threads might create the same dictionary, but that's OK
+        RuntimeNaaccrDictionary dictionary = new RuntimeNaaccrDictionary(recordType, baseDictionary, userDictionaries);
+        synchronized (_CACHE) {
+            _CACHE.put(id, dictionary);
+        }
+        return dictionary;
+    }
+
+    /**
+     * Clears the global cache of runtime dictionaries.
+     */
+    public static void clearCache() {
+        synchronized (_CACHE) {
+            _CACHE.clear();
+        }
+    }
+
+    /**
+     * Returns the number of runtime dictionaries in the global cache.
+     */
+    public static int getCacheSize() {
+        synchronized (_CACHE) {
+            return _CACHE.size();
+        }
     }
 
     public String getId() {
@@ -99,22 +198,86 @@ public class RuntimeNaaccrDictionary {
     }
 
     public List<RuntimeNaaccrDictionaryItem> getItems() {
-        if (_items == null)
-            _items = new ArrayList<>();
         return _items;
     }
 
     public RuntimeNaaccrDictionaryItem getItemByNaaccrId(String id) {
-        if (_cachedById == null) {
-            Map<String, RuntimeNaaccrDictionaryItem> cache = new HashMap<>();
-            for (RuntimeNaaccrDictionaryItem item : _items)
-                if (item.getNaaccrId() != null)
-                    cache.put(item.getNaaccrId(), item);
-            _cachedById = cache;
-        }
         return _cachedById.get(id);
     }
 
+    /**
+     * Returns the items having the requested parent XML element, in the order of the dictionary; the index of each item corresponds to its ordinal.
+     * @param parentXmlElement parent XML element (NaaccrData, Patient or Tumor)
+     * @return the corresponding items, maybe empty but never null
+     */
+    public List<RuntimeNaaccrDictionaryItem> getItemsForParentXmlElement(String parentXmlElement) {
+        return _itemsByParent.getOrDefault(parentXmlElement, Collections.emptyList());
+    }
+
+    /**
+     * Returns the compiled plan to use to decode flat-file lines; the plan is created the first time this method is called.
+     * @return the flat-file read plan, never null
+     */
+    public RuntimeNaaccrFlatReadPlan getFlatReadPlan() {
+        if (_flatReadPlan == null)
+            _flatReadPlan = new RuntimeNaaccrFlatReadPlan(this);
+        return _flatReadPlan;
+    }
+
+    // returns true if this runtime dictionary was created from the exact same dictionary instances, and their content hasn't changed since then
+    private boolean isCreatedFrom(NaaccrDictionary baseDictionary, Collection<NaaccrDictionary> userDictionaries, long contentHash) {
+        if (baseDictionary != _baseDictionary || contentHash != _contentHash)
+            return false;
+        int count = 0;
+        if (userDictionaries != null) {
+            for (NaaccrDictionary userDictionary : userDictionaries) {
+                if (userDictionary == null)
+                    continue;
+                if (count >= _userDictionaries.size() || _userDictionaries.get(count) != userDictionary)
+                    return false;
+                count++;
+            }
+        }
+        return count == _userDictionaries.size();
+    }
+
+    // returns a hash of the properties of the dictionaries that are used by a runtime dictionary (the dictionaries are not copied, so it is cheap to compute)
+    private static long computeContentHash(NaaccrDictionary baseDictionary, Collection<NaaccrDictionary> userDictionaries) {
+        long hash = computeContentHash(17, baseDictionary);
+        if (userDictionaries != null)
+            for (NaaccrDictionary userDictionary : userDictionaries)
+                hash = computeContentHash(hash, userDictionary);
+        return hash;
+    }
+
+    private static long computeContentHash(long hash, NaaccrDictionary dictionary) {
+        if (dictionary == null)
+            return hash;
+        hash = combineHash(hash, dictionary.getDictionaryUri());
+        hash = combineHash(hash, dictionary.getNaaccrVersion());
+        hash = combineHash(hash, dictionary.getSpecificationVersion());
+        hash = 31 * hash + dictionary.getItems().size();
+        for (NaaccrDictionaryItem item : dictionary.getItems()) {
+            hash = combineHash(hash, item.getNaaccrId());
+            hash = combineHash(hash, item.getNaaccrNum());
+            hash = combineHash(hash, item.getStartColumn());
+            hash = combineHash(hash, item.getLength());
+            hash = combineHash(hash, item.getAllowUnlimitedText());
+            hash = combineHash(hash, item.getRecordTypes());
+            hash = combineHash(hash, item.getParentXmlElement());
+            hash = combineHash(hash, item.getDataType());
+            hash = combineHash(hash, item.getRegexValidation());
+            hash = combineHash(hash, item.getPadding());
+            hash = combineHash(hash, item.getTrim());
+        }
+        return hash;
+    }
+
+    // combines the hash of the given property (maybe null) with the current hash
+    private static long combineHash(long hash, Object value) {
+        return 1000003L * hash + (value == null ? 0x9E3779B9L : value.hashCode());
+    }
+
     /**
      * Helper method to compute an ID for a runtime dictionary based on the URI of its base and user dictionaries.
      * @param baseDictionary base dictionary (required)
@@ -5,6 +5,8 @@ package com.imsweb.naaccrxml.runtime;
 
 import java.util.regex.Pattern;
 
+import com.imsweb.naaccrxml.NaaccrDataTypeValidator;
+import com.imsweb.naaccrxml.NaaccrXmlDictionaryUtils;
 import com.imsweb.naaccrxml.entity.dictionary.NaaccrDictionaryItem;
 
 public class RuntimeNaaccrDictionaryItem {
@@ -25,10 +27,16 @@ public class RuntimeNaaccrDictionaryItem {
 
     private String _dataType;
 
+    // the validator of the data type (null if the item doesn't define a data type)
+    private NaaccrDataTypeValidator _dataTypeValidator;
+
     private String _trim;
 
     private String _padding;
 
+    // the index of this item among the items of the same parent XML element (set by the runtime dictionary, -1 if the item doesn't belong to one)
+    private int _ordinal = -1;
+
     public RuntimeNaaccrDictionaryItem(NaaccrDictionaryItem item) {
         _naaccrId = item.getNaaccrId();
         _naaccrNum = item.getNaaccrNum();
@@ -39,6 +47,7 @@ public class RuntimeNaaccrDictionaryItem {
         if (item.getRegexValidation() != null)
             _regexValidation = Pattern.compile(item.getRegexValidation());
         _dataType = item.getDataType();
+        _dataTypeValidator = NaaccrXmlDictionaryUtils.getDataTypeValidator(item.getDataType());
         _trim = item.getTrim();
         _padding = item.getPadding();
     }
@@ -75,6 +84,15 @@ public class RuntimeNaaccrDictionaryItem {
         return _dataType;
     }
 
+    /**
+     * Returns the validator of the data type of this item; the validators don't allocate anything, so they should be used instead of
+     * NaaccrXmlDictionaryUtils.getDataTypePattern() when validating the values.
+     * @return the data type validator, null if the item doesn't define a (known) data type
+     */
+    public NaaccrDataTypeValidator getDataTypeValidator() {
+        return _dataTypeValidator;
+    }
+
     public String getPadding() {
         return _padding;
     }
@@ -82,4 +100,17 @@ public class RuntimeNaaccrDictionaryItem {
     public String getTrim() {
         return _trim;
     }
+
+    /**
+     * Returns the index of this item among the items of the runtime dictionary that have the same parent XML element
+     * (see RuntimeNaaccrDictionary.getItemsForParentXmlElement()); returns -1 if the item wasn't created by a runtime dictionary.
+     * @return the ordinal of the item
+     */
+    public int getOrdinal() {
+        return _ordinal;
+    }
+
+    void setOrdinal(int ordinal) {
+        _ordinal = ordinal;
+    }
 }
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2019 Information Management Services, Inc.
+ */
+package com.imsweb.naaccrxml.runtime;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.imsweb.naaccrxml.NaaccrDataTypeValidator;
+import com.imsweb.naaccrxml.NaaccrXmlDictionaryUtils;
+import com.imsweb.naaccrxml.NaaccrXmlUtils;
+
+/**
+ * A "compiled" view of a runtime dictionary that is optimized for decoding flat-file lines.
+ * <br/><br/>
+ * The items are split by parent XML element (root, patient and tumor) and each of their properties is resolved once into primitive arrays,
+ * so decoding a line doesn't require any string comparison nor any lookup per item. Items without a start column are not included.
+ * <br/><br/>
+ * Instances are immutable and are created (and cached) by the runtime dictionary; see RuntimeNaaccrDictionary.getFlatReadPlan().
+ */
+public class RuntimeNaaccrFlatReadPlan {
+
+    // the items for each of the three levels
+    private final Level _rootLevel, _patientLevel, _tumorLevel;
+
+    /**
+     * Constructor.
+     * @param dictionary runtime dictionary to compile, required
+     */
+    public RuntimeNaaccrFlatReadPlan(RuntimeNaaccrDictionary dictionary) {
+        List<RuntimeNaaccrDictionaryItem> rootItems = new ArrayList<>(), patientItems = new ArrayList<>(), tumorItems = new ArrayList<>();
+        for (RuntimeNaaccrDictionaryItem item : dictionary.getItems()) {
+            if (item.getStartColumn() == null || item.getLength() == null)
+                continue;
+            if (NaaccrXmlUtils.NAACCR_XML_TAG_ROOT.equals(item.getParentXmlElement()))
+                rootItems.add(item);
+            else if (NaaccrXmlUtils.NAACCR_XML_TAG_PATIENT.equals(item.getParentXmlElement()))
+                patientItems.add(item);
+            else if (NaaccrXmlUtils.NAACCR_XML_TAG_TUMOR.equals(item.getParentXmlElement()))
+                tumorItems.add(item);
+        }
+
+        _rootLevel = new Level(rootItems);
+        _patientLevel = new Level(patientItems);
+        _tumorLevel = new Level(tumorItems);
+    }
+
+    public Level getRootLevel() {
+        return _rootLevel;
+    }
+
+    public Level getPatientLevel() {
+        return _patientLevel;
+    }
+
+    public Level getTumorLevel() {
+        return _tumorLevel;
+    }
+
+    /**
+     * A compiled list of items; the plan uses one per level (root, patient or tumor), but a level can also be created for any list of items
+     * (for example the items used to group the tumors into patients).
+     */
+    public static final class Level {
+
+        // the original item definitions
+        private final RuntimeNaaccrDictionaryItem[] _items;
+
+        // the (0-based) start and (exclusive) end columns
+        private final int[] _start, _end;
+
+        // whether the values need to be fully trimmed (otherwise they are trimmed only when they are blank)
+        private final boolean[] _trimAll;
+
+        // whether the data type requires the value to use the full length of the item
+        private final boolean[] _fullLengthRequired;
+
+        // the data type validators (null for items that don't define a data type)
+        private final NaaccrDataTypeValidator[] _dataTypeValidators;
+
+        /**
+         * Constructor.
+         * @param items the items for this level, they must all define a start column and a length
+         */
+        public Level(List<RuntimeNaaccrDictionaryItem> items) {
+            int size = items.size();
+            _items = items.toArray(new RuntimeNaaccrDictionaryItem[size]);
+            _start = new int[size];
+            _end = new int[size];
+            _trimAll = new boolean[size];
+            _fullLengthRequired = new boolean[size];
+            _dataTypeValidators = new NaaccrDataTypeValidator[size];
+            for (int i = 0; i < size; i++) {
+                RuntimeNaaccrDictionaryItem item = _items[i];
+                _start[i] = item.getStartColumn() - 1; // dictionary is 1-based; Java substring is 0-based...
+                _end[i] = _start[i] + item.getLength();
+                _trimAll[i] = item.getTrim() == null || NaaccrXmlDictionaryUtils.NAACCR_TRIM_ALL.equals(item.getTrim());
+                _fullLengthRequired[i] = NaaccrXmlDictionaryUtils.isFullLengthRequiredForType(item.getDataType());
+                _dataTypeValidators[i] = item.getDataTypeValidator();
+            }
+        }
+
+        public int size() {
+            return _items.length;
+        }
+
+        public RuntimeNaaccrDictionaryItem getItem(int idx) {
+            return _items[idx];
+        }
+
+        public int getStart(int idx) {
+            return _start[idx];
+        }
+
+        public int getEnd(int idx) {
+            return _end[idx];
+        }
+
+        public int getLength(int idx) {
+            return _end[idx] - _start[idx];
+        }
+
+        public boolean isTrimAll(int idx) {
+            return _trimAll[idx];
+        }
+
+        public boolean isFullLengthRequired(int idx) {
+            return _fullLengthRequired[idx];
+        }
+
+        public NaaccrDataTypeValidator getDataTypeValidator(int idx) {
+            return _dataTypeValidators[idx];
+        }
+
+        /**
+         * Extracts the value of the requested item from the given line, applying the trimming rules; returns null if the value is blank or the line too short.
+         * @param line line to extract the value from, required
+         * @param idx index of the item within this level
+         * @return the extracted value, null if there is no value
+         */
+        public String extractValue(String line, int idx) {
+            int start = getValueStart(line, idx);
+            if (start == -1)
+                return null;
+            return line.substring(start, getValueEnd(line, idx));
+        }
+
+        /**
+         * Returns true if the two lines have the same values for every item of this level, and at least one of those values is not blank.
+         * <br/><br/>
+         * The values are compared in place, without creating any intermediate object.
+         * @param line1 first line, required
+         * @param line2 second line, required
+         * @return true if the two lines have the same non-blank values
+         */
+        public boolean haveSameValues(String line1, String line2) {
+            boolean hasValue = false;
+            for (int idx = 0; idx < _items.length; idx++) {
+                int start1 = getValueStart(line1, idx), start2 = getValueStart(line2, idx);
+                if (start1 == -1 || start2 == -1) {
+                    if (start1 != start2)
+                        return false;
+                    continue;
+                }
+                int length = getValueEnd(line1, idx) - start1;
+                if (length != getValueEnd(line2, idx) - start2 || !line1.regionMatches(start1, line2, start2, length))
+                    return false;
+                hasValue = true;
+            }
+            return hasValue;
+        }
+
+        // returns the start of the value (trimming rules applied), -1 if the value is blank or the line too short
+        private int getValueStart(String line, int idx) {
+            int start = _start[idx], end = _end[idx];
+            if (end > line.length())
+                return -1;
+
+            // same rules as String.trim(), but without creating the intermediate value
+            int trimmedStart = start;
+            while (trimmedStart < end && line.charAt(trimmedStart) <= ' ')
+                trimmedStart++;
+            if (trimmedStart == end)
+                return -1;
+            return _trimAll[idx] ? trimmedStart : start;
+        }
+
+        // returns the end of the value (trimming rules applied); only valid if the value is not blank
+        private int getValueEnd(String line, int idx) {
+            int end = _end[idx];
+            if (_trimAll[idx])
+                while (line.charAt(end - 1) <= ' ')
+                    end--;
+            return end;
+        }
+    }
+}
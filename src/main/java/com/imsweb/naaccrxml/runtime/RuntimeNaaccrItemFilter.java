@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2019 Information Management Services, Inc.
+ */
+package com.imsweb.naaccrxml.runtime;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.imsweb.naaccrxml.NaaccrOptions;
+
+/**
+ * A "compiled" view of the include/exclude options (see NaaccrOptions.processItem()) for a given runtime dictionary.
+ * <br/><br/>
+ * The include/exclude lists are resolved once into a boolean array per parent XML element, indexed by the item ordinals, so checking whether an item
+ * of the dictionary needs to be processed doesn't require any lookup in those lists. The items that are not defined in the dictionary are checked against
+ * a copy of the lists.
+ * <br/><br/>
+ * The options are read when the filter is created, changing them afterward has no effect on the filter. Instances are immutable and can be shared
+ * between threads; the readers and writers create one when they are created.
+ */
+public class RuntimeNaaccrItemFilter {
+
+    // the runtime dictionary the filter was created for
+    private final RuntimeNaaccrDictionary _dictionary;
+
+    // whether all the items are processed (no include nor exclude list)
+    private final boolean _processAll;
+
+    // whether the items need to be processed, for each parent XML element, indexed by ordinal
+    private final Map<String, boolean[]> _processed;
+
+    // the items to include or to exclude (only one of them is set, unless all the items are processed)
+    private final Set<String> _itemsToInclude, _itemsToExclude;
+
+    /**
+     * Constructor.
+     * @param dictionary runtime dictionary, required
+     * @param options options defining the items to include or exclude, if null all the items are processed
+     */
+    public RuntimeNaaccrItemFilter(RuntimeNaaccrDictionary dictionary, NaaccrOptions options) {
+        _dictionary = dictionary;
+        _itemsToInclude = options == null || options.getItemsToInclude() == null ? null : new HashSet<>(options.getItemsToInclude());
+        _itemsToExclude = options == null || options.getItemsToExclude() == null || _itemsToInclude != null ? null : new HashSet<>(options.getItemsToExclude());
+        _processAll = _itemsToInclude == null && _itemsToExclude == null;
+
+        _processed = new HashMap<>();
+        if (!_processAll) {
+            for (RuntimeNaaccrDictionaryItem item : dictionary.getItems()) {
+                if (item.getParentXmlElement() == null || item.getOrdinal() < 0)
+                    continue;
+                boolean[] processed = _processed.computeIfAbsent(item.getParentXmlElement(), k -> new boolean[dictionary.getItemsForParentXmlElement(k).size()]);
+                processed[item.getOrdinal()] = processItem(item.getNaaccrId(), false);
+            }
+        }
+    }
+
+    public RuntimeNaaccrDictionary getDictionary() {
+        return _dictionary;
+    }
+
+    /**
+     * Returns true if all the items are processed (there is no include nor exclude list); in that case there is no need to check the items individually.
+     * @return true if all the items are processed
+     */
+    public boolean isProcessingAllItems() {
+        return _processAll;
+    }
+
+    /**
+     * Returns whether the given item needs to be processed; this is a simple array lookup for the items of the dictionary of this filter.
+     * @param def item definition, required
+     * @return true if the corresponding item needs to be processed
+     */
+    public boolean processItem(RuntimeNaaccrDictionaryItem def) {
+        if (_processAll)
+            return true;
+        boolean[] processed = _processed.get(def.getParentXmlElement());
+        int ordinal = def.getOrdinal();
+        if (processed != null && ordinal >= 0 && ordinal < processed.length) {
+            // the definition might come from another dictionary, in which case the ordinal can't be used
+            List<RuntimeNaaccrDictionaryItem> items = _dictionary.getItemsForParentXmlElement(def.getParentXmlElement());
+            if (items.get(ordinal) == def)
+                return processed[ordinal];
+        }
+        return processItem(def.getNaaccrId(), false);
+    }
+
+    /**
+     * Returns whether the item with the given NAACCR ID needs to be processed.
+     * @param naaccrId NAACCR ID
+     * @return true if the corresponding item needs to be processed
+     */
+    public boolean processItem(String naaccrId) {
+        return processItem(naaccrId, true);
+    }
+
+    private boolean processItem(String naaccrId, boolean useDictionary) {
+        if (_processAll)
+            return true;
+        if (useDictionary && naaccrId != null) {
+            RuntimeNaaccrDictionaryItem def = _dictionary.getItemByNaaccrId(naaccrId);
+            if (def != null)
+                return processItem(def);
+        }
+        if (_itemsToInclude != null)
+            return _itemsToInclude.contains(naaccrId);
+        return !_itemsToExclude.contains(naaccrId);
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2019 Information Management Services, Inc.
+ */
+package com.imsweb.naaccrxml;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Properties;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.imsweb.naaccrxml.entity.NaaccrData;
+
+public class BatchProcessorTest {
+
+    @Test
+    public void testBatchProcessor() throws IOException, InterruptedException {
+        File inputDir = TestingUtils.createFile("batch-input"), outputDir = TestingUtils.createFile("batch-output");
+        for (File dir : new File[] {inputDir, outputDir}) {
+            FileUtils.deleteDirectory(dir);
+            if (!dir.mkdirs())
+                throw new IOException("Unable to create " + dir.getPath());
+        }
+
+        // one big file and a few small ones
+        NaaccrData big = NaaccrXmlUtils.readFlatFile(TestingUtils.getDataFile("fake-naaccr14inc-10000-rec.txt.gz"), null, null, null);
+        big.setPatients(new ArrayList<>(big.getPatients().subList(0, 2000)));
+        NaaccrXmlUtils.writeFlatFile(big, new File(inputDir, "big.txt.gz"), null, null, null);
+        for (int i = 1; i <= 3; i++)
+            FileUtils.copyFile(TestingUtils.getDataFile("fake-naaccr14inc-2-rec.txt"), new File(inputDir, "small-" + i + ".txt"));
+
+        Properties props = new Properties();
+        props.setProperty("input.folder", inputDir.getPath());
+        props.setProperty("processing.mode", "flat-to-xml");
+        props.setProperty("processing.num-threads", "3");
+        props.setProperty("output.folder", outputDir.getPath());
+        props.setProperty("output.create-report", "true");
+        File optionsFile = TestingUtils.createFile("batch-options.properties");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(optionsFile), StandardCharsets.UTF_8)) {
+            props.store(writer, null);
+        }
+
+        BatchProcessor.main(new String[] {optionsFile.getPath()});
+
+        // the patients of the big file should be written in the original order
+        NaaccrData data = NaaccrXmlUtils.readXmlFile(new File(outputDir, "big.xml.gz"), null, null, null);
+        Assert.assertEquals(big.getPatients().size(), data.getPatients().size());
+        for (int i = 0; i < big.getPatients().size(); i++)
+            Assert.assertEquals(big.getPatients().get(i).getItemValue("patientIdNumber"), data.getPatients().get(i).getItemValue("patientIdNumber"));
+        int numSmallPatients = NaaccrXmlUtils.readFlatFile(TestingUtils.getDataFile("fake-naaccr14inc-2-rec.txt"), null, null, null).getPatients().size();
+        for (int i = 1; i <= 3; i++)
+            Assert.assertEquals(numSmallPatients, NaaccrXmlUtils.readXmlFile(new File(outputDir, "small-" + i + ".xml"), null, null, null).getPatients().size());
+
+        String report = new String(Files.readAllBytes(new File(outputDir, "report.txt").toPath()), StandardCharsets.UTF_8);
+        Assert.assertTrue(report.contains("total number of files: 4"));
+        Assert.assertTrue(report.contains("number of threads: 3"));
+        Assert.assertTrue(report.contains("big.txt.gz"));
+        Assert.assertTrue(report.contains("small-3.txt"));
+        Assert.assertTrue(report.contains("total number of processed tumors: " + BatchProcessor.formatNumber(big.getPatients().size() + 3 * 2)));
+        Assert.assertFalse(report.contains("processing error"));
+    }
+
+    @Test
+    public void testCheckpoint() throws IOException, InterruptedException {
+        File inputDir = TestingUtils.createFile("batch-checkpoint-input"), outputDir = TestingUtils.createFile("batch-checkpoint-output");
+        for (File dir : new File[] {inputDir, outputDir}) {
+            FileUtils.deleteDirectory(dir);
+            if (!dir.mkdirs())
+                throw new IOException("Unable to create " + dir.getPath());
+        }
+
+        // a valid file and an invalid one
+        NaaccrData big = NaaccrXmlUtils.readFlatFile(TestingUtils.getDataFile("fake-naaccr14inc-10000-rec.txt.gz"), null, null, null);
+        big.setPatients(new ArrayList<>(big.getPatients().subList(0, 500)));
+        NaaccrXmlUtils.writeFlatFile(big, new File(inputDir, "big.txt"), null, null, null);
+        int numBigTumors = big.getPatients().stream().mapToInt(p -> p.getTumors().size()).sum();
+        Files.write(new File(inputDir, "other.txt").toPath(), "invalid".getBytes(StandardCharsets.UTF_8));
+
+        Properties props = new Properties();
+        props.setProperty("input.folder", inputDir.getPath());
+        props.setProperty("processing.mode", "flat-to-xml");
+        props.setProperty("processing.checkpoint", "true");
+        props.setProperty("processing.checkpoint-interval", "100");
+        props.setProperty("output.folder", outputDir.getPath());
+        props.setProperty("output.create-report", "true");
+        File optionsFile = TestingUtils.createFile("batch-checkpoint-options.properties");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(optionsFile), StandardCharsets.UTF_8)) {
+            props.store(writer, null);
+        }
+
+        // the invalid file fails, so the checkpoints are kept
+        BatchProcessor.main(new String[] {optionsFile.getPath()});
+        String report = new String(Files.readAllBytes(new File(outputDir, "report.txt").toPath()), StandardCharsets.UTF_8);
+        Assert.assertTrue(report.contains("processing error"));
+        Assert.assertFalse(report.contains("resumed from checkpoint"));
+        File checkpointDir = new File(outputDir, ".naaccr-batch-checkpoint");
+        Assert.assertTrue(new File(checkpointDir, "big.xml.properties").exists());
+        Assert.assertEquals(big.getPatients().size(), NaaccrXmlUtils.readXmlFile(new File(outputDir, "big.xml"), null, null, null).getPatients().size());
+        String firstReport = report;
+
+        // once the invalid file is fixed, only that file is processed, and the checkpoints are removed
+        FileUtils.copyFile(TestingUtils.getDataFile("fake-naaccr14inc-2-rec.txt"), new File(inputDir, "other.txt"));
+        BatchProcessor.main(new String[] {optionsFile.getPath()});
+        report = new String(Files.readAllBytes(new File(outputDir, "report.txt").toPath()), StandardCharsets.UTF_8);
+        Assert.assertFalse(report.contains("processing error"));
+        Assert.assertTrue(report.contains("resumed from checkpoint: " + BatchProcessor.formatNumber(big.getPatients().size()) + " patient(s) already processed"));
+        Assert.assertTrue(report.contains("total number of processed tumors: " + BatchProcessor.formatNumber(numBigTumors + 2)));
+        Assert.assertFalse(checkpointDir.exists());
+        Assert.assertEquals(big.getPatients().size(), NaaccrXmlUtils.readXmlFile(new File(outputDir, "big.xml"), null, null, null).getPatients().size());
+
+        // the warnings of the skipped file are restored from its checkpoint
+        String warnings = firstReport.substring(firstReport.indexOf("big.txt"));
+        warnings = warnings.substring(warnings.indexOf("warnings:"));
+        Assert.assertTrue(report.contains(warnings.substring(0, warnings.indexOf("\n\n"))));
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2019 Information Management Services, Inc.
+ */
+package com.imsweb.naaccrxml;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.imsweb.naaccrxml.entity.Item;
+import com.imsweb.naaccrxml.entity.Patient;
+import com.imsweb.naaccrxml.entity.Tumor;
+
+public class NaaccrErrorStatisticsTest {
+
+    @Test
+    public void testStatistics() {
+        NaaccrErrorStatistics stats = new NaaccrErrorStatistics();
+        Assert.assertTrue(stats.isEmpty());
+        Assert.assertTrue(stats.getCodes().isEmpty());
+        Assert.assertEquals(0, stats.getCount(NaaccrErrorUtils.CODE_BAD_LINE_LENGTH));
+        Assert.assertTrue(stats.getNaaccrIds(NaaccrErrorUtils.CODE_BAD_LINE_LENGTH).isEmpty());
+
+        stats.addError(NaaccrErrorUtils.CODE_VAL_DATA_TYPE, "primarySite");
+        stats.addError(NaaccrErrorUtils.CODE_VAL_DATA_TYPE, "dateOfDiagnosis");
+        stats.addError(NaaccrErrorUtils.CODE_VAL_DATA_TYPE, "primarySite");
+        stats.addError(NaaccrErrorUtils.CODE_BAD_LINE_LENGTH, null);
+        stats.addError("CUSTOM_CODE", "nameLast");
+        Assert.assertFalse(stats.isEmpty());
+        Assert.assertEquals(5, stats.getTotalCount());
+        Assert.assertEquals(3, stats.getCount(NaaccrErrorUtils.CODE_VAL_DATA_TYPE));
+        Assert.assertEquals(Arrays.asList("dateOfDiagnosis", "primarySite"), stats.getNaaccrIds(NaaccrErrorUtils.CODE_VAL_DATA_TYPE));
+        Assert.assertTrue(stats.getNaaccrIds(NaaccrErrorUtils.CODE_BAD_LINE_LENGTH).isEmpty());
+
+        // the codes are returned in the order of the error utility class, unknown codes at the end
+        List<String> expectedCodes = new ArrayList<>();
+        for (String code : NaaccrErrorUtils.getAllValidationErrors().keySet())
+            if (code.equals(NaaccrErrorUtils.CODE_VAL_DATA_TYPE) || code.equals(NaaccrErrorUtils.CODE_BAD_LINE_LENGTH))
+                expectedCodes.add(code);
+        expectedCodes.add("CUSTOM_CODE");
+        Assert.assertEquals(expectedCodes, stats.getCodes());
+
+        NaaccrErrorStatistics other = new NaaccrErrorStatistics();
+        other.addError(NaaccrErrorUtils.CODE_VAL_DATA_TYPE, "nameFirst");
+        other.addError(NaaccrErrorUtils.CODE_VAL_TOO_LONG, "patientIdNumber");
+        stats.merge(other);
+        Assert.assertEquals(7, stats.getTotalCount());
+        Assert.assertEquals(4, stats.getCount(NaaccrErrorUtils.CODE_VAL_DATA_TYPE));
+        Assert.assertEquals(Arrays.asList("dateOfDiagnosis", "nameFirst", "primarySite"), stats.getNaaccrIds(NaaccrErrorUtils.CODE_VAL_DATA_TYPE));
+        Assert.assertEquals(Collections.singletonList("patientIdNumber"), stats.getNaaccrIds(NaaccrErrorUtils.CODE_VAL_TOO_LONG));
+        Assert.assertEquals(2, other.getTotalCount());
+
+        stats.clear();
+        Assert.assertTrue(stats.isEmpty());
+        Assert.assertTrue(stats.getCodes().isEmpty());
+    }
+
+    @Test
+    public void testAddPatient() {
+        Patient patient = new Patient();
+        patient.addValidationError(new NaaccrValidationError(NaaccrErrorUtils.CODE_BAD_LINE_LENGTH, 1));
+        Item item = new Item("patientIdNumber", "X");
+        item.setValidationError(new NaaccrValidationError(NaaccrErrorUtils.CODE_VAL_DATA_TYPE, "X"));
+        patient.addItem(item);
+        for (int i = 0; i < 2; i++) {
+            Tumor tumor = new Tumor();
+            item = new Item("primarySite", "X");
+            item.setValidationError(new NaaccrValidationError(NaaccrErrorUtils.CODE_VAL_DATA_TYPE, "X"));
+            tumor.addItem(item);
+            patient.addTumor(tumor);
+        }
+
+        NaaccrErrorStatistics stats = new NaaccrErrorStatistics();
+        stats.addPatient(patient);
+        Assert.assertEquals(patient.getAllValidationErrors().size(), stats.getTotalCount());
+        Assert.assertEquals(1, stats.getCount(NaaccrErrorUtils.CODE_BAD_LINE_LENGTH));
+        Assert.assertEquals(3, stats.getCount(NaaccrErrorUtils.CODE_VAL_DATA_TYPE));
+    }
+
+    @Test
+    public void testConcurrentUpdates() throws Exception {
+        NaaccrErrorStatistics stats = new NaaccrErrorStatistics();
+        int numThreads = 4, numErrors = 10000;
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < numThreads; i++)
+                futures.add(executor.submit(() -> {
+                    for (int j = 0; j < numErrors; j++)
+                        stats.addError(j % 2 == 0 ? NaaccrErrorUtils.CODE_VAL_DATA_TYPE : NaaccrErrorUtils.CODE_BAD_LINE_LENGTH, "item" + (j % 10));
+                }));
+            for (Future<?> future : futures)
+                future.get();
+        }
+        finally {
+            executor.shutdownNow();
+        }
+        Assert.assertEquals((long)numThreads * numErrors, stats.getTotalCount());
+        Assert.assertEquals((long)numThreads * numErrors / 2, stats.getCount(NaaccrErrorUtils.CODE_VAL_DATA_TYPE));
+        Assert.assertEquals(Arrays.asList("item0", "item2", "item4", "item6", "item8"), stats.getNaaccrIds(NaaccrErrorUtils.CODE_VAL_DATA_TYPE));
+    }
+}
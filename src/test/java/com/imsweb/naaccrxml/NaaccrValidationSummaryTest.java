@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2019 Information Management Services, Inc.
+ */
+package com.imsweb.naaccrxml;
+
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class NaaccrValidationSummaryTest {
+
+    @Test
+    public void testSummary() {
+        NaaccrValidationSummary summary = new NaaccrValidationSummary(2);
+        Assert.assertTrue(summary.isEmpty());
+        Assert.assertEquals(2, summary.getMaxSamples());
+        Assert.assertTrue(summary.getSamples(NaaccrErrorUtils.CODE_VAL_DATA_TYPE).isEmpty());
+
+        for (int i = 10; i > 0; i--) {
+            summary.errorFound(createError(NaaccrErrorUtils.CODE_VAL_DATA_TYPE, "primarySite", i));
+            summary.errorFound(createError(NaaccrErrorUtils.CODE_VAL_DATA_TYPE, "dateOfDiagnosis", 100 + i));
+            summary.errorFound(createError(NaaccrErrorUtils.CODE_BAD_LINE_LENGTH, null, 200 + i));
+        }
+        Assert.assertFalse(summary.isEmpty());
+
+        // everything is counted, but only the first samples are kept
+        Assert.assertEquals(30, summary.getStatistics().getTotalCount());
+        Assert.assertEquals(20, summary.getStatistics().getCount(NaaccrErrorUtils.CODE_VAL_DATA_TYPE));
+        List<NaaccrValidationError> samples = summary.getSamples(NaaccrErrorUtils.CODE_VAL_DATA_TYPE, "primarySite");
+        Assert.assertEquals(2, samples.size());
+        Assert.assertEquals(10, samples.get(0).getLineNumber().intValue());
+        Assert.assertEquals(9, samples.get(1).getLineNumber().intValue());
+        Assert.assertEquals(2, summary.getSamples(NaaccrErrorUtils.CODE_BAD_LINE_LENGTH, null).size());
+        Assert.assertTrue(summary.getSamples(NaaccrErrorUtils.CODE_VAL_DATA_TYPE, "nameLast").isEmpty());
+
+        // the samples of a code are sorted by line number
+        samples = summary.getSamples(NaaccrErrorUtils.CODE_VAL_DATA_TYPE);
+        Assert.assertEquals(4, samples.size());
+        Assert.assertEquals(9, samples.get(0).getLineNumber().intValue());
+        Assert.assertEquals(110, samples.get(3).getLineNumber().intValue());
+
+        summary.clear();
+        Assert.assertTrue(summary.isEmpty());
+        Assert.assertTrue(summary.getSamples(NaaccrErrorUtils.CODE_VAL_DATA_TYPE).isEmpty());
+
+        // the samples can be turned off
+        summary = new NaaccrValidationSummary(0);
+        summary.errorFound(createError(NaaccrErrorUtils.CODE_VAL_DATA_TYPE, "primarySite", 1));
+        Assert.assertEquals(1, summary.getStatistics().getTotalCount());
+        Assert.assertTrue(summary.getSamples(NaaccrErrorUtils.CODE_VAL_DATA_TYPE, "primarySite").isEmpty());
+    }
+
+    private static NaaccrValidationError createError(String code, String naaccrId, int lineNumber) {
+        NaaccrValidationError error = new NaaccrValidationError(code, "X");
+        error.setNaaccrId(naaccrId);
+        error.setLineNumber(lineNumber);
+        return error;
+    }
+}
@@ -12,9 +12,11 @@ import java.io.Writer;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Random;
 import java.util.regex.Pattern;
 
 import org.junit.Assert;
@@ -22,6 +24,7 @@ import org.junit.Test;
 
 import com.imsweb.naaccrxml.entity.dictionary.NaaccrDictionary;
 import com.imsweb.naaccrxml.entity.dictionary.NaaccrDictionaryItem;
+import com.imsweb.naaccrxml.runtime.RuntimeNaaccrDictionary;
 
 import static com.imsweb.naaccrxml.NaaccrFormat.NAACCR_REC_TYPE_CONFIDENTIAL;
 import static com.imsweb.naaccrxml.NaaccrFormat.NAACCR_REC_TYPE_INCIDENCE;
@@ -392,6 +395,38 @@ public class NaaccrXmlDictionaryUtilsTest {
         Assert.assertFalse(pattern.matcher("20100632").matches());
     }
 
+    @Test
+    public void testDataTypeValidators() throws NaaccrIOException {
+        Assert.assertNull(NaaccrXmlDictionaryUtils.getDataTypeValidator(null));
+        Assert.assertNull(NaaccrXmlDictionaryUtils.getDataTypeValidator("unknown"));
+
+        // the validators must accept exactly the same values as the regular expressions
+        List<String> values = new ArrayList<>(Arrays.asList("", " ", "A", "a", "1", ".", "1.", ".1", "1.0", "1..0", "1.0.0", "AVALUE", "A VALUE", "A123", "123A", "A!",
+                "1800", "1799", "1900", "2000", "2100", "0615", "201000", "201001", "201012", "201013", "20100100", "20100101", "20100131", "20100132", "2010061",
+                "201006  ", "2010  15", "A\n", "\n", "A\rB", "A\u0085", "\u2028", "A\u2029B", "\u00E9", "\uD83D\uDE00", "\t"));
+        Random random = new Random(0);
+        char[] chars = "0123456789.AZaz 9\n".toCharArray();
+        for (int i = 0; i < 10000; i++) {
+            char[] value = new char[random.nextInt(9)];
+            for (int j = 0; j < value.length; j++)
+                value[j] = chars[random.nextInt(chars.length)];
+            values.add(new String(value));
+        }
+        for (String dataType : Arrays.asList(NaaccrXmlDictionaryUtils.NAACCR_DATA_TYPE_ALPHA, NaaccrXmlDictionaryUtils.NAACCR_DATA_TYPE_DIGITS,
+                NaaccrXmlDictionaryUtils.NAACCR_DATA_TYPE_MIXED, NaaccrXmlDictionaryUtils.NAACCR_DATA_TYPE_NUMERIC, NaaccrXmlDictionaryUtils.NAACCR_DATA_TYPE_TEXT,
+                NaaccrXmlDictionaryUtils.NAACCR_DATA_TYPE_DATE)) {
+            Pattern pattern = NaaccrXmlDictionaryUtils.getDataTypePattern(dataType);
+            NaaccrDataTypeValidator validator = NaaccrXmlDictionaryUtils.getDataTypeValidator(dataType);
+            Assert.assertNotNull(validator);
+            for (String value : values)
+                Assert.assertEquals(dataType + " -> '" + value + "'", pattern.matcher(value).matches(), validator.isValid(value));
+        }
+
+        // the validators are available on the runtime items
+        RuntimeNaaccrDictionary runtimeDictionary = new RuntimeNaaccrDictionary(NAACCR_REC_TYPE_INCIDENCE, NaaccrXmlDictionaryUtils.getBaseDictionaryByVersion("160"), null);
+        Assert.assertSame(NaaccrXmlDictionaryUtils.getDataTypeValidator(NaaccrXmlDictionaryUtils.NAACCR_DATA_TYPE_DATE), runtimeDictionary.getItemByNaaccrId("dateOfDiagnosis").getDataTypeValidator());
+    }
+
     @Test
     public void testCreateNaaccrIdFromItemName() {
         Assert.assertEquals("", NaaccrXmlDictionaryUtils.createNaaccrIdFromItemName(""));
@@ -10,10 +10,14 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
@@ -22,11 +26,13 @@ import java.util.Map;
 import org.junit.Assert;
 import org.junit.Test;
 
+import com.imsweb.naaccrxml.entity.AbstractEntity;
 import com.imsweb.naaccrxml.entity.Item;
 import com.imsweb.naaccrxml.entity.NaaccrData;
 import com.imsweb.naaccrxml.entity.Patient;
 import com.imsweb.naaccrxml.entity.Tumor;
 import com.imsweb.naaccrxml.entity.dictionary.NaaccrDictionary;
+import com.imsweb.naaccrxml.runtime.NaaccrStreamConfiguration;
 
 public class NaaccrXmlUtilsTest {
 
@@ -60,6 +66,136 @@ public class NaaccrXmlUtilsTest {
         Assert.assertTrue(TestingUtils.readFileAsOneString(xmlFile).contains("myVariable"));
     }
 
+    @Test
+    public void testFlatToXmlMultipleThreads() throws IOException {
+        File flatFile = TestingUtils.getDataFile("fake-naaccr14inc-10000-rec.txt.gz");
+        NaaccrOptions options = new NaaccrOptions();
+        options.setReportLevelMismatch(true);
+
+        // single thread
+        File xmlFile1 = new File(TestingUtils.getWorkingDirectory() + "/build/test-single-thread.xml");
+        List<String> ids1 = new ArrayList<>();
+        NaaccrXmlUtils.flatToXml(flatFile, xmlFile1, options, null, createIdsObserver(ids1), 1);
+
+        // multiple threads; the resulting file should be exactly the same (except for the generation time) and the patients observed in the same order
+        File xmlFile2 = new File(TestingUtils.getWorkingDirectory() + "/build/test-multiple-threads.xml");
+        List<String> ids2 = new ArrayList<>();
+        NaaccrXmlUtils.flatToXml(flatFile, xmlFile2, options, null, createIdsObserver(ids2), 4);
+
+        Assert.assertFalse(ids1.isEmpty());
+        Assert.assertEquals(ids1, ids2);
+        String timeRegex = "timeGenerated=\"[^\"]+\"";
+        Assert.assertEquals(TestingUtils.readFileAsOneString(xmlFile1).replaceAll(timeRegex, ""), TestingUtils.readFileAsOneString(xmlFile2).replaceAll(timeRegex, ""));
+    }
+
+    @Test
+    public void testCompressedFlatFileWithoutExtension() throws IOException {
+        File gzFile = TestingUtils.getDataFile("fake-naaccr14inc-10000-rec.txt.gz");
+
+        // the compression needs to be detected from the content of the file, not its name
+        File flatFile = new File(TestingUtils.getWorkingDirectory() + "/build/test-compressed-flat-file.txt");
+        Files.copy(gzFile.toPath(), flatFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        NaaccrOptions options = new NaaccrOptions();
+        options.setUseCompactEntities(true);
+        // the compressed files can't be memory-mapped even if it's requested
+        options.setUseMemoryMappedFiles(true);
+        NaaccrData data = NaaccrXmlUtils.readFlatFile(gzFile, options, null, null);
+        int numPatients = data.getPatients().size();
+        String patientIdNumber = data.getPatients().get(0).getItemValue("patientIdNumber");
+        data = NaaccrXmlUtils.readFlatFile(flatFile, options, null, null);
+        Assert.assertEquals(numPatients, data.getPatients().size());
+        Assert.assertEquals(patientIdNumber, data.getPatients().get(0).getItemValue("patientIdNumber"));
+
+        File xmlFile = new File(TestingUtils.getWorkingDirectory() + "/build/test-compressed-flat-file.xml");
+        NaaccrXmlUtils.flatToXml(flatFile, xmlFile, options, null, null);
+        Assert.assertEquals(numPatients, NaaccrXmlUtils.readXmlFile(xmlFile, options, null, null).getPatients().size());
+        NaaccrXmlUtils.flatToXml(flatFile, xmlFile, options, null, null, 2);
+        Assert.assertEquals(numPatients, NaaccrXmlUtils.readXmlFile(xmlFile, options, null, null).getPatients().size());
+    }
+
+    @Test
+    public void testUseMemoryMappedFiles() throws IOException {
+        File file = TestingUtils.getDataFile("fake-naaccr14inc-2-rec.txt");
+
+        // the uncompressed files are only memory-mapped when it's requested
+        NaaccrOptions options = new NaaccrOptions();
+        try (PatientFlatReader reader = NaaccrXmlUtils.createFlatReader(file, options, null)) {
+            Assert.assertFalse(reader instanceof PatientFlatMappedReader);
+        }
+        try (PatientFlatReader reader = NaaccrXmlUtils.createFlatReader(file, null, null)) {
+            Assert.assertFalse(reader instanceof PatientFlatMappedReader);
+        }
+        options.setUseMemoryMappedFiles(true);
+        try (PatientFlatReader reader = NaaccrXmlUtils.createFlatReader(file, options, null)) {
+            Assert.assertTrue(reader instanceof PatientFlatMappedReader);
+        }
+        Assert.assertEquals(NaaccrXmlUtils.readFlatFile(file, null, null, null).getPatients().size(), NaaccrXmlUtils.readFlatFile(file, options, null, null).getPatients().size());
+    }
+
+    @Test
+    public void testXmlToFlatMultipleThreads() throws IOException {
+        File xmlFile = new File(TestingUtils.getWorkingDirectory() + "/build/test-xml-to-flat-multiple-threads.xml");
+        NaaccrXmlUtils.flatToXml(TestingUtils.getDataFile("fake-naaccr14inc-10000-rec.txt.gz"), xmlFile, null, null, null);
+
+        // single thread
+        File flatFile1 = new File(TestingUtils.getWorkingDirectory() + "/build/test-single-thread.txt");
+        List<String> ids1 = new ArrayList<>();
+        List<Integer> lineNumbers1 = new ArrayList<>();
+        NaaccrXmlUtils.xmlToFlat(xmlFile, flatFile1, null, null, createIdsObserver(ids1, lineNumbers1), 1);
+
+        // multiple threads; the resulting file should be exactly the same and the patients observed in the same order, with the same line numbers
+        File flatFile2 = new File(TestingUtils.getWorkingDirectory() + "/build/test-multiple-threads.txt");
+        List<String> ids2 = new ArrayList<>();
+        List<Integer> lineNumbers2 = new ArrayList<>();
+        NaaccrXmlUtils.xmlToFlat(xmlFile, flatFile2, null, null, createIdsObserver(ids2, lineNumbers2), 4);
+
+        Assert.assertFalse(ids1.isEmpty());
+        Assert.assertEquals(ids1, ids2);
+        Assert.assertEquals(lineNumbers1, lineNumbers2);
+        Assert.assertEquals(TestingUtils.readFileAsOneString(flatFile1), TestingUtils.readFileAsOneString(flatFile2));
+
+        // errors should be reported with the line number of the file
+        File badXmlFile = new File(TestingUtils.getWorkingDirectory() + "/build/test-xml-to-flat-bad.xml");
+        String xml = TestingUtils.readFileAsOneString(xmlFile);
+        int idx = xml.indexOf("<Patient>", xml.length() / 2);
+        Files.write(badXmlFile.toPath(), (xml.substring(0, idx) + "<Patient><Item>1</Item></Patient>" + xml.substring(idx)).getBytes(StandardCharsets.UTF_8));
+        Integer expectedLineNumber = null;
+        try {
+            NaaccrXmlUtils.xmlToFlat(badXmlFile, flatFile1, null, null, null, 1);
+            Assert.fail("Was expecting an exception");
+        }
+        catch (NaaccrIOException e) {
+            expectedLineNumber = e.getLineNumber();
+        }
+        Assert.assertNotNull(expectedLineNumber);
+        try {
+            NaaccrXmlUtils.xmlToFlat(badXmlFile, flatFile2, null, null, null, 4);
+            Assert.fail("Was expecting an exception");
+        }
+        catch (NaaccrIOException e) {
+            Assert.assertEquals(expectedLineNumber, e.getLineNumber());
+        }
+    }
+
+    private static NaaccrObserver createIdsObserver(List<String> ids) {
+        return createIdsObserver(ids, new ArrayList<>());
+    }
+
+    private static NaaccrObserver createIdsObserver(List<String> ids, List<Integer> lineNumbers) {
+        return new NaaccrObserver() {
+            @Override
+            public void patientRead(Patient patient) {
+                ids.add(patient.getItemValue("patientIdNumber"));
+                lineNumbers.add(patient.getStartLineNumber());
+            }
+
+            @Override
+            public void patientWritten(Patient patient) {
+                // ignored
+            }
+        };
+    }
+
     @Test
     public void testXmlToFlat() throws IOException {
         File flatFile = new File(TestingUtils.getWorkingDirectory() + "/build/test.txt");
@@ -129,6 +265,173 @@ public class NaaccrXmlUtilsTest {
         }
     }
 
+    @Test
+    public void testReadCompactEntities() throws IOException {
+        NaaccrOptions options = new NaaccrOptions();
+        options.setReportLevelMismatch(true);
+        NaaccrOptions compactOptions = new NaaccrOptions();
+        compactOptions.setReportLevelMismatch(true);
+        compactOptions.setUseCompactEntities(true);
+
+        // flat file (the first few hundred records of the large test file)
+        File flatFile = new File(TestingUtils.getBuildDirectory(), "test-compact.txt");
+        try (BufferedReader reader = new BufferedReader(NaaccrXmlUtils.createReader(TestingUtils.getDataFile("fake-naaccr14inc-10000-rec.txt.gz")));
+             Writer writer = NaaccrXmlUtils.createWriter(flatFile)) {
+            for (int i = 0; i < 300; i++)
+                writer.write(reader.readLine() + "\n");
+        }
+        NaaccrData data = NaaccrXmlUtils.readFlatFile(flatFile, options, null, null);
+        NaaccrData compactData = NaaccrXmlUtils.readFlatFile(flatFile, compactOptions, null, null);
+        Assert.assertTrue(compactData.getPatients().get(0).isUsingCompactStorage());
+        Assert.assertTrue(compactData.getPatients().get(0).getTumors().get(0).isUsingCompactStorage());
+        Assert.assertEquals(describe(data), describe(compactData));
+
+        // writing compact entities should create the same file
+        File file1 = new File(TestingUtils.getBuildDirectory(), "test-compact-1.xml");
+        File file2 = new File(TestingUtils.getBuildDirectory(), "test-compact-2.xml");
+        data.setTimeGenerated(new Date());
+        compactData.setTimeGenerated(data.getTimeGenerated());
+        NaaccrXmlUtils.writeXmlFile(data, file1, null, null, null);
+        NaaccrXmlUtils.writeXmlFile(compactData, file2, null, null, null);
+        Assert.assertEquals(TestingUtils.readFileAsOneString(file1), TestingUtils.readFileAsOneString(file2));
+
+        // XML file, with and without the streaming reader
+        NaaccrStreamConfiguration conf = new NaaccrStreamConfiguration();
+        conf.setUseStreamingReader(true);
+        for (File xmlFile : new File[] {file1, TestingUtils.getDataFile("standard-file.xml")}) {
+            String expected = describe(NaaccrXmlUtils.readXmlFile(xmlFile, options, null, null));
+            Assert.assertEquals(expected, describe(NaaccrXmlUtils.readXmlFile(xmlFile, compactOptions, null, null)));
+            try (PatientXmlReader reader = NaaccrXmlUtils.createPatientXmlReader(NaaccrXmlUtils.createReader(xmlFile), compactOptions, null, conf)) {
+                NaaccrData streamedData = reader.getRootData();
+                for (Patient patient = reader.readPatient(); patient != null; patient = reader.readPatient())
+                    streamedData.addPatient(patient);
+                Assert.assertEquals(expected, describe(streamedData));
+            }
+        }
+    }
+
+    @Test
+    public void testReadLazyEntities() throws IOException {
+        File flatFile = new File(TestingUtils.getBuildDirectory(), "test-lazy.txt");
+        try (BufferedReader reader = new BufferedReader(NaaccrXmlUtils.createReader(TestingUtils.getDataFile("fake-naaccr14inc-10000-rec.txt.gz")));
+             Writer writer = NaaccrXmlUtils.createWriter(flatFile)) {
+            for (int i = 0; i < 300; i++)
+                writer.write(reader.readLine() + "\n");
+        }
+
+        for (boolean exclude : new boolean[] {false, true}) {
+            NaaccrOptions options = new NaaccrOptions();
+            options.setReportLevelMismatch(true);
+            NaaccrOptions lazyOptions = new NaaccrOptions();
+            lazyOptions.setReportLevelMismatch(true);
+            lazyOptions.setUseLazyEntities(true);
+            if (exclude) {
+                options.setItemsToExclude(Arrays.asList("nameLast", "primarySite", "registryId"));
+                lazyOptions.setItemsToExclude(options.getItemsToExclude());
+            }
+
+            NaaccrData data = NaaccrXmlUtils.readFlatFile(flatFile, options, null, null);
+            NaaccrData lazyData = NaaccrXmlUtils.readFlatFile(flatFile, lazyOptions, null, null);
+            Assert.assertTrue(lazyData.getPatients().get(0).getTumors().get(0).isUsingLazyStorage());
+            Assert.assertEquals(describe(data), describe(lazyData));
+            Assert.assertFalse(lazyData.getPatients().get(0).getTumors().get(0).isUsingLazyStorage());
+
+            // writing lazy entities should create the same file
+            StringWriter buf1 = new StringWriter(), buf2 = new StringWriter();
+            try (PatientFlatWriter writer = new PatientFlatWriter(buf1, data, options)) {
+                for (Patient patient : data.getPatients())
+                    writer.writePatient(patient);
+            }
+            lazyData = NaaccrXmlUtils.readFlatFile(flatFile, lazyOptions, null, null);
+            try (PatientFlatWriter writer = new PatientFlatWriter(buf2, lazyData, lazyOptions)) {
+                for (Patient patient : lazyData.getPatients())
+                    writer.writePatient(patient);
+            }
+            Assert.assertEquals(buf1.toString(), buf2.toString());
+        }
+    }
+
+    // returns a description of the patients of the given data, including the items, the line numbers and the errors
+    private static String describe(NaaccrData data) {
+        StringBuilder buf = new StringBuilder();
+        for (Patient patient : data.getPatients()) {
+            describe(patient, buf);
+            for (Tumor tumor : patient.getTumors())
+                describe(tumor, buf);
+            for (NaaccrValidationError error : patient.getAllValidationErrors())
+                buf.append(error.getCode()).append('@').append(error.getLineNumber()).append(';');
+            buf.append('\n');
+        }
+        return buf.toString();
+    }
+
+    private static void describe(AbstractEntity entity, StringBuilder buf) {
+        buf.append('[').append(entity.getStartLineNumber()).append(']');
+        for (Item item : entity.getItems())
+            buf.append(item.getNaaccrId()).append('=').append(item.getValue()).append('@').append(item.getStartLineNumber()).append(';');
+    }
+
+    @Test
+    public void testValidateXmlFile() throws IOException {
+        NaaccrData data = NaaccrXmlUtils.readFlatFile(TestingUtils.getDataFile("fake-naaccr14inc-10000-rec.txt.gz"), null, null, null);
+        data.setPatients(new ArrayList<>(data.getPatients().subList(0, 500)));
+        File xmlFile = TestingUtils.createFile("validate-xml-file.xml");
+        NaaccrXmlUtils.writeXmlFile(data, xmlFile, null, null, null);
+        File flatFile = TestingUtils.createFile("validate-flat-file.txt");
+        NaaccrXmlUtils.writeFlatFile(data, flatFile, null, null, null);
+
+        NaaccrOptions options = new NaaccrOptions();
+        options.setReportLevelMismatch(true);
+        for (File file : new File[] {xmlFile, flatFile}) {
+            boolean xml = file == xmlFile;
+
+            // the errors reported by the streaming validation are the ones the entities would contain
+            NaaccrData expected = xml ? NaaccrXmlUtils.readXmlFile(file, options, null, null) : NaaccrXmlUtils.readFlatFile(file, options, null, null);
+            NaaccrErrorStatistics expectedStats = new NaaccrErrorStatistics();
+            expected.forEachValidationError(expectedStats::addError);
+            expected.getPatients().forEach(expectedStats::addPatient);
+            Assert.assertFalse(expectedStats.isEmpty());
+
+            List<Patient> patients = new ArrayList<>();
+            NaaccrValidationSummary summary = new NaaccrValidationSummary(3);
+            NaaccrObserver observer = new NaaccrObserver() {
+                @Override
+                public void patientRead(Patient patient) {
+                    patients.add(patient);
+                }
+
+                @Override
+                public void patientWritten(Patient patient) {
+                    Assert.fail("Nothing should be written");
+                }
+            };
+            if (xml)
+                NaaccrXmlUtils.validateXmlFile(file, options, null, observer, summary);
+            else
+                NaaccrXmlUtils.validateFlatFile(file, options, null, observer, summary);
+            Assert.assertEquals(data.getPatients().size(), patients.size());
+            Assert.assertEquals(expectedStats.getCodes(), summary.getStatistics().getCodes());
+            for (String code : expectedStats.getCodes()) {
+                Assert.assertEquals(expectedStats.getCount(code), summary.getStatistics().getCount(code));
+                Assert.assertEquals(expectedStats.getNaaccrIds(code), summary.getStatistics().getNaaccrIds(code));
+                for (String naaccrId : expectedStats.getNaaccrIds(code)) {
+                    List<NaaccrValidationError> samples = summary.getSamples(code, naaccrId);
+                    Assert.assertTrue(samples.size() >= 1 && samples.size() <= 3);
+                    for (NaaccrValidationError sample : samples)
+                        Assert.assertEquals(naaccrId, sample.getNaaccrId());
+                }
+            }
+        }
+
+        try {
+            NaaccrXmlUtils.validateXmlFile(xmlFile, null, null, null, null);
+            Assert.fail("Was expecting an exception!");
+        }
+        catch (NaaccrIOException e) {
+            // expected
+        }
+    }
+
     @Test
     public void testWriteXmlFile() throws IOException {
         NaaccrData data = new NaaccrData();
@@ -0,0 +1,339 @@
+/*
+ * Copyright (C) 2019 Information Management Services, Inc.
+ */
+package com.imsweb.naaccrxml;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.thoughtworks.xstream.annotations.XStreamAlias;
+import com.thoughtworks.xstream.annotations.XStreamOmitField;
+
+import com.imsweb.naaccrxml.entity.AbstractEntity;
+import com.imsweb.naaccrxml.entity.Item;
+import com.imsweb.naaccrxml.entity.NaaccrData;
+import com.imsweb.naaccrxml.entity.Patient;
+import com.imsweb.naaccrxml.entity.Tumor;
+import com.imsweb.naaccrxml.entity.dictionary.NaaccrDictionary;
+import com.imsweb.naaccrxml.entity.dictionary.NaaccrDictionaryItem;
+import com.imsweb.naaccrxml.runtime.NaaccrStreamConfiguration;
+
+public class PatientBinaryWriterTest {
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        NaaccrData data = new NaaccrData(NaaccrFormat.NAACCR_FORMAT_16_ABSTRACT);
+        data.setSpecificationVersion(SpecificationVersion.SPEC_1_3);
+        data.setTimeGenerated(new Date(1234567890000L));
+        data.setUserDictionaryUri(Collections.singletonList("http://test.org/naaccrxml/test.xml"));
+        data.addExtraRootParameters("extraParam", "extra value");
+        data.addItem(new Item("registryId", "0000000001"));
+        data.addItem(new Item("vendorName", null, "Vendor Ü", 3));
+
+        List<Patient> patients = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            Patient patient = new Patient();
+            patient.setStartLineNumber(10 * i + 5);
+            patient.addItem(new Item("patientIdNumber", 20, String.format("%08d", i), 10 * i + 6));
+            patient.addItem(new Item("nameLast", "O'Neil & Dupré " + i));
+            if (i % 5 == 0)
+                patient.addItem(new Item("unknownItem", "unknown value"));
+            for (int j = 0; j < i % 3; j++) {
+                Tumor tumor = new Tumor();
+                tumor.setStartLineNumber(10 * i + 7 + j);
+                tumor.addItem(new Item("primarySite", "C" + (100 + j)));
+                tumor.addItem(new Item("myVariable", String.valueOf(j)));
+                // an item on the wrong level is written by ID
+                tumor.addItem(new Item("nameFirst", "FIRST"));
+                tumor.addItem(new Item("dateOfDiagnosis", null));
+                patient.addTumor(tumor);
+            }
+            patients.add(patient);
+        }
+
+        List<NaaccrDictionary> dictionaries = Collections.singletonList(TestingUtils.createUserDictionary());
+        for (boolean compress : new boolean[] {false, true}) {
+            for (int blockSize : new int[] {1, 100, PatientBinaryWriter.DEFAULT_BLOCK_SIZE}) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                try (PatientBinaryWriter writer = new PatientBinaryWriter(out, data, null, dictionaries, null, compress, blockSize)) {
+                    for (Patient patient : patients)
+                        writer.writePatient(patient);
+                }
+
+                for (boolean compact : new boolean[] {false, true}) {
+                    NaaccrOptions options = new NaaccrOptions();
+                    options.setUseCompactEntities(compact);
+                    try (PatientBinaryReader reader = new PatientBinaryReader(new ByteArrayInputStream(out.toByteArray()), options, dictionaries)) {
+                        NaaccrData rootData = reader.getRootData();
+                        Assert.assertEquals(data.getBaseDictionaryUri(), rootData.getBaseDictionaryUri());
+                        Assert.assertEquals(data.getUserDictionaryUri(), rootData.getUserDictionaryUri());
+                        Assert.assertEquals(data.getRecordType(), rootData.getRecordType());
+                        Assert.assertEquals(data.getSpecificationVersion(), rootData.getSpecificationVersion());
+                        Assert.assertEquals(data.getTimeGenerated(), rootData.getTimeGenerated());
+                        Assert.assertEquals(data.getExtraRootParameters(), rootData.getExtraRootParameters());
+                        assertSameItems(data, rootData);
+
+                        for (Patient expected : patients) {
+                            Patient patient = reader.readPatient();
+                            Assert.assertNotNull(patient);
+                            Assert.assertEquals(compact, patient.isUsingCompactStorage());
+                            assertSameItems(expected, patient);
+                            Assert.assertEquals(expected.getTumors().size(), patient.getTumors().size());
+                            for (int i = 0; i < expected.getTumors().size(); i++)
+                                assertSameItems(expected.getTumors().get(i), patient.getTumors().get(i));
+                        }
+                        Assert.assertNull(reader.readPatient());
+                        Assert.assertNull(reader.readPatient());
+                    }
+
+                    // the items without a value are kept, regardless of the storage
+                    try (PatientBinaryReader reader = new PatientBinaryReader(new ByteArrayInputStream(out.toByteArray()), options, dictionaries)) {
+                        reader.readPatient();
+                        Item item = reader.readPatient().getTumors().get(0).getItem("dateOfDiagnosis");
+                        Assert.assertNotNull(item);
+                        Assert.assertNull(item.getValue());
+                    }
+                }
+            }
+        }
+
+        // the include/exclude options are applied when reading and writing the data
+        NaaccrOptions options = new NaaccrOptions();
+        options.setItemsToExclude(Arrays.asList("nameLast", "primarySite"));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (PatientBinaryWriter writer = new PatientBinaryWriter(out, data, options, dictionaries)) {
+            writer.writePatient(patients.get(1));
+        }
+        options = new NaaccrOptions();
+        options.setItemsToInclude(Arrays.asList("patientIdNumber", "nameLast", "primarySite"));
+        try (PatientBinaryReader reader = new PatientBinaryReader(new ByteArrayInputStream(out.toByteArray()), options, dictionaries)) {
+            Patient patient = reader.readPatient();
+            Assert.assertEquals("00000001", patient.getItemValue("patientIdNumber"));
+            Assert.assertEquals(1, patient.getItems().size());
+            Assert.assertTrue(patient.getTumors().get(0).getItems().isEmpty());
+        }
+    }
+
+    @Test
+    public void testInvalidData() throws IOException {
+        NaaccrData data = new NaaccrData(NaaccrFormat.NAACCR_FORMAT_16_ABSTRACT);
+        Patient patient = new Patient();
+        patient.addItem(new Item("patientIdNumber", "00000001"));
+        patient.addTumor(new Tumor());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (PatientBinaryWriter writer = new PatientBinaryWriter(out, data, null, TestingUtils.createUserDictionary())) {
+            writer.writePatient(patient);
+            writer.closeAndKeepAlive();
+            try {
+                writer.writePatient(patient);
+                Assert.fail("Was expecting an exception!");
+            }
+            catch (NaaccrIOException e) {
+                // expected
+            }
+        }
+        byte[] bytes = out.toByteArray();
+
+        // the user dictionary is required to read the data
+        try (PatientBinaryReader reader = new PatientBinaryReader(new ByteArrayInputStream(bytes))) {
+            Assert.fail("Was expecting an exception, not " + reader.getRootData());
+        }
+        catch (NaaccrIOException e) {
+            Assert.assertTrue(e.getMessage().contains("http://test.org/naaccrxml/test.xml"));
+        }
+
+        // a user dictionary that was modified without changing its URI can't be used to read the data (the ordinals of its items are different)
+        NaaccrDictionary modifiedDictionary = TestingUtils.createUserDictionary();
+        NaaccrDictionaryItem otherItem = new NaaccrDictionaryItem();
+        otherItem.setNaaccrId("myOtherVariable");
+        otherItem.setParentXmlElement(NaaccrXmlUtils.NAACCR_XML_TAG_TUMOR);
+        otherItem.setNaaccrNum(10001);
+        otherItem.setRecordTypes("A,M,C,I");
+        otherItem.setLength(1);
+        otherItem.setStartColumn(2342);
+        List<NaaccrDictionaryItem> items = new ArrayList<>(modifiedDictionary.getItems());
+        items.add(0, otherItem);
+        modifiedDictionary.setItems(items);
+        try (PatientBinaryReader reader = new PatientBinaryReader(new ByteArrayInputStream(bytes), null, modifiedDictionary)) {
+            Assert.fail("Was expecting an exception, not " + reader.getRootData());
+        }
+        catch (NaaccrIOException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("myOtherVariable"));
+        }
+
+        // not binary data
+        try (PatientBinaryReader reader = new PatientBinaryReader(new ByteArrayInputStream("<NaaccrData/>".getBytes("UTF-8")))) {
+            Assert.fail("Was expecting an exception, not " + reader.getRootData());
+        }
+        catch (NaaccrIOException e) {
+            // expected
+        }
+
+        // truncated data
+        try (PatientBinaryReader reader = new PatientBinaryReader(new ByteArrayInputStream(Arrays.copyOf(bytes, bytes.length - 6)), null, TestingUtils.createUserDictionary())) {
+            reader.readPatient();
+            Assert.fail("Was expecting an exception!");
+        }
+        catch (NaaccrIOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testConversions() throws IOException {
+        // use the first patients of the big testing file
+        NaaccrData expected = NaaccrXmlUtils.readFlatFile(TestingUtils.getDataFile("fake-naaccr14inc-10000-rec.txt.gz"), null, null, null);
+        expected.setPatients(new ArrayList<>(expected.getPatients().subList(0, 500)));
+        File flatFile = TestingUtils.createFile("binary-test-source.txt");
+        NaaccrXmlUtils.writeFlatFile(expected, flatFile, null, null, null);
+
+        // flat to binary to flat
+        File binaryFile = TestingUtils.createFile("binary-test.bin");
+        File otherFlatFile = TestingUtils.createFile("binary-test.txt");
+        NaaccrXmlUtils.flatToBinary(flatFile, binaryFile, null, null, null);
+        NaaccrXmlUtils.binaryToFlat(binaryFile, otherFlatFile, null, null, null);
+        Assert.assertEquals(TestingUtils.readFile(flatFile), TestingUtils.readFile(otherFlatFile));
+
+        // binary to XML to binary, the line numbers are those of the XML file
+        File xmlFile = TestingUtils.createFile("binary-test.xml");
+        File otherBinaryFile = TestingUtils.createFile("binary-test-2.bin");
+        NaaccrXmlUtils.binaryToXml(binaryFile, xmlFile, null, null, null);
+        NaaccrXmlUtils.xmlToBinary(xmlFile, otherBinaryFile, null, null, null);
+        NaaccrData xmlData = NaaccrXmlUtils.readXmlFile(xmlFile, null, null, null);
+        try (PatientBinaryReader reader = NaaccrXmlUtils.createBinaryReader(otherBinaryFile, null, null)) {
+            assertSameItems(xmlData, reader.getRootData());
+            for (int i = 0; i < expected.getPatients().size(); i++) {
+                Patient patient = reader.readPatient();
+                assertSameItems(xmlData.getPatients().get(i), patient);
+                Assert.assertEquals(expected.getPatients().get(i).getItemValue("patientIdNumber"), patient.getItemValue("patientIdNumber"));
+            }
+            Assert.assertNull(reader.readPatient());
+        }
+    }
+
+    @Test
+    public void testExtensions() throws IOException {
+        NaaccrStreamConfiguration conf = new NaaccrStreamConfiguration();
+        conf.getXstream().autodetectAnnotations(true);
+        conf.registerNamespace("other", "http://whatever.org");
+        conf.registerTag("other", "MyExtension", TestExtension.class);
+
+        NaaccrData data = new NaaccrData(NaaccrFormat.NAACCR_FORMAT_16_ABSTRACT);
+        data.addExtension(new TestExtension("root-extension", 2));
+        Patient patient = new Patient();
+        patient.addItem(new Item("patientIdNumber", "00000001"));
+        patient.addExtension(new TestExtension("patient-extension <&>", 5));
+        patient.addExtension(new TestExtension("other-patient-extension", null));
+        Tumor tumor = new Tumor();
+        tumor.addItem(new Item("primarySite", "C123"));
+        tumor.addExtension(new TestExtension("tumor-extension", 8));
+        patient.addTumor(tumor);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (PatientBinaryWriter writer = new PatientBinaryWriter(out, data, null, (List<NaaccrDictionary>)null, conf, true, PatientBinaryWriter.DEFAULT_BLOCK_SIZE)) {
+            writer.writePatient(patient);
+        }
+
+        // the extensions (and their line numbers) are read back
+        try (PatientBinaryReader reader = new PatientBinaryReader(new ByteArrayInputStream(out.toByteArray()), null, (List<NaaccrDictionary>)null, conf)) {
+            assertSameExtensions(data, reader.getRootData());
+            Patient other = reader.readPatient();
+            assertSameExtensions(patient, other);
+            assertSameExtensions(tumor, other.getTumors().get(0));
+            Assert.assertNull(reader.readPatient());
+        }
+
+        // the extensions can be ignored when reading the data...
+        NaaccrOptions options = new NaaccrOptions();
+        options.setIgnoreExtensions(true);
+        try (PatientBinaryReader reader = new PatientBinaryReader(new ByteArrayInputStream(out.toByteArray()), options, (List<NaaccrDictionary>)null, conf)) {
+            Assert.assertTrue(reader.getRootData().getExtensions() == null || reader.getRootData().getExtensions().isEmpty());
+            Patient other = reader.readPatient();
+            Assert.assertTrue(other.getExtensions() == null || other.getExtensions().isEmpty());
+            Assert.assertEquals("C123", other.getTumors().get(0).getItemValue("primarySite"));
+        }
+
+        // ... and when writing it
+        out = new ByteArrayOutputStream();
+        try (PatientBinaryWriter writer = new PatientBinaryWriter(out, data, options, (List<NaaccrDictionary>)null, conf)) {
+            writer.writePatient(patient);
+        }
+        try (PatientBinaryReader reader = new PatientBinaryReader(new ByteArrayInputStream(out.toByteArray()), null, (List<NaaccrDictionary>)null, conf)) {
+            Assert.assertTrue(reader.getRootData().getExtensions() == null || reader.getRootData().getExtensions().isEmpty());
+            Assert.assertTrue(reader.readPatient().getTumors().get(0).getExtensions() == null);
+        }
+
+        // the extensions can't be silently dropped: reading them requires a configuration that knows about them
+        out = new ByteArrayOutputStream();
+        try (PatientBinaryWriter writer = new PatientBinaryWriter(out, data, null, (List<NaaccrDictionary>)null, conf)) {
+            writer.writePatient(patient);
+        }
+        try {
+            new PatientBinaryReader(new ByteArrayInputStream(out.toByteArray()), null, (List<NaaccrDictionary>)null, null);
+            Assert.fail("Was expecting an exception!");
+        }
+        catch (NaaccrIOException e) {
+            Assert.assertTrue(e.getMessage().contains("extension"));
+        }
+    }
+
+    private static void assertSameExtensions(AbstractEntity expected, AbstractEntity actual) {
+        Assert.assertNotNull(actual.getExtensions());
+        Assert.assertEquals(expected.getExtensions().size(), actual.getExtensions().size());
+        for (int i = 0; i < expected.getExtensions().size(); i++) {
+            TestExtension expectedExtension = (TestExtension)expected.getExtensions().get(i);
+            TestExtension actualExtension = (TestExtension)actual.getExtensions().get(i);
+            Assert.assertEquals(expectedExtension._value, actualExtension._value);
+            Assert.assertEquals(expectedExtension.getStartLineNumber(), actualExtension.getStartLineNumber());
+        }
+    }
+
+    private static void assertSameItems(AbstractEntity expected, AbstractEntity actual) {
+        Assert.assertEquals(expected.getStartLineNumber(), actual.getStartLineNumber());
+        Assert.assertEquals(expected.getItems().size(), actual.getItems().size());
+        for (Item item : expected.getItems()) {
+            Item other = actual.getItem(item.getNaaccrId());
+            Assert.assertNotNull(item.getNaaccrId(), other);
+            Assert.assertEquals(item.getValue(), other.getValue());
+            // the compact storage returns the number of the dictionary for the items added without a number
+            if (item.getNaaccrNum() != null || !actual.isUsingCompactStorage())
+                Assert.assertEquals(item.getNaaccrNum(), other.getNaaccrNum());
+            Assert.assertEquals(item.getStartLineNumber(), other.getStartLineNumber());
+        }
+    }
+
+    @XStreamAlias("MyExtension")
+    private static class TestExtension implements NaaccrXmlExtension {
+
+        @XStreamAlias("other:MyValue")
+        private String _value;
+
+        @XStreamOmitField
+        private Integer _startLineNumber;
+
+        public TestExtension(String value, Integer startLineNumber) {
+            _value = value;
+            _startLineNumber = startLineNumber;
+        }
+
+        @Override
+        public Integer getStartLineNumber() {
+            return _startLineNumber;
+        }
+
+        @Override
+        public void setStartLineNumber(Integer startLineNumber) {
+            _startLineNumber = startLineNumber;
+        }
+    }
+}
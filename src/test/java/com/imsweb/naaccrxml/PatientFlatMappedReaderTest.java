@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2019 Information Management Services, Inc.
+ */
+package com.imsweb.naaccrxml;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.imsweb.naaccrxml.entity.AbstractEntity;
+import com.imsweb.naaccrxml.entity.Item;
+import com.imsweb.naaccrxml.entity.Patient;
+import com.imsweb.naaccrxml.entity.Tumor;
+
+public class PatientFlatMappedReaderTest {
+
+    @Test
+    public void testReader() throws IOException {
+        File file = new File(TestingUtils.getBuildDirectory(), "test-flat-mapped-reader.txt");
+        try (InputStream is = new GZIPInputStream(Files.newInputStream(TestingUtils.getDataFile("fake-naaccr14inc-10000-rec.txt.gz").toPath()));
+             OutputStream os = new FileOutputStream(file)) {
+            IOUtils.copy(is, os);
+        }
+
+        NaaccrOptions options = new NaaccrOptions();
+        options.setReportLevelMismatch(true);
+        List<String> expected = readPatients(new PatientFlatReader(NaaccrXmlUtils.createReader(file), options));
+        Assert.assertFalse(expected.isEmpty());
+        Assert.assertEquals(expected, readPatients(new PatientFlatMappedReader(file, options)));
+
+        // use very small windows so the lines are split between windows
+        Assert.assertEquals(expected, readPatients(new PatientFlatMappedReader(file, options) {
+            @Override
+            protected int getWindowSize() {
+                return 1000;
+            }
+        }));
+    }
+
+    @Test
+    public void testLineTerminators() throws IOException {
+        StringBuilder rec1 = TestingUtils.createEmptyRecord("150", "I", "00000001");
+        rec1.replace(2339, 2342, "\u00e9t\u00e9"); // non-ASCII characters
+        StringBuilder rec2 = TestingUtils.createEmptyRecord("150", "I", "00000002");
+        StringBuilder rec3 = TestingUtils.createEmptyRecord("150", "I", "00000003");
+        StringBuilder rec4 = TestingUtils.createEmptyRecord("150", "I", "00000004");
+
+        // mix of all the possible line terminators, no terminator on the last line
+        File file = new File(TestingUtils.getBuildDirectory(), "test-flat-mapped-reader-terminators.txt");
+        Files.write(file.toPath(), (rec1 + "\r\n" + rec2 + "\r" + rec3 + "\n" + rec4).getBytes(StandardCharsets.UTF_8));
+
+        List<String> expected = readPatients(new PatientFlatReader(NaaccrXmlUtils.createReader(file)));
+        Assert.assertEquals(4, expected.size());
+        Assert.assertEquals(expected, readPatients(new PatientFlatMappedReader(file)));
+        Assert.assertEquals(expected, readPatients(new PatientFlatMappedReader(file) {
+            @Override
+            protected int getWindowSize() {
+                return 7;
+            }
+        }));
+
+        // empty file
+        Files.write(file.toPath(), new byte[0]);
+        try {
+            new PatientFlatMappedReader(file);
+            Assert.fail("Was expecting an exception");
+        }
+        catch (NaaccrIOException e) {
+            Assert.assertEquals("first line is empty", e.getMessage());
+        }
+    }
+
+    // returns a description of each patient read from the given reader, including the items, the line numbers and the errors
+    private static List<String> readPatients(PatientFlatReader reader) throws IOException {
+        List<String> result = new ArrayList<>();
+        try (PatientFlatReader r = reader) {
+            Patient patient = r.readPatient();
+            while (patient != null) {
+                StringBuilder buf = new StringBuilder();
+                describe(patient, buf);
+                for (Tumor tumor : patient.getTumors())
+                    describe(tumor, buf);
+                for (NaaccrValidationError error : patient.getAllValidationErrors())
+                    buf.append(error.getCode()).append('@').append(error.getLineNumber()).append(';');
+                result.add(buf.toString());
+                patient = r.readPatient();
+            }
+        }
+        return result;
+    }
+
+    private static void describe(AbstractEntity entity, StringBuilder buf) {
+        buf.append('[').append(entity.getStartLineNumber()).append(']');
+        for (Item item : entity.getItems())
+            buf.append(item.getNaaccrId()).append('=').append(item.getValue()).append('@').append(item.getStartLineNumber()).append(';');
+    }
+}
@@ -8,10 +8,12 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.util.Collections;
 
 import org.junit.Assert;
 import org.junit.Test;
 
+import com.imsweb.naaccrxml.entity.Item;
 import com.imsweb.naaccrxml.entity.Patient;
 import com.imsweb.naaccrxml.entity.Tumor;
 import com.imsweb.naaccrxml.entity.dictionary.NaaccrDictionary;
@@ -244,4 +246,58 @@ public class PatientFlatReaderTest {
             }
         }
     }
+
+    @Test
+    public void testLazyEntities() throws IOException {
+        NaaccrOptions options = new NaaccrOptions();
+        options.setUseLazyEntities(true);
+
+        StringBuilder rec1 = TestingUtils.createEmptyRecord("150", "I", "00000001");
+        rec1.replace(191, 192, "X"); // sex (bad value)
+        rec1.replace(529, 533, "20AB"); // date of diagnosis (bad value)
+        rec1.replace(539, 543, "C123"); // primary site
+        File file = TestingUtils.createAndPopulateFile("test-flat-reader-lazy.txt", rec1);
+
+        try (PatientFlatReader reader = new PatientFlatReader(new FileReader(file), options, (NaaccrDictionary)null)) {
+            Patient patient = reader.readPatient();
+            Tumor tumor = patient.getTumors().get(0);
+            Assert.assertTrue(patient.isUsingLazyStorage());
+            Assert.assertTrue(tumor.isUsingLazyStorage());
+
+            // the items are decoded (and validated) when they are requested
+            Assert.assertEquals("C123", tumor.getItemValue("primarySite"));
+            Assert.assertEquals(Integer.valueOf(1), tumor.getItem("primarySite").getStartLineNumber());
+            Assert.assertEquals("00000001", patient.getItemValue("patientIdNumber"));
+            Assert.assertTrue(patient.isUsingLazyStorage());
+            Assert.assertEquals("X", patient.getItemValue("sex"));
+            Assert.assertNull(patient.getItemValue("dateOfBirth"));
+
+            // requesting the errors decodes all the items
+            Assert.assertEquals(2, patient.getAllValidationErrors().size());
+            Assert.assertEquals("sex", patient.getValidationErrors().get(0).getNaaccrId());
+            Assert.assertEquals("dateOfDiagnosis", tumor.getValidationErrors().get(0).getNaaccrId());
+            Assert.assertFalse(patient.isUsingLazyStorage());
+            Assert.assertFalse(tumor.isUsingLazyStorage());
+
+            // the entities can still be modified
+            tumor.addItem(new Item("laterality", "1"));
+            Assert.assertEquals("1", tumor.getItemValue("laterality"));
+            try {
+                tumor.addItem(new Item("primarySite", "C456"));
+                Assert.fail("Should have been a duplicate item");
+            }
+            catch (DuplicateItemException e) {
+                // expected
+            }
+        }
+
+        // the included/excluded items are never returned, but they are still validated
+        options.setItemsToExclude(Collections.singletonList("sex"));
+        try (PatientFlatReader reader = new PatientFlatReader(new FileReader(file), options, (NaaccrDictionary)null)) {
+            Patient patient = reader.readPatient();
+            Assert.assertNull(patient.getItemValue("sex"));
+            Assert.assertEquals("00000001", patient.getItemValue("patientIdNumber"));
+            Assert.assertEquals(2, patient.getAllValidationErrors().size());
+        }
+    }
 }
@@ -8,6 +8,7 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.io.StringWriter;
 import java.util.List;
 
 import org.junit.Assert;
@@ -284,4 +285,36 @@ public class PatientFlatWriterTest {
         Assert.assertEquals("0 0 0 01", lines.get(0).substring(41, 49)); // patient ID
         Assert.assertEquals(22824, lines.get(0).length());
     }
+
+    @Test
+    public void testLinesOfSamePatient() throws IOException {
+        NaaccrData data = new NaaccrData(NaaccrFormat.NAACCR_FORMAT_16_INCIDENCE);
+        Patient patient = new Patient();
+        patient.addItem(new Item("patientIdNumber", "00000001"));
+        Tumor tumor1 = new Tumor();
+        tumor1.addItem(new Item("primarySite", "C123"));
+        tumor1.addItem(new Item("recordType", "X")); // always replaced by the format
+        patient.addTumor(tumor1);
+        Tumor tumor2 = new Tumor();
+        tumor2.addItem(new Item("laterality", "1"));
+        patient.addTumor(tumor2);
+
+        // the lines are built in the same buffer, the values of a tumor shouldn't be written on the next line
+        StringWriter buf = new StringWriter();
+        try (PatientFlatWriter writer = new PatientFlatWriter(buf, data, null, (NaaccrDictionary)null)) {
+            writer.writePatient(patient);
+        }
+        String[] lines = buf.toString().split(System.getProperty("line.separator"));
+        Assert.assertEquals(2, lines.length);
+        for (String line : lines) {
+            Assert.assertEquals(NaaccrFormat.getInstance(NaaccrFormat.NAACCR_FORMAT_16_INCIDENCE).getLineLength(), line.length());
+            Assert.assertEquals("I", line.substring(0, 1));
+            Assert.assertEquals("160", line.substring(16, 19));
+            Assert.assertEquals("00000001", line.substring(41, 49));
+        }
+        Assert.assertEquals("C123", lines[0].substring(539, 543));
+        Assert.assertEquals(" ", lines[0].substring(543, 544));
+        Assert.assertEquals("    ", lines[1].substring(539, 543));
+        Assert.assertEquals("1", lines[1].substring(543, 544));
+    }
 }
@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2019 Information Management Services, Inc.
+ */
+package com.imsweb.naaccrxml;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.imsweb.naaccrxml.compression.CompressionUtils;
+import com.imsweb.naaccrxml.compression.GzipBlockIndex;
+import com.imsweb.naaccrxml.entity.Item;
+import com.imsweb.naaccrxml.entity.NaaccrData;
+import com.imsweb.naaccrxml.entity.Patient;
+import com.imsweb.naaccrxml.entity.Tumor;
+import com.imsweb.naaccrxml.runtime.NaaccrStreamConfiguration;
+
+public class PatientXmlIndexTest {
+
+    @Test
+    public void testIndex() throws IOException {
+        File xmlFile = createXmlFile("index-test.xml", 250);
+
+        // read the file sequentially, this is what the index should agree with
+        List<Patient> expected = readPatients(xmlFile);
+
+        // build the index, save it and read it back
+        PatientXmlIndex index = PatientXmlIndex.build(xmlFile, Arrays.asList("patientIdNumber", "nameLast", "nameFirst"));
+        File indexFile = PatientXmlIndex.getDefaultIndexFile(xmlFile);
+        indexFile.deleteOnExit();
+        Assert.assertEquals("index-test.xml.idx", indexFile.getName());
+        index.write(indexFile);
+        index = PatientXmlIndex.read(indexFile);
+        Assert.assertTrue(index.isUpToDate(xmlFile));
+        Assert.assertEquals(Arrays.asList("patientIdNumber", "nameLast", "nameFirst"), index.getKeyItems());
+        Assert.assertEquals(expected.size(), index.getPatientCount());
+
+        // every patient should be readable on its own, with the line numbers of the file
+        for (int i = 0; i < expected.size(); i++) {
+            Assert.assertEquals(expected.get(i).getStartLineNumber(), Integer.valueOf(index.getPatientLineNumber(i)));
+            Assert.assertEquals(expected.get(i).getItemValue("patientIdNumber"), index.getKeyValue(i, "patientIdNumber"));
+            Assert.assertEquals(expected.get(i).getItemValue("nameLast"), index.getKeyValue(i, "nameLast"));
+            Assert.assertNull(index.getKeyValue(i, "nameFirst"));
+            assertSamePatient(expected.get(i), index.readPatient(xmlFile, i, null, null));
+        }
+        Assert.assertEquals("O'Neil & Dupré", index.getKeyValue(7, "nameLast"));
+
+        // lookups
+        Assert.assertEquals(Collections.singletonList(42), index.findPatients("patientIdNumber", "00000042"));
+        Assert.assertEquals(Arrays.asList(3, 4), index.findPatients("patientIdNumber", "00000003"));
+        Assert.assertTrue(index.findPatients("patientIdNumber", "99999999").isEmpty());
+        Assert.assertEquals(expected.size() / 7 + 1, index.findPatients("nameLast", "O'Neil & Dupré").size());
+        try {
+            index.findPatients("primarySite", "C123");
+            Assert.fail("Was expecting an exception!");
+        }
+        catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        // read a range of patients
+        try (PatientXmlReader reader = new PatientXmlReader(xmlFile, index, 100, 119, null, null, null)) {
+            Assert.assertEquals("0000000001", reader.getRootData().getItemValue("registryId"));
+            for (int i = 100; i < 120; i++)
+                assertSamePatient(expected.get(i), reader.readPatient());
+            Assert.assertNull(reader.readPatient());
+        }
+
+        // a modified file should be rejected
+        Assert.assertTrue(xmlFile.setLastModified(xmlFile.lastModified() - 10000));
+        Assert.assertFalse(index.isUpToDate(xmlFile));
+        try {
+            index.readPatient(xmlFile, 0, null, null);
+            Assert.fail("Was expecting an exception!");
+        }
+        catch (NaaccrIOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testSeekableGzipIndex() throws IOException {
+        File xmlFile = createXmlFile("index-test-seekable.xml", 250);
+        File gzFile = TestingUtils.createFile("index-test-seekable.xml.gz");
+        try (PatientXmlReader reader = new PatientXmlReader(NaaccrXmlUtils.createReader(xmlFile));
+             PatientXmlWriter writer = new PatientXmlWriter(NaaccrXmlUtils.createSeekableWriter(gzFile, 2048, CompressionUtils.DEFAULT_LEVEL), reader.getRootData())) {
+            Patient patient = reader.readPatient();
+            while (patient != null) {
+                writer.writePatient(patient);
+                patient = reader.readPatient();
+            }
+        }
+
+        // the file should be a regular GZip file
+        try (InputStream is = new GZIPInputStream(Files.newInputStream(gzFile.toPath()))) {
+            String content = IOUtils.toString(is, StandardCharsets.UTF_8);
+            Assert.assertEquals(new String(Files.readAllBytes(xmlFile.toPath()), StandardCharsets.UTF_8).replaceAll("timeGenerated=\"[^\"]+\"", ""), content.replaceAll("timeGenerated=\"[^\"]+\"", ""));
+        }
+
+        // the blocks should be aligned on the patients
+        PatientXmlIndex index = PatientXmlIndex.build(gzFile, null);
+        GzipBlockIndex blocks = index.getBlocks();
+        Assert.assertNotNull(blocks);
+        Assert.assertTrue(blocks.getBlockCount() > 10);
+        for (int i = 1; i < blocks.getBlockCount(); i++) {
+            try (InputStream is = blocks.createInputStream(gzFile, blocks.getUncompressedOffset(i), 1024)) {
+                byte[] start = new byte[20];
+                IOUtils.readFully(is, start);
+                Assert.assertTrue(new String(start, StandardCharsets.UTF_8).trim().startsWith("<Patient>"));
+            }
+        }
+
+        // the patients should be readable from the compressed file, using the index saved in its sidecar file
+        index.write(PatientXmlIndex.getDefaultIndexFile(gzFile));
+        PatientXmlIndex.getDefaultIndexFile(gzFile).deleteOnExit();
+        index = PatientXmlIndex.read(PatientXmlIndex.getDefaultIndexFile(gzFile));
+        Assert.assertEquals(blocks.getBlockCount(), index.getBlocks().getBlockCount());
+        List<Patient> expected = readPatients(xmlFile);
+        Assert.assertEquals(expected.size(), index.getPatientCount());
+        for (int i = 0; i < expected.size(); i++)
+            assertSamePatient(expected.get(i), index.readPatient(gzFile, i, null, null));
+        try (PatientXmlReader reader = new PatientXmlReader(gzFile, index, 10, 200, null, null, null)) {
+            for (int i = 10; i <= 200; i++)
+                assertSamePatient(expected.get(i), reader.readPatient());
+            Assert.assertNull(reader.readPatient());
+        }
+    }
+
+    @Test
+    public void testIndexErrors() throws IOException {
+        // compressed files can't be indexed
+        File xmlFile = createXmlFile("index-test-compressed.xml", 5);
+        File gzFile = TestingUtils.createFile("index-test-compressed.xml.gz");
+        try (OutputStream os = new GZIPOutputStream(Files.newOutputStream(gzFile.toPath()))) {
+            Files.copy(xmlFile.toPath(), os);
+        }
+        try {
+            PatientXmlIndex.build(gzFile, null);
+            Assert.fail("Was expecting an exception!");
+        }
+        catch (NaaccrIOException e) {
+            Assert.assertTrue(e.getMessage().contains("gzip"));
+        }
+
+        // not an index
+        try {
+            PatientXmlIndex.read(xmlFile);
+            Assert.fail("Was expecting an exception!");
+        }
+        catch (NaaccrIOException e) {
+            // expected
+        }
+
+        // invalid patient index
+        PatientXmlIndex index = PatientXmlIndex.build(xmlFile, null);
+        Assert.assertEquals(Collections.singletonList(PatientXmlIndex.DEFAULT_KEY_ITEM), index.getKeyItems());
+        try {
+            index.readPatient(xmlFile, 5, null, null);
+            Assert.fail("Was expecting an exception!");
+        }
+        catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testIndexWithExtensions() throws IOException {
+        File xmlFile = TestingUtils.getDataFile("standard-file-extension.xml");
+        PatientXmlIndex index = PatientXmlIndex.build(xmlFile, null);
+        Assert.assertEquals(1, index.getPatientCount());
+        Assert.assertEquals("00000001", index.getKeyValue(0, "patientIdNumber"));
+
+        // the extensions are located between the root items and the first patient, they shouldn't prevent the patient from being read
+        NaaccrOptions options = new NaaccrOptions();
+        options.setIgnoreExtensions(true);
+        NaaccrStreamConfiguration conf = new NaaccrStreamConfiguration();
+        conf.registerNamespace("other", "http://whatever.org");
+        try (PatientXmlReader reader = new PatientXmlReader(xmlFile, index, 0, 0, options, null, conf)) {
+            Assert.assertEquals("0000000001", reader.getRootData().getItemValue("registryId"));
+            Patient patient = reader.readPatient();
+            Assert.assertEquals("00000001", patient.getItemValue("patientIdNumber"));
+            Assert.assertEquals(Integer.valueOf(11), patient.getStartLineNumber());
+            Assert.assertEquals("C123", patient.getTumors().get(0).getItemValue("primarySite"));
+            Assert.assertNull(reader.readPatient());
+        }
+    }
+
+    @Test
+    public void testExtractKeyValues() {
+        List<String> keys = Arrays.asList("patientIdNumber", "nameLast", "primarySite");
+        String xml = "<naaccr:Patient>\n  <!-- <Item naaccrId=\"nameLast\">comment</Item> -->\n  <naaccr:Item naaccrNum=\"20\" naaccrId = 'patientIdNumber'>00000001</naaccr:Item>"
+                + "<Item naaccrId=\"nameLast\"><![CDATA[A<B]]>&amp;&#67;</Item><Tumor><Item naaccrId=\"primarySite\">C123</Item></Tumor></naaccr:Patient>";
+        Assert.assertArrayEquals(new String[] {"00000001", "A<B&C", null}, PatientXmlIndex.extractKeyValues(xml, keys));
+
+        // the IDs are trimmed, like the readers do
+        xml = "<Patient><Item naaccrId=\" patientIdNumber \">00000001</Item><Item naaccrId=\"\tnameLast\">SMITH</Item></Patient>";
+        Assert.assertArrayEquals(new String[] {"00000001", "SMITH", null}, PatientXmlIndex.extractKeyValues(xml, keys));
+    }
+
+    private static List<Patient> readPatients(File file) throws IOException {
+        List<Patient> patients = new ArrayList<>();
+        try (PatientXmlReader reader = new PatientXmlReader(NaaccrXmlUtils.createReader(file))) {
+            Patient patient = reader.readPatient();
+            while (patient != null) {
+                patients.add(patient);
+                patient = reader.readPatient();
+            }
+        }
+        return patients;
+    }
+
+    private static void assertSamePatient(Patient expected, Patient actual) {
+        Assert.assertNotNull(actual);
+        Assert.assertEquals(expected.getStartLineNumber(), actual.getStartLineNumber());
+        Assert.assertEquals(expected.getItems().size(), actual.getItems().size());
+        for (Item item : expected.getItems())
+            Assert.assertEquals(item.getValue(), actual.getItemValue(item.getNaaccrId()));
+        Assert.assertEquals(expected.getTumors().size(), actual.getTumors().size());
+        for (int i = 0; i < expected.getTumors().size(); i++) {
+            Assert.assertEquals(expected.getTumors().get(i).getStartLineNumber(), actual.getTumors().get(i).getStartLineNumber());
+            for (Item item : expected.getTumors().get(i).getItems())
+                Assert.assertEquals(item.getValue(), actual.getTumors().get(i).getItemValue(item.getNaaccrId()));
+        }
+    }
+
+    private static File createXmlFile(String name, int numPatients) throws IOException {
+        NaaccrData data = new NaaccrData(NaaccrFormat.NAACCR_FORMAT_18_ABSTRACT);
+        data.addItem(new Item("registryId", "0000000001"));
+        File file = TestingUtils.createFile(name);
+        try (PatientXmlWriter writer = new PatientXmlWriter(new OutputStreamWriter(Files.newOutputStream(file.toPath()), StandardCharsets.UTF_8), data)) {
+            for (int i = 0; i < numPatients; i++) {
+                Patient patient = new Patient();
+                // patient 4 uses the same ID as patient 3
+                patient.addItem(new Item("patientIdNumber", String.format("%08d", i == 4 ? 3 : i)));
+                if (i % 7 == 0)
+                    patient.addItem(new Item("nameLast", "O'Neil & Dupré"));
+                for (int j = 0; j <= i % 3; j++) {
+                    Tumor tumor = new Tumor();
+                    tumor.addItem(new Item("primarySite", "C" + (100 + i % 900)));
+                    tumor.addItem(new Item("sequenceNumberCentral", String.format("%02d", j)));
+                    patient.addTumor(tumor);
+                }
+                writer.writePatient(patient);
+            }
+        }
+        return file;
+    }
+}
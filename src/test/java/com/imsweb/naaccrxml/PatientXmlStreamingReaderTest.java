@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2019 Information Management Services, Inc.
+ */
+package com.imsweb.naaccrxml;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.thoughtworks.xstream.annotations.XStreamAlias;
+import com.thoughtworks.xstream.annotations.XStreamOmitField;
+
+import com.imsweb.naaccrxml.entity.AbstractEntity;
+import com.imsweb.naaccrxml.entity.Item;
+import com.imsweb.naaccrxml.entity.NaaccrData;
+import com.imsweb.naaccrxml.entity.Patient;
+import com.imsweb.naaccrxml.entity.Tumor;
+import com.imsweb.naaccrxml.entity.dictionary.NaaccrDictionary;
+import com.imsweb.naaccrxml.runtime.NaaccrStreamConfiguration;
+
+public class PatientXmlStreamingReaderTest {
+
+    @Test
+    public void testReadDataFiles() throws IOException {
+        List<File> files;
+        try (Stream<Path> stream = Files.walk(TestingUtils.getDataFile("").toPath())) {
+            files = stream.map(Path::toFile).filter(f -> f.getName().endsWith(".xml") && !f.getParentFile().getName().equals("dictionary")).sorted().collect(Collectors.toList());
+        }
+        Assert.assertFalse(files.isEmpty());
+
+        NaaccrOptions relaxed = new NaaccrOptions();
+        relaxed.setUseStrictNamespaces(false);
+        NaaccrOptions ignoreExtensions = new NaaccrOptions();
+        ignoreExtensions.setUseStrictNamespaces(false);
+        ignoreExtensions.setIgnoreExtensions(true);
+        NaaccrOptions include = new NaaccrOptions();
+        include.setUseStrictNamespaces(false);
+        include.setItemsToInclude(Arrays.asList("patientIdNumber", "primarySite", "myVariable"));
+        NaaccrOptions exclude = new NaaccrOptions();
+        exclude.setUseStrictNamespaces(false);
+        exclude.setItemsToExclude(Arrays.asList("patientIdNumber", "primarySite", "myVariable"));
+
+        for (File file : files) {
+            for (NaaccrOptions options : new NaaccrOptions[] {null, relaxed, ignoreExtensions, include, exclude}) {
+                String expected = readFile(NaaccrXmlUtils.createReader(file), options, new NaaccrStreamConfiguration(), false);
+                Assert.assertEquals(file.getName(), expected, readFile(NaaccrXmlUtils.createReader(file), options, new NaaccrStreamConfiguration(), true));
+            }
+        }
+    }
+
+    @Test
+    public void testItemFiltering() throws IOException {
+        String content = TestingUtils.readFileAsOneString(TestingUtils.getDataFile("standard-file.xml"));
+
+        // the excluded items are skipped before their ID or value is validated
+        content = content.replace("<Item naaccrId=\"primarySite\">C123</Item>", "<Item naaccrId=\"primarySite\">C123</Item><Item naaccrId=\"unknownItem\">X</Item>");
+        for (boolean streaming : new boolean[] {false, true}) {
+            NaaccrOptions options = new NaaccrOptions();
+            options.setItemsToInclude(Collections.singletonList("patientIdNumber"));
+            String result = readFile(new StringReader(content), options, new NaaccrStreamConfiguration(), streaming);
+            Assert.assertTrue(result.contains("[5]patientIdNumber=00000001@6;"));
+            Assert.assertFalse(result.contains("primarySite"));
+            Assert.assertFalse(result.contains(NaaccrErrorUtils.CODE_BAD_NAACCR_ID));
+
+            options = new NaaccrOptions();
+            options.setItemsToExclude(Arrays.asList("patientIdNumber", "primarySite"));
+            result = readFile(new StringReader(content), options, new NaaccrStreamConfiguration(), streaming);
+            Assert.assertFalse(result.contains("patientIdNumber"));
+            Assert.assertFalse(result.contains("C123"));
+            Assert.assertTrue(result.contains(NaaccrErrorUtils.CODE_BAD_NAACCR_ID));
+        }
+    }
+
+    @Test
+    public void testBadSyntax() throws IOException {
+        String header = "<?xml version=\"1.0\"?>\n<NaaccrData baseDictionaryUri=\"http://naaccr.org/naaccrxml/naaccr-dictionary-160.xml\" recordType=\"I\" "
+                + "specificationVersion=\"1.3\" xmlns=\"http://naaccr.org/naaccrxml\">\n";
+
+        List<String> contents = new ArrayList<>();
+        contents.add("");
+        contents.add("not XML at all");
+        contents.add("<?xml version=\"1.0\"?>\n<Patient/>");
+        contents.add(header);
+        contents.add(header + "</NaaccrData>");
+        contents.add(header + "<Item naaccrId=\"registryId\">1</Item>\n<Item naaccrId=\"registryId\">2</Item>\n</NaaccrData>");
+        contents.add(header + "<Item naaccrId=\"registryId\">1</Item>\n<Tumor/>\n</NaaccrData>");
+        contents.add(header + "<Patient attr=\"x\"/>\n</NaaccrData>");
+        contents.add(header + "<Patient>\n<Tumor attr=\"x\"/>\n</Patient>\n</NaaccrData>");
+        contents.add(header + "<Patient>\n<Item naaccrId=\"patientIdNumber\">1</Item>\n<Item naaccrId=\"patientIdNumber\">2</Item>\n</Patient>\n</NaaccrData>");
+        contents.add(header + "<Patient>\n<Tumor>\n<Item naaccrId=\"primarySite\">C123</Item>\n<Item naaccrId=\"primarySite\">C456</Item>\n</Tumor>\n</Patient>\n</NaaccrData>");
+        contents.add(header + "<Patient>\n<Tumor/>\n<Item naaccrId=\"patientIdNumber\">1</Item>\n</Patient>\n</NaaccrData>");
+        contents.add(header + "<Patient>\n<Tumor/>\n<Tumor>\n<Item naaccrId=\"primarySite\">C123</Item>\n<Item>C123</Item>\n</Tumor>\n</Patient>\n</NaaccrData>");
+        contents.add(header + "<Patient>\n<Item naaccrId=\"patientIdNumber\"><![CDATA[1]]><!-- comment -->2</Item>\n</Patient>\n</NaaccrData>");
+        contents.add(header + "<Patient>\n<Item naaccrId=\"patientIdNumber\">1<b>2</b></Item>\n</Patient>\n</NaaccrData>");
+        contents.add(header + "<Patient>\n<Item naaccrId=\"patientIdNumber\">1</Item>\n</Patient>\n<Patient>\n<Item naaccrId=\"patientIdNumber\">2</Patient>\n</NaaccrData>");
+        contents.add(header + "<Patient>\n<Item naaccrId=\"patientIdNumber\">1</Item>\n</Patient>\n<Item naaccrId=\"registryId\">1</Item>\n</NaaccrData>");
+        contents.add(header + "<Patient>\n<Item naaccrId=\"patientIdNumber\">1</Item>\n");
+        contents.add(header + "<Patient>\n<unknown:Tag/>\n</Patient>\n</NaaccrData>");
+        contents.add(header + "<Patient>\n<Tumor>\n<Item naaccrId=\"primarySite\">C123</Item>\n<UnknownTag/>\n</Tumor>\n</Patient>\n</NaaccrData>");
+
+        for (String content : contents)
+            for (NaaccrOptions options : new NaaccrOptions[] {null, NaaccrOptions.getDefault()}) {
+                String expected = readFile(new StringReader(content), options, new NaaccrStreamConfiguration(), false);
+                Assert.assertEquals(content, expected, readFile(new StringReader(content), options, new NaaccrStreamConfiguration(), true));
+            }
+    }
+
+    @Test
+    public void testExtensions() throws IOException {
+        String content = TestingUtils.readFileAsOneString(TestingUtils.getDataFile("standard-file-extension.xml"));
+
+        List<String> contents = new ArrayList<>();
+        contents.add(content);
+        contents.add(content.replace("<other:MyInnerTag>tumor-extension-2</other:MyInnerTag>", "<other:MyInnerTag>tumor-extension-2</other:MyInnerTag>\n<other:Unknown/>"));
+        contents.add(content.replace("<other:MyInnerTag>patient-extension-1</other:MyInnerTag>", "<other:MyInnerTag>patient-extension-1 &amp; &lt;\"quotes\"&gt;</other:MyInnerTag>"));
+        contents.add(content.replace("<other:MyOuterTag>\n            <other:MyInnerTag>patient-extension-2", "<other:MyOuterTag2>\n            <other:MyInnerTag>patient-extension-2"));
+
+        for (String c : contents) {
+            String expected = readFile(new StringReader(c), null, createExtensionConfiguration(), false);
+            Assert.assertEquals(c, expected, readFile(new StringReader(c), null, createExtensionConfiguration(), true));
+        }
+        Assert.assertTrue(readFile(new StringReader(content), null, createExtensionConfiguration(), true).contains("tumor-extension-2@24;"));
+    }
+
+    private static NaaccrStreamConfiguration createExtensionConfiguration() {
+        NaaccrStreamConfiguration conf = new NaaccrStreamConfiguration();
+        conf.getXstream().autodetectAnnotations(true);
+        conf.registerNamespace("other", "http://whatever.org");
+        conf.registerTag("other", "MyOuterTag", OuterTag.class);
+        return conf;
+    }
+
+    @Test
+    public void testCreatePatientXmlReader() throws IOException {
+        File file = TestingUtils.getDataFile("xml-reader-two-patients.xml");
+        NaaccrOptions options = new NaaccrOptions();
+        options.setUseStrictNamespaces(false);
+
+        NaaccrStreamConfiguration conf = new NaaccrStreamConfiguration();
+        try (PatientXmlReader reader = NaaccrXmlUtils.createPatientXmlReader(NaaccrXmlUtils.createReader(file), options, null, conf)) {
+            Assert.assertFalse(reader instanceof PatientXmlStreamingReader);
+        }
+
+        conf.setUseStreamingReader(true);
+        try (PatientXmlReader reader = NaaccrXmlUtils.createPatientXmlReader(NaaccrXmlUtils.createReader(file), options, null, conf)) {
+            Assert.assertTrue(reader instanceof PatientXmlStreamingReader);
+            Assert.assertNotNull(reader.readPatient());
+            Assert.assertNotNull(reader.readPatient());
+            Assert.assertNull(reader.readPatient());
+        }
+    }
+
+    // returns a description of the content read by the requested reader, including the items, the extensions, the line numbers and the errors
+    private static String readFile(Reader input, NaaccrOptions options, NaaccrStreamConfiguration conf, boolean streaming) throws IOException {
+        StringBuilder buf = new StringBuilder();
+        PatientXmlReader reader = null;
+        try {
+            reader = streaming ? new PatientXmlStreamingReader(input, options, (List<NaaccrDictionary>)null, conf) : new PatientXmlReader(input, options, (List<NaaccrDictionary>)null, conf);
+            NaaccrData data = reader.getRootData();
+            buf.append(data.getBaseDictionaryUri()).append('|').append(data.getUserDictionaryUri()).append('|').append(data.getExtraRootParameters()).append('\n');
+            describe(data, buf);
+            Patient patient = reader.readPatient();
+            while (patient != null) {
+                describe(patient, buf);
+                for (Tumor tumor : patient.getTumors())
+                    describe(tumor, buf);
+                patient = reader.readPatient();
+            }
+        }
+        catch (NaaccrIOException e) {
+            buf.append("ERROR: ").append(e.getMessage()).append('@').append(e.getLineNumber()).append(' ').append(e.getPath());
+        }
+        finally {
+            // closing a reader after a syntax error can fail, that doesn't matter here
+            try {
+                if (reader != null)
+                    reader.close();
+            }
+            catch (RuntimeException e) {
+                input.close();
+            }
+        }
+        return buf.toString();
+    }
+
+    private static void describe(AbstractEntity entity, StringBuilder buf) {
+        buf.append('[').append(entity.getStartLineNumber()).append(']');
+        for (Item item : entity.getItems())
+            buf.append(item.getNaaccrId()).append('=').append(item.getValue()).append('@').append(item.getStartLineNumber()).append(';');
+        if (entity.getExtensions() != null)
+            for (Object extension : entity.getExtensions())
+                if (extension instanceof OuterTag)
+                    buf.append(((OuterTag)extension).getInnerTag()).append('@').append(((OuterTag)extension).getStartLineNumber()).append(';');
+                else
+                    buf.append(extension.getClass().getName()).append(';');
+        for (NaaccrValidationError error : entity.getValidationErrors())
+            buf.append(error.getCode()).append('@').append(error.getLineNumber()).append('@').append(error.getPath()).append(';');
+        buf.append('\n');
+    }
+
+    @XStreamAlias("MyOuterTag")
+    private static class OuterTag implements NaaccrXmlExtension {
+
+        @XStreamAlias("other:MyInnerTag")
+        private String _innerTag;
+
+        @XStreamOmitField
+        private Integer _startLineNumber;
+
+        public String getInnerTag() {
+            return _innerTag;
+        }
+
+        @Override
+        public Integer getStartLineNumber() {
+            return _startLineNumber;
+        }
+
+        @Override
+        public void setStartLineNumber(Integer startLineNumber) {
+            _startLineNumber = startLineNumber;
+        }
+    }
+}
@@ -5,19 +5,26 @@ import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Date;
+import java.util.List;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
 import org.junit.Assert;
 import org.junit.Test;
 
+import com.thoughtworks.xstream.annotations.XStreamAlias;
+
 import com.imsweb.naaccrxml.entity.Item;
 import com.imsweb.naaccrxml.entity.NaaccrData;
 import com.imsweb.naaccrxml.entity.Patient;
 import com.imsweb.naaccrxml.entity.Tumor;
 import com.imsweb.naaccrxml.entity.dictionary.NaaccrDictionary;
+import com.imsweb.naaccrxml.runtime.NaaccrPatientConverter;
 import com.imsweb.naaccrxml.runtime.NaaccrStreamConfiguration;
 
 public class PatientXmlWriterTest {
@@ -406,4 +413,105 @@ public class PatientXmlWriterTest {
             }
         }
     }
+
+    @Test
+    public void testWritePatientsDirectly() throws IOException {
+        StringBuilder allCharacters = new StringBuilder();
+        for (char c = 1; c < Character.MAX_VALUE; c++)
+            allCharacters.append(c);
+
+        NaaccrData data = new NaaccrData(NaaccrFormat.NAACCR_FORMAT_16_ABSTRACT);
+        data.setTimeGenerated(new Date());
+        data.addItem(new Item("registryId", "0000000001"));
+
+        List<Patient> patients = new ArrayList<>();
+        patients.add(new Patient());
+        Patient patient = new Patient();
+        patient.addItem(new Item("patientIdNumber", "00000001"));
+        patient.addItem(new Item("nameLast", "<&\"'>\r\nL\u00e9\u00e0\tst\u0001"));
+        patient.addItem(new Item("nameFirst", allCharacters.toString()));
+        patient.addItem(new Item("unknownItem", "value"));
+        patient.addItem(new Item("vitalStatus", ""));
+        patient.addExtension(new TestExtension("patient-extension"));
+        Tumor tumor = new Tumor();
+        tumor.addItem(new Item("primarySite", "C123"));
+        tumor.addItem(new Item("sequenceNumberCentral", "1"));
+        tumor.addExtension(new TestExtension("tumor-extension <&>"));
+        patient.addTumor(tumor);
+        patient.addTumor(new Tumor());
+        Tumor tumor2 = new Tumor();
+        tumor2.addItem(new Item("primarySite", "C456"));
+        patient.addTumor(tumor2);
+        patients.add(patient);
+        Patient patient2 = new Patient();
+        patient2.addExtension(new TestExtension("patient-extension-only"));
+        patients.add(patient2);
+        Patient patient3 = new Patient();
+        patient3.addTumor(new Tumor());
+        patients.add(patient3);
+
+        NaaccrOptions defaultOptions = new NaaccrOptions();
+        defaultOptions.setUnknownItemHandling(NaaccrOptions.ITEM_HANDLING_PROCESS);
+        NaaccrOptions itemNumber = new NaaccrOptions();
+        itemNumber.setUnknownItemHandling(NaaccrOptions.ITEM_HANDLING_PROCESS);
+        itemNumber.setWriteItemNumber(true);
+        itemNumber.setApplyPaddingRules(true);
+        NaaccrOptions ignoreExtensions = new NaaccrOptions();
+        ignoreExtensions.setUnknownItemHandling(NaaccrOptions.ITEM_HANDLING_IGNORE);
+        ignoreExtensions.setIgnoreExtensions(true);
+        ignoreExtensions.setNewLine(NaaccrOptions.NEW_LINE_CRLF);
+
+        for (NaaccrOptions options : new NaaccrOptions[] {defaultOptions, itemNumber, ignoreExtensions}) {
+            String expected = writePatients(data, patients, options, false);
+            Assert.assertEquals(options != ignoreExtensions, expected.contains("patient-extension-only"));
+            Assert.assertEquals(expected, writePatients(data, patients, options, true));
+        }
+
+        // errors should be reported the same way
+        Patient badPatient = new Patient();
+        badPatient.addItem(new Item("patientIdNumber", "00000001"));
+        badPatient.addItem(new Item("nameLast", "bad\u0001value"));
+        NaaccrOptions controlCharacters = new NaaccrOptions();
+        controlCharacters.setIgnoreControlCharacters(false);
+        for (boolean direct : new boolean[] {false, true}) {
+            try {
+                writePatients(data, Collections.singletonList(badPatient), controlCharacters, direct);
+                Assert.fail("Was expecting an exception");
+            }
+            catch (NaaccrIOException e) {
+                Assert.assertEquals("value for item 'nameLast' contains non-printable control characters", e.getMessage());
+            }
+        }
+    }
+
+    private static String writePatients(NaaccrData data, List<Patient> patients, NaaccrOptions options, boolean direct) throws IOException {
+        NaaccrStreamConfiguration conf = direct ? new NaaccrStreamConfiguration() : new NaaccrStreamConfiguration() {
+            @Override
+            protected NaaccrPatientConverter createPatientConverter() {
+                return new NaaccrPatientConverter() {};
+            }
+        };
+        conf.getXstream().autodetectAnnotations(true);
+        conf.registerNamespace("other", "http://whatever.org");
+        conf.registerTag("other", "MyExtension", TestExtension.class);
+
+        StringWriter out = new StringWriter();
+        try (PatientXmlWriter writer = new PatientXmlWriter(out, data, options, (NaaccrDictionary)null, conf)) {
+            Assert.assertEquals(direct, writer._writePatientsDirectly);
+            for (Patient patient : patients)
+                writer.writePatient(patient);
+        }
+        return out.toString();
+    }
+
+    @XStreamAlias("MyExtension")
+    private static class TestExtension {
+
+        @XStreamAlias("other:MyValue")
+        private String _value;
+
+        public TestExtension(String value) {
+            _value = value;
+        }
+    }
 }
@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2019 Information Management Services, Inc.
+ */
+package com.imsweb.naaccrxml;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.xml.parsers.SAXParserFactory;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Test;
+import org.xml.sax.InputSource;
+import org.xml.sax.helpers.DefaultHandler;
+
+import com.imsweb.naaccrxml.entity.NaaccrData;
+import com.imsweb.naaccrxml.entity.Patient;
+
+public class SegmentedWriterTest {
+
+    @Test
+    public void testResumeFlatToXml() throws IOException {
+        NaaccrData data = createData(300);
+        File flatFile = TestingUtils.createFile("segmented-source.txt");
+        NaaccrXmlUtils.writeFlatFile(data, flatFile, null, null, null);
+        File expectedFile = TestingUtils.createFile("segmented-expected.xml");
+        ParallelConverter.flatToXml(flatFile, expectedFile, null, null, null, 1);
+
+        ExecutorService workers = new ForkJoinPool(2);
+        try {
+            for (String extension : new String[] {"xml", "xml.gz"}) {
+                File xmlFile = TestingUtils.createFile("segmented." + extension);
+                File segmentsDir = TestingUtils.createFile("segmented-" + extension + "-segments");
+                FileUtils.deleteDirectory(segmentsDir);
+
+                // the conversion gets interrupted while the third segment is being recorded
+                ProgressListener listener = new ProgressListener(3);
+                try {
+                    ParallelConverter.flatToXml(flatFile, new SegmentedWriter(xmlFile, segmentsDir, 0, 0, 50, listener), null, null, null, workers, 8);
+                    Assert.fail("Was expecting an exception!");
+                }
+                catch (NaaccrIOException e) {
+                    // expected
+                }
+                Assert.assertFalse(xmlFile.exists());
+                Assert.assertEquals(2, listener._numSegments);
+                Assert.assertEquals(100, listener._numPatients);
+
+                // the conversion is resumed from the last recorded segment
+                List<String> ids = new ArrayList<>();
+                listener = new ProgressListener(-1);
+                ParallelConverter.flatToXml(flatFile, new SegmentedWriter(xmlFile, segmentsDir, 2, 100, 50, listener), null, null, createIdsObserver(ids), workers, 8);
+                Assert.assertTrue(listener._completed);
+                Assert.assertEquals(300, listener._numPatients);
+                Assert.assertFalse(segmentsDir.exists());
+                Assert.assertEquals(200, ids.size());
+                Assert.assertEquals(data.getPatients().get(100).getItemValue("patientIdNumber"), ids.get(0));
+
+                // the file is the same as a regular conversion (except for the generation time)
+                String timeRegex = "timeGenerated=\"[^\"]+\"";
+                Assert.assertEquals(readContent(expectedFile).replaceAll(timeRegex, ""), readContent(xmlFile).replaceAll(timeRegex, ""));
+                Assert.assertEquals(data.getPatients().size(), NaaccrXmlUtils.readXmlFile(xmlFile, null, null, null).getPatients().size());
+            }
+        }
+        finally {
+            workers.shutdown();
+        }
+    }
+
+    @Test
+    public void testResumeXmlToFlat() throws IOException {
+        NaaccrData data = createData(120);
+        File xmlFile = TestingUtils.createFile("segmented-source.xml");
+        NaaccrXmlUtils.writeXmlFile(data, xmlFile, null, null, null);
+        File expectedFile = TestingUtils.createFile("segmented-expected.txt");
+        ParallelConverter.xmlToFlat(xmlFile, expectedFile, null, null, null, 1);
+
+        ExecutorService workers = new ForkJoinPool(2);
+        try {
+            for (String extension : new String[] {"txt", "txt.gz"}) {
+                File flatFile = TestingUtils.createFile("segmented." + extension);
+                File segmentsDir = TestingUtils.createFile("segmented-" + extension + "-segments");
+                FileUtils.deleteDirectory(segmentsDir);
+
+                ProgressListener listener = new ProgressListener(2);
+                try {
+                    ParallelConverter.xmlToFlat(xmlFile, new SegmentedWriter(flatFile, segmentsDir, 0, 0, 25, listener), null, null, null, workers, 8);
+                    Assert.fail("Was expecting an exception!");
+                }
+                catch (NaaccrIOException e) {
+                    // expected
+                }
+                Assert.assertEquals(1, listener._numSegments);
+
+                List<String> ids = new ArrayList<>();
+                listener = new ProgressListener(-1);
+                ParallelConverter.xmlToFlat(xmlFile, new SegmentedWriter(flatFile, segmentsDir, 1, 25, 25, listener), null, null, createIdsObserver(ids), workers, 8);
+                Assert.assertTrue(listener._completed);
+                Assert.assertEquals(5, listener._numSegments);
+                Assert.assertEquals(95, ids.size());
+                Assert.assertEquals(readContent(expectedFile), readContent(flatFile));
+            }
+        }
+        finally {
+            workers.shutdown();
+        }
+
+        // the input needs to contain the patients that were already converted
+        File segmentsDir = TestingUtils.createFile("segmented-missing-segments");
+        FileUtils.deleteDirectory(segmentsDir);
+        try {
+            new SegmentedWriter(TestingUtils.createFile("segmented-missing.txt"), segmentsDir, 1, 25, 25, null);
+            Assert.fail("Was expecting an exception!");
+        }
+        catch (NaaccrIOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testResumeAfterLastSegment() throws Exception {
+        NaaccrData data = createData(120);
+        File flatFile = TestingUtils.createFile("segmented-last-source.txt");
+        NaaccrXmlUtils.writeFlatFile(data, flatFile, null, null, null);
+        File expectedFile = TestingUtils.createFile("segmented-last-expected.xml");
+        ParallelConverter.flatToXml(flatFile, expectedFile, null, null, null, 1);
+
+        ExecutorService workers = new ForkJoinPool(2);
+        try {
+            File xmlFile = TestingUtils.createFile("segmented-last.xml");
+            File segmentsDir = TestingUtils.createFile("segmented-last-segments");
+            FileUtils.deleteDirectory(segmentsDir);
+
+            // the conversion gets interrupted once the last segment is recorded, before the output file is created
+            ProgressListener listener = new ProgressListener(-1);
+            listener._failingNumPatients = 120;
+            try {
+                ParallelConverter.flatToXml(flatFile, new SegmentedWriter(xmlFile, segmentsDir, 0, 0, 50, listener), null, null, null, workers, 8);
+                Assert.fail("Was expecting an exception!");
+            }
+            catch (NaaccrIOException e) {
+                // expected
+            }
+            Assert.assertFalse(xmlFile.exists());
+            Assert.assertEquals(3, listener._numSegments);
+            Assert.assertEquals(120, listener._numPatients);
+
+            // the resumed conversion has no patient left to convert, but the closing tag still needs to be written (only once)
+            List<String> ids = new ArrayList<>();
+            ProgressListener resumeListener = new ProgressListener(-1);
+            ParallelConverter.flatToXml(flatFile, new SegmentedWriter(xmlFile, segmentsDir, listener._numSegments, listener._numPatients, 50, resumeListener), null, null,
+                    createIdsObserver(ids), workers, 8);
+            Assert.assertTrue(resumeListener._completed);
+            Assert.assertTrue(ids.isEmpty());
+            String timeRegex = "timeGenerated=\"[^\"]+\"";
+            Assert.assertEquals(readContent(expectedFile).replaceAll(timeRegex, ""), readContent(xmlFile).replaceAll(timeRegex, ""));
+
+            // the output is well-formed XML
+            try (Reader reader = NaaccrXmlUtils.createReader(xmlFile)) {
+                SAXParserFactory.newInstance().newSAXParser().parse(new InputSource(reader), new DefaultHandler());
+            }
+        }
+        finally {
+            workers.shutdown();
+        }
+    }
+
+    private static NaaccrData createData(int numPatients) throws IOException {
+        NaaccrData data = NaaccrXmlUtils.readFlatFile(TestingUtils.getDataFile("fake-naaccr14inc-10000-rec.txt.gz"), null, null, null);
+        data.setPatients(new ArrayList<>(data.getPatients().subList(0, numPatients)));
+        return data;
+    }
+
+    private static String readContent(File file) throws IOException {
+        try (Reader reader = NaaccrXmlUtils.createReader(file)) {
+            return IOUtils.toString(reader);
+        }
+    }
+
+    private static NaaccrObserver createIdsObserver(List<String> ids) {
+        return new NaaccrObserver() {
+            @Override
+            public void patientRead(Patient patient) {
+                ids.add(patient.getItemValue("patientIdNumber"));
+            }
+
+            @Override
+            public void patientWritten(Patient patient) {
+                // ignored
+            }
+        };
+    }
+
+    // records the progress, like a checkpoint would; can fail on a given segment to simulate an interruption
+    private static final class ProgressListener implements SegmentedWriter.Listener {
+
+        private int _failingSegment;
+        private long _failingNumPatients = -1;
+        private int _numSegments;
+        private long _numPatients;
+        private boolean _completed;
+
+        private ProgressListener(int failingSegment) {
+            _failingSegment = failingSegment;
+        }
+
+        @Override
+        public void segmentCommitted(int numSegments, long numPatients) throws IOException {
+            if (numSegments == _failingSegment)
+                throw new IOException("interrupted");
+            _numSegments = numSegments;
+            _numPatients = numPatients;
+            // simulates a crash right after the progress has been recorded
+            if (numPatients == _failingNumPatients)
+                throw new IOException("interrupted");
+        }
+
+        @Override
+        public void outputCompleted() {
+            _completed = true;
+        }
+    }
+}
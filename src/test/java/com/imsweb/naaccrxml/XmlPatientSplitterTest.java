@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2019 Information Management Services, Inc.
+ */
+package com.imsweb.naaccrxml;
+
+import java.io.StringReader;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class XmlPatientSplitterTest {
+
+    @Test
+    public void testNextPatient() throws NaaccrIOException {
+        String xml = "<?xml version=\"1.0\"?>\n"
+                + "<!DOCTYPE NaaccrData [<!ENTITY test \"<Patient>\">]>\n"
+                + "<NaaccrData baseDictionaryUri=\"a>b\">\n"
+                + "  <Item naaccrId=\"registryId\">0000000001</Item>\n"
+                + "  <!-- <Patient> -->\n"
+                + "  <Patient>\n"
+                + "    <Item naaccrId=\"patientIdNumber\"><![CDATA[</Patient>]]></Item>\n"
+                + "    <Tumor><Item naaccrId=\"primarySite\">C123</Item></Tumor>\n"
+                + "  </Patient>\n"
+                + "  <naaccr:Patient attr='/>'/>\n"
+                + "</NaaccrData>\n";
+
+        XmlPatientSplitter splitter = new XmlPatientSplitter(new StringReader(xml));
+        Assert.assertEquals("<Patient>\n"
+                + "    <Item naaccrId=\"patientIdNumber\"><![CDATA[</Patient>]]></Item>\n"
+                + "    <Tumor><Item naaccrId=\"primarySite\">C123</Item></Tumor>\n"
+                + "  </Patient>", splitter.nextPatient());
+        Assert.assertEquals(6, splitter.getPatientLineNumber());
+        Assert.assertEquals("<naaccr:Patient attr='/>'/>", splitter.nextPatient());
+        Assert.assertEquals(10, splitter.getPatientLineNumber());
+        Assert.assertNull(splitter.nextPatient());
+        Assert.assertNull(splitter.nextPatient());
+
+        // unexpected tag after the patients
+        splitter = new XmlPatientSplitter(new StringReader("<NaaccrData>\n<Patient/>\n<Item/>\n</NaaccrData>"));
+        Assert.assertEquals("<Patient/>", splitter.nextPatient());
+        try {
+            splitter.nextPatient();
+            Assert.fail("Was expecting an exception");
+        }
+        catch (NaaccrIOException e) {
+            Assert.assertEquals(Integer.valueOf(3), e.getLineNumber());
+        }
+
+        // truncated file
+        splitter = new XmlPatientSplitter(new StringReader("<NaaccrData>\n<Patient>\n<Item>"));
+        Assert.assertEquals("<Patient>\n<Item>", splitter.nextPatient());
+        Assert.assertNull(splitter.nextPatient());
+    }
+}
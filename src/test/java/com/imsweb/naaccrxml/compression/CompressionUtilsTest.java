@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2019 Information Management Services, Inc.
+ */
+package com.imsweb.naaccrxml.compression;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.imsweb.naaccrxml.NaaccrIOException;
+import com.imsweb.naaccrxml.NaaccrXmlUtils;
+import com.imsweb.naaccrxml.TestingUtils;
+
+public class CompressionUtilsTest {
+
+    @Test
+    public void testGetCodec() {
+        Assert.assertEquals("gzip", CompressionUtils.getCodecForFilename("file.xml.gz").getName());
+        Assert.assertEquals("gzip", CompressionUtils.getCodecForFilename("FILE.XML.GZ").getName());
+        Assert.assertEquals("xz", CompressionUtils.getCodecForFilename("file.xml.xz").getName());
+        Assert.assertEquals("zstd", CompressionUtils.getCodecForFilename("file.xml.zst").getName());
+        Assert.assertEquals("lz4", CompressionUtils.getCodecForFilename("file.xml.lz4").getName());
+        Assert.assertNull(CompressionUtils.getCodecForFilename("file.xml"));
+        Assert.assertNull(CompressionUtils.getCodecForFilename(null));
+
+        Assert.assertEquals("gzip", CompressionUtils.getCodecForHeader(new byte[] {0x1F, (byte)0x8B, 0x08}, 3).getName());
+        Assert.assertEquals("xz", CompressionUtils.getCodecForHeader(new byte[] {(byte)0xFD, '7', 'z', 'X', 'Z', 0x00}, 6).getName());
+        Assert.assertEquals("zstd", CompressionUtils.getCodecForHeader(new byte[] {0x28, (byte)0xB5, 0x2F, (byte)0xFD}, 4).getName());
+        Assert.assertEquals("lz4", CompressionUtils.getCodecForHeader(new byte[] {0x04, 0x22, 0x4D, 0x18}, 4).getName());
+        Assert.assertNull(CompressionUtils.getCodecForHeader(new byte[] {0x1F, (byte)0x8B}, 1));
+        Assert.assertNull(CompressionUtils.getCodecForHeader(new byte[] {'<', '?', 'x', 'm', 'l'}, 5));
+
+        // the optional libraries are part of the test classpath
+        Assert.assertTrue(CompressionUtils.getCodecForFilename("file.gz").isAvailable());
+        Assert.assertTrue(CompressionUtils.getCodecForFilename("file.xz").isAvailable());
+        Assert.assertTrue(CompressionUtils.getCodecForFilename("file.zst").isAvailable());
+        Assert.assertTrue(CompressionUtils.getCodecForFilename("file.lz4").isAvailable());
+    }
+
+    @Test
+    public void testGzip() throws IOException {
+        String content = createContent();
+
+        // write a file using a specific buffer size and level, read it back
+        File file = TestingUtils.createFile("compression-test.txt.gz");
+        try (Writer writer = NaaccrXmlUtils.createWriter(file, 1024, Deflater.BEST_SPEED)) {
+            writer.write(content);
+        }
+        try (InputStream is = new GZIPInputStream(new FileInputStream(file))) {
+            Assert.assertEquals(content, IOUtils.toString(is, "UTF-8"));
+        }
+        try (Reader reader = NaaccrXmlUtils.createReader(file, 512)) {
+            Assert.assertEquals(content, IOUtils.toString(reader));
+        }
+
+        // the level should make a difference
+        File file2 = TestingUtils.createFile("compression-test2.txt.gz");
+        try (Writer writer = NaaccrXmlUtils.createWriter(file2, 1024, Deflater.NO_COMPRESSION)) {
+            writer.write(content);
+        }
+        Assert.assertTrue(file2.length() > file.length());
+
+        // a compressed file without the proper extension should be detected using its first bytes
+        File file3 = TestingUtils.createFile("compression-test3.txt");
+        try (InputStream is = new FileInputStream(file); OutputStream os = new FileOutputStream(file3)) {
+            IOUtils.copy(is, os);
+        }
+        try (Reader reader = NaaccrXmlUtils.createReader(file3)) {
+            Assert.assertEquals(content, IOUtils.toString(reader));
+        }
+
+        // a non-compressed file
+        File file4 = TestingUtils.createFile("compression-test4.txt");
+        try (Writer writer = NaaccrXmlUtils.createWriter(file4)) {
+            writer.write(content);
+        }
+        Assert.assertEquals(content, TestingUtils.readFileAsOneString(file4));
+        try (Reader reader = NaaccrXmlUtils.createReader(file4)) {
+            Assert.assertEquals(content, IOUtils.toString(reader));
+        }
+
+        // an empty file
+        File file5 = TestingUtils.createFile("compression-test5.txt");
+        try (Writer writer = NaaccrXmlUtils.createWriter(file5)) {
+            writer.write("");
+        }
+        try (Reader reader = NaaccrXmlUtils.createReader(file5)) {
+            Assert.assertEquals("", IOUtils.toString(reader));
+        }
+    }
+
+    @Test
+    public void testLibraryCodecs() throws IOException {
+        String content = createContent();
+        for (String extension : new String[] {"xz", "zst", "lz4"}) {
+            CompressionCodec codec = CompressionUtils.getCodecForFilename("file." + extension);
+
+            // write a file using a specific buffer size, read it back
+            File file = TestingUtils.createFile("compression-test." + extension + ".txt." + extension);
+            try (Writer writer = NaaccrXmlUtils.createWriter(file, 1024, CompressionUtils.DEFAULT_LEVEL)) {
+                writer.write(content);
+            }
+            Assert.assertTrue(extension, file.length() < content.length() / 2);
+            try (Reader reader = NaaccrXmlUtils.createReader(file, 512)) {
+                Assert.assertEquals(extension, content, IOUtils.toString(reader));
+            }
+
+            // the level should make a difference
+            File file2 = TestingUtils.createFile("compression-test2." + extension + ".txt." + extension);
+            try (Writer writer = NaaccrXmlUtils.createWriter(file2, 1024, 1)) {
+                writer.write(content);
+            }
+            File file3 = TestingUtils.createFile("compression-test3." + extension + ".txt." + extension);
+            try (Writer writer = NaaccrXmlUtils.createWriter(file3, 1024, 9)) {
+                writer.write(content);
+            }
+            Assert.assertNotEquals(extension, file2.length(), file3.length());
+
+            // a compressed file without the proper extension should be detected using its first bytes; concatenated streams are valid
+            File file4 = TestingUtils.createFile("compression-test4." + extension + ".txt");
+            try (OutputStream os = new FileOutputStream(file4)) {
+                Files.copy(file.toPath(), os);
+                Files.copy(file3.toPath(), os);
+            }
+            Assert.assertSame(codec, CompressionUtils.getCodecForContent(file4));
+            try (Reader reader = NaaccrXmlUtils.createReader(file4)) {
+                Assert.assertEquals(extension, content + content, IOUtils.toString(reader));
+            }
+
+            // the buffer size should be used by the streams
+            try (InputStream is = codec.createInputStream(new FileInputStream(file), 1024)) {
+                Assert.assertTrue(extension, is instanceof BufferedInputStream);
+            }
+        }
+    }
+
+    @Test
+    public void testUnavailableCodec() throws IOException {
+        MissingLibraryCodec codec = new MissingLibraryCodec();
+        Assert.assertFalse(codec.isAvailable());
+        CompressionUtils.registerCodec(codec);
+
+        try {
+            NaaccrXmlUtils.createWriter(TestingUtils.createFile("compression-test.txt.missing"));
+            Assert.fail("Was expecting an exception!");
+        }
+        catch (NaaccrIOException e) {
+            Assert.assertTrue(e.getMessage().contains("missing"));
+        }
+
+        File file = TestingUtils.createFile("compression-test-missing.txt");
+        try (OutputStream os = new FileOutputStream(file)) {
+            os.write(new byte[] {'M', 'I', 'S', 'S', 0x00, 0x04});
+        }
+        try {
+            NaaccrXmlUtils.createReader(file);
+            Assert.fail("Was expecting an exception!");
+        }
+        catch (NaaccrIOException e) {
+            Assert.assertTrue(e.getMessage().contains("org.example:missing"));
+        }
+    }
+
+    @Test
+    public void testRegisterCodec() throws IOException {
+        CompressionUtils.registerCodec(new XorCodec());
+        Assert.assertEquals("xor", CompressionUtils.getCodecs().get(0).getName());
+
+        String content = createContent();
+        File file = TestingUtils.createFile("compression-test.txt.xor");
+        try (Writer writer = NaaccrXmlUtils.createWriter(file)) {
+            writer.write(content);
+        }
+        Assert.assertNotEquals(content, TestingUtils.readFileAsOneString(file));
+        try (Reader reader = NaaccrXmlUtils.createReader(file)) {
+            Assert.assertEquals(content, IOUtils.toString(reader));
+        }
+    }
+
+    private static String createContent() {
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < 10000; i++)
+            buf.append("Line #").append(i).append(" with some repeated content\n");
+        return buf.toString();
+    }
+
+    // a codec that depends on a library that doesn't exist
+    private static class MissingLibraryCodec extends AbstractLibraryCodec {
+
+        MissingLibraryCodec() {
+            super("missing", new String[] {".missing"}, new byte[] {'M', 'I', 'S', 'S'}, "org.example:missing", "org.example.missing.MissingInputStream");
+        }
+
+        @Override
+        public InputStream createInputStream(InputStream is, int bufferSize) throws IOException {
+            checkAvailable();
+            return is;
+        }
+
+        @Override
+        public OutputStream createOutputStream(OutputStream os, int bufferSize, int level) throws IOException {
+            checkAvailable();
+            return os;
+        }
+    }
+
+    // a trivial "compression" used to test the registration of codecs
+    private static class XorCodec implements CompressionCodec {
+
+        @Override
+        public String getName() {
+            return "xor";
+        }
+
+        @Override
+        public List<String> getExtensions() {
+            return Collections.singletonList(".xor");
+        }
+
+        @Override
+        public boolean matchesHeader(byte[] header, int length) {
+            return false;
+        }
+
+        @Override
+        public boolean isAvailable() {
+            return true;
+        }
+
+        @Override
+        public InputStream createInputStream(InputStream is, int bufferSize) {
+            return new FilterInputStream(is) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    return b == -1 ? b : (b ^ 0x5A);
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = super.read(b, off, len);
+                    for (int i = off; i < off + n; i++)
+                        b[i] ^= 0x5A;
+                    return n;
+                }
+            };
+        }
+
+        @Override
+        public OutputStream createOutputStream(OutputStream os, int bufferSize, int level) {
+            return new FilterOutputStream(os) {
+                @Override
+                public void write(int b) throws IOException {
+                    super.write(b ^ 0x5A);
+                }
+            };
+        }
+    }
+}
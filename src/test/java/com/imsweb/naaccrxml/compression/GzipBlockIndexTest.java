@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2019 Information Management Services, Inc.
+ */
+package com.imsweb.naaccrxml.compression;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.imsweb.naaccrxml.TestingUtils;
+
+public class GzipBlockIndexTest {
+
+    @Test
+    public void testBlockIndex() throws IOException {
+        Random random = new Random(7);
+        byte[] data = new byte[50000];
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte)('a' + random.nextInt(5));
+
+        for (int numThreads : new int[] {1, 4}) {
+            File file = TestingUtils.createFile("block-index-" + numThreads + ".gz");
+            try (ParallelGzipOutputStream os = new ParallelGzipOutputStream(new FileOutputStream(file), numThreads, CompressionUtils.DEFAULT_LEVEL, 4000)) {
+                os.write(data, 0, 1000);
+                os.endBlock();
+                os.endBlock();
+                Assert.assertEquals(0, os.getCurrentBlockLength());
+                os.write(data, 1000, 500);
+                Assert.assertEquals(500, os.getCurrentBlockLength());
+                os.write(data, 1500, data.length - 1500);
+            }
+            Assert.assertTrue(GzipBlockIndex.isSeekable(file));
+
+            // 1000 bytes, then 500 + 3500, then blocks of 4000 bytes
+            GzipBlockIndex index = GzipBlockIndex.build(file);
+            Assert.assertEquals(2 + (int)Math.ceil((data.length - 4000 - 1000) / 4000.0), index.getBlockCount());
+            Assert.assertEquals(0, index.getUncompressedOffset(0));
+            Assert.assertEquals(1000, index.getUncompressedOffset(1));
+            Assert.assertEquals(5000, index.getUncompressedOffset(2));
+            Assert.assertEquals(0, index.getCompressedOffset(0));
+            Assert.assertEquals(0, index.getBlockIndex(999));
+            Assert.assertEquals(1, index.getBlockIndex(1000));
+            Assert.assertEquals(1, index.getBlockIndex(4999));
+            Assert.assertEquals(2, index.getBlockIndex(5000));
+
+            // reading from any offset should return the rest of the data
+            for (int offset : new int[] {0, 1, 999, 1000, 1001, 4999, 5000, 23456, data.length - 1, data.length}) {
+                try (InputStream is = index.createInputStream(file, offset, 512)) {
+                    Assert.assertArrayEquals("offset " + offset, Arrays.copyOfRange(data, offset, data.length), IOUtils.toByteArray(is));
+                }
+            }
+        }
+
+        // an empty stream
+        File file = TestingUtils.createFile("block-index-empty.gz");
+        new ParallelGzipOutputStream(new FileOutputStream(file), 2).close();
+        Assert.assertEquals(1, GzipBlockIndex.build(file).getBlockCount());
+    }
+
+    @Test
+    public void testNotSeekable() throws IOException {
+        File file = TestingUtils.createFile("block-index-standard.gz");
+        try (OutputStream os = new GZIPOutputStream(new FileOutputStream(file))) {
+            os.write(new byte[1000]);
+        }
+        Assert.assertFalse(GzipBlockIndex.isSeekable(file));
+        try {
+            GzipBlockIndex.build(file);
+            Assert.fail("Was expecting an exception!");
+        }
+        catch (IOException e) {
+            // expected
+        }
+    }
+}
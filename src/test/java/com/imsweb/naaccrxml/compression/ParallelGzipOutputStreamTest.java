@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2019 Information Management Services, Inc.
+ */
+package com.imsweb.naaccrxml.compression;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.imsweb.naaccrxml.NaaccrFormat;
+import com.imsweb.naaccrxml.NaaccrXmlUtils;
+import com.imsweb.naaccrxml.PatientXmlReader;
+import com.imsweb.naaccrxml.PatientXmlWriter;
+import com.imsweb.naaccrxml.TestingUtils;
+import com.imsweb.naaccrxml.entity.Item;
+import com.imsweb.naaccrxml.entity.NaaccrData;
+import com.imsweb.naaccrxml.entity.Patient;
+import com.imsweb.naaccrxml.entity.Tumor;
+
+public class ParallelGzipOutputStreamTest {
+
+    @Test
+    public void testCompression() throws IOException {
+        Random random = new Random(42);
+        for (int size : new int[] {0, 1, 999, 1000, 1001, 25000}) {
+            byte[] data = new byte[size];
+            for (int i = 0; i < size; i++)
+                data[i] = (byte)('A' + random.nextInt(10));
+            for (int numThreads : new int[] {1, 3}) {
+
+                // write using a mix of single bytes and arrays, with a few flushes
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                try (OutputStream os = new ParallelGzipOutputStream(out, numThreads, 5, 1000)) {
+                    int idx = 0;
+                    while (idx < size) {
+                        if (idx % 7 == 0)
+                            os.write(data[idx++]);
+                        else {
+                            int len = Math.min(size - idx, random.nextInt(3000));
+                            os.write(data, idx, len);
+                            idx += len;
+                        }
+                        if (idx % 5 == 0)
+                            os.flush();
+                    }
+                }
+
+                // the result should be a valid GZip file that the JDK can read
+                try (InputStream is = new GZIPInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+                    Assert.assertArrayEquals("size " + size + ", threads " + numThreads, data, IOUtils.toByteArray(is));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testClosedStream() throws IOException {
+        OutputStream os = new ParallelGzipOutputStream(new ByteArrayOutputStream(), 2);
+        os.close();
+        os.close();
+        try {
+            os.write(1);
+            Assert.fail("Was expecting an exception!");
+        }
+        catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testSharedThreads() throws IOException {
+        byte[] data = new byte[10000];
+        new Random(1).nextBytes(data);
+
+        // several streams written at the same time (each requesting as many threads as there are processors) share the same compression threads
+        int numProcessors = Runtime.getRuntime().availableProcessors();
+        List<ByteArrayOutputStream> outs = new ArrayList<>();
+        List<OutputStream> streams = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            outs.add(new ByteArrayOutputStream());
+            streams.add(new ParallelGzipOutputStream(outs.get(i), numProcessors, CompressionUtils.DEFAULT_LEVEL, 1000));
+        }
+        for (OutputStream os : streams)
+            os.write(data);
+        long numThreads = Thread.getAllStackTraces().keySet().stream().filter(t -> t.getName().startsWith("naaccr-gzip-")).count();
+        Assert.assertTrue(String.valueOf(numThreads), numThreads <= numProcessors);
+        for (OutputStream os : streams)
+            os.close();
+
+        for (ByteArrayOutputStream out : outs)
+            try (InputStream is = new GZIPInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+                Assert.assertArrayEquals(data, IOUtils.toByteArray(is));
+            }
+    }
+
+    @Test
+    public void testXmlFile() throws IOException {
+        NaaccrData data = new NaaccrData(NaaccrFormat.NAACCR_FORMAT_18_INCIDENCE);
+        data.addItem(new Item("registryId", "0000000001"));
+        List<Patient> patients = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            Patient patient = new Patient();
+            patient.addItem(new Item("patientIdNumber", String.format("%08d", i)));
+            Tumor tumor = new Tumor();
+            tumor.addItem(new Item("primarySite", "C" + (100 + i % 900)));
+            patient.addTumor(tumor);
+            patients.add(patient);
+        }
+
+        // write an XML file with a codec using several threads and tiny blocks, read it back
+        File file = TestingUtils.createFile("parallel-gzip-test.xml.gz");
+        try (OutputStream os = new ParallelGzipOutputStream(new FileOutputStream(file), 4, CompressionUtils.DEFAULT_LEVEL, 256)) {
+            try (PatientXmlWriter writer = new PatientXmlWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8), data)) {
+                for (int i = 0; i < 100; i++)
+                    for (Patient patient : patients)
+                        writer.writePatient(patient);
+            }
+        }
+        try (PatientXmlReader reader = new PatientXmlReader(NaaccrXmlUtils.createReader(file))) {
+            int count = 0;
+            while (reader.readPatient() != null)
+                count++;
+            Assert.assertEquals(100 * patients.size(), count);
+        }
+
+        // the codec should use the parallel stream when requested
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (OutputStream os = new GzipCodec(2).createOutputStream(out, 1024, CompressionUtils.DEFAULT_LEVEL)) {
+            Assert.assertTrue(os instanceof ParallelGzipOutputStream);
+            os.write("test".getBytes("UTF-8"));
+        }
+        try (InputStream is = new GZIPInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+            Assert.assertEquals("test", IOUtils.toString(is, "UTF-8"));
+        }
+        try (OutputStream os = new GzipCodec(1).createOutputStream(new ByteArrayOutputStream(), 1024, CompressionUtils.DEFAULT_LEVEL)) {
+            Assert.assertFalse(os instanceof ParallelGzipOutputStream);
+        }
+    }
+}
@@ -8,7 +8,13 @@ import java.util.Arrays;
 import org.junit.Assert;
 import org.junit.Test;
 
+import com.imsweb.naaccrxml.DuplicateItemException;
+import com.imsweb.naaccrxml.NaaccrErrorUtils;
 import com.imsweb.naaccrxml.NaaccrFormat;
+import com.imsweb.naaccrxml.NaaccrIOException;
+import com.imsweb.naaccrxml.NaaccrValidationError;
+import com.imsweb.naaccrxml.NaaccrXmlDictionaryUtils;
+import com.imsweb.naaccrxml.runtime.RuntimeNaaccrDictionary;
 
 public class AbstractEntityTest {
 
@@ -46,4 +52,148 @@ public class AbstractEntityTest {
         Assert.assertEquals("1", tumor2.getItemValue("laterality"));
     }
 
+    @Test
+    public void testCompactStorage() throws NaaccrIOException {
+        RuntimeNaaccrDictionary dictionary = RuntimeNaaccrDictionary.getInstance(NaaccrFormat.NAACCR_REC_TYPE_ABSTRACT,
+                NaaccrXmlDictionaryUtils.getBaseDictionaryByVersion(NaaccrFormat.NAACCR_VERSION_180), null);
+
+        // existing items are moved to the compact storage, unknown items are kept as regular items
+        Tumor tumor = new Tumor();
+        tumor.addItem(new Item("laterality", null, "1", 10));
+        tumor.addItem(new Item("unknownItem", null, "X", 12));
+        tumor.useCompactStorage(dictionary);
+        Assert.assertTrue(tumor.isUsingCompactStorage());
+        tumor.addItem(new Item("primarySite", null, "C123", 10));
+        Assert.assertEquals(3, tumor.getItems().size());
+        Assert.assertEquals("primarySite", tumor.getItems().get(0).getNaaccrId());
+        Assert.assertEquals("laterality", tumor.getItems().get(1).getNaaccrId());
+        Assert.assertEquals("unknownItem", tumor.getItems().get(2).getNaaccrId());
+        Assert.assertEquals("C123", tumor.getItemValue("primarySite"));
+        Assert.assertEquals(Integer.valueOf(400), tumor.getItem("primarySite").getNaaccrNum());
+        Assert.assertEquals("X", tumor.getItemValue("unknownItem"));
+        Assert.assertNull(tumor.getItem("histologicTypeIcdO3"));
+        Assert.assertNull(tumor.getItemValue("histologicTypeIcdO3"));
+
+        // items are views on the storage
+        tumor.getItem("primarySite").setValue("C456");
+        Assert.assertEquals("C456", tumor.getItemValue("primarySite"));
+        Assert.assertEquals(Integer.valueOf(10), tumor.getItem("primarySite").getStartLineNumber());
+        tumor.getItem("primarySite").setStartLineNumber(11);
+        Assert.assertEquals(Integer.valueOf(11), tumor.getItem("primarySite").getStartLineNumber());
+        Assert.assertEquals(Integer.valueOf(10), tumor.getItem("laterality").getStartLineNumber());
+        Assert.assertNull(tumor.getItem("laterality").getValidationError());
+        tumor.getItem("laterality").setValidationError(new NaaccrValidationError(NaaccrErrorUtils.CODE_VAL_DATA_TYPE, "digits"));
+        Assert.assertEquals(1, tumor.getAllValidationErrors().size());
+        // duplicate items are still not allowed
+        try {
+            tumor.addItem(new Item("laterality", "2"));
+            Assert.fail("Was expecting an exception");
+        }
+        catch (DuplicateItemException e) {
+            // expected
+        }
+
+        // removing an item also removes its validation error
+        Assert.assertTrue(tumor.removeItem("laterality"));
+        Assert.assertFalse(tumor.removeItem("laterality"));
+        Assert.assertNull(tumor.getItem("laterality"));
+        Assert.assertTrue(tumor.getAllValidationErrors().isEmpty());
+        Assert.assertTrue(tumor.removeItem("unknownItem"));
+        Assert.assertEquals(1, tumor.getItems().size());
+        tumor.addItem(new Item("laterality", "2"));
+        Assert.assertEquals("2", tumor.getItemValue("laterality"));
+        Assert.assertNull(tumor.getItem("laterality").getStartLineNumber());
+
+        // patient items on a tumor are kept as regular items
+        tumor.addItem(new Item("patientIdNumber", "00000001"));
+        Assert.assertEquals("00000001", tumor.getItemValue("patientIdNumber"));
+        Patient patient = new Patient();
+        patient.useCompactStorage(dictionary);
+        patient.addItem(new Item("patientIdNumber", "00000001"));
+        Assert.assertEquals("00000001", patient.getItemValue("patientIdNumber"));
+        Assert.assertNull(patient.getItemValue("primarySite"));
+
+        // items without a value or with a different number are kept as regular items
+        tumor = new Tumor();
+        tumor.useCompactStorage(dictionary);
+        tumor.addItem(new Item("primarySite", null, null, 10));
+        tumor.addItem(new Item("laterality", 999, "1", 11));
+        Assert.assertEquals(2, tumor.getItems().size());
+        Assert.assertEquals("primarySite", tumor.getItems().get(0).getNaaccrId());
+        Assert.assertNull(tumor.getItems().get(0).getValue());
+        Assert.assertEquals(Integer.valueOf(10), tumor.getItem("primarySite").getStartLineNumber());
+        Assert.assertEquals(Integer.valueOf(999), tumor.getItem("laterality").getNaaccrNum());
+        Assert.assertEquals("1", tumor.getItemValue("laterality"));
+        try {
+            tumor.addItem(new Item("primarySite", "C123"));
+            Assert.fail("Was expecting an exception");
+        }
+        catch (DuplicateItemException e) {
+            // expected
+        }
+        Assert.assertTrue(tumor.removeItem("primarySite"));
+        Assert.assertTrue(tumor.removeItem("laterality"));
+        Assert.assertTrue(tumor.getItems().isEmpty());
+
+        // changing the ID, number or value of a compact item moves it to the regular items
+        tumor.addItem(new Item("primarySite", null, "C123", 10));
+        Item item = tumor.getItem("primarySite");
+        item.setNaaccrNum(400);
+        Assert.assertEquals(Integer.valueOf(400), tumor.getItem("primarySite").getNaaccrNum());
+        item.setNaaccrNum(999);
+        Assert.assertEquals(Integer.valueOf(999), item.getNaaccrNum());
+        Assert.assertEquals(Integer.valueOf(999), tumor.getItem("primarySite").getNaaccrNum());
+        Assert.assertEquals("C123", tumor.getItemValue("primarySite"));
+        Assert.assertEquals(Integer.valueOf(10), tumor.getItem("primarySite").getStartLineNumber());
+        item.setValue("C456");
+        Assert.assertEquals("C456", tumor.getItemValue("primarySite"));
+        Assert.assertEquals(1, tumor.getItems().size());
+        tumor.addItem(new Item("laterality", "1"));
+        item = tumor.getItem("laterality");
+        item.setValue(null);
+        Assert.assertNull(item.getValue());
+        Assert.assertNotNull(tumor.getItem("laterality"));
+        Assert.assertNull(tumor.getItemValue("laterality"));
+        Assert.assertEquals(2, tumor.getItems().size());
+        tumor.addItem(new Item("histologicTypeIcdO3", "8000"));
+        item = tumor.getItem("histologicTypeIcdO3");
+        item.setNaaccrId("other");
+        Assert.assertEquals("other", item.getNaaccrId());
+        Assert.assertEquals(3, tumor.getItems().size());
+        Assert.assertEquals("other", tumor.getItems().get(2).getNaaccrId());
+        Assert.assertEquals("8000", tumor.getItems().get(2).getValue());
+    }
+
+    @Test
+    public void testCompactValuePool() throws NaaccrIOException {
+        RuntimeNaaccrDictionary dictionary = RuntimeNaaccrDictionary.getInstance(NaaccrFormat.NAACCR_REC_TYPE_ABSTRACT,
+                NaaccrXmlDictionaryUtils.getBaseDictionaryByVersion(NaaccrFormat.NAACCR_VERSION_180), null);
+
+        // the short values are shared between the entities using the same pool
+        CompactValuePool pool = new CompactValuePool();
+        Tumor tumor1 = new Tumor();
+        tumor1.useCompactStorage(dictionary, pool);
+        tumor1.addItem(new Item("primarySite", new String("C123")));
+        tumor1.addItem(new Item("dateOfDiagnosis", new String("20100101")));
+        Tumor tumor2 = new Tumor();
+        tumor2.useCompactStorage(dictionary, pool);
+        tumor2.addItem(new Item("primarySite", new String("C123")));
+        tumor2.addItem(new Item("dateOfDiagnosis", new String("20100101")));
+        Assert.assertSame(tumor1.getItemValue("primarySite"), tumor2.getItemValue("primarySite"));
+        Assert.assertNotSame(tumor1.getItemValue("dateOfDiagnosis"), tumor2.getItemValue("dateOfDiagnosis"));
+        Assert.assertEquals(1, pool.size());
+
+        // the values are not shared with the entities using a different pool (or no pool)
+        Tumor tumor3 = new Tumor();
+        tumor3.useCompactStorage(dictionary, new CompactValuePool());
+        tumor3.addItem(new Item("primarySite", new String("C123")));
+        Assert.assertNotSame(tumor1.getItemValue("primarySite"), tumor3.getItemValue("primarySite"));
+        Tumor tumor4 = new Tumor();
+        tumor4.useCompactStorage(dictionary);
+        tumor4.addItem(new Item("primarySite", new String("C123")));
+        Assert.assertNotSame(tumor1.getItemValue("primarySite"), tumor4.getItemValue("primarySite"));
+        Assert.assertEquals(1, pool.size());
+
+        Assert.assertNull(pool.share(null));
+    }
 }
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2019 Information Management Services, Inc.
+ */
+package com.imsweb.naaccrxml.runtime;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.imsweb.naaccrxml.NaaccrOptions;
+import com.imsweb.naaccrxml.NaaccrValidationError;
+import com.imsweb.naaccrxml.NaaccrXmlUtils;
+import com.imsweb.naaccrxml.PatientXmlReader;
+import com.imsweb.naaccrxml.PatientXmlWriter;
+import com.imsweb.naaccrxml.TestingUtils;
+import com.imsweb.naaccrxml.entity.Item;
+import com.imsweb.naaccrxml.entity.Patient;
+import com.imsweb.naaccrxml.entity.Tumor;
+import com.imsweb.naaccrxml.entity.dictionary.NaaccrDictionary;
+
+public class NaaccrStreamConfigurationTest {
+
+    @Test
+    public void testSharedConfiguration() throws IOException, InterruptedException, ExecutionException {
+        // use the first few hundred records of the large test file
+        File flatFile = new File(TestingUtils.getBuildDirectory(), "test-shared-configuration.txt");
+        try (BufferedReader reader = new BufferedReader(NaaccrXmlUtils.createReader(TestingUtils.getDataFile("fake-naaccr14inc-10000-rec.txt.gz")));
+             Writer writer = NaaccrXmlUtils.createWriter(flatFile)) {
+            for (int i = 0; i < 250; i++)
+                writer.write(reader.readLine() + "\n");
+        }
+        File xmlFile = new File(TestingUtils.getBuildDirectory(), "test-shared-configuration.xml");
+        NaaccrOptions options = new NaaccrOptions();
+        options.setReportLevelMismatch(true);
+        NaaccrXmlUtils.flatToXml(flatFile, xmlFile, options, null, null);
+
+        String expectedRead = readFile(xmlFile, new NaaccrStreamConfiguration());
+        String expectedWritten = rewriteFile(xmlFile, new NaaccrStreamConfiguration());
+
+        // the same configuration is used to read and write the file from several threads at the same time
+        NaaccrStreamConfiguration conf = new NaaccrStreamConfiguration();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<String>> read = new ArrayList<>(), written = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                read.add(executor.submit(() -> readFile(xmlFile, conf)));
+                written.add(executor.submit(() -> rewriteFile(xmlFile, conf)));
+            }
+            for (Future<String> future : read)
+                Assert.assertEquals(expectedRead, future.get());
+            for (Future<String> future : written)
+                Assert.assertEquals(expectedWritten, future.get());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testStreamUsedFromAnotherThread() throws IOException, InterruptedException, ExecutionException {
+        File file = TestingUtils.getDataFile("xml-reader-two-patients.xml");
+        NaaccrOptions options = new NaaccrOptions();
+        options.setUseStrictNamespaces(false);
+
+        NaaccrStreamConfiguration conf = new NaaccrStreamConfiguration();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (PatientXmlReader reader = new PatientXmlReader(NaaccrXmlUtils.createReader(file), options, (List<NaaccrDictionary>)null, conf)) {
+            Patient patient1 = executor.submit(reader::readPatient).get();
+            Assert.assertEquals(Integer.valueOf(3), patient1.getStartLineNumber());
+            Assert.assertEquals("00000001", patient1.getItemValue("patientIdNumber"));
+            Patient patient2 = reader.readPatient();
+            Assert.assertEquals("00000002", patient2.getItemValue("patientIdNumber"));
+            Assert.assertNull(executor.submit(reader::readPatient).get());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testConfigurationsAreReleased() throws IOException, InterruptedException {
+        File file = TestingUtils.getDataFile("xml-reader-two-patients.xml");
+        NaaccrOptions options = new NaaccrOptions();
+        options.setUseStrictNamespaces(false);
+
+        // the parsers and converters belong to the streams, so the configurations used by a long-lived thread (like this one) can be garbage collected
+        List<WeakReference<NaaccrStreamConfiguration>> references = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            NaaccrStreamConfiguration conf = new NaaccrStreamConfiguration();
+            references.add(new WeakReference<>(conf));
+            StringWriter buf = new StringWriter();
+            try (PatientXmlReader reader = new PatientXmlReader(NaaccrXmlUtils.createReader(file), options, (List<NaaccrDictionary>)null, conf);
+                 PatientXmlWriter writer = new PatientXmlWriter(buf, reader.getRootData(), options, (List<NaaccrDictionary>)null, conf)) {
+                for (Patient patient = reader.readPatient(); patient != null; patient = reader.readPatient())
+                    writer.writePatient(patient);
+            }
+        }
+
+        for (int i = 0; i < 10 && references.stream().anyMatch(r -> r.get() != null); i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        Assert.assertEquals(0, references.stream().filter(r -> r.get() != null).count());
+    }
+
+    // returns a description of the patients of the given file, including the items, the line numbers and the errors
+    private static String readFile(File file, NaaccrStreamConfiguration conf) throws IOException {
+        NaaccrOptions options = new NaaccrOptions();
+        options.setReportLevelMismatch(true);
+        StringBuilder buf = new StringBuilder();
+        try (PatientXmlReader reader = new PatientXmlReader(NaaccrXmlUtils.createReader(file), options, (List<NaaccrDictionary>)null, conf)) {
+            Patient patient = reader.readPatient();
+            while (patient != null) {
+                buf.append('[').append(patient.getStartLineNumber()).append(']');
+                for (Item item : patient.getItems())
+                    buf.append(item.getNaaccrId()).append('=').append(item.getValue()).append('@').append(item.getStartLineNumber()).append(';');
+                for (Tumor tumor : patient.getTumors()) {
+                    buf.append('[').append(tumor.getStartLineNumber()).append(']');
+                    for (Item item : tumor.getItems())
+                        buf.append(item.getNaaccrId()).append('=').append(item.getValue()).append('@').append(item.getStartLineNumber()).append(';');
+                }
+                for (NaaccrValidationError error : patient.getAllValidationErrors())
+                    buf.append(error.getCode()).append('@').append(error.getLineNumber()).append(';');
+                buf.append('\n');
+                patient = reader.readPatient();
+            }
+        }
+        return buf.toString();
+    }
+
+    // returns the content of the given file after reading it and writing it back
+    private static String rewriteFile(File file, NaaccrStreamConfiguration conf) throws IOException {
+        StringWriter buf = new StringWriter();
+        try (PatientXmlReader reader = new PatientXmlReader(NaaccrXmlUtils.createReader(file), null, (List<NaaccrDictionary>)null, conf)) {
+            reader.getRootData().setTimeGenerated(null);
+            try (PatientXmlWriter writer = new PatientXmlWriter(buf, reader.getRootData(), null, (List<NaaccrDictionary>)null, conf)) {
+                Patient patient = reader.readPatient();
+                while (patient != null) {
+                    writer.writePatient(patient);
+                    patient = reader.readPatient();
+                }
+            }
+        }
+        // the generation time is always written, so it needs to be removed
+        return buf.toString().replaceAll("timeGenerated=\"[^\"]+\"", "");
+    }
+}
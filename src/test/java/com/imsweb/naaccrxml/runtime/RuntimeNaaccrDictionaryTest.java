@@ -4,9 +4,12 @@
 package com.imsweb.naaccrxml.runtime;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 
+import org.junit.Assert;
 import org.junit.Test;
 
 import com.imsweb.naaccrxml.NaaccrFormat;
@@ -97,6 +100,140 @@ public class RuntimeNaaccrDictionaryTest {
         assertValid("A", baseDict, userDicts);
     }
 
+    @Test
+    public void testFlatReadPlan() throws NaaccrIOException {
+        NaaccrDictionary baseDict = NaaccrXmlDictionaryUtils.getBaseDictionaryByVersion(NaaccrFormat.NAACCR_VERSION_160);
+        RuntimeNaaccrDictionary dictionary = new RuntimeNaaccrDictionary("I", baseDict, null);
+
+        RuntimeNaaccrFlatReadPlan plan = dictionary.getFlatReadPlan();
+        Assert.assertSame(plan, dictionary.getFlatReadPlan());
+
+        // every item with a start column should be in exactly one of the levels
+        int count = 0;
+        for (RuntimeNaaccrDictionaryItem item : dictionary.getItems())
+            if (item.getStartColumn() != null)
+                count++;
+        Assert.assertEquals(count, plan.getRootLevel().size() + plan.getPatientLevel().size() + plan.getTumorLevel().size());
+        for (int i = 0; i < plan.getTumorLevel().size(); i++) {
+            Assert.assertEquals(NaaccrXmlUtils.NAACCR_XML_TAG_TUMOR, plan.getTumorLevel().getItem(i).getParentXmlElement());
+            Assert.assertEquals(plan.getTumorLevel().getItem(i).getStartColumn() - 1, plan.getTumorLevel().getStart(i));
+            Assert.assertEquals(plan.getTumorLevel().getItem(i).getLength().intValue(), plan.getTumorLevel().getLength(i));
+        }
+
+        // value extraction should follow the trimming rules
+        RuntimeNaaccrFlatReadPlan.Level level = plan.getPatientLevel();
+        int idx = -1;
+        for (int i = 0; i < level.size(); i++)
+            if (level.getItem(i).getNaaccrId().equals("patientIdNumber"))
+                idx = i;
+        Assert.assertTrue(idx >= 0);
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < dictionary.getLineLength(); i++)
+            line.append(' ');
+        Assert.assertNull(level.extractValue(line.toString(), idx));
+        line.replace(41, 49, " 123    ");
+        Assert.assertEquals("123", level.extractValue(line.toString(), idx));
+        Assert.assertNull(level.extractValue(line.substring(0, 45), idx));
+
+        // comparing lines should follow the same rules
+        RuntimeNaaccrFlatReadPlan.Level grouping = new RuntimeNaaccrFlatReadPlan.Level(Collections.singletonList(level.getItem(idx)));
+        StringBuilder other = new StringBuilder(line);
+        Assert.assertTrue(grouping.haveSameValues(line.toString(), other.toString()));
+        other.replace(41, 49, "123     ");
+        Assert.assertTrue(grouping.haveSameValues(line.toString(), other.toString()));
+        other.replace(41, 49, "124     ");
+        Assert.assertFalse(grouping.haveSameValues(line.toString(), other.toString()));
+        other.replace(41, 49, "        ");
+        Assert.assertFalse(grouping.haveSameValues(line.toString(), other.toString()));
+        line.replace(41, 49, "        ");
+        Assert.assertFalse(grouping.haveSameValues(line.toString(), other.toString()));
+    }
+
+    @Test
+    public void testGetInstance() throws NaaccrIOException {
+        RuntimeNaaccrDictionary.clearCache();
+
+        NaaccrDictionary baseDict = NaaccrXmlDictionaryUtils.getBaseDictionaryByVersion(NaaccrFormat.NAACCR_VERSION_160);
+        NaaccrDictionary userDict = NaaccrXmlDictionaryUtils.getDefaultUserDictionaryByVersion(NaaccrFormat.NAACCR_VERSION_160);
+
+        // same dictionaries should return the same instance
+        RuntimeNaaccrDictionary dictionary = RuntimeNaaccrDictionary.getInstance("I", baseDict, Collections.singletonList(userDict));
+        Assert.assertSame(dictionary, RuntimeNaaccrDictionary.getInstance("I", baseDict, Collections.singletonList(userDict)));
+        Assert.assertSame(dictionary, RuntimeNaaccrDictionary.getInstance("I", baseDict, Arrays.asList(null, userDict)));
+        Assert.assertNotSame(dictionary, RuntimeNaaccrDictionary.getInstance("A", baseDict, Collections.singletonList(userDict)));
+        Assert.assertNotSame(dictionary, RuntimeNaaccrDictionary.getInstance("I", baseDict, null));
+        Assert.assertEquals(3, RuntimeNaaccrDictionary.getCacheSize());
+
+        // a different user dictionary with the same URI should not return the cached instance
+        NaaccrDictionary userDict1 = createUserDictionary("user-dictionary");
+        NaaccrDictionary userDict2 = createUserDictionary("user-dictionary");
+        RuntimeNaaccrDictionary dictionary1 = RuntimeNaaccrDictionary.getInstance("I", baseDict, Collections.singletonList(userDict1));
+        RuntimeNaaccrDictionary dictionary2 = RuntimeNaaccrDictionary.getInstance("I", baseDict, Collections.singletonList(userDict2));
+        Assert.assertNotSame(dictionary1, dictionary2);
+        Assert.assertEquals(dictionary1.getId(), dictionary2.getId());
+        Assert.assertSame(dictionary2, RuntimeNaaccrDictionary.getInstance("I", baseDict, Collections.singletonList(userDict2)));
+        Assert.assertEquals(4, RuntimeNaaccrDictionary.getCacheSize());
+
+        // the dictionaries are mutable; a modified dictionary should not return the cached instance
+        NaaccrDictionaryItem newItem = new NaaccrDictionaryItem();
+        newItem.setNaaccrId("myVariable2");
+        newItem.setNaaccrName("My Variable 2");
+        newItem.setParentXmlElement(NaaccrXmlUtils.NAACCR_XML_TAG_TUMOR);
+        newItem.setNaaccrNum(10001);
+        newItem.setLength(1);
+        userDict2.addItem(newItem);
+        RuntimeNaaccrDictionary dictionary3 = RuntimeNaaccrDictionary.getInstance("I", baseDict, Collections.singletonList(userDict2));
+        Assert.assertNotSame(dictionary2, dictionary3);
+        Assert.assertNull(dictionary2.getItemByNaaccrId("myVariable2"));
+        Assert.assertNotNull(dictionary3.getItemByNaaccrId("myVariable2"));
+        Assert.assertSame(dictionary3, RuntimeNaaccrDictionary.getInstance("I", baseDict, Collections.singletonList(userDict2)));
+        newItem.setLength(2);
+        Assert.assertNotSame(dictionary3, RuntimeNaaccrDictionary.getInstance("I", baseDict, Collections.singletonList(userDict2)));
+        Assert.assertEquals(4, RuntimeNaaccrDictionary.getCacheSize());
+
+        // the cached instances are shared, so they can't be modified
+        try {
+            dictionary.getItems().clear();
+            Assert.fail("Was expecting an exception");
+        }
+        catch (UnsupportedOperationException e) {
+            // expected
+        }
+
+        // invalid dictionaries should not be cached
+        try {
+            RuntimeNaaccrDictionary.getInstance("I", null, null);
+            Assert.fail("Was expecting an exception");
+        }
+        catch (NaaccrIOException e) {
+            // expected
+        }
+        Assert.assertEquals(4, RuntimeNaaccrDictionary.getCacheSize());
+
+        // the cache should be bounded
+        for (int i = 0; i < 30; i++)
+            RuntimeNaaccrDictionary.getInstance("I", baseDict, Collections.singletonList(createUserDictionary("user-dictionary-" + i)));
+        Assert.assertEquals(25, RuntimeNaaccrDictionary.getCacheSize());
+
+        RuntimeNaaccrDictionary.clearCache();
+        Assert.assertEquals(0, RuntimeNaaccrDictionary.getCacheSize());
+    }
+
+    private NaaccrDictionary createUserDictionary(String uri) {
+        NaaccrDictionary dict = new NaaccrDictionary();
+        dict.setNaaccrVersion(NaaccrFormat.NAACCR_VERSION_160);
+        dict.setDictionaryUri(uri);
+        dict.setSpecificationVersion(NaaccrXmlUtils.CURRENT_SPECIFICATION_VERSION);
+        NaaccrDictionaryItem item = new NaaccrDictionaryItem();
+        item.setNaaccrId("myVariable");
+        item.setNaaccrName("My Variable");
+        item.setParentXmlElement(NaaccrXmlUtils.NAACCR_XML_TAG_PATIENT);
+        item.setNaaccrNum(10000);
+        item.setLength(1);
+        dict.addItem(item);
+        return dict;
+    }
+
     private void assertValid(String recordType, NaaccrDictionary baseDictionary, Collection<NaaccrDictionary> userDictionaries) {
         try {
             new RuntimeNaaccrDictionary(recordType, baseDictionary, userDictionaries);
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2019 Information Management Services, Inc.
+ */
+package com.imsweb.naaccrxml.runtime;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.imsweb.naaccrxml.NaaccrFormat;
+import com.imsweb.naaccrxml.NaaccrIOException;
+import com.imsweb.naaccrxml.NaaccrOptions;
+import com.imsweb.naaccrxml.NaaccrXmlDictionaryUtils;
+import com.imsweb.naaccrxml.entity.dictionary.NaaccrDictionary;
+
+public class RuntimeNaaccrItemFilterTest {
+
+    @Test
+    public void testProcessItem() throws NaaccrIOException {
+        NaaccrDictionary baseDictionary = NaaccrXmlDictionaryUtils.getBaseDictionaryByVersion(NaaccrFormat.NAACCR_VERSION_180);
+        RuntimeNaaccrDictionary dictionary = new RuntimeNaaccrDictionary("I", baseDictionary, null);
+
+        // no options, or options without any list
+        for (NaaccrOptions options : new NaaccrOptions[] {null, new NaaccrOptions()}) {
+            RuntimeNaaccrItemFilter filter = new RuntimeNaaccrItemFilter(dictionary, options);
+            Assert.assertTrue(filter.isProcessingAllItems());
+            Assert.assertTrue(filter.processItem("primarySite"));
+            Assert.assertTrue(filter.processItem("unknown"));
+            Assert.assertTrue(filter.processItem(dictionary.getItemByNaaccrId("primarySite")));
+        }
+
+        // the filter should always agree with the options, for the items of the dictionary and for the other ones
+        List<String> ids = new ArrayList<>();
+        for (RuntimeNaaccrDictionaryItem item : dictionary.getItems())
+            if (ids.size() < 500 && item.getNaaccrId().hashCode() % 3 == 0)
+                ids.add(item.getNaaccrId());
+        ids.add("unknown1");
+        NaaccrOptions include = new NaaccrOptions();
+        include.setItemsToInclude(ids);
+        NaaccrOptions exclude = new NaaccrOptions();
+        exclude.setItemsToExclude(ids);
+        NaaccrOptions both = new NaaccrOptions();
+        both.setItemsToInclude(Collections.singletonList("primarySite"));
+        both.setItemsToExclude(Arrays.asList("primarySite", "laterality"));
+        RuntimeNaaccrDictionary otherDictionary = new RuntimeNaaccrDictionary("A", baseDictionary, null);
+        for (NaaccrOptions options : new NaaccrOptions[] {include, exclude, both}) {
+            RuntimeNaaccrItemFilter filter = new RuntimeNaaccrItemFilter(dictionary, options);
+            Assert.assertFalse(filter.isProcessingAllItems());
+            Assert.assertSame(dictionary, filter.getDictionary());
+            for (RuntimeNaaccrDictionaryItem item : dictionary.getItems()) {
+                Assert.assertEquals(item.getNaaccrId(), options.processItem(item.getNaaccrId()), filter.processItem(item));
+                Assert.assertEquals(item.getNaaccrId(), options.processItem(item.getNaaccrId()), filter.processItem(item.getNaaccrId()));
+            }
+            for (RuntimeNaaccrDictionaryItem item : otherDictionary.getItems())
+                Assert.assertEquals(item.getNaaccrId(), options.processItem(item.getNaaccrId()), filter.processItem(item));
+            for (String id : Arrays.asList("unknown1", "unknown2", null))
+                Assert.assertEquals(id, options.processItem(id), filter.processItem(id));
+        }
+
+        // the options are copied when the filter is created
+        NaaccrOptions options = new NaaccrOptions();
+        List<String> toExclude = new ArrayList<>(Collections.singletonList("primarySite"));
+        options.setItemsToExclude(toExclude);
+        RuntimeNaaccrItemFilter filter = new RuntimeNaaccrItemFilter(dictionary, options);
+        toExclude.add("laterality");
+        Assert.assertFalse(filter.processItem("primarySite"));
+        Assert.assertTrue(filter.processItem("laterality"));
+    }
+}